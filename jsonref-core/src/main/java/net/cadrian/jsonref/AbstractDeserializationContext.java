@@ -1,10 +1,22 @@
 package net.cadrian.jsonref;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.cadrian.jsonref.data.SerializationObject;
+import net.cadrian.jsonref.data.SerializationValue;
 
 abstract class AbstractDeserializationContext implements DeserializationContext {
 	private int index;
 	private int ref;
+	private SymbolTable propertyNames;
+	private SymbolTable classNames;
+	private Projection projection = Projection.ALL;
+	private SerializationValue[] classTable;
+	private SerializationValue[] valueTable;
+	private SerializationObject.Layout[] layouts;
+	private AtomicInteger expansionBudget = new AtomicInteger(
+			JsonOptions.DEFAULT_MAX_EXPANDED_ELEMENTS);
 
 	AbstractDeserializationContext() {
 		index = 0;
@@ -32,6 +44,36 @@ abstract class AbstractDeserializationContext implements DeserializationContext
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#appendPlainChars(java.lang
+	 * .StringBuilder)
+	 */
+	@Override
+	public void appendPlainChars(final StringBuilder buffer)
+			throws IOException {
+		char c;
+		while (isValid() && (c = get()) != '"' && c != '\\') {
+			buffer.append(c);
+			next();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#skipPlainChars()
+	 */
+	@Override
+	public void skipPlainChars() throws IOException {
+		char c;
+		while (isValid() && (c = get()) != '"' && c != '\\') {
+			next();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -62,4 +104,140 @@ abstract class AbstractDeserializationContext implements DeserializationContext
 		this.ref = ref;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getPropertyNames()
+	 */
+	@Override
+	public SymbolTable getPropertyNames() {
+		if (propertyNames == null) {
+			propertyNames = new SymbolTable();
+		}
+		return propertyNames;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getClassNames()
+	 */
+	@Override
+	public SymbolTable getClassNames() {
+		if (classNames == null) {
+			classNames = new SymbolTable();
+		}
+		return classNames;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getProjection()
+	 */
+	@Override
+	public Projection getProjection() {
+		return projection;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#setProjection(net.cadrian
+	 * .jsonref.Projection)
+	 */
+	@Override
+	public void setProjection(final Projection projection) {
+		this.projection = projection;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getClassTable()
+	 */
+	@Override
+	public SerializationValue[] getClassTable() {
+		return classTable;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#setClassTable(net.cadrian
+	 * .jsonref.data.SerializationValue[])
+	 */
+	@Override
+	public void setClassTable(final SerializationValue[] classTable) {
+		this.classTable = classTable;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getValueTable()
+	 */
+	@Override
+	public SerializationValue[] getValueTable() {
+		return valueTable;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#setValueTable(net.cadrian
+	 * .jsonref.data.SerializationValue[])
+	 */
+	@Override
+	public void setValueTable(final SerializationValue[] valueTable) {
+		this.valueTable = valueTable;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getLayouts()
+	 */
+	@Override
+	public SerializationObject.Layout[] getLayouts() {
+		return layouts;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#setLayouts(net.cadrian.jsonref
+	 * .data.SerializationObject.Layout[])
+	 */
+	@Override
+	public void setLayouts(final SerializationObject.Layout[] layouts) {
+		this.layouts = layouts;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.cadrian.jsonref.DeserializationContext#getExpansionBudget()
+	 */
+	@Override
+	public AtomicInteger getExpansionBudget() {
+		return expansionBudget;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#setExpansionBudget(java.util
+	 * .concurrent.atomic.AtomicInteger)
+	 */
+	@Override
+	public void setExpansionBudget(final AtomicInteger expansionBudget) {
+		this.expansionBudget = expansionBudget;
+	}
+
 }
\ No newline at end of file
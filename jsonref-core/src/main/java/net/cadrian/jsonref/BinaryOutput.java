@@ -0,0 +1,309 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary JSON/R encoding. It has the same data model as the text format
+ * but replaces the punctuation by type tags, and the numbers and lengths by
+ * varints.
+ * <p>
+ * A document starts with the {@linkplain #MAGIC magic bytes}, followed by one
+ * value. Each value starts with a tag byte:
+ * <ul>
+ * <li>constants (<code>null</code>, <code>true</code>, <code>false</code>):
+ * nothing else</li>
+ * <li>integers: a zigzag varint</li>
+ * <li>doubles: the 8 bytes of the IEEE 754 representation</li>
+ * <li>strings: the raw JSON content (without the quotes), as a varint length
+ * followed by UTF-8 bytes</li>
+ * <li>other numbers, and other values produced by the converter: the JSON
+ * text, as a string</li>
+ * <li>symbols (strings that are likely to be repeated, e.g. class names): a
+ * name (see below)</li>
+ * <li>references: a varint</li>
+ * <li>heaps and arrays: a varint size, followed by the values</li>
+ * <li>objects: a varint size, followed by the properties; each property is a
+ * name followed by a value</li>
+ * </ul>
+ * <p>
+ * Property names and symbols are written once per document: each name is a
+ * varint index in the names already written; if the index is the number of
+ * names written so far, the name follows as a string.
+ */
+public final class BinaryOutput {
+
+	static final byte[] MAGIC = { 'J', 'R', 1 };
+
+	static final int NULL = 0;
+	static final int FALSE = 1;
+	static final int TRUE = 2;
+	static final int INTEGER = 3;
+	static final int DOUBLE = 4;
+	static final int NUMBER = 5;
+	static final int STRING = 6;
+	static final int TEXT = 7;
+	static final int REF = 8;
+	static final int OBJECT = 9;
+	static final int ARRAY = 10;
+	static final int HEAP = 11;
+	static final int SYMBOL = 12;
+
+	private final DataOutputStream out;
+	private final Map<String, Integer> names = new HashMap<>();
+
+	/**
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	BinaryOutput(final OutputStream out) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.out.write(MAGIC);
+	}
+
+	/**
+	 * Start a heap
+	 *
+	 * @param size
+	 *            the number of entries that follow
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeHeap(final int size) throws IOException {
+		out.write(HEAP);
+		writeVarint(size);
+	}
+
+	/**
+	 * Start an object
+	 *
+	 * @param size
+	 *            the number of properties that follow
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeObject(final int size) throws IOException {
+		out.write(OBJECT);
+		writeVarint(size);
+	}
+
+	/**
+	 * Write the name of a property, as returned by the converter
+	 *
+	 * @param json
+	 *            the JSON string of the name
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeName(final String json) throws IOException {
+		writeIndexed(unquote(json));
+	}
+
+	/**
+	 * Write a string value that is likely to be repeated in the document
+	 * (e.g. a class name): it is written only once, in the names
+	 *
+	 * @param json
+	 *            the JSON text of the value, as returned by the converter
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeSymbol(final String json) throws IOException {
+		final int length = json.length();
+		if (length >= 2 && json.charAt(0) == '"'
+				&& json.charAt(length - 1) == '"') {
+			out.write(SYMBOL);
+			writeIndexed(json.substring(1, length - 1));
+		} else {
+			writeValue(null, json);
+		}
+	}
+
+	private void writeIndexed(final String name) throws IOException {
+		final Integer index = names.get(name);
+		if (index != null) {
+			writeVarint(index.intValue());
+		} else {
+			final int n = names.size();
+			names.put(name, Integer.valueOf(n));
+			writeVarint(n);
+			writeString(name);
+		}
+	}
+
+	/**
+	 * Start an array
+	 *
+	 * @param size
+	 *            the number of values that follow
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeArray(final int size) throws IOException {
+		out.write(ARRAY);
+		writeVarint(size);
+	}
+
+	/**
+	 * Write a reference
+	 *
+	 * @param ref
+	 *            the heap index
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeRef(final int ref) throws IOException {
+		out.write(REF);
+		writeVarint(ref);
+	}
+
+	/**
+	 * Write an atomic value
+	 *
+	 * @param value
+	 *            the value, used to keep floating point numbers binary; may
+	 *            be <code>null</code> if not known
+	 * @param json
+	 *            the JSON text of the value, as returned by the converter
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void writeValue(final Object value, final String json)
+			throws IOException {
+		final int length = json.length();
+		if ("null".equals(json)) {
+			out.write(NULL);
+		} else if ("true".equals(json)) {
+			out.write(TRUE);
+		} else if ("false".equals(json)) {
+			out.write(FALSE);
+		} else if (length >= 2 && json.charAt(0) == '"'
+				&& json.charAt(length - 1) == '"') {
+			out.write(STRING);
+			writeString(json.substring(1, length - 1));
+		} else if (isExactDouble(value, json)) {
+			out.write(DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (isLong(json)) {
+			out.write(INTEGER);
+			final long v = Long.parseLong(json);
+			writeVarint((v << 1) ^ (v >> 63));
+		} else if (length > 0
+				&& (json.charAt(0) == '-' || DeserializationProcessor
+						.isDigit(json.charAt(0)))) {
+			out.write(NUMBER);
+			writeString(json);
+		} else {
+			out.write(TEXT);
+			writeString(json);
+		}
+	}
+
+	/**
+	 * Flush the underlying stream
+	 *
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	private void writeString(final String string) throws IOException {
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		out.write(bytes);
+	}
+
+	private void writeVarint(final long value) throws IOException {
+		long v = value;
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static String unquote(final String json) {
+		final int length = json.length();
+		if (length >= 2 && json.charAt(0) == '"'
+				&& json.charAt(length - 1) == '"') {
+			return json.substring(1, length - 1);
+		}
+		return json;
+	}
+
+	/**
+	 * A double (or float) is kept binary only if the converter wrote it as
+	 * the same value
+	 */
+	private static boolean isExactDouble(final Object value,
+			final String json) {
+		try {
+			if (value instanceof Double) {
+				final double d = ((Double) value).doubleValue();
+				return !Double.isNaN(d) && !Double.isInfinite(d)
+						&& Double.parseDouble(json) == d;
+			}
+			if (value instanceof Float) {
+				final float f = ((Float) value).floatValue();
+				return !Float.isNaN(f) && !Float.isInfinite(f)
+						&& Float.parseFloat(json) == f;
+			}
+		} catch (final NumberFormatException e) {
+			// not a number after all
+		}
+		return false;
+	}
+
+	/**
+	 * Is the JSON text an integer that fits in a long (negative zero
+	 * excluded)?
+	 */
+	private static boolean isLong(final String json) {
+		final int length = json.length();
+		final int start = length > 0 && json.charAt(0) == '-' ? 1 : 0;
+		if (length == start || length - start > 19) {
+			return false;
+		}
+		if (json.charAt(start) == '0' && (length - start > 1 || start > 0)) {
+			return false;
+		}
+		for (int i = start; i < length; i++) {
+			if (!DeserializationProcessor.isDigit(json.charAt(i))) {
+				return false;
+			}
+		}
+		if (length - start < 19) {
+			return true;
+		}
+		try {
+			Long.parseLong(json);
+			return true;
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+
+}
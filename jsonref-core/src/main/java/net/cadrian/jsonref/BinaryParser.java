@@ -0,0 +1,247 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.cadrian.jsonref.DeserializationProcessor.ParseException;
+import net.cadrian.jsonref.data.AbstractSerializationObject;
+import net.cadrian.jsonref.data.SerializationArray;
+import net.cadrian.jsonref.data.SerializationHeap;
+import net.cadrian.jsonref.data.SerializationObject;
+import net.cadrian.jsonref.data.SerializationRef;
+import net.cadrian.jsonref.data.SerializationValue;
+
+/**
+ * Parse the {@linkplain BinaryOutput binary JSON/R encoding} into the same
+ * data as the text parser
+ */
+class BinaryParser {
+
+	/**
+	 * Sizes are not trusted for preallocation beyond that
+	 */
+	private static final int MAX_INITIAL_CAPACITY = 4096;
+
+	/**
+	 * The reference of the values nested in a heap entry (they are not heap
+	 * entries themselves)
+	 */
+	private static final int NO_REF = -1;
+
+	private final DataInputStream in;
+	private final JsonConverter converter;
+	// the raw names, and their conversions as property names or as symbols
+	private final List<String> names = new ArrayList<>();
+	private final List<String> properties = new ArrayList<>();
+	private final List<SerializationValue> symbols = new ArrayList<>();
+	private int ref;
+
+	/**
+	 * @param in
+	 *            the stream to read from
+	 * @param converter
+	 *            the converter, used for property names
+	 */
+	BinaryParser(final InputStream in, final JsonConverter converter) {
+		this.in = new DataInputStream(in);
+		this.converter = converter;
+	}
+
+	/**
+	 * Parse the whole document
+	 *
+	 * @return the data
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	SerializationData parse() throws IOException {
+		try {
+			for (final byte b : BinaryOutput.MAGIC) {
+				if (in.readByte() != b) {
+					throw new ParseException("not binary JSON/R");
+				}
+			}
+			return parseValue();
+		} catch (final EOFException e) {
+			throw new ParseException("invalid binary JSON/R: truncated");
+		}
+	}
+
+	private SerializationData parseValue() throws IOException {
+		final int tag = in.readUnsignedByte();
+		switch (tag) {
+		case BinaryOutput.NULL:
+			return SerializationValue.NULL;
+		case BinaryOutput.FALSE:
+			return SerializationValue.FALSE;
+		case BinaryOutput.TRUE:
+			return SerializationValue.TRUE;
+		case BinaryOutput.INTEGER:
+			final long v = readVarint();
+			return new SerializationValue(JsonNumber.valueOf((v >>> 1)
+					^ -(v & 1)));
+		case BinaryOutput.DOUBLE:
+			return new SerializationValue(JsonNumber.valueOf(
+					BigDecimal.valueOf(in.readDouble()), false));
+		case BinaryOutput.NUMBER:
+			return new SerializationValue(parseNumber(readString()));
+		case BinaryOutput.STRING:
+			return new SerializationValue("\"" + readString() + "\"");
+		case BinaryOutput.TEXT:
+			return new SerializationValue(readString());
+		case BinaryOutput.SYMBOL:
+			return readSymbol();
+		case BinaryOutput.REF:
+			return SerializationRef.valueOf(readSize());
+		case BinaryOutput.OBJECT:
+			return parseObject();
+		case BinaryOutput.ARRAY:
+			return parseArray();
+		case BinaryOutput.HEAP:
+			return parseHeap();
+		default:
+			throw new ParseException("invalid binary JSON/R: unexpected tag "
+					+ tag);
+		}
+	}
+
+	private SerializationHeap parseHeap() throws IOException {
+		final int n = readSize();
+		if (n == 0) {
+			throw new ParseException("invalid heap: missing entry");
+		}
+		final SerializationHeap result = new SerializationHeap(Math.min(n,
+				MAX_INITIAL_CAPACITY));
+		for (int i = 0; i < n; i++) {
+			ref = i;
+			final SerializationData entry = parseValue();
+			if (!(entry instanceof AbstractSerializationObject)) {
+				throw new ParseException("invalid heap: unexpected entry "
+						+ entry);
+			}
+			result.add((AbstractSerializationObject) entry);
+		}
+		return result;
+	}
+
+	private SerializationObject parseObject() throws IOException {
+		final SerializationObject result = new SerializationObject(null, ref);
+		ref = NO_REF;
+		final int n = readSize();
+		for (int i = 0; i < n; i++) {
+			final String name = readName();
+			if (result.contains(name)) {
+				throw new ParseException(
+						"invalid object: duplicated property \"" + name
+								+ "\"");
+			}
+			result.add(name, parseValue());
+		}
+		return result;
+	}
+
+	private SerializationArray parseArray() throws IOException {
+		final int n = readSize();
+		final SerializationArray result = new SerializationArray(Math.min(n,
+				MAX_INITIAL_CAPACITY), null, ref);
+		ref = NO_REF;
+		for (int i = 0; i < n; i++) {
+			result.add(parseValue());
+		}
+		return result;
+	}
+
+	private String readName() throws IOException {
+		final int index = readNameIndex();
+		String result = properties.get(index);
+		if (result == null) {
+			result = converter.fromJson("\"" + names.get(index) + "\"",
+					String.class);
+			properties.set(index, result);
+		}
+		return result;
+	}
+
+	private SerializationValue readSymbol() throws IOException {
+		final int index = readNameIndex();
+		SerializationValue result = symbols.get(index);
+		if (result == null) {
+			result = new SerializationValue("\"" + names.get(index) + "\"");
+			symbols.set(index, result);
+		}
+		return result;
+	}
+
+	private int readNameIndex() throws IOException {
+		final int index = readSize();
+		final int n = names.size();
+		if (index == n) {
+			names.add(readString());
+			properties.add(null);
+			symbols.add(null);
+		} else if (index > n) {
+			throw new ParseException("invalid binary JSON/R: unknown name "
+					+ index);
+		}
+		return index;
+	}
+
+	private JsonNumber parseNumber(final String number) throws IOException {
+		final StringDeserializationContext context = new StringDeserializationContext(
+				number.toCharArray());
+		final JsonNumber result = DeserializationProcessor
+				.parseJsonNumber(context);
+		if (context.isValid()) {
+			throw new ParseException("invalid number: " + number);
+		}
+		return result;
+	}
+
+	private String readString() throws IOException {
+		final byte[] bytes = new byte[readSize()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int readSize() throws IOException {
+		final long result = readVarint();
+		if (result > Integer.MAX_VALUE) {
+			throw new ParseException("invalid binary JSON/R: size too big");
+		}
+		return (int) result;
+	}
+
+	private long readVarint() throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.readUnsignedByte();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new ParseException("invalid binary JSON/R: varint too long");
+	}
+
+}
@@ -0,0 +1,313 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+
+import net.cadrian.jsonref.DeserializationProcessor.ParseException;
+
+/**
+ * Context on UTF-8 encoded bytes (e.g. a memory-mapped file). Whitespaces
+ * and plain string characters are scanned 8 bytes at a time (see
+ * {@link Swar}). The indexes are byte indexes in the buffer.
+ */
+class ByteBufferDeserializationContext extends
+		RandomAccessDeserializationContext {
+
+	private final ByteBuffer bytes;
+	private int bytesIndex;
+	private int bytesEnd;
+
+	private char current;
+	private int currentLength;
+	private char lowSurrogate;
+
+	/**
+	 * @param bytes
+	 *            the UTF-8 bytes, from the buffer's position to its limit
+	 */
+	ByteBufferDeserializationContext(final ByteBuffer bytes) {
+		this(Swar.littleEndian(bytes), bytes.position(), bytes.limit());
+	}
+
+	private ByteBufferDeserializationContext(final ByteBuffer bytes,
+			final int start, final int end) {
+		super();
+		this.bytes = bytes;
+		reset(start, end);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#reset(int,
+	 * int)
+	 */
+	@Override
+	void reset(final int start, final int end) {
+		assert 0 <= start && start <= end && end <= bytes.limit();
+		bytesIndex = start;
+		bytesEnd = end;
+		lowSurrogate = 0;
+		decode();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#length()
+	 */
+	@Override
+	int length() {
+		return bytes.limit();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#duplicate()
+	 */
+	@Override
+	RandomAccessDeserializationContext duplicate() {
+		return new ByteBufferDeserializationContext(bytes, bytesIndex,
+				bytesEnd);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#indexHeap()
+	 */
+	@Override
+	HeapIndex indexHeap() {
+		return HeapIndex.scan(bytes, bytesIndex, bytesEnd);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.RandomAccessDeserializationContext#substring(int,
+	 * int)
+	 */
+	@Override
+	String substring(final int start, final int end) {
+		final ByteBuffer range = bytes.duplicate();
+		range.limit(end);
+		range.position(start);
+		try {
+			return StandardCharsets.UTF_8.newDecoder().decode(range)
+					.toString();
+		} catch (final CharacterCodingException e) {
+			throw new ParseException("invalid UTF-8 sequence at " + start);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.RandomAccessDeserializationContext#regionEquals(int,
+	 * int, java.lang.String)
+	 */
+	@Override
+	boolean regionEquals(final int start, final int end, final String string) {
+		final int n = string.length();
+		if (end - start < n) {
+			// UTF-8 never uses fewer bytes than chars
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			final char c = string.charAt(i);
+			if (c >= 0x80) {
+				return substring(start, end).equals(string);
+			}
+			if (bytes.get(start + i) != c) {
+				return false;
+			}
+		}
+		return end - start == n;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.AbstractDeserializationContext#next()
+	 */
+	@Override
+	public void next() throws IOException {
+		if (lowSurrogate != 0) {
+			// second half of a surrogate pair: same bytes
+			current = lowSurrogate;
+			lowSurrogate = 0;
+		} else {
+			bytesIndex += currentLength;
+			decode();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.AbstractDeserializationContext#skipSpaces()
+	 */
+	@Override
+	public void skipSpaces() throws IOException {
+		while (isValid()) {
+			if (currentLength == 1) {
+				final int i = Swar.skipWhitespace(bytes, bytesIndex, bytesEnd);
+				if (i != bytesIndex) {
+					bytesIndex = i;
+					decode();
+					continue;
+				}
+			}
+			if (!Character.isWhitespace(current)) {
+				break;
+			}
+			next();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.AbstractDeserializationContext#appendPlainChars(java
+	 * .lang.StringBuilder)
+	 */
+	@Override
+	public void appendPlainChars(final StringBuilder buffer)
+			throws IOException {
+		while (isValid() && current != '"' && current != '\\') {
+			if (currentLength == 1) {
+				final int end = Swar.nextStringSpecial(bytes, bytesIndex,
+						bytesEnd);
+				for (int i = bytesIndex; i < end; i++) {
+					buffer.append((char) bytes.get(i));
+				}
+				if (end != bytesIndex) {
+					bytesIndex = end;
+					decode();
+					continue;
+				}
+			}
+			buffer.append(current);
+			next();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.AbstractDeserializationContext#skipPlainChars()
+	 */
+	@Override
+	public void skipPlainChars() {
+		if (isValid() && current != '"' && current != '\\') {
+			// the bytes of multi-byte sequences are never quotes nor
+			// backslashes: no need to decode them
+			bytesIndex = Swar.nextQuoteOrBackslash(bytes, bytesIndex,
+					bytesEnd);
+			lowSurrogate = 0;
+			decode();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.AbstractDeserializationContext#getIndex()
+	 */
+	@Override
+	public int getIndex() {
+		return bytesIndex;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.DeserializationContext#isValid()
+	 */
+	@Override
+	public boolean isValid() {
+		return bytesIndex < bytesEnd;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.DeserializationContext#get()
+	 */
+	@Override
+	public char get() {
+		return current;
+	}
+
+	/**
+	 * Decode the UTF-8 character at the current index
+	 */
+	private void decode() {
+		if (bytesIndex >= bytesEnd) {
+			currentLength = 0;
+			return;
+		}
+		final int b0 = bytes.get(bytesIndex);
+		if (b0 >= 0) {
+			current = (char) b0;
+			currentLength = 1;
+		} else if ((b0 & 0xE0) == 0xC0) {
+			current = (char) (((b0 & 0x1F) << 6) | continuation(1));
+			currentLength = 2;
+		} else if ((b0 & 0xF0) == 0xE0) {
+			current = (char) (((b0 & 0x0F) << 12) | (continuation(1) << 6)
+					| continuation(2));
+			currentLength = 3;
+		} else if ((b0 & 0xF8) == 0xF0) {
+			final int codePoint = ((b0 & 0x07) << 18)
+					| (continuation(1) << 12) | (continuation(2) << 6)
+					| continuation(3);
+			if (!Character.isSupplementaryCodePoint(codePoint)) {
+				throw invalid();
+			}
+			current = Character.highSurrogate(codePoint);
+			lowSurrogate = Character.lowSurrogate(codePoint);
+			currentLength = 4;
+		} else {
+			throw invalid();
+		}
+	}
+
+	private int continuation(final int offset) {
+		final int i = bytesIndex + offset;
+		if (i >= bytesEnd) {
+			throw invalid();
+		}
+		final int b = bytes.get(i);
+		if ((b & 0xC0) != 0x80) {
+			throw invalid();
+		}
+		return b & 0x3F;
+	}
+
+	private ParseException invalid() {
+		return new ParseException("invalid UTF-8 sequence at " + bytesIndex);
+	}
+
+}
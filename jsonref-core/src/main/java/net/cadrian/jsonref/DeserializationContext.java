@@ -1,12 +1,28 @@
 package net.cadrian.jsonref;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.cadrian.jsonref.data.SerializationObject;
+import net.cadrian.jsonref.data.SerializationValue;
 
 interface DeserializationContext {
 	public void next() throws IOException;
 
 	public void skipSpaces() throws IOException;
 
+	/**
+	 * Append the current character and the following ones, up to the next
+	 * quote or backslash (excluded), to the given buffer
+	 */
+	public void appendPlainChars(StringBuilder buffer) throws IOException;
+
+	/**
+	 * Skip the current character and the following ones, up to the next
+	 * quote or backslash (excluded)
+	 */
+	public void skipPlainChars() throws IOException;
+
 	public boolean isValid();
 
 	public char get();
@@ -17,4 +33,44 @@ interface DeserializationContext {
 
 	public void setRef(int ref);
 
+	public SymbolTable getPropertyNames();
+
+	public SymbolTable getClassNames();
+
+	public Projection getProjection();
+
+	public void setProjection(Projection projection);
+
+	/**
+	 * @return the classes declared in the document header, or
+	 *         <code>null</code> if none
+	 */
+	public SerializationValue[] getClassTable();
+
+	public void setClassTable(SerializationValue[] classTable);
+
+	/**
+	 * @return the shared values declared in the document header, or
+	 *         <code>null</code> if none
+	 */
+	public SerializationValue[] getValueTable();
+
+	public void setValueTable(SerializationValue[] valueTable);
+
+	/**
+	 * @return the object layouts declared in the document header, or
+	 *         <code>null</code> if none
+	 */
+	public SerializationObject.Layout[] getLayouts();
+
+	public void setLayouts(SerializationObject.Layout[] layouts);
+
+	/**
+	 * @return the number of elements that the runs of the document may still
+	 *         expand to (shared by the contexts parsing the same document)
+	 */
+	public AtomicInteger getExpansionBudget();
+
+	public void setExpansionBudget(AtomicInteger expansionBudget);
+
 }
\ No newline at end of file
@@ -16,9 +16,17 @@
 package net.cadrian.jsonref;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.cadrian.jsonref.data.AbstractSerializationObject;
 import net.cadrian.jsonref.data.SerializationArray;
@@ -38,6 +46,38 @@ class DeserializationProcessor {
 	'e' };
 	private static final char[] CONST_TRUE = new char[] { 't', 'r', 'u', 'e' };
 
+	private static final String CLASS_PROPERTY = "class";
+
+	/**
+	 * The reference of the values nested in a heap entry (they are not heap
+	 * entries themselves)
+	 */
+	private static final int NO_REF = -1;
+	static final String HEADER_CLASSES = "classes";
+	static final String HEADER_SHAPES = "shapes";
+	static final String HEADER_VALUES = "values";
+	static final String PATCH_SIZE = "size";
+	static final String PATCH_MOVES = "moves";
+	static final String PATCH_ENTRIES = "entries";
+
+	/**
+	 * The maximum exponent of a number: far beyond the range of doubles, but
+	 * small enough to keep exact conversions (e.g. to {@link BigInteger})
+	 * cheap
+	 */
+	private static final int MAX_EXPONENT = 9999;
+
+	/**
+	 * The minimum size of a JSON/R string for its heap to be parsed in
+	 * parallel
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/**
+	 * The minimum number of heap entries parsed by a single parallel task
+	 */
+	private static final int PARALLEL_GRAIN = 64;
+
 	static class ParseException extends RuntimeException {
 
 		private static final long serialVersionUID = 3557835262164012536L;
@@ -62,20 +102,459 @@ class DeserializationProcessor {
 	 */
 	public <T> T deserialize(final String jsonR, final JsonConverter converter,
 			final Class<? extends T> wantedType) {
-		final DeserializationContext context = new StringDeserializationContext(
+		return deserialize(jsonR, converter, wantedType, JsonOptions.DEFAULT);
+	}
+
+	/**
+	 * Deserialize a JSON/R object graph back to Java objects
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph
+	 * @param converter
+	 *            the converter
+	 * @param options
+	 *            the de/serialization options
+	 * @return the Java object
+	 */
+	public <T> T deserialize(final String jsonR, final JsonConverter converter,
+			final Class<? extends T> wantedType, final JsonOptions options) {
+		return deserialize(new StringDeserializationContext(jsonR), converter,
+				wantedType, options);
+	}
+
+	/**
+	 * Deserialize a UTF-8 encoded JSON/R object graph back to Java objects
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph, from its position to its limit
+	 * @param converter
+	 *            the converter
+	 * @param options
+	 *            the de/serialization options
+	 * @return the Java object
+	 */
+	public <T> T deserialize(final ByteBuffer jsonR,
+			final JsonConverter converter, final Class<? extends T> wantedType,
+			final JsonOptions options) {
+		return deserialize(new ByteBufferDeserializationContext(jsonR),
+				converter, wantedType, options);
+	}
+
+	/**
+	 * Deserialize a JSON/R object graph into an existing object graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph
+	 * @param converter
+	 *            the converter
+	 * @param target
+	 *            the existing object graph to reuse
+	 * @param options
+	 *            the de/serialization options
+	 * @return the Java object, either the target or a new object
+	 */
+	public <T> T deserializeInto(final String jsonR,
+			final JsonConverter converter, final T target,
+			final JsonOptions options) {
+		return parse(new StringDeserializationContext(jsonR), converter,
+				options).fromJsonInto(target, converter,
+				converter.getNewContext());
+	}
+
+	/**
+	 * Deserialize a UTF-8 encoded JSON/R object graph into an existing object
+	 * graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph, from its position to its limit
+	 * @param converter
+	 *            the converter
+	 * @param target
+	 *            the existing object graph to reuse
+	 * @param options
+	 *            the de/serialization options
+	 * @return the Java object, either the target or a new object
+	 */
+	public <T> T deserializeInto(final ByteBuffer jsonR,
+			final JsonConverter converter, final T target,
+			final JsonOptions options) {
+		return parse(new ByteBufferDeserializationContext(jsonR), converter,
+				options).fromJsonInto(target, converter,
+				converter.getNewContext());
+	}
+
+	/**
+	 * Deserialize a JSON/R object graph into an existing object graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph
+	 * @param converter
+	 *            the converter
+	 * @param target
+	 *            the existing object graph to reuse
+	 * @param options
+	 *            the de/serialization options
+	 * @return the Java object, either the target or a new object
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public <T> T deserializeInto(final Reader jsonR,
+			final JsonConverter converter, final T target,
+			final JsonOptions options) throws IOException {
+		final DeserializationContext context = new StreamDeserializationContext(
 				jsonR);
+		setOptions(context, options);
 		final JsonConverter.Context converterContext = converter
 				.getNewContext();
-		SerializationData data;
+		parseHeader(context, converter);
+		final SerializationData data = parse(context, converter);
+		return data.fromJsonInto(target, converter, converterContext);
+	}
+
+	/**
+	 * Query a single value of a JSON/R object graph, without deserializing the
+	 * whole graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph
+	 * @param path
+	 *            the path of the value
+	 * @param converter
+	 *            the converter
+	 * @param wantedType
+	 *            the type of the value
+	 * @return the value, or <code>null</code> if not found
+	 */
+	public <T> T query(final String jsonR, final JsonPath path,
+			final JsonConverter converter,
+			final Class<? extends T> wantedType) {
+		return query(new StringDeserializationContext(jsonR), path, converter,
+				wantedType);
+	}
+
+	/**
+	 * Query a single value of a UTF-8 encoded JSON/R object graph, without
+	 * deserializing the whole graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph, from its position to its limit
+	 * @param path
+	 *            the path of the value
+	 * @param converter
+	 *            the converter
+	 * @param wantedType
+	 *            the type of the value
+	 * @return the value, or <code>null</code> if not found
+	 */
+	public <T> T query(final ByteBuffer jsonR, final JsonPath path,
+			final JsonConverter converter,
+			final Class<? extends T> wantedType) {
+		return query(new ByteBufferDeserializationContext(jsonR), path,
+				converter, wantedType);
+	}
+
+	/**
+	 * The position of a query in a heap
+	 */
+	private static final class QueryCursor {
+		final HeapIndex index;
+
+		/**
+		 * If the query is on a row of a columnar table: the index of the row
+		 * (the context is on the table); -1 otherwise
+		 */
+		int row = -1;
+
+		/**
+		 * If the query is on a value computed from the input (e.g. an item of
+		 * a delta array): that value; <code>null</code> otherwise
+		 */
+		SerializationData value;
+
+		QueryCursor(final HeapIndex index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Walk the path over the raw input: the unwanted values are skipped, and
+	 * the references are followed using a {@linkplain HeapIndex heap index}.
+	 * Only the found value is parsed.
+	 */
+	private <T> T query(final RandomAccessDeserializationContext context,
+			final JsonPath path, final JsonConverter converter,
+			final Class<? extends T> wantedType) {
 		try {
-			data = parse(context, converter);
+			parseHeader(context, converter);
+			context.skipSpaces();
+			HeapIndex index = null;
+			if (context.isValid() && context.get() == '<') {
+				index = context.indexHeap();
+			}
+			final QueryCursor cursor = new QueryCursor(index);
+			if (!moveToRef(context, cursor, path.getRoot())) {
+				return null;
+			}
+			final StringBuilder name = new StringBuilder();
+			final int n = path.size();
+			for (int i = 0; i < n; i++) {
+				if (cursor.value != null
+						|| !followReference(context, cursor)) {
+					return null;
+				}
+				final String property = path.getProperty(i);
+				final boolean found;
+				if (property == null) {
+					found = moveToItem(context, cursor, path.getItem(i));
+				} else {
+					found = moveToProperty(context, cursor, property, name);
+				}
+				if (!found) {
+					return null;
+				}
+			}
+			final SerializationData data;
+			if (cursor.value != null) {
+				data = cursor.value;
+			} else if (!followReference(context, cursor)) {
+				return null;
+			} else if (context.get() != '*') {
+				data = parse(context, converter);
+			} else if (cursor.row < 0) {
+				data = parseTable(context, converter);
+			} else {
+				data = parseTable(context, converter).get(cursor.row);
+			}
+			return data.fromJson(wantedType, converter,
+					converter.getNewContext());
 		} catch (final IOException e) {
 			// should not happen anyway
 			throw new RuntimeException(e);
 		}
+	}
+
+	/**
+	 * Move to a heap entry; for a row of a columnar table, move to the table
+	 */
+	private boolean moveToRef(final RandomAccessDeserializationContext context,
+			final QueryCursor cursor, final int ref) throws IOException {
+		cursor.row = -1;
+		final HeapIndex index = cursor.index;
+		if (index == null) {
+			// not a heap: only the root object
+			return ref == 0;
+		}
+		if (ref >= index.size()) {
+			return false;
+		}
+		int table = ref;
+		while (isTableRow(context, index, table)) {
+			table--;
+		}
+		if (table != ref) {
+			context.skipSpaces();
+			if (table < 0 || !context.isValid() || context.get() != '*') {
+				throw new ParseException("invalid heap: row $" + ref
+						+ " without table");
+			}
+			cursor.row = ref - table - 1;
+		}
+		context.setRef(table);
+		return true;
+	}
+
+	/**
+	 * Move to the heap entry, and tell if it is a row of a table
+	 */
+	private static boolean isTableRow(
+			final RandomAccessDeserializationContext context,
+			final HeapIndex index, final int ref) throws IOException {
+		if (ref < 0) {
+			return false;
+		}
+		context.reset(index.getStart(ref), index.getEnd(ref));
+		context.skipSpaces();
+		return context.isValid() && context.get() == '^';
+	}
+
+	/**
+	 * If the current value is a reference, move to the referenced object
+	 */
+	private boolean followReference(
+			final RandomAccessDeserializationContext context,
+			final QueryCursor cursor) throws IOException {
+		context.skipSpaces();
+		if (!context.isValid()) {
+			throw new ParseException("missing value at " + context.getIndex());
+		}
+		if (context.get() != '$') {
+			return true;
+		}
+		final SerializationRef ref = parseReference(context);
+		if (cursor.index == null) {
+			throw new ParseException("invalid reference $" + ref.getRef()
+					+ ": no heap");
+		}
+		return moveToRef(context, cursor, ref.getRef())
+				&& followReference(context, cursor);
+	}
+
+	/**
+	 * If the current value is an object, move to the value of the given
+	 * property
+	 */
+	private boolean moveToProperty(
+			final RandomAccessDeserializationContext context,
+			final QueryCursor cursor, final String property,
+			final StringBuilder name) throws IOException {
+		if (context.get() == '*') {
+			// a table: only its rows have properties
+			final int row = cursor.row;
+			cursor.row = -1;
+			if (row < 0) {
+				return false;
+			}
+			context.next(); // skip '*'
+			context.skipSpaces();
+			if (!context.isValid()
+					|| !moveToProperty(context, cursor, property, name)) {
+				return false;
+			}
+			return CLASS_PROPERTY.equals(property)
+					|| moveToItem(context, cursor, row);
+		}
+		if (context.get() == '#') {
+			final int item = parseLayout(context).indexOf(property);
+			return item >= 0 && moveToItem(context, cursor, item);
+		}
+		if (context.get() != '{') {
+			return false;
+		}
+		context.next(); // skip '{'
+		context.skipSpaces();
+		if (context.isValid() && context.get() == '}') {
+			return false;
+		}
+		while (true) {
+			if (!context.isValid() || context.get() != '"') {
+				throw new ParseException(
+						"invalid object: missing property name at "
+								+ context.getIndex());
+			}
+			context.next(); // skip '"'
+			name.setLength(0);
+			scanStringChars(context, name);
+			context.next(); // skip '"'
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != ':') {
+				throw new ParseException("invalid object: missing ':' at "
+						+ context.getIndex());
+			}
+			context.next(); // skip ':'
+			context.skipSpaces();
+			if (property.contentEquals(name)) {
+				return true;
+			}
+			skipValue(context);
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != ',') {
+				return false;
+			}
+			context.next(); // skip ','
+			context.skipSpaces();
+		}
+	}
+
+	/**
+	 * If the current value is an array, move to its given item
+	 */
+	private boolean moveToItem(
+			final RandomAccessDeserializationContext context,
+			final QueryCursor cursor, final int item) throws IOException {
+		if (context.get() == '*' && cursor.row < 0) {
+			// a table: its items are the rows that follow it in the heap
+			final int ref = context.getRef() + 1 + item;
+			return moveToRef(context, cursor, ref) && cursor.row == item;
+		}
+		if (context.get() == '~') {
+			final List<SerializationData> deltas = parseDeltas(context,
+					item + 1);
+			if (deltas.size() <= item) {
+				return false;
+			}
+			cursor.value = deltas.get(item);
+			return true;
+		}
+		if (context.get() != '[') {
+			return false;
+		}
+		context.next(); // skip '['
+		int i = 0;
+		while (true) {
+			context.skipSpaces();
+			if (!context.isValid() || context.get() == ']') {
+				return false;
+			}
+			if (context.get() == '-' || isDigit(context.get())) {
+				// maybe the count of a run
+				final JsonNumber number = parseJsonNumber(context);
+				context.skipSpaces();
+				if (context.isValid() && context.get() == '*') {
+					i += getRunCount(context, number);
+					context.next(); // skip '*'
+					context.skipSpaces();
+					if (item < i) {
+						return true;
+					}
+					skipValue(context);
+				} else if (i++ == item) {
+					cursor.value = new SerializationValue(number);
+					return true;
+				}
+			} else if (i++ == item) {
+				return true;
+			} else {
+				skipValue(context);
+			}
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != ',') {
+				return false;
+			}
+			context.next(); // skip ','
+		}
+	}
+
+	private <T> T deserialize(final RandomAccessDeserializationContext context,
+			final JsonConverter converter, final Class<? extends T> wantedType,
+			final JsonOptions options) {
+		final JsonConverter.Context converterContext = converter
+				.getNewContext();
+		final SerializationData data = parse(context, converter, options);
 		return data.fromJson(wantedType, converter, converterContext);
 	}
 
+	private SerializationData parse(
+			final RandomAccessDeserializationContext context,
+			final JsonConverter converter, final JsonOptions options) {
+		setOptions(context, options);
+		SerializationData data;
+		try {
+			parseHeader(context, converter);
+			context.skipSpaces();
+			final ForkJoinPool pool = options.getParallelPool();
+			if (pool != null && context.isValid() && context.get() == '<'
+					&& context.length() >= PARALLEL_THRESHOLD) {
+				data = parseHeapInParallel(context, converter, pool);
+			} else {
+				data = parse(context, converter);
+			}
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+		return data;
+	}
+
 	/**
 	 * Deserialize a JSON/R object graph back to Java objects
 	 *
@@ -89,228 +568,1346 @@ class DeserializationProcessor {
 	 */
 	public <T> T deserialize(final Reader jsonR, final JsonConverter converter,
 			final Class<? extends T> wantedType) throws IOException {
+		return deserialize(jsonR, converter, wantedType, JsonOptions.DEFAULT);
+	}
+
+	/**
+	 * Deserialize a JSON/R object graph back to Java objects
+	 *
+	 * @param jsonR
+	 *            the JSON/R object graph
+	 * @param converter
+	 *            the converter
+	 * @param options
+	 *            the de/serialization options
+	 * @return the Java object
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public <T> T deserialize(final Reader jsonR, final JsonConverter converter,
+			final Class<? extends T> wantedType, final JsonOptions options)
+					throws IOException {
 		final DeserializationContext context = new StreamDeserializationContext(
 				jsonR);
+		setOptions(context, options);
 		final JsonConverter.Context converterContext = converter
 				.getNewContext();
+		parseHeader(context, converter);
 		final SerializationData data = parse(context, converter);
 		return data.fromJson(wantedType, converter, converterContext);
 	}
 
 	/**
-	 * The parser main function: parse any JSON/R kind of value
+	 * Deserialize a binary JSON/R object graph back to Java objects
 	 *
-	 * @param context
-	 *            the parser context
+	 * @param binary
+	 *            the binary JSON/R object graph
 	 * @param converter
 	 *            the converter
-	 * @return the serialization data
+	 * @param wantedType
+	 *            the wanted type
+	 * @return the Java object
 	 * @throws IOException
-	 *             on exception
+	 *             on I/O exception
+	 * @see BinaryOutput
 	 */
-	private SerializationData parse(final DeserializationContext context,
-			final JsonConverter converter) throws IOException {
-		SerializationData result = null;
-		context.skipSpaces();
-		if (context.isValid()) {
-			switch (context.get()) {
-			case '<':
-				result = parseHeap(context, converter);
-				break;
-			case '{':
-				result = parseObject(context, converter);
-				break;
-			case '[':
-				result = parseArray(context, converter);
-				break;
-			case '$':
-				result = parseReference(context);
-				break;
-			case '"':
-				result = parseString(context);
-				break;
-			case 't':
-				result = parseConst(context, CONST_TRUE, "true");
-				break;
-			case 'f':
-				result = parseConst(context, CONST_FALSE, "false");
-				break;
-			case 'n':
-				result = parseConst(context, CONST_NULL, null);
-				break;
-			default:
-				if (Character.isDigit(context.get())) {
-					result = parseNumber(context);
-				} else {
-					throw new ParseException("unexpected character '"
-							+ context.get() + "' at " + context.getIndex());
-				}
+	public <T> T deserializeBinary(final InputStream binary,
+			final JsonConverter converter, final Class<? extends T> wantedType)
+					throws IOException {
+		final SerializationData data = new BinaryParser(binary, converter)
+				.parse();
+		return data.fromJson(wantedType, converter, converter.getNewContext());
+	}
+
+	/**
+	 * Apply a JSON/R patch (see {@link JsonDiff}) to a previously
+	 * deserialized object graph, updating its objects in place
+	 *
+	 * @param patch
+	 *            the JSON/R patch
+	 * @param converter
+	 *            the converter
+	 * @param objects
+	 *            the previous objects, by reference
+	 * @return the new objects, by reference
+	 */
+	public Object[] applyPatch(final String patch,
+			final JsonConverter converter, final Object[] objects) {
+		final DeserializationContext context = new StringDeserializationContext(
+				patch);
+		int size = -1;
+		int[] moves = new int[0];
+		final List<AbstractSerializationObject> entries = new ArrayList<>();
+		try {
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != '!') {
+				throw new ParseException("invalid patch at "
+						+ context.getIndex());
+			}
+			context.next(); // skip '!'
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != '{') {
+				throw new ParseException("invalid patch at "
+						+ context.getIndex());
+			}
+			context.next(); // skip '{'
+			context.skipSpaces();
+			boolean more = !context.isValid() || context.get() != '}';
+			while (more) {
+				context.skipSpaces();
+				if (!context.isValid() || context.get() != '"') {
+					throw new ParseException("invalid patch: missing name at "
+							+ context.getIndex());
+				}
+				final String name = parsePropertyName(context, converter);
+				context.skipSpaces();
+				if (!context.isValid() || context.get() != ':') {
+					throw new ParseException("invalid patch: missing ':' at "
+							+ context.getIndex());
+				}
+				context.next(); // skip ':'
+				context.skipSpaces();
+				if (PATCH_SIZE.equals(name)) {
+					size = parsePatchIndex(context);
+				} else if (PATCH_MOVES.equals(name)) {
+					moves = parsePatchMoves(context);
+				} else if (PATCH_ENTRIES.equals(name)) {
+					parsePatchEntries(context, converter, entries);
+				} else {
+					skipValue(context);
+				}
+				more = parseHeaderSeparator(context, '}');
+			}
+			context.next(); // skip '}'
+		} catch (final IOException e) {
+			throw new ParseException(e);
+		}
+		if (size < 0) {
+			throw new ParseException("invalid patch: missing size");
+		}
+
+		final int[] oldRefs = new int[size];
+		for (int r = 0; r < size; r++) {
+			oldRefs[r] = -1;
+		}
+		for (int i = 0; i < moves.length; i += 3) {
+			final int ref = moves[i];
+			final int old = moves[i + 1];
+			final int count = moves[i + 2];
+			if (ref + count > size || old + count > objects.length) {
+				throw new ParseException("invalid patch: bad move $" + ref
+						+ " from $" + old);
+			}
+			for (int j = 0; j < count; j++) {
+				oldRefs[ref + j] = old + j;
+			}
+		}
+		final AbstractSerializationObject[] changed = new AbstractSerializationObject[size];
+		for (final AbstractSerializationObject entry : entries) {
+			if (entry.getRef() >= size) {
+				throw new ParseException("invalid patch: bad entry $"
+						+ entry.getRef());
+			}
+			changed[entry.getRef()] = entry;
+		}
+
+		final SerializationHeap heap = new SerializationHeap(size);
+		for (int r = 0; r < size; r++) {
+			// the other entries are already deserialized
+			heap.add(changed[r] == null ? new SerializationObject(null, r)
+					: changed[r]);
+		}
+		for (int r = 0; r < size; r++) {
+			if (oldRefs[r] >= 0) {
+				heap.setDeser(r, objects[oldRefs[r]]);
+			}
+		}
+		final JsonConverter.Context converterContext = converter
+				.getNewContext();
+		// first create the new objects, then update the known ones
+		for (int r = 0; r < size; r++) {
+			if (changed[r] != null && oldRefs[r] < 0
+					&& heap.getDeser(r) == null) {
+				heap.fromJsonInto(r, null, converter, converterContext);
+			}
+		}
+		for (int r = 0; r < size; r++) {
+			if (changed[r] != null && oldRefs[r] >= 0) {
+				heap.fromJsonInto(r, objects[oldRefs[r]], converter,
+						converterContext);
+			}
+		}
+
+		final Object[] result = new Object[size];
+		for (int r = 0; r < size; r++) {
+			result[r] = heap.getDeser(r);
+		}
+		return result;
+	}
+
+	private int parsePatchIndex(final DeserializationContext context)
+			throws IOException {
+		if (!context.isValid() || !isDigit(context.get())) {
+			throw new ParseException("invalid patch: missing index at "
+					+ context.getIndex());
+		}
+		final JsonNumber number = parseJsonNumber(context);
+		if (number.isIntegral()) {
+			try {
+				final long result = number.longValueExact();
+				if (result <= Integer.MAX_VALUE) {
+					return (int) result;
+				}
+			} catch (final ArithmeticException e) {
+				// see below
+			}
+		}
+		throw new ParseException("invalid patch: bad index " + number
+				+ " at " + context.getIndex());
+	}
+
+	/**
+	 * @return the moves, by triples: new reference, old reference, count
+	 */
+	private int[] parsePatchMoves(final DeserializationContext context)
+			throws IOException {
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid patch: missing moves at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '['
+		context.skipSpaces();
+		final List<Integer> result = new ArrayList<>();
+		boolean more = !context.isValid() || context.get() != ']';
+		while (more) {
+			context.skipSpaces();
+			result.add(parsePatchIndex(context));
+			more = parseHeaderSeparator(context, ']');
+		}
+		context.next(); // skip ']'
+		if (result.size() % 3 != 0) {
+			throw new ParseException("invalid patch: bad moves at "
+					+ context.getIndex());
+		}
+		final int[] moves = new int[result.size()];
+		for (int i = 0; i < moves.length; i++) {
+			moves[i] = result.get(i);
+		}
+		return moves;
+	}
+
+	/**
+	 * Parse the changed entries, by pairs: reference, entry
+	 */
+	private void parsePatchEntries(final DeserializationContext context,
+			final JsonConverter converter,
+			final List<AbstractSerializationObject> entries)
+					throws IOException {
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid patch: missing entries at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '['
+		context.skipSpaces();
+		boolean more = !context.isValid() || context.get() != ']';
+		while (more) {
+			context.skipSpaces();
+			final int ref = parsePatchIndex(context);
+			if (!parseHeaderSeparator(context, ']')) {
+				throw new ParseException("invalid patch: missing entry at "
+						+ context.getIndex());
+			}
+			context.setRef(ref);
+			final SerializationData entry = parse(context, converter);
+			if (!(entry instanceof AbstractSerializationObject)) {
+				throw new ParseException("invalid patch: bad entry $" + ref
+						+ " at " + context.getIndex());
+			}
+			entries.add((AbstractSerializationObject) entry);
+			more = parseHeaderSeparator(context, ']');
+		}
+		context.next(); // skip ']'
+	}
+
+	/**
+	 * The parser main function: parse any JSON/R kind of value
+	 *
+	 * @param context
+	 *            the parser context
+	 * @param converter
+	 *            the converter
+	 * @return the serialization data
+	 * @throws IOException
+	 *             on exception
+	 */
+	private SerializationData parse(final DeserializationContext context,
+			final JsonConverter converter) throws IOException {
+		SerializationData result = null;
+		context.skipSpaces();
+		if (context.isValid()) {
+			switch (context.get()) {
+			case '<':
+				result = parseHeap(context, converter);
+				break;
+			case '{':
+				result = parseObject(context, converter);
+				break;
+			case '#':
+				result = parsePositionalObject(context, converter);
+				break;
+			case '[':
+				result = parseArray(context, converter);
+				break;
+			case '~':
+				result = parseDeltaArray(context);
+				break;
+			case '$':
+				result = parseReference(context);
+				break;
+			case '%':
+				result = parseValueReference(context);
+				break;
+			case '"':
+				result = parseString(context);
+				break;
+			case 't':
+				result = parseConst(context, CONST_TRUE,
+						SerializationValue.TRUE);
+				break;
+			case 'f':
+				result = parseConst(context, CONST_FALSE,
+						SerializationValue.FALSE);
+				break;
+			case 'n':
+				result = parseConst(context, CONST_NULL,
+						SerializationValue.NULL);
+				break;
+			case '-':
+				result = parseNumber(context);
+				break;
+			default:
+				if (isDigit(context.get())) {
+					result = parseNumber(context);
+				} else {
+					throw new ParseException("unexpected character '"
+							+ context.get() + "' at " + context.getIndex());
+				}
+			}
+		}
+		return result;
+	}
+
+	private SerializationHeap parseHeap(final DeserializationContext context,
+			final JsonConverter converter) throws IOException {
+		final List<SerializationData> dataList = parseDataList(context, "heap",
+				'<', '>', converter);
+		final SerializationHeap result = new SerializationHeap(
+				dataList.size());
+		for (final SerializationData data : dataList) {
+			result.add((AbstractSerializationObject) data);
+		}
+		resolveTables(result);
+		return result;
+	}
+
+	private static void resolveTables(final SerializationHeap heap) {
+		try {
+			heap.resolveTables();
+		} catch (final SerializationException e) {
+			throw new ParseException(e);
+		}
+	}
+
+	/**
+	 * Parse a heap in two stages: first find the boundaries of the heap
+	 * entries, then parse the entries in parallel
+	 */
+	private SerializationHeap parseHeapInParallel(
+			final RandomAccessDeserializationContext context,
+			final JsonConverter converter, final ForkJoinPool pool) {
+		final HeapIndex index = context.indexHeap();
+		final int n = index.size();
+		final AbstractSerializationObject[] entries = new AbstractSerializationObject[n];
+		final int grain = Math.max(PARALLEL_GRAIN,
+				n / (pool.getParallelism() * 8));
+		pool.invoke(new ParseHeapTask(context, index, entries, 0, n, grain,
+				converter));
+
+		final SerializationHeap result = new SerializationHeap(n);
+		for (final AbstractSerializationObject entry : entries) {
+			result.add(entry);
+		}
+		resolveTables(result);
+		context.reset(index.getEnd(), context.length());
+		return result;
+	}
+
+	private class ParseHeapTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -7151806394720870893L;
+
+		private final RandomAccessDeserializationContext source;
+		private final HeapIndex index;
+		private final AbstractSerializationObject[] entries;
+		private final int low;
+		private final int high;
+		private final int grain;
+		private final JsonConverter converter;
+
+		ParseHeapTask(final RandomAccessDeserializationContext source,
+				final HeapIndex index,
+				final AbstractSerializationObject[] entries, final int low,
+				final int high, final int grain, final JsonConverter converter) {
+			this.source = source;
+			this.index = index;
+			this.entries = entries;
+			this.low = low;
+			this.high = high;
+			this.grain = grain;
+			this.converter = converter;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if (high - low <= grain) {
+				final RandomAccessDeserializationContext context = source
+						.duplicate();
+				context.setProjection(source.getProjection());
+				context.setClassTable(source.getClassTable());
+				context.setValueTable(source.getValueTable());
+				context.setLayouts(source.getLayouts());
+				context.setExpansionBudget(source.getExpansionBudget());
+				for (int ref = low; ref < high; ref++) {
+					context.reset(index.getStart(ref), index.getEnd(ref));
+					context.setRef(ref);
+					entries[ref] = parseHeapEntry(context, converter);
+				}
+			} else {
+				final int middle = (low + high) >>> 1;
+				invokeAll(new ParseHeapTask(source, index, entries, low,
+						middle, grain, converter), new ParseHeapTask(source,
+								index, entries, middle, high, grain, converter));
+			}
+		}
+	}
+
+	private AbstractSerializationObject parseHeapEntry(
+			final RandomAccessDeserializationContext context,
+			final JsonConverter converter) {
+		final SerializationData result;
+		try {
+			context.skipSpaces();
+			if (!context.isValid()) {
+				throw new ParseException("invalid heap: missing entry at "
+						+ context.getIndex());
+			}
+			result = parseHeapValue(context, converter);
+			context.skipSpaces();
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+		if (context.isValid()) {
+			throw new ParseException("invalid heap: unexpected character '"
+					+ context.get() + "' at " + context.getIndex());
+		}
+		return (AbstractSerializationObject) result;
+	}
+
+	private SerializationObject parseObject(
+			final DeserializationContext context, final JsonConverter converter)
+					throws IOException {
+		assert context.isValid() && context.get() == '{' : "unexpected character";
+
+		final SerializationObject result = new SerializationObject(null,
+				context.getRef());
+		context.setRef(NO_REF);
+		final Projection projection = context.getProjection();
+		Set<String> wanted = null;
+		int state = 1;
+		String property = null;
+		context.next(); // skip '{'
+		while (state > 0) {
+			context.skipSpaces();
+			if (!context.isValid()) {
+				throw new ParseException("invalid object: not terminated at "
+						+ context.getIndex());
+			}
+			switch (state) {
+			case 1:
+				if (context.get() != '"') {
+					throw new ParseException(
+							"invalid object: unexpected character '"
+									+ context.get() + "' instead of '\"' at "
+									+ context.getIndex());
+				}
+				property = parsePropertyName(context, converter);
+				if (result.contains(property)) {
+					throw new ParseException(
+							"invalid object: duplicated property \"" + property
+							+ "\" at " + context.getIndex());
+				}
+				state = 2;
+				break;
+			case 2:
+				if (context.get() == ':') {
+					state = 3;
+					context.next();
+				} else {
+					throw new ParseException(
+							"invalid object: unexpected character '"
+									+ context.get() + "' instead of ':' at "
+									+ context.getIndex());
+				}
+				break;
+			case 3:
+				if (CLASS_PROPERTY.equals(property)
+						&& (context.get() == '"' || context.get() == '@')) {
+					final SerializationValue classValue;
+					if (context.get() == '"') {
+						classValue = parseClassName(context);
+					} else {
+						classValue = parseClassReference(context);
+					}
+					result.add(property, classValue);
+					if (!projection.isEmpty()) {
+						wanted = projection.getProperties(getClassName(
+								context, classValue));
+						if (wanted != null) {
+							result.retainProperties(wanted);
+						}
+					}
+				} else if (wanted != null && !wanted.contains(property)) {
+					skipValue(context);
+				} else {
+					result.add(property, parse(context, converter));
+				}
+				state = 4;
+				break;
+			case 4:
+				switch (context.get()) {
+				case ',':
+					state = 1;
+					break;
+				case '}':
+					state = 0;
+					break;
+				default:
+					throw new ParseException(
+							"invalid object: unexpected character '"
+									+ context.get()
+									+ "' instead of ',' or '}' at "
+									+ context.getIndex());
+				}
+				context.next();
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Parse a heap entry: any value, a columnar table, or a row of a table
+	 * (<code>null</code>, see {@link SerializationHeap#resolveTables()})
+	 */
+	private SerializationData parseHeapValue(
+			final DeserializationContext context, final JsonConverter converter)
+					throws IOException {
+		switch (context.get()) {
+		case '*':
+			return parseTable(context, converter);
+		case '^':
+			context.next();
+			return null;
+		default:
+			return parse(context, converter);
+		}
+	}
+
+	/**
+	 * Parse a columnar table:
+	 * <code>*{"class":name,"property":[values],...}</code>. The rows are
+	 * built from the columns; they take the heap entries that follow the
+	 * table, written <code>^</code>. Under a projection, the unwanted columns
+	 * are skipped.
+	 */
+	private SerializationArray parseTable(
+			final DeserializationContext context, final JsonConverter converter)
+					throws IOException {
+		assert context.isValid() && context.get() == '*' : "unexpected character";
+
+		final int ref = context.getRef();
+		context.setRef(NO_REF);
+		context.next(); // skip '*'
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '{') {
+			throw new ParseException("invalid table: missing '{' at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '{'
+
+		final Projection projection = context.getProjection();
+		SerializationValue classValue = null;
+		Set<String> wanted = null;
+		final List<String> names = new ArrayList<>();
+		final List<List<SerializationData>> columns = new ArrayList<>();
+		boolean more = true;
+		while (more) {
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != '"') {
+				throw new ParseException(
+						"invalid table: missing property name at "
+								+ context.getIndex());
+			}
+			final String property = parsePropertyName(context, converter);
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != ':') {
+				throw new ParseException("invalid table: missing ':' at "
+						+ context.getIndex());
+			}
+			context.next(); // skip ':'
+			context.skipSpaces();
+			if (!context.isValid()) {
+				throw new ParseException("invalid table: not terminated at "
+						+ context.getIndex());
+			}
+			if (classValue == null && CLASS_PROPERTY.equals(property)) {
+				if (context.get() == '"') {
+					classValue = parseClassName(context);
+				} else if (context.get() == '@') {
+					classValue = parseClassReference(context);
+				} else {
+					throw new ParseException("invalid table: bad class at "
+							+ context.getIndex());
+				}
+				if (!projection.isEmpty()) {
+					wanted = projection.getProperties(getClassName(context,
+							classValue));
+				}
+			} else if (CLASS_PROPERTY.equals(property)
+					|| names.contains(property)) {
+				throw new ParseException(
+						"invalid table: duplicated property \"" + property
+								+ "\" at " + context.getIndex());
+			} else if (wanted != null && !wanted.contains(property)) {
+				skipValue(context);
+			} else if (context.get() == '[') {
+				names.add(property);
+				columns.add(parseDataList(context, "table", '[', ']',
+						converter));
+			} else if (context.get() == '~') {
+				names.add(property);
+				columns.add(parseDeltas(context, Integer.MAX_VALUE));
+			} else {
+				throw new ParseException("invalid table: missing column at "
+						+ context.getIndex());
+			}
+			context.skipSpaces();
+			if (!context.isValid()
+					|| (context.get() != ',' && context.get() != '}')) {
+				throw new ParseException("invalid table: not terminated at "
+						+ context.getIndex());
+			}
+			more = context.get() == ',';
+			context.next();
+		}
+		if (classValue == null || columns.isEmpty()) {
+			throw new ParseException("invalid table: no class or no column at "
+					+ context.getIndex());
+		}
+
+		final int rows = columns.get(0).size();
+		for (final List<SerializationData> column : columns) {
+			if (column.size() != rows) {
+				throw new ParseException(
+						"invalid table: columns of different sizes at "
+								+ context.getIndex());
+			}
+		}
+		final SerializationArray result = new SerializationArray(rows, null,
+				ref);
+		final int n = names.size();
+		for (int i = 0; i < rows; i++) {
+			final SerializationObject row = new SerializationObject(null, ref
+					+ 1 + i);
+			row.add(CLASS_PROPERTY, classValue);
+			for (int j = 0; j < n; j++) {
+				final String name = names.get(j);
+				if (wanted == null || wanted.contains(name)) {
+					row.add(name, columns.get(j).get(i));
+				}
+			}
+			result.add(row);
+		}
+		if (rows > 0) {
+			result.setTable();
+		}
+		return result;
+	}
+
+	/**
+	 * Parse a positional object: <code>#n[values]</code> where the layout
+	 * <code>n</code> is declared in the header. Under a projection, the
+	 * unwanted values are skipped.
+	 */
+	private SerializationObject parsePositionalObject(
+			final DeserializationContext context, final JsonConverter converter)
+					throws IOException {
+		final int ref = context.getRef();
+		context.setRef(NO_REF);
+		final SerializationObject.Layout layout = parseLayout(context);
+		context.next(); // skip '['
+
+		final Projection projection = context.getProjection();
+		Set<String> wanted = null;
+		if (!projection.isEmpty()) {
+			wanted = projection.getProperties(getClassName(context,
+					layout.getClassValue()));
+		}
+		final SerializationObject result;
+		if (wanted == null) {
+			result = SerializationObject.newPositional(layout, ref);
+		} else {
+			result = new SerializationObject(null, ref);
+			result.add(CLASS_PROPERTY, layout.getClassValue());
+		}
+
+		final int n = layout.size();
+		for (int i = 0; i < n; i++) {
+			context.skipSpaces();
+			if (i > 0) {
+				if (!context.isValid() || context.get() != ',') {
+					throw new ParseException("invalid object: expected " + n
+							+ " values at " + context.getIndex());
+				}
+				context.next(); // skip ','
+				context.skipSpaces();
+			}
+			if (!context.isValid()) {
+				throw new ParseException("invalid object: not terminated at "
+						+ context.getIndex());
+			}
+			if (wanted == null) {
+				result.set(i, parse(context, converter));
+			} else if (wanted.contains(layout.getProperty(i))) {
+				result.add(layout.getProperty(i), parse(context, converter));
+			} else {
+				skipValue(context);
+			}
+		}
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != ']') {
+			throw new ParseException("invalid object: expected " + n
+					+ " values at " + context.getIndex());
+		}
+		context.next(); // skip ']'
+		return result;
+	}
+
+	/**
+	 * Parse the layout reference of a positional object, up to its opening
+	 * bracket (which is not skipped)
+	 */
+	private static SerializationObject.Layout parseLayout(
+			final DeserializationContext context) throws IOException {
+		assert context.isValid() && context.get() == '#' : "unexpected character";
+
+		final int index = parseIndex(context, "object layout");
+		final SerializationObject.Layout[] layouts = context.getLayouts();
+		if (layouts == null || index >= layouts.length) {
+			throw new ParseException("invalid object layout #" + index
+					+ " at " + context.getIndex());
+		}
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid object: missing '[' at "
+					+ context.getIndex());
+		}
+		return layouts[index];
+	}
+
+	/**
+	 * Skip a value without parsing it: only look for its end, i.e. the
+	 * matching closing bracket for objects and arrays, or the next ',', '}',
+	 * ']' or '>' (which is not skipped)
+	 */
+	private void skipValue(final DeserializationContext context)
+			throws IOException {
+		int depth = 0;
+		while (true) {
+			if (!context.isValid()) {
+				throw new ParseException("invalid value: not terminated at "
+						+ context.getIndex());
+			}
+			switch (context.get()) {
+			case '"':
+				context.next(); // skip '"'
+				skipStringChars(context);
+				break;
+			case '{':
+			case '[':
+			case '<':
+				depth++;
+				break;
+			case '}':
+			case ']':
+			case '>':
+				if (depth == 0) {
+					return;
+				}
+				depth--;
+				if (depth == 0) {
+					context.next();
+					return;
+				}
+				break;
+			case ',':
+				if (depth == 0) {
+					return;
+				}
+				break;
+			}
+			context.next();
+		}
+	}
+
+	/**
+	 * Skip the characters of a string, up to the closing quote (excluded)
+	 */
+	private void skipStringChars(final DeserializationContext context)
+			throws IOException {
+		while (true) {
+			context.skipPlainChars();
+			if (!context.isValid()) {
+				throw new ParseException("invalid string at "
+						+ context.getIndex());
+			}
+			if (context.get() == '"') {
+				break;
+			}
+			// escaped character
+			context.next();
+			if (!context.isValid()) {
+				throw new ParseException("invalid string at "
+						+ context.getIndex());
+			}
+			context.next();
+		}
+	}
+
+	private SerializationArray parseArray(final DeserializationContext context,
+			final JsonConverter converter) throws IOException {
+		final int ref = context.getRef();
+		context.setRef(NO_REF);
+		final List<SerializationData> dataList = parseDataList(context,
+				"array", '[', ']', converter);
+		final SerializationArray result = new SerializationArray(
+				dataList.size(), null, ref);
+		for (final SerializationData data : dataList) {
+			result.add(data);
+		}
+		return result;
+	}
+
+	private List<SerializationData> parseDataList(
+			final DeserializationContext context, final String type,
+			final char open, final char close, final JsonConverter converter)
+					throws IOException {
+		assert context.isValid() && context.get() == open : "unexpected character";
+		assert close == ']' || close == '>' : "bad close character";
+
+		final List<SerializationData> dataList = new ArrayList<>();
+		int state = 1;
+		context.next(); // skip open
+		while (state > 0) {
+			context.skipSpaces();
+			if (!context.isValid()) {
+				throw new ParseException("invalid " + type
+						+ ": not terminated at " + context.getIndex());
+			}
+			switch (state) {
+			case 1:
+				if (open == '<') { // it's a heap
+					context.setRef(dataList.size());
+					dataList.add(parseHeapValue(context, converter));
+				} else {
+					parseItem(context, dataList, converter);
+				}
+				state = 2;
+				break;
+			case 2:
+				final char c = context.get();
+				switch (c) {
+				case ',':
+					state = 1;
+					break;
+				case ']':
+				case '>':
+					if (c != close) {
+						throw new ParseException("invalid " + type
+								+ ": unexpected character '" + context.get()
+								+ "' instead of ',' or '" + close + "' at "
+								+ context.getIndex());
+					}
+					state = 0;
+					break;
+				default:
+					throw new ParseException("invalid " + type
+							+ ": unexpected character '" + context.get()
+							+ "' instead of ',' or '" + close + "' at "
+							+ context.getIndex());
+				}
+				context.next();
+				break;
+			}
+		}
+		return dataList;
+	}
+
+	/**
+	 * Parse an item of a list, maybe a run of the same atomic value:
+	 * <code>count*value</code>
+	 */
+	private void parseItem(final DeserializationContext context,
+			final List<SerializationData> dataList,
+			final JsonConverter converter) throws IOException {
+		final char c = context.get();
+		if (c != '-' && !isDigit(c)) {
+			dataList.add(parse(context, converter));
+			return;
+		}
+		final JsonNumber number = parseJsonNumber(context);
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '*') {
+			dataList.add(new SerializationValue(number));
+			return;
+		}
+		final int count = getRunCount(context, number);
+		context.next(); // skip '*'
+		final SerializationData value = parse(context, converter);
+		if (!(value instanceof SerializationValue)) {
+			throw new ParseException("invalid run: not an atomic value at "
+					+ context.getIndex());
+		}
+		for (int i = 0; i < count; i++) {
+			dataList.add(value);
+		}
+	}
+
+	/**
+	 * @return the count of a run
+	 */
+	static int getRunCount(final DeserializationContext context,
+			final JsonNumber number) {
+		if (number.isIntegral()) {
+			try {
+				return getRunCount(context, number.longValueExact());
+			} catch (final ArithmeticException e) {
+				// see below
+			}
+		}
+		throw new ParseException("invalid run: bad count " + number + " at "
+				+ context.getIndex());
+	}
+
+	/**
+	 * @return the count of a run, taken from the expansion budget of the
+	 *         document
+	 */
+	static int getRunCount(final DeserializationContext context,
+			final long count) {
+		if (count <= 0 || count > Integer.MAX_VALUE) {
+			throw new ParseException("invalid run: bad count " + count
+					+ " at " + context.getIndex());
+		}
+		final AtomicInteger budget = context.getExpansionBudget();
+		int remaining;
+		do {
+			remaining = budget.get();
+			if (count > remaining) {
+				throw new ParseException(
+						"invalid run: too many expanded elements at "
+								+ context.getIndex());
+			}
+		} while (!budget.compareAndSet(remaining, remaining - (int) count));
+		return (int) count;
+	}
+
+	/**
+	 * Apply the de/serialization options to a new parser context
+	 */
+	static void setOptions(final DeserializationContext context,
+			final JsonOptions options) {
+		context.setProjection(options.getProjection());
+		context.setExpansionBudget(new AtomicInteger(options
+				.getMaxExpandedElements()));
+	}
+
+	private static SerializationArray parseDeltaArray(
+			final DeserializationContext context) throws IOException {
+		final int ref = context.getRef();
+		final List<SerializationData> dataList = parseDeltas(context,
+				Integer.MAX_VALUE);
+		final SerializationArray result = new SerializationArray(
+				dataList.size(), null, ref);
+		for (final SerializationData data : dataList) {
+			result.add(data);
+		}
+		return result;
+	}
+
+	/**
+	 * Parse an array of integral numbers written as deltas:
+	 * <code>~[first,delta,count*delta,...]</code>
+	 *
+	 * @param context
+	 *            the parser context, on the <code>~</code>
+	 * @param limit
+	 *            the maximum number of values to parse (the end of the
+	 *            array is not parsed if it is reached)
+	 * @return the values
+	 */
+	private static List<SerializationData> parseDeltas(
+			final DeserializationContext context, final int limit)
+					throws IOException {
+		assert context.isValid() && context.get() == '~' : "unexpected character";
+
+		final List<SerializationData> result = new ArrayList<>();
+		context.next(); // skip '~'
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid delta array: missing '[' at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '['
+		context.skipSpaces();
+		if (context.isValid() && context.get() == ']') {
+			context.next();
+			return result;
+		}
+		long value = 0;
+		while (result.size() < limit) {
+			int count = 1;
+			long delta = parseDelta(context);
+			context.skipSpaces();
+			if (context.isValid() && context.get() == '*') {
+				count = getRunCount(context, delta);
+				context.next(); // skip '*'
+				delta = parseDelta(context);
+				context.skipSpaces();
+			}
+			for (int i = 0; i < count && result.size() < limit; i++) {
+				// may overflow: the deltas overflow the same way
+				value += delta;
+				result.add(new SerializationValue(JsonNumber.valueOf(value)));
+			}
+			if (!context.isValid()) {
+				throw new ParseException(
+						"invalid delta array: not terminated at "
+								+ context.getIndex());
+			}
+			final char c = context.get();
+			context.next();
+			if (c == ']') {
+				break;
+			}
+			if (c != ',') {
+				throw new ParseException("invalid delta array: unexpected "
+						+ "character '" + c + "' instead of ',' or ']' at "
+						+ context.getIndex());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the integral number of a delta array
+	 */
+	private static long parseDelta(final DeserializationContext context)
+			throws IOException {
+		context.skipSpaces();
+		if (!context.isValid()
+				|| (context.get() != '-' && !isDigit(context.get()))) {
+			throw new ParseException("invalid delta array: missing number at "
+					+ context.getIndex());
+		}
+		final JsonNumber number = parseJsonNumber(context);
+		if (number.isIntegral()) {
+			try {
+				return number.longValueExact();
+			} catch (final ArithmeticException e) {
+				// see below
+			}
+		}
+		throw new ParseException("invalid delta array: bad number " + number
+				+ " at " + context.getIndex());
+	}
+
+	private SerializationRef parseReference(final DeserializationContext context)
+			throws IOException {
+		assert context.isValid() && context.get() == '$' : "unexpected character";
+
+		return SerializationRef.valueOf(parseIndex(context, "reference"));
+	}
+
+	/**
+	 * @return the name of the class just parsed
+	 */
+	private static String getClassName(final DeserializationContext context,
+			final SerializationValue classValue) {
+		final Class<?> resolvedClass = classValue.getResolvedClass();
+		if (resolvedClass != null) {
+			return resolvedClass.getName();
+		}
+		return context.getClassNames().current();
+	}
+
+	/**
+	 * Parse a reference to the class table of the header (<code>@n</code>)
+	 */
+	private SerializationValue parseClassReference(
+			final DeserializationContext context) throws IOException {
+		assert context.isValid() && context.get() == '@' : "unexpected character";
+
+		final int index = parseIndex(context, "class reference");
+		final SerializationValue[] classTable = context.getClassTable();
+		if (classTable == null || index >= classTable.length) {
+			throw new ParseException("invalid class reference @" + index
+					+ " at " + context.getIndex());
+		}
+		return classTable[index];
+	}
+
+	/**
+	 * Parse a reference to the value table of the header (<code>%n</code>)
+	 */
+	private SerializationValue parseValueReference(
+			final DeserializationContext context) throws IOException {
+		assert context.isValid() && context.get() == '%' : "unexpected character";
+
+		final int index = parseIndex(context, "value reference");
+		final SerializationValue[] valueTable = context.getValueTable();
+		if (valueTable == null || index >= valueTable.length) {
+			throw new ParseException("invalid value reference %" + index
+					+ " at " + context.getIndex());
+		}
+		return valueTable[index];
+	}
+
+	/**
+	 * Parse the index of a reference (after its prefix character)
+	 */
+	private static int parseIndex(final DeserializationContext context,
+			final String type) throws IOException {
+		context.next(); // skip the prefix
+		if (!context.isValid() || !isDigit(context.get())) {
+			throw new ParseException("invalid " + type + " at "
+					+ context.getIndex());
+		}
+		int result = 0;
+		do {
+			final int digit = context.get() - '0';
+			if (result > (Integer.MAX_VALUE - digit) / 10) {
+				throw new ParseException("invalid " + type + ": too big at "
+						+ context.getIndex());
+			}
+			result = result * 10 + digit;
+			context.next();
+		} while (context.isValid() && isDigit(context.get()));
+		return result;
+	}
+
+	/**
+	 * Parse the document header, if any: <code>@{"classes":["name",...],
+	 * "shapes":[["name","property",...],...]}</code> (both entries are
+	 * optional). Unknown header properties are ignored.
+	 */
+	private void parseHeader(final DeserializationContext context,
+			final JsonConverter converter) throws IOException {
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '@') {
+			return;
+		}
+		context.next(); // skip '@'
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '{') {
+			throw new ParseException("invalid header at " + context.getIndex());
+		}
+		context.next(); // skip '{'
+		context.skipSpaces();
+		boolean more = !context.isValid() || context.get() != '}';
+		while (more) {
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != '"') {
+				throw new ParseException("invalid header: missing name at "
+						+ context.getIndex());
+			}
+			final String name = parsePropertyName(context, converter);
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != ':') {
+				throw new ParseException("invalid header: missing ':' at "
+						+ context.getIndex());
+			}
+			context.next(); // skip ':'
+			context.skipSpaces();
+			if (HEADER_CLASSES.equals(name)) {
+				context.setClassTable(parseClassTable(context, converter));
+			} else if (HEADER_SHAPES.equals(name)) {
+				context.setLayouts(parseLayouts(context, converter));
+			} else if (HEADER_VALUES.equals(name)) {
+				context.setValueTable(parseValueTable(context, converter));
+			} else {
+				skipValue(context);
 			}
+			more = parseHeaderSeparator(context, '}');
 		}
-		return result;
+		context.next(); // skip '}'
 	}
 
-	private SerializationHeap parseHeap(final DeserializationContext context,
-			final JsonConverter converter) throws IOException {
-		final List<SerializationData> dataList = parseDataList(context, "heap",
-				'<', '>', converter);
-		final SerializationHeap result = new SerializationHeap();
-		for (final SerializationData data : dataList) {
-			result.add((AbstractSerializationObject) data);
+	/**
+	 * Parse the class table of the header: the classes are resolved once
+	 */
+	private SerializationValue[] parseClassTable(
+			final DeserializationContext context, final JsonConverter converter)
+					throws IOException {
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid header: missing classes at "
+					+ context.getIndex());
 		}
-		return result;
+		context.next(); // skip '['
+		context.skipSpaces();
+		final List<SerializationValue> result = new ArrayList<>();
+		boolean more = !context.isValid() || context.get() != ']';
+		while (more) {
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != '"') {
+				throw new ParseException("invalid header: missing class at "
+						+ context.getIndex());
+			}
+			final String json = parseString0(context);
+			result.add(new SerializationValue(json, JsonConverters.resolveClass(
+					converter,
+					converter.<String> fromJson(json, String.class))));
+			more = parseHeaderSeparator(context, ']');
+		}
+		context.next(); // skip ']'
+		return result.toArray(new SerializationValue[result.size()]);
 	}
 
-	private SerializationObject parseObject(
+	/**
+	 * Parse the value table of the header: the values are converted once
+	 */
+	private SerializationValue[] parseValueTable(
 			final DeserializationContext context, final JsonConverter converter)
 					throws IOException {
-		assert context.isValid() && context.get() == '{' : "unexpected character";
-
-		final SerializationObject result = new SerializationObject(null,
-				context.getRef());
-		int state = 1;
-		String property = null;
-		context.next(); // skip '{'
-		while (state > 0) {
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid header: missing values at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '['
+		context.skipSpaces();
+		final List<SerializationValue> result = new ArrayList<>();
+		boolean more = !context.isValid() || context.get() != ']';
+		while (more) {
 			context.skipSpaces();
-			if (!context.isValid()) {
-				throw new ParseException("invalid object: not terminated at "
+			final SerializationData value = context.isValid()
+					&& context.get() != '%' ? parse(context, converter) : null;
+			if (!(value instanceof SerializationValue)) {
+				throw new ParseException("invalid header: bad value at "
 						+ context.getIndex());
 			}
-			switch (state) {
-			case 1:
-				if (context.get() != '"') {
-					throw new ParseException(
-							"invalid object: unexpected character '"
-									+ context.get() + "' instead of '\"' at "
-									+ context.getIndex());
-				}
-				property = converter.fromJson(parseString0(context),
-						String.class);
-				if (result.contains(property)) {
-					throw new ParseException(
-							"invalid object: duplicated property \"" + property
-							+ "\" at " + context.getIndex());
-				}
-				state = 2;
-				break;
-			case 2:
-				if (context.get() == ':') {
-					state = 3;
-					context.next();
-				} else {
-					throw new ParseException(
-							"invalid object: unexpected character '"
-									+ context.get() + "' instead of ':' at "
-									+ context.getIndex());
-				}
-				break;
-			case 3:
-				result.add(property, parse(context, converter));
-				state = 4;
-				break;
-			case 4:
-				switch (context.get()) {
-				case ',':
-					state = 1;
-					break;
-				case '}':
-					state = 0;
-					break;
-				default:
-					throw new ParseException(
-							"invalid object: unexpected character '"
-									+ context.get()
-									+ "' instead of ',' or '}' at "
-									+ context.getIndex());
-				}
-				context.next();
-				break;
+			if (value != SerializationValue.NULL
+					&& value != SerializationValue.TRUE
+					&& value != SerializationValue.FALSE) {
+				// the constants are already shared
+				((SerializationValue) value).setShared();
 			}
+			result.add((SerializationValue) value);
+			more = parseHeaderSeparator(context, ']');
 		}
-		return result;
-	}
-
-	private SerializationArray parseArray(final DeserializationContext context,
-			final JsonConverter converter) throws IOException {
-		final List<SerializationData> dataList = parseDataList(context,
-				"array", '[', ']', converter);
-		final SerializationArray result = new SerializationArray(
-				dataList.size(), null, context.getRef());
-		for (final SerializationData data : dataList) {
-			result.add(data);
-		}
-		return result;
+		context.next(); // skip ']'
+		return result.toArray(new SerializationValue[result.size()]);
 	}
 
-	private List<SerializationData> parseDataList(
-			final DeserializationContext context, final String type,
-			final char open, final char close, final JsonConverter converter)
+	/**
+	 * Parse the object layouts of the header: the classes are resolved once
+	 */
+	private SerializationObject.Layout[] parseLayouts(
+			final DeserializationContext context, final JsonConverter converter)
 					throws IOException {
-		assert context.isValid() && context.get() == open : "unexpected character";
-		assert close == ']' || close == '>' : "bad close character";
-
-		final List<SerializationData> dataList = new ArrayList<>();
-		int state = 1;
-		context.next(); // skip open
-		while (state > 0) {
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid header: missing shapes at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '['
+		context.skipSpaces();
+		final List<SerializationObject.Layout> result = new ArrayList<>();
+		boolean more = !context.isValid() || context.get() != ']';
+		while (more) {
 			context.skipSpaces();
-			if (!context.isValid()) {
-				throw new ParseException("invalid " + type
-						+ ": not terminated at " + context.getIndex());
+			if (!context.isValid() || context.get() != '[') {
+				throw new ParseException("invalid header: missing shape at "
+						+ context.getIndex());
 			}
-			switch (state) {
-			case 1:
-				if (open == '<') { // it's a heap
-					context.setRef(dataList.size());
-				}
-				dataList.add(parse(context, converter));
-				state = 2;
-				break;
-			case 2:
-				final char c = context.get();
-				switch (c) {
-				case ',':
-					state = 1;
-					break;
-				case ']':
-				case '>':
-					if (c != close) {
-						throw new ParseException("invalid " + type
-								+ ": unexpected character '" + context.get()
-								+ "' instead of ',' or '" + close + "' at "
-								+ context.getIndex());
-					}
-					state = 0;
-					break;
-				default:
-					throw new ParseException("invalid " + type
-							+ ": unexpected character '" + context.get()
-							+ "' instead of ',' or '" + close + "' at "
-							+ context.getIndex());
+			context.next(); // skip '['
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != '"') {
+				throw new ParseException("invalid header: missing class at "
+						+ context.getIndex());
+			}
+			final String json = parseString0(context);
+			final SerializationValue classValue = new SerializationValue(
+					json, JsonConverters.resolveClass(converter,
+							converter.<String> fromJson(json, String.class)));
+			final List<String> properties = new ArrayList<>();
+			while (parseHeaderSeparator(context, ']')) {
+				context.skipSpaces();
+				if (!context.isValid() || context.get() != '"') {
+					throw new ParseException(
+							"invalid header: missing property at "
+									+ context.getIndex());
 				}
-				context.next();
-				break;
+				properties.add(parsePropertyName(context, converter));
 			}
+			context.next(); // skip ']'
+			try {
+				result.add(new SerializationObject.Layout(classValue,
+						properties));
+			} catch (final SerializationException e) {
+				throw new ParseException(e);
+			}
+			more = parseHeaderSeparator(context, ']');
 		}
-		return dataList;
+		context.next(); // skip ']'
+		return result.toArray(new SerializationObject.Layout[result.size()]);
 	}
 
-	private SerializationRef parseReference(final DeserializationContext context)
-			throws IOException {
-		assert context.isValid() && context.get() == '$' : "unexpected character";
-
-		final StringBuilder value = new StringBuilder();
-		context.next(); // skip '$'
-		if (!context.isValid() || !Character.isDigit(context.get())) {
-			throw new ParseException("invalid reference at "
+	/**
+	 * @return <code>true</code> after a comma, <code>false</code> on the
+	 *         closing character (which is not skipped)
+	 */
+	private static boolean parseHeaderSeparator(
+			final DeserializationContext context, final char close)
+					throws IOException {
+		context.skipSpaces();
+		if (!context.isValid()) {
+			throw new ParseException("invalid header: not terminated at "
 					+ context.getIndex());
 		}
-		do {
-			value.append(context.get());
-			context.next();
-		} while (context.isValid() && Character.isDigit(context.get()));
-		return new SerializationRef(Integer.parseInt(value.toString()));
+		if (context.get() == close) {
+			return false;
+		}
+		if (context.get() != ',') {
+			throw new ParseException("invalid header: unexpected character '"
+					+ context.get() + "' at " + context.getIndex());
+		}
+		context.next(); // skip ','
+		return true;
 	}
 
 	private SerializationValue parseString(final DeserializationContext context)
@@ -322,38 +1919,83 @@ class DeserializationProcessor {
 			throws IOException {
 		assert context.isValid() && context.get() == '"' : "unexpected character";
 
-		int state = 1;
 		final StringBuilder value = new StringBuilder("\"");
 		context.next(); // skip '"'
-		while (state > 0) {
+		scanStringChars(context, value);
+		value.append('"');
+		context.next(); // skip '"'
+		return value.toString();
+	}
+
+	private String parsePropertyName(final DeserializationContext context,
+			final JsonConverter converter) throws IOException {
+		final SymbolTable names = context.getPropertyNames();
+		scanSymbol(context, names);
+		String result = (String) names.find();
+		if (result == null) {
+			result = converter.fromJson("\"" + names.current() + "\"",
+					String.class);
+			names.store(result);
+		}
+		return result;
+	}
+
+	private SerializationValue parseClassName(
+			final DeserializationContext context) throws IOException {
+		final SymbolTable classNames = context.getClassNames();
+		scanSymbol(context, classNames);
+		SerializationValue result = (SerializationValue) classNames.find();
+		if (result == null) {
+			result = new SerializationValue("\"" + classNames.current() + "\"");
+			classNames.store(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Scan a string into the symbol table buffer (without the enclosing
+	 * quotes)
+	 */
+	private void scanSymbol(final DeserializationContext context,
+			final SymbolTable symbols) throws IOException {
+		assert context.isValid() && context.get() == '"' : "unexpected character";
+
+		context.next(); // skip '"'
+		scanStringChars(context, symbols.start());
+		context.next(); // skip '"'
+	}
+
+	/**
+	 * Scan the characters of a string (up to the closing quote, excluded)
+	 */
+	private void scanStringChars(final DeserializationContext context,
+			final StringBuilder value) throws IOException {
+		while (true) {
+			context.appendPlainChars(value);
 			if (!context.isValid()) {
 				throw new ParseException("invalid string at "
 						+ context.getIndex());
 			}
 			final char c = context.get();
-			value.append(c);
-			switch (state) {
-			case 1: // normal characters
-				switch (c) {
-				case '"':
-					state = 0;
-					break;
-				case '\\':
-					state = 2;
-					break;
-				}
-				break;
-			case 2: // escaped character
-				state = 1;
+			if (c == '"') {
 				break;
 			}
+			// escaped character
+			assert c == '\\';
+			value.append(c);
+			context.next();
+			if (!context.isValid()) {
+				throw new ParseException("invalid string at "
+						+ context.getIndex());
+			}
+			value.append(context.get());
 			context.next();
 		}
-		return value.toString();
 	}
 
 	private SerializationValue parseConst(final DeserializationContext context,
-			final char[] string, final String object) throws IOException {
+			final char[] string, final SerializationValue value)
+					throws IOException {
 		assert string.length > 0 && context.isValid()
 		&& context.get() == string[0] : "unexpected character";
 
@@ -366,38 +2008,127 @@ class DeserializationProcessor {
 			}
 			context.next();
 		}
-		return new SerializationValue(object);
+		return value;
 	}
 
 	private SerializationValue parseNumber(final DeserializationContext context)
 			throws IOException {
-		assert context.isValid() && Character.isDigit(context.get()) : "unexpected character";
+		return new SerializationValue(parseJsonNumber(context));
+	}
 
-		final StringBuilder value = new StringBuilder();
-		do {
-			value.append(context.get());
-			context.next();
-		} while (context.isValid() && Character.isDigit(context.get()));
-		if (context.isValid() && context.get() == '.') {
-			value.append('.');
+	/**
+	 * Parse a number, with the full JSON number grammar
+	 *
+	 * @param context
+	 *            the parser context, on the first character of the number
+	 * @return the number
+	 * @throws IOException
+	 *             on exception
+	 */
+	static JsonNumber parseJsonNumber(final DeserializationContext context)
+			throws IOException {
+		assert context.isValid()
+				&& (context.get() == '-' || isDigit(context.get())) : "unexpected character";
+
+		final boolean negative = context.get() == '-';
+		if (negative) {
 			context.next();
-			if (!context.isValid()) {
-				throw new ParseException(
-						"invalid number, unterminated after '.' at "
-								+ context.getIndex());
-			}
-			if (!Character.isDigit(context.get())) {
-				throw new ParseException(
-						"invalid number, unexpected character '"
-								+ context.get() + "' after '.' at "
-								+ context.getIndex());
+		}
+
+		// mantissa: accumulated in a long, or in a string only on overflow
+		long unscaledValue = 0;
+		StringBuilder digits = null;
+		int scale = 0;
+		boolean integral = true;
+		boolean leadingZero = false;
+		int count = 0;
+		while (context.isValid()) {
+			final char c = context.get();
+			if (isDigit(c)) {
+				if (leadingZero && integral) {
+					throw new ParseException(
+							"invalid number, unexpected digit after leading "
+									+ "zero at " + context.getIndex());
+				}
+				if (count == 0 && integral && c == '0') {
+					leadingZero = true;
+				}
+				final int digit = c - '0';
+				if (digits != null) {
+					digits.append(c);
+				} else if (unscaledValue > (Long.MAX_VALUE - digit) / 10) {
+					digits = new StringBuilder(40).append(unscaledValue)
+							.append(c);
+				} else {
+					unscaledValue = unscaledValue * 10 + digit;
+				}
+				if (!integral) {
+					scale++;
+				}
+				count++;
+			} else if (c == '.' && integral && count > 0) {
+				integral = false;
+				count = 0;
+			} else {
+				break;
 			}
-			do {
-				value.append(context.get());
-				context.next();
-			} while (context.isValid() && Character.isDigit(context.get()));
+			context.next();
+		}
+		if (count == 0) {
+			throw new ParseException("invalid number, expected digit at "
+					+ context.getIndex());
+		}
+
+		if (context.isValid()
+				&& (context.get() == 'e' || context.get() == 'E')) {
+			integral = false;
+			scale -= parseExponent(context);
+		}
+
+		final JsonNumber result;
+		if (digits == null) {
+			result = JsonNumber.valueOf(negative ? -unscaledValue
+					: unscaledValue, scale, negative, integral);
+		} else {
+			final BigInteger bigUnscaledValue = new BigInteger(
+					digits.toString());
+			result = JsonNumber.valueOf(new BigDecimal(
+					negative ? bigUnscaledValue.negate() : bigUnscaledValue,
+							scale), integral);
+		}
+		return result;
+	}
+
+	private static int parseExponent(final DeserializationContext context)
+			throws IOException {
+		assert context.isValid()
+				&& (context.get() == 'e' || context.get() == 'E') : "unexpected character";
+
+		context.next(); // skip 'e'
+		boolean negative = false;
+		if (context.isValid()
+				&& (context.get() == '+' || context.get() == '-')) {
+			negative = context.get() == '-';
+			context.next();
 		}
-		return new SerializationValue(value.toString());
+		if (!context.isValid() || !isDigit(context.get())) {
+			throw new ParseException("invalid number, expected exponent at "
+					+ context.getIndex());
+		}
+		int result = 0;
+		do {
+			result = result * 10 + context.get() - '0';
+			if (result > MAX_EXPONENT) {
+				throw new ParseException("invalid number, exponent too big at "
+						+ context.getIndex());
+			}
+			context.next();
+		} while (context.isValid() && isDigit(context.get()));
+		return negative ? -result : result;
+	}
+
+	static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
 	}
 
 }
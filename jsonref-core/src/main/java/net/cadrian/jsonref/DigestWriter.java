@@ -0,0 +1,149 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+
+/**
+ * A writer that updates a digest with the UTF-8 encoding of the characters,
+ * while passing them to another writer
+ */
+class DigestWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Writer out;
+	private final MessageDigest digest;
+	// room for one more character, see write()
+	private final byte[] buffer = new byte[BUFFER_SIZE + 4];
+	private int count;
+	private char highSurrogate;
+
+	/**
+	 * @param out
+	 *            the writer to pass the characters to
+	 * @param digest
+	 *            the digest to update
+	 */
+	DigestWriter(final Writer out, final MessageDigest digest) {
+		this.out = out;
+		this.digest = digest;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Writer#write(char[], int, int)
+	 */
+	@Override
+	public void write(final char[] cbuf, final int off, final int len)
+			throws IOException {
+		out.write(cbuf, off, len);
+		for (int i = off; i < off + len; i++) {
+			if (count >= BUFFER_SIZE) {
+				digest.update(buffer, 0, count);
+				count = 0;
+			}
+			encode(cbuf[i]);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Writer#write(java.lang.String, int, int)
+	 */
+	@Override
+	public void write(final String str, final int off, final int len)
+			throws IOException {
+		out.write(str, off, len);
+		for (int i = off; i < off + len; i++) {
+			if (count >= BUFFER_SIZE) {
+				digest.update(buffer, 0, count);
+				count = 0;
+			}
+			encode(str.charAt(i));
+		}
+	}
+
+	private void encode(final char c) {
+		if (highSurrogate != 0) {
+			final char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				final int code = Character.toCodePoint(high, c);
+				buffer[count++] = (byte) (0xF0 | code >> 18);
+				buffer[count++] = (byte) (0x80 | code >> 12 & 0x3F);
+				buffer[count++] = (byte) (0x80 | code >> 6 & 0x3F);
+				buffer[count++] = (byte) (0x80 | code & 0x3F);
+				return;
+			}
+			// lone surrogate: replaced, as the UTF-8 charset does
+			buffer[count++] = '?';
+		}
+		if (c < 0x80) {
+			buffer[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte) (0xC0 | c >> 6);
+			buffer[count++] = (byte) (0x80 | c & 0x3F);
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buffer[count++] = '?';
+		} else {
+			buffer[count++] = (byte) (0xE0 | c >> 12);
+			buffer[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+			buffer[count++] = (byte) (0x80 | c & 0x3F);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Writer#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Update the digest with the pending characters; a pending high
+	 * surrogate is written as a lone surrogate
+	 */
+	void finish() {
+		digest.update(buffer, 0, count);
+		count = 0;
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			digest.update((byte) '?');
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Writer#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+}
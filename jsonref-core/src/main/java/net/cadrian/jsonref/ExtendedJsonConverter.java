@@ -0,0 +1,83 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+/**
+ * A {@link JsonConverter} that also chooses how the numbers, the classes and
+ * the objects are built when deserializing.
+ * <p>
+ * The plain {@link JsonConverter converters} still work: they get the numbers
+ * as JSON strings, and the classes are resolved and instantiated as by the
+ * {@link net.cadrian.jsonref.atomic.DefaultJsonConverter default converter}
+ * (see {@link JsonConverters}).
+ */
+public interface ExtendedJsonConverter extends JsonConverter {
+
+	/**
+	 * Creates new instances of a given type
+	 *
+	 * @param <T>
+	 *            the type of the created objects
+	 */
+	public static interface Instantiator<T> {
+
+		/**
+		 * @return a new instance
+		 */
+		T newInstance();
+
+	}
+
+	/**
+	 * Convert the JSON number to an atomic value
+	 *
+	 * @param number
+	 *            the JSON number
+	 * @param propertyType
+	 *            the expected class (may be <code>null</code> if not known)
+	 * @param <T>
+	 *            the returned object type
+	 * @return the object
+	 */
+	<T> T fromJson(JsonNumber number, Class<? extends T> propertyType);
+
+	/**
+	 * Resolve the class of a deserialized object by its name.
+	 *
+	 * @param className
+	 *            the name of the class
+	 * @return the class
+	 * @throws SerializationException
+	 *             if the class cannot be found or is not allowed to be
+	 *             deserialized
+	 */
+	Class<?> resolveClass(String className);
+
+	/**
+	 * Get the instantiator used to create the objects of the given type when
+	 * deserializing.
+	 *
+	 * @param type
+	 *            the type of the objects to create
+	 * @param <T>
+	 *            the type of the objects to create
+	 * @return the instantiator
+	 * @throws SerializationException
+	 *             if the type cannot be instantiated
+	 */
+	<T> Instantiator<T> getInstantiator(Class<T> type);
+
+}
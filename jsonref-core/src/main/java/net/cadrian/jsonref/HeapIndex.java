@@ -0,0 +1,224 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.cadrian.jsonref.DeserializationProcessor.ParseException;
+
+/**
+ * A structural index of a JSON/R heap: the boundaries of its top-level
+ * entries. The index is built by a fast sequential scan that only tracks
+ * strings and nesting depth, without parsing the entries.
+ */
+class HeapIndex {
+
+	private int[] starts;
+	private int[] ends;
+	private int count;
+	private int end;
+
+	private HeapIndex(final int capacity) {
+		starts = new int[capacity];
+		ends = new int[capacity];
+	}
+
+	/**
+	 * Scan a heap
+	 *
+	 * @param chars
+	 *            the characters
+	 * @param start
+	 *            the index of the opening <code>'&lt;'</code>
+	 * @param limit
+	 *            the end of the characters to scan (excluded)
+	 * @return the heap index
+	 * @throws ParseException
+	 *             if the heap is not terminated
+	 */
+	static HeapIndex scan(final char[] chars, final int start,
+			final int limit) {
+		assert chars[start] == '<' : "not a heap";
+
+		final HeapIndex result = new HeapIndex(16);
+		int depth = 0;
+		int entryStart = start + 1;
+		for (int i = entryStart; i < limit; i++) {
+			switch (chars[i]) {
+			case '"':
+				i = skipString(chars, i, limit);
+				break;
+			case '{':
+			case '[':
+			case '<':
+				depth++;
+				break;
+			case '}':
+			case ']':
+				depth--;
+				break;
+			case '>':
+				if (depth == 0) {
+					result.add(entryStart, i);
+					result.end = i + 1;
+					return result;
+				}
+				depth--;
+				break;
+			case ',':
+				if (depth == 0) {
+					result.add(entryStart, i);
+					entryStart = i + 1;
+				}
+				break;
+			}
+		}
+		throw new ParseException("invalid heap: not terminated at " + limit);
+	}
+
+	/**
+	 * Scan a heap of UTF-8 bytes
+	 *
+	 * @param bytes
+	 *            the {@linkplain Swar#littleEndian(ByteBuffer) little-endian}
+	 *            bytes
+	 * @param start
+	 *            the index of the opening <code>'&lt;'</code>
+	 * @param limit
+	 *            the end of the bytes to scan (excluded)
+	 * @return the heap index
+	 * @throws ParseException
+	 *             if the heap is not terminated
+	 */
+	static HeapIndex scan(final ByteBuffer bytes, final int start,
+			final int limit) {
+		assert bytes.get(start) == '<' : "not a heap";
+
+		final HeapIndex result = new HeapIndex(16);
+		int depth = 0;
+		int entryStart = start + 1;
+		int i = Swar.nextStructural(bytes, entryStart, limit);
+		while (i < limit) {
+			switch (bytes.get(i)) {
+			case '"':
+				i = skipString(bytes, i, limit);
+				break;
+			case '{':
+			case '[':
+			case '<':
+				depth++;
+				break;
+			case '}':
+			case ']':
+				depth--;
+				break;
+			case '>':
+				if (depth == 0) {
+					result.add(entryStart, i);
+					result.end = i + 1;
+					return result;
+				}
+				depth--;
+				break;
+			case ',':
+				if (depth == 0) {
+					result.add(entryStart, i);
+					entryStart = i + 1;
+				}
+				break;
+			}
+			i = Swar.nextStructural(bytes, i + 1, limit);
+		}
+		throw new ParseException("invalid heap: not terminated at " + limit);
+	}
+
+	/**
+	 * @return the index of the closing quote
+	 */
+	private static int skipString(final ByteBuffer bytes, final int start,
+			final int limit) {
+		int i = Swar.nextQuoteOrBackslash(bytes, start + 1, limit);
+		while (i < limit) {
+			if (bytes.get(i) == '"') {
+				return i;
+			}
+			// skip the escaped character
+			i = Swar.nextQuoteOrBackslash(bytes, i + 2, limit);
+		}
+		throw new ParseException("invalid string at " + limit);
+	}
+
+	/**
+	 * @return the index of the closing quote
+	 */
+	private static int skipString(final char[] chars, final int start,
+			final int limit) {
+		for (int i = start + 1; i < limit; i++) {
+			switch (chars[i]) {
+			case '"':
+				return i;
+			case '\\':
+				i++;
+				break;
+			}
+		}
+		throw new ParseException("invalid string at " + limit);
+	}
+
+	private void add(final int entryStart, final int entryEnd) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		starts[count] = entryStart;
+		ends[count] = entryEnd;
+		count++;
+	}
+
+	/**
+	 * @return the number of entries in the heap
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @param ref
+	 *            the reference of the entry
+	 * @return the start of the entry (included)
+	 */
+	int getStart(final int ref) {
+		return starts[ref];
+	}
+
+	/**
+	 * @param ref
+	 *            the reference of the entry
+	 * @return the end of the entry (excluded)
+	 */
+	int getEnd(final int ref) {
+		return ends[ref];
+	}
+
+	/**
+	 * @return the index just after the closing <code>'&gt;'</code>
+	 */
+	int getEnd() {
+		return end;
+	}
+
+}
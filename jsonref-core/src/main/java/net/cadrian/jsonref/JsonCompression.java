@@ -0,0 +1,286 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The compression of JSON/R streams (see
+ * {@link JsonOptions#withCompression(JsonCompression)}), using the zlib format.
+ * <p>
+ * The compressor can be primed with a preset dictionary built from the names
+ * of known classes and of their properties (see
+ * {@link #withClasses(Class...)}), so that even small documents compress well.
+ * Both ends must use the same dictionary: the reader checks it.
+ * <p>
+ * Compressions are immutable; use the <code>with...</code> methods to get
+ * modified copies.
+ */
+public final class JsonCompression {
+
+	/**
+	 * The maximum useful size of a dictionary (the deflate window)
+	 */
+	private static final int MAX_DICTIONARY = 32768;
+
+	private static final byte[] NO_DICTIONARY = new byte[0];
+
+	/**
+	 * The default compression: default level, 8 KiB buffers, no dictionary
+	 */
+	public static final JsonCompression DEFAULT = new JsonCompression(
+			Deflater.DEFAULT_COMPRESSION, 8192, NO_DICTIONARY);
+
+	private final int level;
+	private final int bufferSize;
+	private final byte[] dictionary;
+	private final int dictionaryId;
+
+	private JsonCompression(final int level, final int bufferSize,
+			final byte[] dictionary) {
+		this.level = level;
+		this.bufferSize = bufferSize;
+		this.dictionary = dictionary;
+		final Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		this.dictionaryId = (int) adler.getValue();
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, from {@link Deflater#NO_COMPRESSION}
+	 *            to {@link Deflater#BEST_COMPRESSION}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 * @return a compression identical to <code>this</code> but for the level
+	 */
+	public JsonCompression withLevel(final int level) {
+		if ((level < Deflater.NO_COMPRESSION
+				|| level > Deflater.BEST_COMPRESSION)
+				&& level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("invalid level: " + level);
+		}
+		return new JsonCompression(level, bufferSize, dictionary);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the size of the buffers of the compressed streams
+	 * @return a compression identical to <code>this</code> but for the buffer
+	 *         size
+	 */
+	public JsonCompression withBufferSize(final int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("invalid buffer size: "
+					+ bufferSize);
+		}
+		return new JsonCompression(level, bufferSize, dictionary);
+	}
+
+	/**
+	 * Extend the preset dictionary with the names of the classes and of their
+	 * properties, as they are written in JSON/R objects. The classes given
+	 * last are the cheapest to refer to.
+	 *
+	 * @param types
+	 *            the classes likely to be found in the documents
+	 * @return a compression identical to <code>this</code> but for the
+	 *         dictionary
+	 */
+	public JsonCompression withClasses(final Class<?>... types) {
+		final StringBuilder words = new StringBuilder();
+		for (final Class<?> type : types) {
+			words.append("{\"class\":\"").append(type.getName()).append('"');
+			try {
+				final BeanInfo beanInfo = Introspector.getBeanInfo(type);
+				for (final PropertyDescriptor pd : beanInfo
+						.getPropertyDescriptors()) {
+					if (!"class".equals(pd.getName())) {
+						words.append(",\"").append(pd.getName())
+								.append("\":");
+					}
+				}
+			} catch (final IntrospectionException e) {
+				throw new SerializationException(e);
+			}
+			words.append('}');
+		}
+		final byte[] added = words.toString().getBytes(StandardCharsets.UTF_8);
+		final byte[] all = Arrays.copyOf(dictionary, dictionary.length
+				+ added.length);
+		System.arraycopy(added, 0, all, dictionary.length, added.length);
+		// only the end of the dictionary is in the window
+		return new JsonCompression(level, bufferSize, Arrays.copyOfRange(all,
+				Math.max(0, all.length - MAX_DICTIONARY), all.length));
+	}
+
+	/**
+	 * @return the compression level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the size of the buffers of the compressed streams
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @param out
+	 *            the stream to write the compressed bytes to
+	 * @return a stream that compresses the bytes written to it;
+	 *         {@linkplain DeflaterOutputStream#finish() finishing} it writes
+	 *         the end of the compressed data and releases the compressor,
+	 *         closing it also closes <code>out</code>
+	 */
+	public DeflaterOutputStream newOutputStream(final OutputStream out) {
+		final Deflater deflater = new Deflater(level);
+		if (dictionary.length > 0) {
+			deflater.setDictionary(dictionary);
+		}
+		return new CompressedOutputStream(out, deflater, bufferSize);
+	}
+
+	/**
+	 * @param in
+	 *            the stream to read the compressed bytes from
+	 * @return a stream that decompresses the bytes read from <code>in</code>;
+	 *         closing it closes <code>in</code>
+	 */
+	public InflaterInputStream newInputStream(final InputStream in) {
+		return new CompressedInputStream(in, this);
+	}
+
+	/**
+	 * Release the compressor of a stream built by
+	 * {@link #newOutputStream(OutputStream)}, without closing the stream it
+	 * writes to. The compressed data is not finished.
+	 *
+	 * @param out
+	 *            the compressing stream
+	 */
+	static void end(final DeflaterOutputStream out) {
+		((CompressedOutputStream) out).end();
+	}
+
+	/**
+	 * Release the decompressor of a stream built by
+	 * {@link #newInputStream(InputStream)}, without closing the stream it
+	 * reads from
+	 *
+	 * @param in
+	 *            the decompressing stream
+	 */
+	static void end(final InflaterInputStream in) {
+		((CompressedInputStream) in).end();
+	}
+
+	private static final class CompressedOutputStream extends
+			DeflaterOutputStream {
+
+		CompressedOutputStream(final OutputStream out,
+				final Deflater deflater, final int bufferSize) {
+			super(out, deflater, bufferSize);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.zip.DeflaterOutputStream#finish()
+		 */
+		@Override
+		public void finish() throws IOException {
+			try {
+				super.finish();
+			} finally {
+				// not done by the super class for non-default deflaters
+				def.end();
+			}
+		}
+
+		void end() {
+			def.end();
+		}
+	}
+
+	private static final class CompressedInputStream extends
+			InflaterInputStream {
+
+		private final JsonCompression compression;
+
+		CompressedInputStream(final InputStream in,
+				final JsonCompression compression) {
+			super(in, new Inflater(), compression.bufferSize);
+			this.compression = compression;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.zip.InflaterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			final int result = super.read(b, off, len);
+			if (result == -1 && inf.needsDictionary()) {
+				if (compression.dictionary.length == 0
+						|| inf.getAdler() != compression.dictionaryId) {
+					throw new ZipException("unknown preset dictionary");
+				}
+				inf.setDictionary(compression.dictionary);
+				return super.read(b, off, len);
+			}
+			return result;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.zip.InflaterInputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				// not done by the super class for non-default inflaters
+				inf.end();
+			}
+		}
+
+		void end() {
+			inf.end();
+		}
+	}
+
+}
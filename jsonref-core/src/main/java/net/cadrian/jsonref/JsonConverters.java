@@ -0,0 +1,99 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import net.cadrian.jsonref.ExtendedJsonConverter.Instantiator;
+import net.cadrian.jsonref.atomic.DefaultJsonConverter;
+
+/**
+ * Calls the {@link ExtendedJsonConverter} methods of a converter, or their
+ * fallbacks if the converter only implements {@link JsonConverter}.
+ */
+public final class JsonConverters {
+
+	private static final DefaultJsonConverter DEFAULT_CONVERTER = new DefaultJsonConverter();
+
+	private JsonConverters() {
+		// no instances
+	}
+
+	/**
+	 * Convert the JSON number to an atomic value; the plain converters get the
+	 * JSON string of the number.
+	 *
+	 * @param converter
+	 *            the converter
+	 * @param number
+	 *            the JSON number
+	 * @param propertyType
+	 *            the expected class (may be <code>null</code> if not known)
+	 * @param <T>
+	 *            the returned object type
+	 * @return the object
+	 */
+	public static <T> T fromJson(final JsonConverter converter,
+			final JsonNumber number, final Class<? extends T> propertyType) {
+		if (converter instanceof ExtendedJsonConverter) {
+			return ((ExtendedJsonConverter) converter).fromJson(number,
+					propertyType);
+		}
+		return converter.fromJson(number.toString(), propertyType);
+	}
+
+	/**
+	 * Resolve the class of a deserialized object by its name; the plain
+	 * converters allow all the classes.
+	 *
+	 * @param converter
+	 *            the converter
+	 * @param className
+	 *            the name of the class
+	 * @return the class
+	 * @throws SerializationException
+	 *             if the class cannot be found or is not allowed to be
+	 *             deserialized
+	 */
+	public static Class<?> resolveClass(final JsonConverter converter,
+			final String className) {
+		if (converter instanceof ExtendedJsonConverter) {
+			return ((ExtendedJsonConverter) converter).resolveClass(className);
+		}
+		return DEFAULT_CONVERTER.resolveClass(className);
+	}
+
+	/**
+	 * Get the instantiator used to create the objects of the given type when
+	 * deserializing; the plain converters use the no-argument constructor.
+	 *
+	 * @param converter
+	 *            the converter
+	 * @param type
+	 *            the type of the objects to create
+	 * @param <T>
+	 *            the type of the objects to create
+	 * @return the instantiator
+	 * @throws SerializationException
+	 *             if the type cannot be instantiated
+	 */
+	public static <T> Instantiator<T> getInstantiator(
+			final JsonConverter converter, final Class<T> type) {
+		if (converter instanceof ExtendedJsonConverter) {
+			return ((ExtendedJsonConverter) converter).getInstantiator(type);
+		}
+		return DEFAULT_CONVERTER.getInstantiator(type);
+	}
+
+}
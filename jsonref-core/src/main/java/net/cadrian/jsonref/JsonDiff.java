@@ -0,0 +1,214 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Computes JSON/R patches between successive states of an object graph, to
+ * be applied by a {@link JsonReplica}.
+ *
+ * The heap entries are matched by object identity. A patch contains the
+ * number of heap entries, the ranges of entries that only moved, the new
+ * beans, and the changed properties of the known beans; its size follows the
+ * changes, not the whole graph. There are two limitations. Computing a patch
+ * still serializes the whole graph and compares it with the previous state,
+ * property by property. A changed map, array or collection written in place
+ * in a bean is sent whole, as the value of its property.
+ *
+ * A diff keeps the previous state of the graph (and thus references its
+ * objects) between two patches. It is not thread-safe.
+ *
+ * @see JsonSerializer#newDiff()
+ */
+public final class JsonDiff {
+
+	private static final SerializationProcessor SERIALIZATION_PROCESSOR = new SerializationProcessor();
+
+	private final JsonConverter converter;
+	private final Map<Object, Integer> previousRefs = new IdentityHashMap<>();
+	private String[][] previousNames = new String[0][];
+	private String[][] previousProperties = new String[0][];
+
+	JsonDiff(final JsonConverter converter) {
+		this.converter = converter;
+	}
+
+	/**
+	 * Compute the patch from the previous state (initially, an empty graph)
+	 * to the current state of the object graph, and remember that state
+	 *
+	 * @param root
+	 *            the root of the object graph
+	 * @return the JSON/R patch
+	 * @throws SerializationException
+	 *             if the root is not a bean (e.g. an atomic value or a
+	 *             collection)
+	 */
+	public String diff(final Object root) {
+		final SerializationProcessor.Entries entries = SERIALIZATION_PROCESSOR
+				.serializeEntries(root, converter, true);
+		if (!entries.beans[0]) {
+			throw new SerializationException("not a bean: " + root);
+		}
+		final Object[] objects = entries.objects;
+		final int n = objects.length;
+
+		final int[] oldRefs = new int[n];
+		final int[] newRefs = new int[previousNames.length];
+		for (int i = 0; i < newRefs.length; i++) {
+			newRefs[i] = -1;
+		}
+		for (int r = 0; r < n; r++) {
+			final Integer old = previousRefs.get(objects[r]);
+			if (old == null) {
+				oldRefs[r] = -1;
+			} else {
+				oldRefs[r] = old;
+				newRefs[old] = r;
+			}
+		}
+
+		final StringBuilder result = new StringBuilder("!{\"")
+				.append(DeserializationProcessor.PATCH_SIZE).append("\":")
+				.append(n).append(",\"")
+				.append(DeserializationProcessor.PATCH_MOVES).append("\":[");
+		String sep = "";
+		for (int r = 0; r < n;) {
+			final int old = oldRefs[r];
+			int count = 1;
+			if (old >= 0) {
+				while (r + count < n && oldRefs[r + count] == old + count) {
+					count++;
+				}
+				result.append(sep).append(r).append(',').append(old)
+						.append(',').append(count);
+				sep = ",";
+			}
+			r += count;
+		}
+		result.append("],\"").append(DeserializationProcessor.PATCH_ENTRIES)
+				.append("\":[");
+		sep = "";
+		for (int r = 0; r < n; r++) {
+			// only the beans are referenced, the other entries are written
+			// in place in their parents
+			if (entries.beans[r]) {
+				final String jsonR = oldRefs[r] < 0 ? entries.jsonR[r]
+						: getChangedProperties(entries, r, oldRefs[r],
+								newRefs);
+				if (jsonR != null) {
+					result.append(sep).append(r).append(',').append(jsonR);
+					sep = ",";
+				}
+			}
+		}
+		result.append("]}");
+
+		previousNames = entries.names;
+		previousProperties = entries.properties;
+		previousRefs.clear();
+		for (int r = 0; r < n; r++) {
+			previousRefs.put(objects[r], r);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Forget the previous state: the next patch will contain the whole object
+	 * graph
+	 */
+	public void reset() {
+		previousNames = new String[0][];
+		previousProperties = new String[0][];
+		previousRefs.clear();
+	}
+
+	/**
+	 * @return the JSON/R of a known bean with only its class and its changed
+	 *         properties (the other ones are kept by the replica), the whole
+	 *         bean if its properties are not the same anymore, or
+	 *         <code>null</code> if nothing changed
+	 */
+	private String getChangedProperties(
+			final SerializationProcessor.Entries entries, final int ref,
+			final int oldRef, final int[] newRefs) {
+		final String[] names = entries.names[ref];
+		final String[] properties = entries.properties[ref];
+		if (!Arrays.equals(names, previousNames[oldRef])) {
+			return entries.jsonR[ref];
+		}
+		final String[] oldProperties = previousProperties[oldRef];
+		StringBuilder result = null;
+		for (int i = 0; i < names.length; i++) {
+			if (!"class".equals(names[i])
+					&& !properties[i].equals(renumber(oldProperties[i],
+							newRefs))) {
+				if (result == null) {
+					result = new StringBuilder("{");
+					appendProperty(result, names, properties, 0);
+				}
+				result.append(',');
+				appendProperty(result, names, properties, i);
+			}
+		}
+		return result == null ? null : result.append('}').toString();
+	}
+
+	private void appendProperty(final StringBuilder result,
+			final String[] names, final String[] properties, final int i) {
+		result.append(converter.toJson(names[i])).append(':')
+				.append(properties[i]);
+	}
+
+	/**
+	 * @return the previous JSON/R of a heap entry with its references
+	 *         renumbered, or <code>null</code> if it references an object
+	 *         that is not in the graph anymore
+	 */
+	private static String renumber(final String jsonR, final int[] newRefs) {
+		final StringBuilder result = new StringBuilder(jsonR.length());
+		final int n = jsonR.length();
+		boolean inString = false;
+		for (int i = 0; i < n; i++) {
+			final char c = jsonR.charAt(i);
+			if (inString) {
+				result.append(c);
+				if (c == '\\') {
+					result.append(jsonR.charAt(++i));
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '$') {
+				int old = 0;
+				while (i + 1 < n && Character.isDigit(jsonR.charAt(i + 1))) {
+					old = old * 10 + jsonR.charAt(++i) - '0';
+				}
+				if (newRefs[old] < 0) {
+					return null;
+				}
+				result.append('$').append(newRefs[old]);
+			} else {
+				result.append(c);
+				inString = c == '"';
+			}
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.cadrian.jsonref.data.SerializationFragment;
+
+/**
+ * A cache of the JSON/R of immutable objects (see
+ * {@link JsonOptions#withFragmentCache(JsonFragmentCache)}). The subgraph of
+ * an immutable object is rendered once, then spliced into the heap of each
+ * serialized graph that references it, with its references renumbered.
+ *
+ * The objects are immutable either by class or individually (see
+ * {@link #markImmutable(Object)}); the objects reachable from an immutable
+ * object must be immutable too. The cache holds its keys weakly, by identity.
+ * It is thread-safe and meant to be shared. As the JSON/R depends on the
+ * converter, each object has one fragment per converter: serializers with
+ * different converters may share the cache.
+ */
+public final class JsonFragmentCache {
+
+	/**
+	 * The rendered subgraph of an immutable object
+	 */
+	static final class Fragment {
+		private final JsonConverter converter;
+		private final WeakReference<?>[] objects;
+		private final SerializationFragment.Template[] entries;
+
+		/**
+		 * The fragment of the same object rendered by another converter
+		 */
+		private Fragment next;
+
+		Fragment(final JsonConverter converter, final Object[] objects,
+				final String[] entries) {
+			this.converter = converter;
+			final int n = objects.length;
+			this.objects = new WeakReference<?>[n];
+			this.entries = new SerializationFragment.Template[n];
+			for (int i = 0; i < n; i++) {
+				// weak: the subgraph may reference the key
+				this.objects[i] = new WeakReference<>(objects[i]);
+				this.entries[i] = new SerializationFragment.Template(
+						entries[i]);
+			}
+		}
+
+		/**
+		 * @return the objects of the subgraph, by local reference; or
+		 *         <code>null</code> if some were collected
+		 */
+		Object[] getObjects() {
+			final Object[] result = new Object[objects.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = objects[i].get();
+				if (result[i] == null) {
+					return null;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return the rendered heap entries, by local reference
+		 */
+		SerializationFragment.Template[] getEntries() {
+			return entries;
+		}
+	}
+
+	/**
+	 * A weak reference compared by identity
+	 */
+	private static final class Key extends WeakReference<Object> {
+		private final int hash;
+
+		Key(final Object referent, final ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			this.hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Object referent = get();
+			return referent != null && referent == ((Key) obj).get();
+		}
+	}
+
+	private final Set<Class<?>> immutableClasses;
+	private final Map<Key, Boolean> immutableObjects = new HashMap<>();
+	private final Map<Key, Fragment> fragments = new HashMap<>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	/**
+	 * @param immutableClasses
+	 *            the classes of which all the objects are immutable
+	 */
+	public JsonFragmentCache(final Class<?>... immutableClasses) {
+		this.immutableClasses = new HashSet<>(Arrays.asList(immutableClasses));
+	}
+
+	/**
+	 * Mark an object as immutable: its JSON/R will be cached
+	 *
+	 * @param object
+	 *            the immutable object
+	 */
+	public synchronized void markImmutable(final Object object) {
+		expunge();
+		immutableObjects.put(new Key(object, queue), Boolean.TRUE);
+	}
+
+	/**
+	 * Forget the JSON/R of an object (e.g. if it was changed after all)
+	 *
+	 * @param object
+	 *            the object
+	 */
+	public synchronized void invalidate(final Object object) {
+		fragments.remove(new Key(object, null));
+	}
+
+	/**
+	 * Forget the JSON/R of all the objects
+	 */
+	public synchronized void clear() {
+		fragments.clear();
+	}
+
+	/**
+	 * @return <code>true</code> if the object is immutable
+	 */
+	boolean isImmutable(final Object object) {
+		if (immutableClasses.contains(object.getClass())) {
+			return true;
+		}
+		synchronized (this) {
+			return immutableObjects.containsKey(new Key(object, null));
+		}
+	}
+
+	/**
+	 * @return the cached fragment of the object rendered by the converter, or
+	 *         <code>null</code>
+	 */
+	synchronized Fragment get(final Object object,
+			final JsonConverter converter) {
+		Fragment result = fragments.get(new Key(object, null));
+		while (result != null && result.converter != converter) {
+			result = result.next;
+		}
+		return result;
+	}
+
+	/**
+	 * Cache the fragment of the object, replacing the one rendered by the
+	 * same converter
+	 */
+	synchronized void put(final Object object, final Fragment fragment) {
+		expunge();
+		final Key key = new Key(object, queue);
+		Fragment other = fragments.remove(key);
+		Fragment last = fragment;
+		last.next = null;
+		while (other != null) {
+			final Fragment following = other.next;
+			if (other.converter != fragment.converter) {
+				last.next = other;
+				last = other;
+				last.next = null;
+			}
+			other = following;
+		}
+		fragments.put(key, fragment);
+	}
+
+	/**
+	 * Remove the entries of the collected objects
+	 */
+	private void expunge() {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			immutableObjects.remove(ref);
+			fragments.remove(ref);
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+/**
+ * How the objects of a graph are written (see
+ * {@link JsonOptions#withGraphMode(JsonGraphMode)})
+ */
+public enum JsonGraphMode {
+	/**
+	 * Write the objects in a heap, and refer to them by reference
+	 * (<code>$n</code>): shared objects and cycles are preserved
+	 */
+	HEAP,
+
+	/**
+	 * Write the objects in place, as plain nested JSON objects, without
+	 * tracking their identity: the graph must be a tree. Shared objects are
+	 * written as many times as they are reached; cycles are rejected.
+	 */
+	TREE,
+
+	/**
+	 * Write the graph as a {@link #TREE}, unless an object is reached more
+	 * than once: the graph is then written again, in a {@link #HEAP}
+	 */
+	AUTO;
+}
@@ -0,0 +1,455 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+/**
+ * A read-only view of a value of a parsed {@link JsonTape}, to inspect a
+ * JSON/R document without binding it to Java classes. Nodes are light
+ * cursors on the tape: nothing is extracted from the source until an
+ * atomic value is asked for.
+ * <p>
+ * References are {@linkplain #resolve() resolved} transparently by the
+ * navigation methods, so that <code>root.get("customer").get("region")</code>
+ * works whether <code>customer</code> is inlined or in the heap.
+ */
+public final class JsonNode {
+
+	/**
+	 * The kinds of nodes
+	 */
+	public static enum Kind {
+		/**
+		 * An object (a bean or a map)
+		 */
+		OBJECT,
+		/**
+		 * An array (an array or a collection)
+		 */
+		ARRAY,
+		/**
+		 * A string
+		 */
+		STRING,
+		/**
+		 * A number
+		 */
+		NUMBER,
+		/**
+		 * <code>true</code> or <code>false</code>
+		 */
+		BOOLEAN,
+		/**
+		 * <code>null</code>
+		 */
+		NULL,
+		/**
+		 * A reference to a heap entry
+		 */
+		REFERENCE
+	}
+
+	private final JsonTape tape;
+	private final int position;
+	private JsonNode resolved;
+
+	// cache of the last item found by index, to iterate in linear time
+	private int lastIndex = -1;
+	private int lastItem;
+
+	/**
+	 * @param tape
+	 *            the tape
+	 * @param position
+	 *            the position of the value in the tape
+	 */
+	JsonNode(final JsonTape tape, final int position) {
+		this.tape = tape;
+		this.position = position;
+	}
+
+	/**
+	 * @return the kind of the node
+	 */
+	public Kind getKind() {
+		switch (tape.tag(position)) {
+		case JsonTape.OBJECT:
+			return Kind.OBJECT;
+		case JsonTape.ARRAY:
+			return Kind.ARRAY;
+		case JsonTape.STRING:
+			return Kind.STRING;
+		case JsonTape.INTEGER:
+		case JsonTape.NUMBER:
+			return Kind.NUMBER;
+		case JsonTape.TRUE:
+		case JsonTape.FALSE:
+			return Kind.BOOLEAN;
+		case JsonTape.NULL:
+			return Kind.NULL;
+		case JsonTape.REF:
+			return Kind.REFERENCE;
+		default:
+			throw new SerializationException("unexpected value at "
+					+ position);
+		}
+	}
+
+	/**
+	 * @return the heap index of the referenced entry
+	 * @throws SerializationException
+	 *             if the node is not a reference
+	 */
+	public int getRef() {
+		check(JsonTape.REF, "a reference");
+		return (int) tape.payload(position);
+	}
+
+	/**
+	 * @return the referenced heap entry if the node is a reference,
+	 *         <code>this</code> otherwise
+	 * @throws SerializationException
+	 *             if the reference cannot be resolved
+	 */
+	public JsonNode resolve() {
+		if (tape.tag(position) != JsonTape.REF) {
+			return this;
+		}
+		if (resolved == null) {
+			resolved = tape.getEntry((int) tape.payload(position));
+		}
+		return resolved;
+	}
+
+	/**
+	 * @return the number of properties of an object, or of items of an
+	 *         array; zero for other nodes
+	 */
+	public int size() {
+		final JsonNode node = resolve();
+		final int step;
+		switch (tape.tag(node.position)) {
+		case JsonTape.OBJECT:
+			step = 2;
+			break;
+		case JsonTape.ARRAY:
+			step = 0;
+			break;
+		default:
+			return 0;
+		}
+		final int end = (int) tape.payload(node.position);
+		int result = 0;
+		for (int item = node.position + 1; item < end; item = tape
+				.next(item + step)) {
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Look up a property of an object
+	 *
+	 * @param property
+	 *            the name of the property
+	 * @return the property's value, or <code>null</code> if the object does
+	 *         not have that property
+	 * @throws SerializationException
+	 *             if the node is not an object
+	 */
+	public JsonNode get(final String property) {
+		final JsonNode node = resolve();
+		node.check(JsonTape.OBJECT, "an object");
+		final int end = (int) tape.payload(node.position);
+		for (int key = node.position + 1; key < end; key = tape
+				.next(key + 2)) {
+			if (tape.stringEquals(key, property)) {
+				return new JsonNode(tape, key + 2);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get an item of an array, or the value of a property of an object by
+	 * its index. Iterating by increasing indexes is done in linear time.
+	 *
+	 * @param index
+	 *            the index of the item or property
+	 * @return the item
+	 * @throws SerializationException
+	 *             if the node is neither an array nor an object
+	 * @throws IndexOutOfBoundsException
+	 *             if the index is out of bounds
+	 */
+	public JsonNode get(final int index) {
+		final JsonNode node = resolve();
+		final int item = node.find(index);
+		if (tape.tag(node.position) == JsonTape.OBJECT) {
+			return new JsonNode(tape, item + 2);
+		}
+		return new JsonNode(tape, item);
+	}
+
+	/**
+	 * Get the name of a property of an object by its index
+	 *
+	 * @param index
+	 *            the index of the property
+	 * @return the name of the property
+	 * @throws SerializationException
+	 *             if the node is not an object
+	 * @throws IndexOutOfBoundsException
+	 *             if the index is out of bounds
+	 */
+	public String getName(final int index) {
+		final JsonNode node = resolve();
+		node.check(JsonTape.OBJECT, "an object");
+		return unescape(tape.getString(node.find(index)));
+	}
+
+	/**
+	 * @return the name of the class of an object, or <code>null</code> if it
+	 *         is not known (e.g. for maps)
+	 * @throws SerializationException
+	 *             if the node is not an object
+	 */
+	public String getClassName() {
+		final JsonNode type = get("class");
+		return type == null ? null : type.asString();
+	}
+
+	/**
+	 * @return the string value
+	 * @throws SerializationException
+	 *             if the node is not a string
+	 */
+	public String asString() {
+		final JsonNode node = resolve();
+		node.check(JsonTape.STRING, "a string");
+		return unescape(tape.getString(node.position));
+	}
+
+	/**
+	 * @return the number value
+	 * @throws SerializationException
+	 *             if the node is not a number
+	 */
+	public JsonNumber asNumber() {
+		final JsonNode node = resolve();
+		node.checkNumber();
+		return tape.getNumber(node.position);
+	}
+
+	/**
+	 * @return the number value, as a long
+	 * @throws SerializationException
+	 *             if the node is not a number, or if the number is not an
+	 *             integer in the range of longs
+	 */
+	public long asLong() {
+		final JsonNode node = resolve();
+		node.checkNumber();
+		if (tape.tag(node.position) == JsonTape.INTEGER) {
+			return tape.getLong(node.position);
+		}
+		try {
+			return tape.getNumber(node.position).longValueExact();
+		} catch (final ArithmeticException e) {
+			throw new SerializationException("not a long at "
+					+ node.position, e);
+		}
+	}
+
+	/**
+	 * @return the number value, as a double
+	 * @throws SerializationException
+	 *             if the node is not a number
+	 */
+	public double asDouble() {
+		final JsonNode node = resolve();
+		node.checkNumber();
+		if (tape.tag(node.position) == JsonTape.INTEGER) {
+			return tape.getLong(node.position);
+		}
+		return tape.getNumber(node.position).doubleValue();
+	}
+
+	/**
+	 * @return the boolean value
+	 * @throws SerializationException
+	 *             if the node is not a boolean
+	 */
+	public boolean asBoolean() {
+		final JsonNode node = resolve();
+		switch (tape.tag(node.position)) {
+		case JsonTape.TRUE:
+			return true;
+		case JsonTape.FALSE:
+			return false;
+		default:
+			throw new SerializationException("not a boolean at "
+					+ node.position);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the node is <code>null</code>
+	 */
+	public boolean isNull() {
+		return tape.tag(position) == JsonTape.NULL;
+	}
+
+	/**
+	 * Find an item (or a property's key) by its index
+	 */
+	private int find(final int index) {
+		final int tag = tape.tag(position);
+		if (tag != JsonTape.OBJECT && tag != JsonTape.ARRAY) {
+			throw new SerializationException("not an array nor an object at "
+					+ position);
+		}
+		if (index < 0) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		final int step = tag == JsonTape.OBJECT ? 2 : 0;
+		final int end = (int) tape.payload(position);
+		int i;
+		int item;
+		if (lastIndex >= 0 && lastIndex <= index) {
+			i = lastIndex;
+			item = lastItem;
+		} else {
+			i = 0;
+			item = position + 1;
+		}
+		while (i < index && item < end) {
+			item = tape.next(item + step);
+			i++;
+		}
+		if (item >= end) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		lastIndex = i;
+		lastItem = item;
+		return item;
+	}
+
+	private void check(final int tag, final String expected) {
+		if (tape.tag(position) != tag) {
+			throw new SerializationException("not " + expected + " at "
+					+ position);
+		}
+	}
+
+	private void checkNumber() {
+		final int tag = tape.tag(position);
+		if (tag != JsonTape.INTEGER && tag != JsonTape.NUMBER) {
+			throw new SerializationException("not a number at " + position);
+		}
+	}
+
+	/**
+	 * Decode the JSON escapes of a raw string
+	 */
+	static String unescape(final String raw) {
+		int i = raw.indexOf('\\');
+		if (i < 0) {
+			return raw;
+		}
+		final StringBuilder result = new StringBuilder(raw.length());
+		result.append(raw, 0, i);
+		while (i < raw.length()) {
+			final char c = raw.charAt(i++);
+			if (c != '\\' || i == raw.length()) {
+				result.append(c);
+				continue;
+			}
+			final char e = raw.charAt(i++);
+			switch (e) {
+			case 'b':
+				result.append('\b');
+				break;
+			case 'f':
+				result.append('\f');
+				break;
+			case 'n':
+				result.append('\n');
+				break;
+			case 'r':
+				result.append('\r');
+				break;
+			case 't':
+				result.append('\t');
+				break;
+			case 'u':
+				if (i + 4 > raw.length()) {
+					throw new SerializationException("invalid escape: \\u"
+							+ raw.substring(i));
+				}
+				try {
+					result.append((char) Integer.parseInt(
+							raw.substring(i, i + 4), 16));
+				} catch (final NumberFormatException x) {
+					throw new SerializationException("invalid escape: \\u"
+							+ raw.substring(i, i + 4), x);
+				}
+				i += 4;
+				break;
+			default:
+				result.append(e);
+			}
+		}
+		return result.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(tape) * 31 + position;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof JsonNode)) {
+			return false;
+		}
+		final JsonNode other = (JsonNode) obj;
+		return tape == other.tape && position == other.position;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getKind() + "@" + position;
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * A JSON/R number, as parsed. The number is kept in an exact decimal form
+ * (an unscaled <code>long</code> and a scale), or as a {@link BigDecimal} if it
+ * does not fit in a <code>long</code>; conversions to primitive values do not
+ * need any intermediate string.
+ */
+public final class JsonNumber extends Number {
+
+	private static final long serialVersionUID = -3460768036749102524L;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+		1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+		1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final long MAX_EXACT_DOUBLE = 1L << 53;
+	private static final long MAX_EXACT_FLOAT = 1L << 24;
+
+	private final long unscaledValue;
+	private final int scale;
+	private final boolean negative;
+	private final boolean integral;
+	private final BigDecimal big;
+
+	private JsonNumber(final long unscaledValue, final int scale,
+			final boolean negative, final boolean integral,
+			final BigDecimal big) {
+		this.unscaledValue = unscaledValue;
+		this.scale = scale;
+		this.negative = negative;
+		this.integral = integral;
+		this.big = big;
+	}
+
+	/**
+	 * @param value
+	 *            an integer value
+	 * @return the JSON number
+	 */
+	public static JsonNumber valueOf(final long value) {
+		return new JsonNumber(value, 0, value < 0, true, null);
+	}
+
+	/**
+	 * @param unscaledValue
+	 *            the unscaled value
+	 * @param scale
+	 *            the scale (i.e. the number of decimal digits, may be
+	 *            negative)
+	 * @return the JSON number, i.e.
+	 *         <code>unscaledValue &times; 10<sup>-scale</sup></code>
+	 */
+	public static JsonNumber valueOf(final long unscaledValue,
+			final int scale) {
+		return new JsonNumber(unscaledValue, scale, unscaledValue < 0, false,
+				null);
+	}
+
+	/**
+	 * @param value
+	 *            a big value
+	 * @param integral
+	 *            <code>true</code> if the value was written as an integer
+	 *            (i.e. without fraction nor exponent)
+	 * @return the JSON number
+	 */
+	public static JsonNumber valueOf(final BigDecimal value,
+			final boolean integral) {
+		return new JsonNumber(0, value.scale(), value.signum() < 0, integral,
+				value);
+	}
+
+	/**
+	 * Used by the parser to keep the sign of negative zeroes
+	 */
+	static JsonNumber valueOf(final long unscaledValue, final int scale,
+			final boolean negative, final boolean integral) {
+		return new JsonNumber(unscaledValue, scale, negative, integral, null);
+	}
+
+	/**
+	 * @return <code>true</code> if the number was written as an integer (i.e.
+	 *         without fraction nor exponent)
+	 */
+	public boolean isIntegral() {
+		return integral;
+	}
+
+	/**
+	 * @return the most natural Java value of the number: a {@link Long} or a
+	 *         {@link BigInteger} for integral numbers, a {@link Double}
+	 *         otherwise
+	 */
+	public Number getNaturalValue() {
+		if (!integral) {
+			return doubleValue();
+		}
+		if (big == null) {
+			return unscaledValue;
+		}
+		final BigInteger result = big.toBigInteger();
+		if (result.bitLength() < 64) {
+			return result.longValue();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the exact value of the number, as a long
+	 * @throws ArithmeticException
+	 *             if the number has a non-zero fractional part or does not fit
+	 *             in a long
+	 */
+	public long longValueExact() {
+		if (big == null && scale == 0) {
+			return unscaledValue;
+		}
+		return bigDecimalValue().longValueExact();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Number#intValue()
+	 */
+	@Override
+	public int intValue() {
+		return (int) longValue();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Number#longValue()
+	 */
+	@Override
+	public long longValue() {
+		if (big == null && scale == 0) {
+			return unscaledValue;
+		}
+		return bigDecimalValue().longValue();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Number#floatValue()
+	 */
+	@Override
+	public float floatValue() {
+		if (big == null && scale == 0 && unscaledValue < MAX_EXACT_FLOAT
+				&& unscaledValue > -MAX_EXACT_FLOAT) {
+			return negative && unscaledValue == 0 ? -0.0f : unscaledValue;
+		}
+		return Float.parseFloat(toString());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Number#doubleValue()
+	 */
+	@Override
+	public double doubleValue() {
+		if (big == null && unscaledValue < MAX_EXACT_DOUBLE
+				&& unscaledValue > -MAX_EXACT_DOUBLE) {
+			if (unscaledValue == 0) {
+				return negative ? -0.0 : 0.0;
+			}
+			// both operands are exact doubles, hence the result is correctly
+			// rounded
+			if (scale == 0) {
+				return unscaledValue;
+			} else if (scale > 0 && scale < POWERS_OF_TEN.length) {
+				return unscaledValue / POWERS_OF_TEN[scale];
+			} else if (scale < 0 && -scale < POWERS_OF_TEN.length) {
+				return unscaledValue * POWERS_OF_TEN[-scale];
+			}
+		}
+		return bigDecimalValue().doubleValue();
+	}
+
+	/**
+	 * @return the exact value of the number, as a big integer
+	 * @throws ArithmeticException
+	 *             if the number has a non-zero fractional part
+	 */
+	public BigInteger bigIntegerValue() {
+		if (big == null && scale == 0) {
+			return BigInteger.valueOf(unscaledValue);
+		}
+		return bigDecimalValue().toBigIntegerExact();
+	}
+
+	/**
+	 * @return the exact value of the number, as a big decimal
+	 */
+	public BigDecimal bigDecimalValue() {
+		if (big != null) {
+			return big;
+		}
+		return BigDecimal.valueOf(unscaledValue, scale);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		// equal numbers must hash the same way, whatever their form
+		if (big == null) {
+			return hashCode(unscaledValue, scale);
+		}
+		final BigInteger bigUnscaledValue = big.unscaledValue();
+		if (bigUnscaledValue.bitLength() < 64) {
+			return hashCode(bigUnscaledValue.longValue(), big.scale());
+		}
+		return big.hashCode();
+	}
+
+	private static int hashCode(final long unscaledValue, final int scale) {
+		return (int) (unscaledValue ^ (unscaledValue >>> 32)) * 31 + scale;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof JsonNumber)) {
+			return false;
+		}
+		final JsonNumber other = (JsonNumber) obj;
+		if (integral != other.integral || negative != other.negative) {
+			return false;
+		}
+		if (big == null && other.big == null) {
+			return unscaledValue == other.unscaledValue && scale == other.scale;
+		}
+		return bigDecimalValue().equals(other.bigDecimalValue());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		if (big == null && scale == 0) {
+			return negative && unscaledValue == 0 ? "-0" : Long
+					.toString(unscaledValue);
+		}
+		final String result = bigDecimalValue().toString();
+		return negative && unscaledValue == 0 && big == null ? "-" + result
+				: result;
+	}
+
+}
@@ -0,0 +1,363 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options of the JSON/R de/serialization. Options are immutable; use the
+ * <code>with...</code> methods to get modified copies.
+ * <p>
+ * The output options only choose between equivalent forms of the same graph:
+ * the deserializer always accepts all of them, whatever its own options.
+ */
+public final class JsonOptions {
+
+	/**
+	 * The default options
+	 */
+	public static final JsonOptions DEFAULT = new JsonOptions();
+
+	/**
+	 * The default maximum number of elements expanded from the runs of a
+	 * document
+	 */
+	public static final int DEFAULT_MAX_EXPANDED_ELEMENTS = 1 << 20;
+
+	// only set on new copies, see copy()
+	private ForkJoinPool parallelPool;
+	private Projection projection = Projection.ALL;
+	private boolean classDictionary;
+	private boolean positionalObjects;
+	private boolean columnarTables;
+	private boolean compactArrays;
+	private JsonCompression compression;
+	private JsonFragmentCache fragmentCache;
+	private boolean canonical;
+	private int sharedValuesMinLength;
+	private JsonGraphMode graphMode = JsonGraphMode.HEAP;
+	private int maxExpandedElements = DEFAULT_MAX_EXPANDED_ELEMENTS;
+
+	private JsonOptions() {
+	}
+
+	private JsonOptions copy() {
+		final JsonOptions result = new JsonOptions();
+		result.parallelPool = parallelPool;
+		result.projection = projection;
+		result.classDictionary = classDictionary;
+		result.positionalObjects = positionalObjects;
+		result.columnarTables = columnarTables;
+		result.compactArrays = compactArrays;
+		result.compression = compression;
+		result.fragmentCache = fragmentCache;
+		result.canonical = canonical;
+		result.sharedValuesMinLength = sharedValuesMinLength;
+		result.graphMode = graphMode;
+		result.maxExpandedElements = maxExpandedElements;
+		return result;
+	}
+
+	/**
+	 * @param parallelPool
+	 *            the pool used to parse large heaps in parallel;
+	 *            <code>null</code> to always parse sequentially (the default)
+	 * @return options identical to <code>this</code> but for the parallel
+	 *         parsing pool
+	 */
+	public JsonOptions withParallelPool(final ForkJoinPool parallelPool) {
+		final JsonOptions result = copy();
+		result.parallelPool = parallelPool;
+		return result;
+	}
+
+	/**
+	 * @param projection
+	 *            the properties to deserialize; {@link Projection#ALL} (the
+	 *            default) to deserialize all of them
+	 * @return options identical to <code>this</code> but for the projection
+	 */
+	public JsonOptions withProjection(final Projection projection) {
+		final JsonOptions result = copy();
+		result.projection = projection;
+		return result;
+	}
+
+	/**
+	 * @param classDictionary
+	 *            <code>true</code> to write the class names once, in a header
+	 *            at the start of the document, and refer to them by index in
+	 *            the objects; <code>false</code> (the default) to write the
+	 *            class name in each object
+	 * @return options identical to <code>this</code> but for the class
+	 *         dictionary
+	 */
+	public JsonOptions withClassDictionary(final boolean classDictionary) {
+		final JsonOptions result = copy();
+		result.classDictionary = classDictionary;
+		return result;
+	}
+
+	/**
+	 * @param positionalObjects
+	 *            <code>true</code> to declare each object layout (class and
+	 *            ordered property names) once, in a header at the start of
+	 *            the document, and write the objects as arrays of values
+	 *            referring to their layout; <code>false</code> (the default)
+	 *            to write the property names in each object
+	 * @return options identical to <code>this</code> but for the positional
+	 *         objects
+	 */
+	public JsonOptions withPositionalObjects(final boolean positionalObjects) {
+		final JsonOptions result = copy();
+		result.positionalObjects = positionalObjects;
+		return result;
+	}
+
+	/**
+	 * @param columnarTables
+	 *            <code>true</code> to write arrays and collections of distinct
+	 *            objects of the same class as columnar tables: one array of
+	 *            values per property instead of one object per element;
+	 *            <code>false</code> (the default) to write each object in the
+	 *            heap
+	 * @return options identical to <code>this</code> but for the columnar
+	 *         tables
+	 */
+	public JsonOptions withColumnarTables(final boolean columnarTables) {
+		final JsonOptions result = copy();
+		result.columnarTables = columnarTables;
+		return result;
+	}
+
+	/**
+	 * @param compactArrays
+	 *            <code>true</code> to write runs of the same atomic value in
+	 *            arrays and collections (including the columns of tables) as
+	 *            <code>count*value</code>, and arrays of integral numbers as
+	 *            deltas (<code>~[first,delta,...]</code>) when it is shorter;
+	 *            <code>false</code> (the default) to write each value
+	 * @return options identical to <code>this</code> but for the compact
+	 *         arrays
+	 */
+	public JsonOptions withCompactArrays(final boolean compactArrays) {
+		final JsonOptions result = copy();
+		result.compactArrays = compactArrays;
+		return result;
+	}
+
+	/**
+	 * @param compression
+	 *            the compression of the JSON/R byte streams (see
+	 *            {@link JsonSerializer#toJson(Object, java.io.OutputStream)}
+	 *            and {@link JsonSerializer#fromJson(java.io.InputStream)});
+	 *            <code>null</code> (the default) for plain UTF-8 streams
+	 * @return options identical to <code>this</code> but for the compression
+	 */
+	public JsonOptions withCompression(final JsonCompression compression) {
+		final JsonOptions result = copy();
+		result.compression = compression;
+		return result;
+	}
+
+	/**
+	 * @param fragmentCache
+	 *            the cache of the JSON/R of immutable objects, shared by the
+	 *            serializations; <code>null</code> (the default) to always
+	 *            serialize the whole graph. The cache is only used with the
+	 *            default output forms: not with a class dictionary,
+	 *            positional objects, columnar tables, compact arrays, shared
+	 *            values, canonical output, trees, or pretty output.
+	 * @return options identical to <code>this</code> but for the fragment
+	 *         cache
+	 */
+	public JsonOptions withFragmentCache(
+			final JsonFragmentCache fragmentCache) {
+		final JsonOptions result = copy();
+		result.fragmentCache = fragmentCache;
+		return result;
+	}
+
+	/**
+	 * @param canonical
+	 *            <code>true</code> to always write equal object graphs the
+	 *            same way: map entries and set elements are sorted by the
+	 *            JSON/R of their (atomic) keys, properties by name, and
+	 *            floating-point and decimal numbers are written in their
+	 *            shortest form (floating-point numbers keep a fraction or an
+	 *            exponent); the heap numbering follows. The fragment
+	 *            cache is not used. <code>false</code> (the default) to
+	 *            follow the iteration order of the maps and sets.
+	 * @return options identical to <code>this</code> but for the canonical
+	 *         output
+	 */
+	public JsonOptions withCanonical(final boolean canonical) {
+		final JsonOptions result = copy();
+		result.canonical = canonical;
+		return result;
+	}
+
+	/**
+	 * @param minLength
+	 *            if positive, the atomic values repeated in the graph whose
+	 *            JSON/R is at least that long are written once, in a header at
+	 *            the start of the document, and referred to by index
+	 *            (<code>%n</code>); when deserializing, the references share
+	 *            the same object. <code>0</code> (the default) to write each
+	 *            value
+	 * @return options identical to <code>this</code> but for the shared
+	 *         values
+	 */
+	public JsonOptions withSharedValues(final int minLength) {
+		if (minLength < 0) {
+			throw new IllegalArgumentException("invalid length: " + minLength);
+		}
+		final JsonOptions result = copy();
+		result.sharedValuesMinLength = minLength;
+		return result;
+	}
+
+	/**
+	 * @param graphMode
+	 *            how the objects are written: {@link JsonGraphMode#HEAP} (the
+	 *            default) to write them in a heap and refer to them by
+	 *            reference, {@link JsonGraphMode#TREE} to write them in place
+	 *            without tracking their identity, or
+	 *            {@link JsonGraphMode#AUTO} to choose for each graph. Columnar
+	 *            tables and the fragment cache are not used for trees.
+	 * @return options identical to <code>this</code> but for the graph mode
+	 */
+	public JsonOptions withGraphMode(final JsonGraphMode graphMode) {
+		if (graphMode == null) {
+			throw new IllegalArgumentException("null graph mode");
+		}
+		final JsonOptions result = copy();
+		result.graphMode = graphMode;
+		return result;
+	}
+
+	/**
+	 * @param maxExpandedElements
+	 *            the maximum number of elements that the runs
+	 *            (<code>count*value</code>) of a document may expand to, in
+	 *            all its arrays and collections;
+	 *            {@link #DEFAULT_MAX_EXPANDED_ELEMENTS} by default. A document
+	 *            that expands to more elements is rejected.
+	 * @return options identical to <code>this</code> but for the maximum
+	 *         number of expanded elements
+	 */
+	public JsonOptions withMaxExpandedElements(final int maxExpandedElements) {
+		if (maxExpandedElements < 0) {
+			throw new IllegalArgumentException("invalid maximum: "
+					+ maxExpandedElements);
+		}
+		final JsonOptions result = copy();
+		result.maxExpandedElements = maxExpandedElements;
+		return result;
+	}
+
+	/**
+	 * @return the pool used to parse large heaps in parallel, or
+	 *         <code>null</code> if parsing is always sequential
+	 */
+	public ForkJoinPool getParallelPool() {
+		return parallelPool;
+	}
+
+	/**
+	 * @return the properties to deserialize
+	 */
+	public Projection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * @return <code>true</code> if the class names are written in a header
+	 */
+	public boolean isClassDictionary() {
+		return classDictionary;
+	}
+
+	/**
+	 * @return <code>true</code> if the objects are written positionally
+	 */
+	public boolean isPositionalObjects() {
+		return positionalObjects;
+	}
+
+	/**
+	 * @return <code>true</code> if arrays and collections of similar objects
+	 *         are written as columnar tables
+	 */
+	public boolean isColumnarTables() {
+		return columnarTables;
+	}
+
+	/**
+	 * @return <code>true</code> if the arrays are written with runs and
+	 *         deltas
+	 */
+	public boolean isCompactArrays() {
+		return compactArrays;
+	}
+
+	/**
+	 * @return the compression of the byte streams, or <code>null</code> if
+	 *         they are not compressed
+	 */
+	public JsonCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return the cache of the JSON/R of immutable objects, or
+	 *         <code>null</code> if there is none
+	 */
+	public JsonFragmentCache getFragmentCache() {
+		return fragmentCache;
+	}
+
+	/**
+	 * @return <code>true</code> if the output is canonical
+	 */
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * @return the minimum length of the JSON/R of the shared values, or
+	 *         <code>0</code> if the values are not shared
+	 */
+	public int getSharedValuesMinLength() {
+		return sharedValuesMinLength;
+	}
+
+	/**
+	 * @return how the objects are written
+	 */
+	public JsonGraphMode getGraphMode() {
+		return graphMode;
+	}
+
+	/**
+	 * @return the maximum number of elements expanded from the runs of a
+	 *         document
+	 */
+	public int getMaxExpandedElements() {
+		return maxExpandedElements;
+	}
+
+}
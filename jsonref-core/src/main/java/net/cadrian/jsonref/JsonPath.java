@@ -0,0 +1,167 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled path expression, used to query a single value of a JSON/R
+ * document without deserializing the whole document.
+ * <p>
+ * The syntax is: an optional heap reference <code>$n</code> (the root object
+ * <code>$0</code> by default, also written <code>$</code>), followed by any
+ * number of property accesses <code>.name</code> and array accesses
+ * <code>[i]</code>; e.g. <code>$0.customer.region</code> or
+ * <code>orders[2].amount</code>. The references met along the path are
+ * followed.
+ */
+public final class JsonPath {
+
+	private final String expression;
+	private final int root;
+	private final String[] properties;
+	private final int[] items;
+
+	private JsonPath(final String expression, final int root,
+			final String[] properties, final int[] items) {
+		this.expression = expression;
+		this.root = root;
+		this.properties = properties;
+		this.items = items;
+	}
+
+	/**
+	 * Compile a path expression
+	 *
+	 * @param expression
+	 *            the path expression
+	 * @return the compiled path
+	 * @throws SerializationException
+	 *             if the expression is invalid
+	 */
+	public static JsonPath compile(final String expression) {
+		final int n = expression.length();
+		int i = 0;
+		int root = 0;
+		if (n > 0 && expression.charAt(0) == '$') {
+			i = digits(expression, 1);
+			if (i > 1) {
+				root = Integer.parseInt(expression.substring(1, i));
+			}
+		}
+
+		final List<String> properties = new ArrayList<>();
+		final List<Integer> items = new ArrayList<>();
+		boolean first = i == 0;
+		while (i < n) {
+			final char c = expression.charAt(i);
+			if (c == '[') {
+				final int end = digits(expression, i + 1);
+				if (end == i + 1 || end >= n || expression.charAt(end) != ']') {
+					throw invalid(expression, i);
+				}
+				properties.add(null);
+				items.add(Integer.valueOf(expression.substring(i + 1, end)));
+				i = end + 1;
+			} else {
+				final int start = first ? i : i + 1;
+				if (!first && c != '.') {
+					throw invalid(expression, i);
+				}
+				int end = start;
+				while (end < n && expression.charAt(end) != '.'
+						&& expression.charAt(end) != '[') {
+					end++;
+				}
+				if (end == start) {
+					throw invalid(expression, i);
+				}
+				properties.add(expression.substring(start, end));
+				items.add(-1);
+				i = end;
+			}
+			first = false;
+		}
+
+		final int size = properties.size();
+		final int[] itemsArray = new int[size];
+		for (int k = 0; k < size; k++) {
+			itemsArray[k] = items.get(k);
+		}
+		return new JsonPath(expression, root,
+				properties.toArray(new String[size]), itemsArray);
+	}
+
+	private static int digits(final String expression, final int start) {
+		int result = start;
+		while (result < expression.length()
+				&& Character.isDigit(expression.charAt(result))) {
+			result++;
+		}
+		return result;
+	}
+
+	private static SerializationException invalid(final String expression,
+			final int index) {
+		return new SerializationException("invalid path: " + expression
+				+ " at " + index);
+	}
+
+	/**
+	 * @return the reference of the object the path starts from
+	 */
+	int getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the number of accesses of the path
+	 */
+	int size() {
+		return properties.length;
+	}
+
+	/**
+	 * @param i
+	 *            the index of an access
+	 * @return the property name, or <code>null</code> if the access is an
+	 *         array access
+	 */
+	String getProperty(final int i) {
+		return properties[i];
+	}
+
+	/**
+	 * @param i
+	 *            the index of an access
+	 * @return the array index, only valid if the access is an array access
+	 */
+	int getItem(final int i) {
+		return items[i];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}
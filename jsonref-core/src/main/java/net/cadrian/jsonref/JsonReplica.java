@@ -0,0 +1,61 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+/**
+ * Maintains a copy of an object graph by applying the JSON/R patches of a
+ * {@link JsonDiff}. The objects of the graph are updated in place: only the
+ * new objects are created.
+ *
+ * A replica is not thread-safe.
+ *
+ * @see JsonSerializer#newReplica()
+ */
+public final class JsonReplica {
+
+	private static final DeserializationProcessor DESERIALIZATION_PROCESSOR = new DeserializationProcessor();
+
+	private final JsonConverter converter;
+	private Object[] objects = new Object[0];
+
+	JsonReplica(final JsonConverter converter) {
+		this.converter = converter;
+	}
+
+	/**
+	 * Apply a patch
+	 *
+	 * @param patch
+	 *            the JSON/R patch
+	 * @return the root of the updated object graph
+	 */
+	public Object apply(final String patch) {
+		objects = DESERIALIZATION_PROCESSOR.applyPatch(patch, converter,
+				objects);
+		return getRoot();
+	}
+
+	/**
+	 * Getter root
+	 *
+	 * @return the root of the object graph, or <code>null</code> if no patch
+	 *         was applied yet
+	 */
+	public Object getRoot() {
+		return objects.length == 0 ? null : objects[0];
+	}
+
+}
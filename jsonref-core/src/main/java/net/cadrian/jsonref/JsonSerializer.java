@@ -15,9 +15,20 @@
  */
 package net.cadrian.jsonref;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import net.cadrian.jsonref.atomic.DefaultJsonConverter;
 
@@ -30,6 +41,7 @@ public class JsonSerializer {
 	private static final DeserializationProcessor DESERIALIZATION_PROCESSOR = new DeserializationProcessor();
 
 	private final JsonConverter converter;
+	private final JsonOptions options;
 
 	/**
 	 * Default constructor with a {@link DefaultJsonConverter default converter}
@@ -47,11 +59,33 @@ public class JsonSerializer {
 	 *            instead
 	 */
 	public JsonSerializer(final JsonConverter converter) {
+		this(converter, null);
+	}
+
+	/**
+	 * Constructor with a given converter and options
+	 *
+	 * @param converter
+	 *            the converter; if <code>null</code> a
+	 *            {@link DefaultJsonConverter default converter} will be used
+	 *            instead
+	 * @param options
+	 *            the options; if <code>null</code> the
+	 *            {@link JsonOptions#DEFAULT default options} will be used
+	 *            instead
+	 */
+	public JsonSerializer(final JsonConverter converter,
+			final JsonOptions options) {
 		if (converter == null) {
 			this.converter = new DefaultJsonConverter();
 		} else {
 			this.converter = converter;
 		}
+		if (options == null) {
+			this.options = JsonOptions.DEFAULT;
+		} else {
+			this.options = options;
+		}
 	}
 
 	/**
@@ -66,7 +100,7 @@ public class JsonSerializer {
 	 */
 	public String toJson(final Object object, final Prettiness level) {
 		return SERIALIZATION_PROCESSOR.serialize(object, converter,
-				level == null ? null : level.newContext());
+				level == null ? null : level.newContext(), options);
 	}
 
 	/**
@@ -96,7 +130,7 @@ public class JsonSerializer {
 	public void toJson(final Object object, final Writer out,
 			final Prettiness level) throws IOException {
 		SERIALIZATION_PROCESSOR.serializeTo(object, out, converter,
-				level == null ? null : level.newContext());
+				level == null ? null : level.newContext(), options);
 	}
 
 	/**
@@ -114,6 +148,146 @@ public class JsonSerializer {
 		toJson(object, out, null);
 	}
 
+	/**
+	 * Serialize to JSON/R, computing the digest of its UTF-8 encoding on the
+	 * fly (e.g. for a {@linkplain JsonOptions#withCanonical(boolean)
+	 * canonical} output to be used as a cache key)
+	 *
+	 * @param object
+	 *            the object to serialize
+	 * @param out
+	 *            the stream to write to
+	 * @param level
+	 *            the prettiness level (can be <code>null</code>, in that case a
+	 *            {@link Prettiness#COMPACT compact} string will be produced)
+	 * @param digest
+	 *            the digest to update
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void toJson(final Object object, final Writer out,
+			final Prettiness level, final MessageDigest digest)
+					throws IOException {
+		final DigestWriter writer = new DigestWriter(out, digest);
+		toJson(object, writer, level);
+		writer.finish();
+	}
+
+	/**
+	 * Serialize to JSON/R, computing the digest of its UTF-8 encoding on the
+	 * fly
+	 *
+	 * @param object
+	 *            the object to serialize
+	 * @param level
+	 *            the prettiness level (can be <code>null</code>, in that case a
+	 *            {@link Prettiness#COMPACT compact} string will be produced)
+	 * @param digest
+	 *            the digest to update
+	 * @return the JSON/R string
+	 */
+	public String toJson(final Object object, final Prettiness level,
+			final MessageDigest digest) {
+		final StringBuilderWriter out = new StringBuilderWriter();
+		try {
+			toJson(object, out, level, digest);
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Serialize to UTF-8 encoded JSON/R, {@linkplain JsonCompression
+	 * compressed} if the options say so. The bytes are written (and
+	 * compressed) while the JSON/R is produced; the stream is not closed.
+	 *
+	 * @param object
+	 *            the object to serialize
+	 * @param out
+	 *            the stream to write to
+	 * @param level
+	 *            the prettiness level (can be <code>null</code>, in that case a
+	 *            {@link Prettiness#COMPACT compact} string will be produced)
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void toJson(final Object object, final OutputStream out,
+			final Prettiness level) throws IOException {
+		final JsonCompression compression = options.getCompression();
+		if (compression == null) {
+			final Writer writer = new OutputStreamWriter(out,
+					StandardCharsets.UTF_8);
+			toJson(object, writer, level);
+			writer.flush();
+		} else {
+			final DeflaterOutputStream deflater = compression
+					.newOutputStream(out);
+			try {
+				final Writer writer = new OutputStreamWriter(deflater,
+						StandardCharsets.UTF_8);
+				toJson(object, writer, level);
+				writer.flush();
+				deflater.finish();
+			} finally {
+				// out is the caller's: release the deflater, don't close it
+				JsonCompression.end(deflater);
+			}
+		}
+	}
+
+	/**
+	 * Serialize to UTF-8 encoded JSON/R ({@link Prettiness#COMPACT compact}
+	 * string), {@linkplain JsonCompression compressed} if the options say so
+	 *
+	 * @param object
+	 *            the object to serialize
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void toJson(final Object object, final OutputStream out)
+			throws IOException {
+		toJson(object, out, null);
+	}
+
+	/**
+	 * Serialize to binary JSON/R
+	 *
+	 * @param object
+	 *            the object to serialize
+	 * @return the binary JSON/R
+	 * @see BinaryOutput
+	 */
+	public byte[] toBinary(final Object object) {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try {
+			SERIALIZATION_PROCESSOR.serializeBinary(object, result, converter);
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * Serialize to binary JSON/R
+	 *
+	 * @param object
+	 *            the object to serialize
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             on I/O exception
+	 * @see BinaryOutput
+	 */
+	public void toBinary(final Object object, final OutputStream out)
+			throws IOException {
+		SERIALIZATION_PROCESSOR.serializeBinary(object, out, converter);
+	}
+
 	/**
 	 * Deserialize from JSON/R to the most appropriate type
 	 *
@@ -122,7 +296,8 @@ public class JsonSerializer {
 	 * @return the object
 	 */
 	public Object fromJson(final String jsonR) {
-		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter, null);
+		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter, null,
+				options);
 	}
 
 	/**
@@ -139,7 +314,7 @@ public class JsonSerializer {
 	public <T> T fromJson(final String jsonR,
 			final Class<? extends T> wantedType) {
 		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter,
-				wantedType);
+				wantedType, options);
 	}
 
 	/**
@@ -152,7 +327,8 @@ public class JsonSerializer {
 	 *             on I/O exception
 	 */
 	public Object fromJson(final Reader jsonR) throws IOException {
-		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter, null);
+		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter, null,
+				options);
 	}
 
 	/**
@@ -171,6 +347,290 @@ public class JsonSerializer {
 	public <T> T fromJson(final Reader jsonR,
 			final Class<? extends T> wantedType) throws IOException {
 		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter,
+				wantedType, options);
+	}
+
+	/**
+	 * Deserialize from UTF-8 encoded JSON/R to the most appropriate type,
+	 * {@linkplain JsonCompression decompressing} it if the options say so
+	 *
+	 * @param jsonR
+	 *            the JSON/R stream
+	 * @return the object
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public Object fromJson(final InputStream jsonR) throws IOException {
+		return fromJson(jsonR, null);
+	}
+
+	/**
+	 * Deserialize from UTF-8 encoded JSON/R to the given type,
+	 * {@linkplain JsonCompression decompressing} it if the options say so
+	 *
+	 * @param jsonR
+	 *            the JSON/R stream
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public <T> T fromJson(final InputStream jsonR,
+			final Class<? extends T> wantedType) throws IOException {
+		final JsonCompression compression = options.getCompression();
+		if (compression == null) {
+			return DESERIALIZATION_PROCESSOR.deserialize(new InputStreamReader(
+					jsonR, StandardCharsets.UTF_8), converter, wantedType,
+					options);
+		}
+		final InflaterInputStream inflater = compression
+				.newInputStream(jsonR);
+		try {
+			return DESERIALIZATION_PROCESSOR.deserialize(new InputStreamReader(
+					inflater, StandardCharsets.UTF_8), converter, wantedType,
+					options);
+		} finally {
+			// jsonR is the caller's: release the inflater, don't close it
+			JsonCompression.end(inflater);
+		}
+	}
+
+	/**
+	 * Deserialize from UTF-8 encoded JSON/R to the most appropriate type. The
+	 * buffer is read from its position to its limit, without changing them;
+	 * it may be a memory-mapped file.
+	 *
+	 * @param jsonR
+	 *            the JSON/R bytes
+	 * @return the object
+	 */
+	public Object fromJson(final ByteBuffer jsonR) {
+		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter, null,
+				options);
+	}
+
+	/**
+	 * Deserialize from UTF-8 encoded JSON/R to the given type. The buffer is
+	 * read from its position to its limit, without changing them; it may be
+	 * a memory-mapped file.
+	 *
+	 * @param jsonR
+	 *            the JSON/R bytes
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object
+	 */
+	public <T> T fromJson(final ByteBuffer jsonR,
+			final Class<? extends T> wantedType) {
+		return DESERIALIZATION_PROCESSOR.deserialize(jsonR, converter,
+				wantedType, options);
+	}
+
+	/**
+	 * Deserialize from binary JSON/R to the most appropriate type
+	 *
+	 * @param binary
+	 *            the binary JSON/R
+	 * @return the object
+	 * @see BinaryOutput
+	 */
+	public Object fromBinary(final byte[] binary) {
+		return fromBinary(binary, null);
+	}
+
+	/**
+	 * Deserialize from binary JSON/R to the given type
+	 *
+	 * @param binary
+	 *            the binary JSON/R
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object
+	 * @see BinaryOutput
+	 */
+	public <T> T fromBinary(final byte[] binary,
+			final Class<? extends T> wantedType) {
+		try {
+			return DESERIALIZATION_PROCESSOR.deserializeBinary(
+					new ByteArrayInputStream(binary), converter, wantedType);
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Deserialize from binary JSON/R to the given type
+	 *
+	 * @param binary
+	 *            the binary JSON/R stream
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object
+	 * @throws IOException
+	 *             on I/O exception
+	 * @see BinaryOutput
+	 */
+	public <T> T fromBinary(final InputStream binary,
+			final Class<? extends T> wantedType) throws IOException {
+		return DESERIALIZATION_PROCESSOR.deserializeBinary(binary, converter,
+				wantedType);
+	}
+
+	/**
+	 * Deserialize a parsed tape to the most appropriate type
+	 *
+	 * @param tape
+	 *            the parsed JSON/R
+	 * @return the object
+	 * @see JsonTape
+	 */
+	public Object fromJson(final JsonTape tape) {
+		return new TapeBinder(tape, converter).bind(null);
+	}
+
+	/**
+	 * Deserialize a parsed tape to the given type. The tape may be
+	 * deserialized many times.
+	 *
+	 * @param tape
+	 *            the parsed JSON/R
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object
+	 * @see JsonTape
+	 */
+	public <T> T fromJson(final JsonTape tape,
+			final Class<? extends T> wantedType) {
+		return new TapeBinder(tape, converter).bind(wantedType);
+	}
+
+	/**
+	 * Deserialize from JSON/R into an existing object graph: the properties
+	 * are set on the existing objects wherever their type matches,
+	 * collections and maps are refilled, and arrays of the right size are
+	 * overwritten. Other objects are created as usual.
+	 *
+	 * @param jsonR
+	 *            the JSON/R string
+	 * @param existingRoot
+	 *            the existing object graph
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object, i.e. the existing root if it could be reused
+	 */
+	public <T> T fromJsonInto(final String jsonR, final T existingRoot) {
+		return DESERIALIZATION_PROCESSOR.deserializeInto(jsonR, converter,
+				existingRoot, options);
+	}
+
+	/**
+	 * Deserialize from UTF-8 encoded JSON/R into an existing object graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R bytes
+	 * @param existingRoot
+	 *            the existing object graph
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object, i.e. the existing root if it could be reused
+	 * @see #fromJsonInto(String, Object)
+	 */
+	public <T> T fromJsonInto(final ByteBuffer jsonR, final T existingRoot) {
+		return DESERIALIZATION_PROCESSOR.deserializeInto(jsonR, converter,
+				existingRoot, options);
+	}
+
+	/**
+	 * Deserialize from JSON/R into an existing object graph
+	 *
+	 * @param jsonR
+	 *            the JSON/R stream
+	 * @param existingRoot
+	 *            the existing object graph
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the object, i.e. the existing root if it could be reused
+	 * @throws IOException
+	 *             on I/O exception
+	 * @see #fromJsonInto(String, Object)
+	 */
+	public <T> T fromJsonInto(final Reader jsonR, final T existingRoot)
+			throws IOException {
+		return DESERIALIZATION_PROCESSOR.deserializeInto(jsonR, converter,
+				existingRoot, options);
+	}
+
+	/**
+	 * Create a diff to replicate an object graph (see {@link #newReplica()})
+	 *
+	 * @return a new diff, starting from an empty graph
+	 */
+	public JsonDiff newDiff() {
+		return new JsonDiff(converter);
+	}
+
+	/**
+	 * Create a replica of an object graph, updated by the patches of a
+	 * {@link #newDiff() diff}
+	 *
+	 * @return a new replica, starting from an empty graph
+	 */
+	public JsonReplica newReplica() {
+		return new JsonReplica(converter);
+	}
+
+	/**
+	 * Query a single value of a JSON/R document, without deserializing the
+	 * whole document. Only the values along the path are looked at, and only
+	 * the found value is deserialized; it must not contain references (which
+	 * is always the case of atomic values).
+	 *
+	 * @param jsonR
+	 *            the JSON/R string
+	 * @param path
+	 *            the path of the value
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the value to return
+	 * @return the value, or <code>null</code> if the path does not match
+	 */
+	public <T> T query(final String jsonR, final JsonPath path,
+			final Class<? extends T> wantedType) {
+		return DESERIALIZATION_PROCESSOR.query(jsonR, path, converter,
+				wantedType);
+	}
+
+	/**
+	 * Query a single value of a UTF-8 encoded JSON/R document, without
+	 * deserializing the whole document
+	 *
+	 * @param jsonR
+	 *            the JSON/R bytes
+	 * @param path
+	 *            the path of the value
+	 * @param wantedType
+	 *            the wanted type
+	 * @param <T>
+	 *            the type of the value to return
+	 * @return the value, or <code>null</code> if the path does not match
+	 * @see #query(String, JsonPath, Class)
+	 */
+	public <T> T query(final ByteBuffer jsonR, final JsonPath path,
+			final Class<? extends T> wantedType) {
+		return DESERIALIZATION_PROCESSOR.query(jsonR, path, converter,
 				wantedType);
 	}
 
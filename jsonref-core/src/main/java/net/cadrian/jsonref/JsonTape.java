@@ -0,0 +1,526 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A parsed JSON/R document, stored as a "tape" of tagged 64-bit words
+ * instead of a tree of objects. The tape can be kept off-heap (in a direct
+ * buffer); strings and non-integral numbers are not copied but referenced
+ * as ranges of the source, and containers record the position of their end
+ * so that values can be skipped without looking at them. Parsing a document
+ * into a tape allocates almost no objects, whatever its size.
+ * <p>
+ * Each word holds a tag in its 8 high bits and a payload in the others:
+ * <ul>
+ * <li>heaps, objects and arrays: the position of the word after the
+ * container; the container's values follow (objects alternate keys and
+ * values)</li>
+ * <li>strings and non-integral numbers: the start of the range in the
+ * source; the next word is its end</li>
+ * <li>integral numbers: nothing; the next word is the raw value</li>
+ * <li>symbols (implicit property names, e.g. the class of positional
+ * objects): the index of the name; the next word is unused</li>
+ * <li>references: the index in the heap</li>
+ * <li>constants: nothing</li>
+ * </ul>
+ * <p>
+ * The tape is bound to Java objects with
+ * {@link JsonSerializer#fromJson(JsonTape, Class)}, or inspected without
+ * binding from its {@linkplain #getRoot() root node}. It is immutable once
+ * parsed.
+ */
+public final class JsonTape {
+
+	static final int HEAP = 1;
+	static final int OBJECT = 2;
+	static final int ARRAY = 3;
+	static final int STRING = 4;
+	static final int INTEGER = 5;
+	static final int NUMBER = 6;
+	static final int TRUE = 7;
+	static final int FALSE = 8;
+	static final int NULL = 9;
+	static final int REF = 10;
+	static final int SYMBOL = 11;
+
+	/**
+	 * The property names that may not be found in the source
+	 */
+	private static final String[] SYMBOLS = { "class" };
+	static final int SYMBOL_CLASS = 0;
+
+	private static final int TAG_SHIFT = 56;
+	private static final long PAYLOAD_MASK = (1L << TAG_SHIFT) - 1;
+	private static final int[] NO_ENTRIES = new int[0];
+
+	/**
+	 * The initial number of words: the tape grows as needed
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The maximum number of words of an on-heap tape (a <code>long[]</code>)
+	 */
+	private static final int MAX_HEAP_CAPACITY = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The maximum number of words of an off-heap tape (a direct buffer of at
+	 * most {@link Integer#MAX_VALUE} bytes)
+	 */
+	private static final int MAX_DIRECT_CAPACITY = Integer.MAX_VALUE / 8;
+
+	private final RandomAccessDeserializationContext source;
+	private final boolean offHeap;
+	private LongBuffer words;
+	private int size;
+	private int[] heap = NO_ENTRIES;
+	private int heapSize;
+
+	private JsonTape(final RandomAccessDeserializationContext source,
+			final boolean offHeap, final int capacity) {
+		this.source = source;
+		this.offHeap = offHeap;
+		this.words = allocate(capacity);
+	}
+
+	/**
+	 * Parse a JSON/R string into an on-heap tape
+	 *
+	 * @param jsonR
+	 *            the JSON/R string
+	 * @return the tape
+	 */
+	public static JsonTape parse(final String jsonR) {
+		return parse(jsonR, false);
+	}
+
+	/**
+	 * Parse a JSON/R string into a tape
+	 *
+	 * @param jsonR
+	 *            the JSON/R string
+	 * @param offHeap
+	 *            <code>true</code> to store the tape in a direct buffer,
+	 *            <code>false</code> to store it in a <code>long[]</code>
+	 * @return the tape
+	 * @throws SerializationException
+	 *             if the document is too large for a tape
+	 */
+	public static JsonTape parse(final String jsonR, final boolean offHeap) {
+		return parse(jsonR, offHeap, JsonOptions.DEFAULT);
+	}
+
+	/**
+	 * Parse a JSON/R string into a tape
+	 *
+	 * @param jsonR
+	 *            the JSON/R string
+	 * @param offHeap
+	 *            <code>true</code> to store the tape in a direct buffer,
+	 *            <code>false</code> to store it in a <code>long[]</code>
+	 * @param options
+	 *            the options; only the
+	 *            {@linkplain JsonOptions#getMaxExpandedElements() maximum
+	 *            number of expanded elements} is used
+	 * @return the tape
+	 * @throws SerializationException
+	 *             if the document is too large for a tape
+	 */
+	public static JsonTape parse(final String jsonR, final boolean offHeap,
+			final JsonOptions options) {
+		return parse(new StringDeserializationContext(jsonR.toCharArray()),
+				offHeap, options);
+	}
+
+	/**
+	 * Parse UTF-8 encoded JSON/R into a tape. The buffer is read from its
+	 * position to its limit, without changing them; it may be a
+	 * memory-mapped file. The tape references the buffer, which must not be
+	 * modified while the tape is in use.
+	 *
+	 * @param jsonR
+	 *            the JSON/R bytes
+	 * @param offHeap
+	 *            <code>true</code> to store the tape in a direct buffer,
+	 *            <code>false</code> to store it in a <code>long[]</code>
+	 * @return the tape
+	 * @throws SerializationException
+	 *             if the document is too large for a tape
+	 */
+	public static JsonTape parse(final ByteBuffer jsonR,
+			final boolean offHeap) {
+		return parse(jsonR, offHeap, JsonOptions.DEFAULT);
+	}
+
+	/**
+	 * Parse UTF-8 encoded JSON/R into a tape, see
+	 * {@link #parse(ByteBuffer, boolean)}
+	 *
+	 * @param jsonR
+	 *            the JSON/R bytes
+	 * @param offHeap
+	 *            <code>true</code> to store the tape in a direct buffer,
+	 *            <code>false</code> to store it in a <code>long[]</code>
+	 * @param options
+	 *            the options; only the
+	 *            {@linkplain JsonOptions#getMaxExpandedElements() maximum
+	 *            number of expanded elements} is used
+	 * @return the tape
+	 * @throws SerializationException
+	 *             if the document is too large for a tape
+	 */
+	public static JsonTape parse(final ByteBuffer jsonR,
+			final boolean offHeap, final JsonOptions options) {
+		return parse(new ByteBufferDeserializationContext(jsonR), offHeap,
+				options);
+	}
+
+	private static JsonTape parse(
+			final RandomAccessDeserializationContext context,
+			final boolean offHeap, final JsonOptions options) {
+		DeserializationProcessor.setOptions(context, options);
+		// a value takes at least two characters (with its separator) and
+		// at most two words; small documents need no growth at all
+		final JsonTape result = new JsonTape(context.duplicate(), offHeap,
+				Math.min(context.length() / 2 + 16, INITIAL_CAPACITY));
+		try {
+			new TapeParser(context, result).parse();
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of words in the tape
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return <code>true</code> if the tape is stored in a direct buffer
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * @return the number of entries in the heap (zero if the document is not
+	 *         a heap)
+	 */
+	public int getHeapSize() {
+		return heapSize;
+	}
+
+	/**
+	 * @return the root node of the document: the first heap entry if the
+	 *         document is a heap
+	 */
+	public JsonNode getRoot() {
+		if (size > 0 && tag(0) == HEAP) {
+			return getEntry(0);
+		}
+		return new JsonNode(this, 0);
+	}
+
+	/**
+	 * @param ref
+	 *            the heap index
+	 * @return the heap entry
+	 * @throws SerializationException
+	 *             if there is no such entry
+	 */
+	public JsonNode getEntry(final int ref) {
+		return new JsonNode(this, getEntryPosition(ref));
+	}
+
+	private LongBuffer allocate(final int capacity) {
+		if (offHeap) {
+			final long bytes = (long) capacity * 8;
+			assert bytes <= Integer.MAX_VALUE : "too many bytes";
+			return ByteBuffer.allocateDirect((int) bytes)
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+		return LongBuffer.wrap(new long[capacity]);
+	}
+
+	private void ensureCapacity(final int words) {
+		final int capacity = this.words.capacity();
+		final long needed = (long) size + words;
+		if (needed > capacity) {
+			final int maxCapacity = offHeap ? MAX_DIRECT_CAPACITY
+					: MAX_HEAP_CAPACITY;
+			if (needed > maxCapacity) {
+				throw new SerializationException(
+						"document too large: the tape cannot hold more than "
+								+ maxCapacity + " words");
+			}
+			final LongBuffer grown = allocate((int) Math.min(
+					Math.max((long) capacity * 2, needed), maxCapacity));
+			final LongBuffer old = this.words.duplicate();
+			old.position(0);
+			old.limit(size);
+			grown.put(old);
+			this.words = grown;
+		}
+	}
+
+	/**
+	 * Append a word
+	 *
+	 * @param tag
+	 *            the tag of the word
+	 * @param payload
+	 *            the payload of the word
+	 * @return the position of the word
+	 */
+	int append(final int tag, final long payload) {
+		assert payload >= 0 && payload <= PAYLOAD_MASK : "invalid payload";
+		ensureCapacity(1);
+		final int result = size++;
+		words.put(result, ((long) tag << TAG_SHIFT) | payload);
+		return result;
+	}
+
+	/**
+	 * Append a tagged word followed by a raw word
+	 *
+	 * @param tag
+	 *            the tag of the first word
+	 * @param payload
+	 *            the payload of the first word
+	 * @param raw
+	 *            the second word
+	 * @return the position of the first word
+	 */
+	int append(final int tag, final long payload, final long raw) {
+		final int result = append(tag, payload);
+		ensureCapacity(1);
+		words.put(size++, raw);
+		return result;
+	}
+
+	/**
+	 * Close a container: its payload becomes the current end of the tape
+	 *
+	 * @param position
+	 *            the position of the container
+	 */
+	void close(final int position) {
+		words.put(position, (words.get(position) & ~PAYLOAD_MASK) | size);
+	}
+
+	/**
+	 * Append a copy of a value (with its content, for containers)
+	 *
+	 * @param position
+	 *            the position of the value to copy
+	 */
+	void copy(final int position) {
+		final int end = next(position);
+		final long delta = size - position;
+		ensureCapacity(end - position);
+		int from = position;
+		while (from < end) {
+			final long word = words.get(from);
+			switch (tag(from)) {
+			case OBJECT:
+			case ARRAY:
+				// containers record their end
+				words.put(size++, word + delta);
+				from++;
+				break;
+			case STRING:
+			case SYMBOL:
+			case INTEGER:
+			case NUMBER:
+				words.put(size++, word);
+				words.put(size++, words.get(from + 1));
+				from += 2;
+				break;
+			default:
+				words.put(size++, word);
+				from++;
+			}
+		}
+	}
+
+	/**
+	 * Drop the end of the tape (not before the last heap entry)
+	 *
+	 * @param size
+	 *            the new size of the tape
+	 */
+	void truncate(final int size) {
+		assert size <= this.size : "invalid truncation";
+		assert heapSize == 0 || size > heap[heapSize - 1] : "invalid truncation";
+		this.size = size;
+	}
+
+	/**
+	 * @param position
+	 *            the position of a word
+	 * @return the whole word (for the raw words of two-word values)
+	 */
+	long getRaw(final int position) {
+		return words.get(position);
+	}
+
+	/**
+	 * Record the start of the next heap entry
+	 */
+	void addHeapEntry() {
+		if (heapSize == heap.length) {
+			final int[] grown = new int[Math.max(16, heapSize * 2)];
+			System.arraycopy(heap, 0, grown, 0, heapSize);
+			heap = grown;
+		}
+		heap[heapSize++] = size;
+	}
+
+	/**
+	 * @param ref
+	 *            the heap index
+	 * @return the position of the heap entry
+	 * @throws SerializationException
+	 *             if there is no such entry
+	 */
+	int getEntryPosition(final int ref) {
+		if (ref < 0 || ref >= heapSize) {
+			throw new SerializationException("unresolved reference $" + ref);
+		}
+		return heap[ref];
+	}
+
+	/**
+	 * @param position
+	 *            the position of a word
+	 * @return the tag of the word
+	 */
+	int tag(final int position) {
+		return (int) (words.get(position) >>> TAG_SHIFT);
+	}
+
+	/**
+	 * @param position
+	 *            the position of a word
+	 * @return the payload of the word
+	 */
+	long payload(final int position) {
+		return words.get(position) & PAYLOAD_MASK;
+	}
+
+	/**
+	 * @param position
+	 *            the position of a value
+	 * @return the position of the value that follows
+	 */
+	int next(final int position) {
+		switch (tag(position)) {
+		case HEAP:
+		case OBJECT:
+		case ARRAY:
+			return (int) payload(position);
+		case STRING:
+		case SYMBOL:
+		case INTEGER:
+		case NUMBER:
+			return position + 2;
+		default:
+			return position + 1;
+		}
+	}
+
+	/**
+	 * @param position
+	 *            the position of a string
+	 * @return the raw content of the string (escapes are not decoded)
+	 */
+	String getString(final int position) {
+		if (tag(position) == SYMBOL) {
+			return SYMBOLS[(int) payload(position)];
+		}
+		assert tag(position) == STRING : "not a string";
+		return source.substring((int) payload(position),
+				(int) words.get(position + 1));
+	}
+
+	/**
+	 * @param position
+	 *            the position of a string
+	 * @param string
+	 *            the string to compare with
+	 * @return <code>true</code> if the content of the string (with its
+	 *         escapes decoded) is the given string
+	 */
+	boolean stringEquals(final int position, final String string) {
+		if (tag(position) == SYMBOL) {
+			return SYMBOLS[(int) payload(position)].equals(string);
+		}
+		assert tag(position) == STRING : "not a string";
+		final int start = (int) payload(position);
+		final int end = (int) words.get(position + 1);
+		if (source.regionEquals(start, end, string)) {
+			return true;
+		}
+		// an escaped string is longer than its content
+		if (end - start <= string.length()) {
+			return false;
+		}
+		final String raw = source.substring(start, end);
+		return raw.indexOf('\\') >= 0
+				&& JsonNode.unescape(raw).equals(string);
+	}
+
+	/**
+	 * @param position
+	 *            the position of an integral number
+	 * @return the number
+	 */
+	long getLong(final int position) {
+		assert tag(position) == INTEGER : "not an integer";
+		return words.get(position + 1);
+	}
+
+	/**
+	 * @param position
+	 *            the position of a number
+	 * @return the number
+	 */
+	JsonNumber getNumber(final int position) {
+		if (tag(position) == INTEGER) {
+			return JsonNumber.valueOf(words.get(position + 1));
+		}
+		assert tag(position) == NUMBER : "not a number";
+		final RandomAccessDeserializationContext context = source
+				.duplicate();
+		context.reset((int) payload(position), (int) words.get(position + 1));
+		try {
+			return DeserializationProcessor.parseJsonNumber(context);
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+	}
+
+}
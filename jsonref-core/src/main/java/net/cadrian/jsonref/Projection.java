@@ -0,0 +1,82 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A projection selects, per class, the properties to deserialize. The values
+ * of the other properties of objects of those classes are skipped by the
+ * parser, and never bound. Objects of classes not in the projection are
+ * fully deserialized.
+ * <p>
+ * Projections are immutable; use {@link #with(Class, String...)} to get
+ * extended copies.
+ */
+public final class Projection {
+
+	/**
+	 * The empty projection: all the properties of all the objects are
+	 * deserialized
+	 */
+	public static final Projection ALL = new Projection(
+			Collections.<String, Set<String>> emptyMap());
+
+	private final Map<String, Set<String>> properties;
+
+	private Projection(final Map<String, Set<String>> properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * @param type
+	 *            the class of the objects to project
+	 * @param properties
+	 *            the properties to deserialize
+	 * @return a projection identical to <code>this</code> but for the
+	 *         properties of the given class
+	 */
+	public Projection with(final Class<?> type, final String... properties) {
+		final Map<String, Set<String>> map = new HashMap<>(this.properties);
+		map.put(type.getName(), Collections
+				.unmodifiableSet(new HashSet<>(Arrays.asList(properties))));
+		return new Projection(Collections.unmodifiableMap(map));
+	}
+
+	/**
+	 * @param className
+	 *            the name of a class
+	 * @return the properties to deserialize for the given class, or
+	 *         <code>null</code> if all of them are
+	 */
+	public Set<String> getProperties(final String className) {
+		return properties.get(className);
+	}
+
+	/**
+	 * @return <code>true</code> if this projection does not select any
+	 *         property (all the properties are deserialized)
+	 */
+	public boolean isEmpty() {
+		return properties.isEmpty();
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+/**
+ * A deserialization context on an input that is entirely available and can
+ * be accessed at any index (e.g. a string, or a byte buffer). Such an input
+ * can be split into ranges and parsed in parallel.
+ */
+abstract class RandomAccessDeserializationContext extends
+		AbstractDeserializationContext {
+
+	/**
+	 * @return the end of the input (excluded)
+	 */
+	abstract int length();
+
+	/**
+	 * Move the context to another range of the same input
+	 *
+	 * @param start
+	 *            the start of the range (included)
+	 * @param end
+	 *            the end of the range (excluded)
+	 */
+	abstract void reset(int start, int end);
+
+	/**
+	 * @return a new context on the same input, with its own state
+	 */
+	abstract RandomAccessDeserializationContext duplicate();
+
+	/**
+	 * Index the heap that starts at the current index
+	 *
+	 * @return the heap index
+	 */
+	abstract HeapIndex indexHeap();
+
+	/**
+	 * Extract a range of the input (e.g. the raw content of a string)
+	 *
+	 * @param start
+	 *            the start of the range (included)
+	 * @param end
+	 *            the end of the range (excluded)
+	 * @return the characters in the range
+	 */
+	abstract String substring(int start, int end);
+
+	/**
+	 * Compare a range of the input with a string, without extracting it
+	 *
+	 * @param start
+	 *            the start of the range (included)
+	 * @param end
+	 *            the end of the range (excluded)
+	 * @param string
+	 *            the string to compare
+	 * @return <code>true</code> if the range contains exactly the characters
+	 *         of the string
+	 */
+	abstract boolean regionEquals(int start, int end, String string);
+
+}
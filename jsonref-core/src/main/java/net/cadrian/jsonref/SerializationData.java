@@ -42,6 +42,19 @@ public interface SerializationData {
 	void toJson(Writer out, JsonConverter converter, Context context)
 			throws IOException;
 
+	/**
+	 * Binary serialization
+	 *
+	 * @param out
+	 *            the binary stream to append to
+	 * @param converter
+	 *            the converter
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	void toBinary(BinaryOutput out, JsonConverter converter)
+			throws IOException;
+
 	/**
 	 * Deserialization
 	 *
@@ -57,4 +70,24 @@ public interface SerializationData {
 	 */
 	<T> T fromJson(Class<? extends T> wantedType, JsonConverter converter,
 			net.cadrian.jsonref.JsonConverter.Context converterContext);
+
+	/**
+	 * Deserialization into an existing object graph: beans of the right type
+	 * are reused and their properties set, collections and maps are refilled,
+	 * and arrays of the right size are overwritten. Other objects are created
+	 * as usual.
+	 *
+	 * @param target
+	 *            the existing object to reuse, may be <code>null</code>
+	 * @param converter
+	 *            the converter
+	 * @param converterContext
+	 *            the converter context
+	 * @param <T>
+	 *            the type of the object to return
+	 * @return the actual deserialized object; either the target or a new
+	 *         object
+	 */
+	<T> T fromJsonInto(T target, JsonConverter converter,
+			net.cadrian.jsonref.JsonConverter.Context converterContext);
 }
\ No newline at end of file
@@ -20,16 +20,29 @@ import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import net.cadrian.jsonref.Prettiness.Context;
 import net.cadrian.jsonref.data.AbstractSerializationObject;
 import net.cadrian.jsonref.data.SerializationArray;
+import net.cadrian.jsonref.data.SerializationFragment;
 import net.cadrian.jsonref.data.SerializationHeap;
 import net.cadrian.jsonref.data.SerializationMap;
 import net.cadrian.jsonref.data.SerializationObject;
@@ -42,6 +55,30 @@ import net.cadrian.jsonref.data.SerializationValue;
  */
 class SerializationProcessor {
 
+	/**
+	 * The minimum number of rows of a columnar table
+	 */
+	private static final int MIN_TABLE_ROWS = 2;
+
+	/**
+	 * The maximum number of digits of the integral numbers written without
+	 * exponent in canonical output
+	 */
+	private static final int MAX_PLAIN_DIGITS = 21;
+
+	/**
+	 * The reference of the objects written in place, in tree mode
+	 */
+	private static final int NO_REF = -1;
+
+	private static final Comparator<PropertyDescriptor> BY_NAME = new Comparator<PropertyDescriptor>() {
+		@Override
+		public int compare(final PropertyDescriptor pd1,
+				final PropertyDescriptor pd2) {
+			return pd1.getName().compareTo(pd2.getName());
+		}
+	};
+
 	private static class ObjectReference {
 		private final Object object;
 		private final int id;
@@ -98,6 +135,297 @@ class SerializationProcessor {
 		}
 	}
 
+	/**
+	 * Thrown when the tree walk of {@link JsonGraphMode#AUTO} reaches an
+	 * object for the second time: the graph is written in a heap instead
+	 */
+	private static final class SharedObjectException extends RuntimeException {
+		private static final long serialVersionUID = 2516409457215787013L;
+
+		SharedObjectException() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * An atomic value and the number of its occurrences
+	 */
+	private static final class SharedValue {
+		final SerializationValue data;
+		final String json;
+		int count;
+
+		SharedValue(final Object value, final String json) {
+			this.data = new SerializationValue(value.getClass(), value, json);
+			this.json = json;
+		}
+	}
+
+	/**
+	 * The state of one serialization
+	 */
+	private static final class State {
+		final Map<ObjectReference, ObjectReference> refs = new HashMap<>();
+
+		/**
+		 * The class dictionary, in order of first use; <code>null</code> if
+		 * class names are written in each object
+		 */
+		final Map<Class<?>, SerializationValue> classes;
+
+		/**
+		 * The first object of each layout, by class; <code>null</code> if
+		 * objects are not positional
+		 */
+		final Map<Class<?>, List<SerializationObject>> layouts;
+
+		/**
+		 * The first object of each layout, by layout index
+		 */
+		final List<SerializationObject> layoutList = new ArrayList<>();
+
+		/**
+		 * <code>true</code> if arrays and collections of similar objects are
+		 * written as columnar tables
+		 */
+		final boolean tables;
+
+		/**
+		 * <code>true</code> if arrays and collections are written with runs
+		 * and deltas
+		 */
+		final boolean compact;
+
+		/**
+		 * The cache of the JSON/R of immutable objects; <code>null</code> if
+		 * the whole graph is serialized
+		 */
+		final JsonFragmentCache fragments;
+
+		/**
+		 * <code>true</code> if equal graphs must be written the same way
+		 */
+		final boolean canonical;
+
+		/**
+		 * The atomic values, in order of first use; <code>null</code> if the
+		 * values are written in place
+		 */
+		final Map<Object, SharedValue> values;
+
+		/**
+		 * The minimum length of the JSON/R of the values of the value table
+		 */
+		final int minLength;
+
+		/**
+		 * The JSON/R of the values of the value table, by index
+		 */
+		final List<String> valueList = new ArrayList<>();
+
+		/**
+		 * <code>true</code> if the objects are written in place, without
+		 * tracking their identity
+		 */
+		final boolean tree;
+
+		/**
+		 * In tree mode, the objects being written (the current path) to
+		 * detect the cycles; if {@link #auto}, all the objects written so far
+		 * to detect the shared objects
+		 */
+		final Set<Object> visited;
+
+		/**
+		 * <code>true</code> if the graph is written as a tree only if no
+		 * object is reached twice (see {@link SharedObjectException})
+		 */
+		final boolean auto;
+
+		State(final JsonOptions options) {
+			this(options, false, false);
+		}
+
+		State(final JsonOptions options, final boolean tree,
+				final boolean auto) {
+			this.tree = tree;
+			this.auto = auto;
+			if (tree) {
+				visited = Collections
+						.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+			} else {
+				visited = null;
+			}
+			if (options.isClassDictionary()) {
+				classes = new LinkedHashMap<>();
+			} else {
+				classes = null;
+			}
+			if (options.isPositionalObjects()) {
+				layouts = new HashMap<>();
+			} else {
+				layouts = null;
+			}
+			// the rows of the tables are heap entries
+			tables = options.isColumnarTables() && !tree;
+			compact = options.isCompactArrays();
+			canonical = options.isCanonical();
+			minLength = options.getSharedValuesMinLength();
+			if (minLength > 0) {
+				values = new LinkedHashMap<>();
+			} else {
+				values = null;
+			}
+			if (classes == null && layouts == null && !tables && !compact
+					&& values == null && !canonical && !tree) {
+				fragments = options.getFragmentCache();
+			} else {
+				// the fragments are rendered with the default options: they
+				// know neither the header nor the other output forms
+				fragments = null;
+			}
+		}
+
+		/**
+		 * @return the data of an atomic value, shared by all its occurrences
+		 *         if the values may be written in the value table
+		 */
+		SerializationValue getValue(final Object value,
+				final JsonConverter converter) {
+			final String json = canonical ? getCanonicalNumber(value,
+					converter) : null;
+			if (values == null || value instanceof Boolean) {
+				if (json == null) {
+					return new SerializationValue(value.getClass(), value);
+				}
+				return new SerializationValue(value.getClass(), value, json);
+			}
+			SharedValue result = values.get(value);
+			if (result == null) {
+				result = new SharedValue(value, json == null ? converter
+						.toJson(value) : json);
+				values.put(value, result);
+			}
+			result.count++;
+			return result.data;
+		}
+
+		/**
+		 * Put the long values used more than once into the value table
+		 */
+		void shareValues() {
+			if (values == null) {
+				return;
+			}
+			for (final SharedValue value : values.values()) {
+				if (value.count > 1 && value.json.length() >= minLength) {
+					value.data.setTableIndex(valueList.size());
+					valueList.add(value.json);
+				}
+			}
+		}
+
+		/**
+		 * Make the object positional, declaring its layout if it is new
+		 */
+		void setLayout(final SerializationObject object) {
+			final Class<?> type = object.getType();
+			List<SerializationObject> prototypes = layouts.get(type);
+			if (prototypes == null) {
+				prototypes = new ArrayList<>(1);
+				layouts.put(type, prototypes);
+			}
+			for (final SerializationObject prototype : prototypes) {
+				if (object.hasSameProperties(prototype)) {
+					object.setLayoutIndex(prototype.getLayoutIndex());
+					return;
+				}
+			}
+			object.setLayoutIndex(layoutList.size());
+			prototypes.add(object);
+			layoutList.add(object);
+		}
+
+		/**
+		 * @return the shared class reference <code>@n</code>
+		 */
+		SerializationValue getClassReference(final Class<?> type) {
+			SerializationValue result = classes.get(type);
+			if (result == null) {
+				result = new SerializationValue("@" + classes.size());
+				classes.put(type, result);
+			}
+			return result;
+		}
+
+		void writeHeader(final Writer out, final JsonConverter converter,
+				final Context context) throws IOException {
+			final boolean hasClasses = classes != null && !classes.isEmpty();
+			if (!hasClasses && layoutList.isEmpty() && valueList.isEmpty()) {
+				return;
+			}
+			out.append("@{");
+			if (hasClasses) {
+				out.append('"').append(DeserializationProcessor.HEADER_CLASSES)
+						.append("\":[");
+				boolean first = true;
+				for (final Class<?> type : classes.keySet()) {
+					if (first) {
+						first = false;
+					} else {
+						out.append(',');
+					}
+					out.append(converter.toJson(type.getName()));
+				}
+				out.append(']');
+			}
+			if (!layoutList.isEmpty()) {
+				if (hasClasses) {
+					out.append(',');
+				}
+				out.append('"').append(DeserializationProcessor.HEADER_SHAPES)
+						.append("\":[");
+				boolean first = true;
+				for (final SerializationObject prototype : layoutList) {
+					if (first) {
+						first = false;
+					} else {
+						out.append(',');
+					}
+					out.append('[').append(
+							converter.toJson(prototype.getType().getName()));
+					final String[] names = prototype.getPropertyNames();
+					for (int i = 1; i < names.length; i++) {
+						out.append(',').append(converter.toJson(names[i]));
+					}
+					out.append(']');
+				}
+				out.append(']');
+			}
+			if (!valueList.isEmpty()) {
+				if (hasClasses || !layoutList.isEmpty()) {
+					out.append(',');
+				}
+				out.append('"').append(DeserializationProcessor.HEADER_VALUES)
+						.append("\":[");
+				boolean first = true;
+				for (final String json : valueList) {
+					if (first) {
+						first = false;
+					} else {
+						out.append(',');
+					}
+					out.append(json);
+				}
+				out.append(']');
+			}
+			out.append('}');
+			if (context.getPrettiness() != Prettiness.COMPACT) {
+				out.append('\n');
+			}
+		}
+	}
+
 	/**
 	 * Serialize an object graph to JSON/R
 	 *
@@ -111,9 +439,27 @@ class SerializationProcessor {
 	 */
 	public String serialize(final Object value, final JsonConverter converter,
 			final Context context) {
+		return serialize(value, converter, context, JsonOptions.DEFAULT);
+	}
+
+	/**
+	 * Serialize an object graph to JSON/R
+	 *
+	 * @param value
+	 *            the object to serialize
+	 * @param converter
+	 *            the converter
+	 * @param context
+	 *            the prettiness level
+	 * @param options
+	 *            the serialization options
+	 * @return the serialized object
+	 */
+	public String serialize(final Object value, final JsonConverter converter,
+			final Context context, final JsonOptions options) {
 		final StringBuilderWriter result = new StringBuilderWriter();
 		try {
-			serializeTo(value, result, converter, context);
+			serializeTo(value, result, converter, context, options);
 		} catch (final IOException e) {
 			// should not happen anyway
 			throw new RuntimeException(e);
@@ -137,45 +483,223 @@ class SerializationProcessor {
 	 *             on exception
 	 */
 	public void serializeTo(final Object value, final Writer out,
-			final JsonConverter converter, Context context) throws IOException {
+			final JsonConverter converter, final Context context)
+			throws IOException {
+		serializeTo(value, out, converter, context, JsonOptions.DEFAULT);
+	}
+
+	/**
+	 * Serialize an object graph to JSON/R
+	 *
+	 * @param value
+	 *            the object to serialize
+	 * @param out
+	 *            the stream to write to
+	 * @param converter
+	 *            the converter
+	 * @param context
+	 *            the prettiness level
+	 * @param options
+	 *            the serialization options
+	 * @throws IOException
+	 *             on exception
+	 */
+	public void serializeTo(final Object value, final Writer out,
+			final JsonConverter converter, Context context,
+			final JsonOptions options) throws IOException {
 		if (value == null) {
 			out.write("null");
 		} else {
 			if (context == null) {
 				context = Prettiness.COMPACT.newContext();
 			}
-			final JsonConverter.Context converterContext = converter
-					.getNewContext();
-			final Map<ObjectReference, ObjectReference> refs = new HashMap<>();
-
-			final SerializationData data = getData(null, refs, value,
-					value.getClass(), converter, converterContext);
-			if (data != null) {
-				data.toJson(out, converter, context);
+			// the fragments are compact
+			final JsonOptions effective;
+			if (context.getPrettiness() == Prettiness.COMPACT) {
+				effective = options;
 			} else {
-				final SerializationHeap heap = new SerializationHeap();
-				getData(heap, refs, value, value.getClass(), converter,
-						converterContext);
-				heap.toJson(out, converter, context);
+				effective = options.withFragmentCache(null);
 			}
+			final JsonGraphMode graphMode = effective.getGraphMode();
+			State state = new State(effective, graphMode != JsonGraphMode.HEAP,
+					graphMode == JsonGraphMode.AUTO);
+			SerializationData data;
+			try {
+				data = getData(value, converter, state);
+			} catch (final SharedObjectException e) {
+				state = new State(effective);
+				data = getData(value, converter, state);
+			}
+			state.shareValues();
+			state.writeHeader(out, converter, context);
+			data.toJson(out, converter, context);
 		}
 	}
 
+	/**
+	 * Serialize an object graph to binary JSON/R
+	 *
+	 * @param value
+	 *            the object to serialize
+	 * @param out
+	 *            the stream to write to
+	 * @param converter
+	 *            the converter
+	 * @throws IOException
+	 *             on exception
+	 * @see BinaryOutput
+	 */
+	public void serializeBinary(final Object value, final OutputStream out,
+			final JsonConverter converter) throws IOException {
+		final BinaryOutput binary = new BinaryOutput(out);
+		if (value == null) {
+			binary.writeValue(null, "null");
+		} else {
+			getData(value, converter, new State(JsonOptions.DEFAULT))
+					.toBinary(binary, converter);
+		}
+		binary.flush();
+	}
+
+	/**
+	 * The heap entries of an object graph, rendered one by one (see
+	 * {@link JsonDiff} and {@link JsonFragmentCache})
+	 */
+	static final class Entries {
+		/**
+		 * The objects, by reference
+		 */
+		final Object[] objects;
+
+		/**
+		 * The JSON/R of the heap entries, by reference
+		 */
+		final String[] jsonR;
+
+		/**
+		 * <code>true</code> for the beans (with a class), referred to by
+		 * reference; the other entries are written in place in their parents
+		 */
+		final boolean[] beans;
+
+		/**
+		 * The property names of the beans (including the class), by
+		 * reference; <code>null</code> if not asked for
+		 */
+		final String[][] names;
+
+		/**
+		 * The JSON/R of the property values of the beans, in the same order
+		 * as the names, by reference; <code>null</code> if not asked for
+		 */
+		final String[][] properties;
+
+		Entries(final Object[] objects, final String[] jsonR,
+				final boolean[] beans, final String[][] names,
+				final String[][] properties) {
+			this.objects = objects;
+			this.jsonR = jsonR;
+			this.beans = beans;
+			this.names = names;
+			this.properties = properties;
+		}
+	}
+
+	/**
+	 * Serialize an object graph entry by entry
+	 *
+	 * @param value
+	 *            the root of the object graph
+	 * @param converter
+	 *            the converter
+	 * @param byProperty
+	 *            <code>true</code> to also write the beans property by
+	 *            property
+	 * @return the heap entries
+	 * @throws SerializationException
+	 *             if the value is not an object graph (e.g. an atomic value)
+	 */
+	Entries serializeEntries(final Object value,
+			final JsonConverter converter, final boolean byProperty) {
+		final State state = new State(JsonOptions.DEFAULT);
+		final SerializationHeap heap = new SerializationHeap();
+		if (value != null) {
+			getData(heap, state, value, value.getClass(), converter,
+					converter.getNewContext());
+		}
+		final int n = heap.nextRef();
+		if (n == 0) {
+			throw new SerializationException("not an object graph: " + value);
+		}
+
+		final Object[] objects = new Object[n];
+		for (final ObjectReference ref : state.refs.keySet()) {
+			objects[ref.getId()] = ref.getObject();
+		}
+		final String[] jsonR = new String[n];
+		final boolean[] beans = new boolean[n];
+		final String[][] names = byProperty ? new String[n][] : null;
+		final String[][] properties = byProperty ? new String[n][] : null;
+		final Context context = Prettiness.COMPACT.newContext();
+		try {
+			for (int i = 0; i < n; i++) {
+				final AbstractSerializationObject entry = heap.get(i);
+				final StringBuilderWriter out = new StringBuilderWriter();
+				entry.toJson(out, converter, context);
+				jsonR[i] = out.toString();
+				beans[i] = entry instanceof SerializationObject;
+				if (byProperty && beans[i]) {
+					names[i] = ((SerializationObject) entry)
+							.getPropertyNames();
+					properties[i] = new String[names[i].length];
+					for (int j = 0; j < names[i].length; j++) {
+						final StringBuilderWriter property = new StringBuilderWriter();
+						((SerializationObject) entry).toJsonProperty(j,
+								property, converter, context);
+						properties[i][j] = property.toString();
+					}
+				}
+			}
+		} catch (final IOException e) {
+			// should not happen anyway
+			throw new RuntimeException(e);
+		}
+		return new Entries(objects, jsonR, beans, names, properties);
+	}
+
+	/**
+	 * Build the intermediate data of a non-<code>null</code> object graph
+	 */
+	private SerializationData getData(final Object value,
+			final JsonConverter converter, final State state) {
+		final JsonConverter.Context converterContext = converter
+				.getNewContext();
+		final SerializationData data = getData(null, state, value,
+				value.getClass(), converter, converterContext);
+		if (data != null) {
+			return data;
+		}
+		final SerializationHeap heap = new SerializationHeap();
+		final SerializationData root = getData(heap, state, value,
+				value.getClass(), converter, converterContext);
+		return state.tree ? root : heap;
+	}
+
 	private SerializationData getData(final SerializationHeap heap,
-			final Map<ObjectReference, ObjectReference> refs,
+			final State state,
 			final Object value, final Class<?> propertyType,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		final SerializationData data;
 		if (value == null) {
-			data = new SerializationValue(propertyType, null);
+			data = SerializationValue.NULL;
 		} else if (converter.isAtomicValue(value.getClass())) {
-			data = new SerializationValue(value.getClass(), value);
+			data = state.getValue(value, converter);
 		} else if (propertyType == Class.class) {
 			data = new SerializationValue(propertyType,
 					((Class<?>) value).getName());
 		} else if (heap != null) {
-			data = getHeapData(value, propertyType, heap, refs, converter,
+			data = getHeapData(value, propertyType, heap, state, converter,
 					converterContext);
 		} else {
 			data = null;
@@ -185,34 +709,134 @@ class SerializationProcessor {
 
 	private SerializationData getHeapData(final Object value,
 			final Class<?> propertyType, final SerializationHeap heap,
-			final Map<ObjectReference, ObjectReference> refs,
+			final State state,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
+		if (state.tree) {
+			return getTreeData(value, propertyType, heap, state, converter,
+					converterContext);
+		}
 		final SerializationData result;
-		final ObjectReference ref = refs.get(new ObjectReference(value, 0));
+		final ObjectReference ref = state.refs.get(new ObjectReference(value,
+				0));
 		if (ref != null) {
-			result = new SerializationRef(ref.getId());
+			result = SerializationRef.valueOf(ref.getId());
 		} else if (propertyType.isArray()) {
 			result = serializeArray(new ObjectReference(value, heap.nextRef()),
-					propertyType, heap, refs, converter, converterContext);
+					propertyType, heap, state, converter, converterContext);
 		} else if (Collection.class.isAssignableFrom(propertyType)) {
 			result = serializeCollection(
 					new ObjectReference(value, heap.nextRef()), propertyType,
-					heap, refs, converter, converterContext);
+					heap, state, converter, converterContext);
 		} else if (Map.class.isAssignableFrom(propertyType)) {
 			result = serializeMap(new ObjectReference(value, heap.nextRef()),
-					propertyType, heap, refs, converter, converterContext);
+					propertyType, heap, state, converter, converterContext);
 		} else {
-			final int objectId = serializeObject(new ObjectReference(value,
-					heap.nextRef()), heap, refs, converter, converterContext);
-			result = new SerializationRef(objectId);
+			int objectId = -1;
+			if (state.fragments != null && state.fragments.isImmutable(value)) {
+				objectId = spliceFragment(value, heap, state, converter);
+			}
+			if (objectId < 0) {
+				objectId = serializeObject(new ObjectReference(value,
+						heap.nextRef()), heap, state, converter,
+						converterContext).getRef();
+			}
+			result = SerializationRef.valueOf(objectId);
 		}
 		return result;
 	}
 
+	/**
+	 * Tree mode: the value is written in place, and its identity is only
+	 * tracked along the current path (to reject the cycles), or in the whole
+	 * graph in {@link JsonGraphMode#AUTO} mode (to fall back to the heap)
+	 */
+	private SerializationData getTreeData(final Object value,
+			final Class<?> propertyType, final SerializationHeap heap,
+			final State state, final JsonConverter converter,
+			final JsonConverter.Context converterContext) {
+		if (!state.visited.add(value)) {
+			if (state.auto) {
+				throw new SharedObjectException();
+			}
+			throw new SerializationException("not a tree: cycle through "
+					+ value.getClass().getName());
+		}
+		final ObjectReference ref = new ObjectReference(value, NO_REF);
+		final SerializationData result;
+		if (propertyType.isArray()) {
+			result = serializeArray(ref, propertyType, heap, state, converter,
+					converterContext);
+		} else if (Collection.class.isAssignableFrom(propertyType)) {
+			result = serializeCollection(ref, propertyType, heap, state,
+					converter, converterContext);
+		} else if (Map.class.isAssignableFrom(propertyType)) {
+			result = serializeMap(ref, propertyType, heap, state, converter,
+					converterContext);
+		} else {
+			result = serializeObject(ref, heap, state, converter,
+					converterContext);
+		}
+		if (!state.auto) {
+			state.visited.remove(value);
+		}
+		return result;
+	}
+
+	/**
+	 * Add a new entry to the heap, unless in tree mode
+	 */
+	private static void addEntry(final ObjectReference ref,
+			final AbstractSerializationObject entry,
+			final SerializationHeap heap, final State state) {
+		if (!state.tree) {
+			heap.add(entry);
+			state.refs.put(ref, ref);
+		}
+	}
+
+	/**
+	 * Splice the cached JSON/R of an immutable object into the heap,
+	 * rendering it first if needed
+	 *
+	 * @return the reference of the object, or -1 if its subgraph shares
+	 *         objects with the already serialized part of the graph (nothing
+	 *         was done)
+	 */
+	private int spliceFragment(final Object value,
+			final SerializationHeap heap, final State state,
+			final JsonConverter converter) {
+		JsonFragmentCache.Fragment fragment = state.fragments.get(value,
+				converter);
+		Object[] objects = fragment == null ? null : fragment.getObjects();
+		if (objects == null) {
+			final Entries entries = serializeEntries(value, converter, false);
+			fragment = new JsonFragmentCache.Fragment(converter,
+					entries.objects, entries.jsonR);
+			state.fragments.put(value, fragment);
+			objects = entries.objects;
+		}
+		for (final Object object : objects) {
+			if (state.refs.containsKey(new ObjectReference(object, 0))) {
+				return -1;
+			}
+		}
+
+		final SerializationFragment.Template[] entries = fragment
+				.getEntries();
+		final int base = heap.nextRef();
+		for (int i = 0; i < entries.length; i++) {
+			final ObjectReference ref = new ObjectReference(objects[i], base
+					+ i);
+			heap.add(new SerializationFragment(base + i, entries[i], base));
+			state.refs.put(ref, ref);
+		}
+		return base;
+	}
+
 	private SerializationArray serializeArray(final ObjectReference ref,
 			final Class<?> propertyType, final SerializationHeap heap,
-			final Map<ObjectReference, ObjectReference> refs,
+			final State state,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		final Object array = ref.getObject();
@@ -220,11 +844,19 @@ class SerializationProcessor {
 		final Class<?> componentType = propertyType.getComponentType();
 		final SerializationArray result = new SerializationArray(n,
 				propertyType, ref.getId());
-		heap.add(result);
-		refs.put(ref, ref);
+		addEntry(ref, result, heap, state);
+		if (state.compact) {
+			result.setCompact();
+		}
 
+		if (state.tables
+				&& !componentType.isPrimitive()
+				&& serializeTable(result, Arrays.asList((Object[]) array),
+						heap, state, converter, converterContext)) {
+			return result;
+		}
 		for (int i = 0; i < n; i++) {
-			result.add(getData(heap, refs, Array.get(array, i), componentType,
+			result.add(getData(heap, state, Array.get(array, i), componentType,
 					converter, converterContext));
 		}
 		return result;
@@ -232,19 +864,32 @@ class SerializationProcessor {
 
 	private SerializationArray serializeCollection(final ObjectReference ref,
 			final Class<?> propertyType, final SerializationHeap heap,
-			final Map<ObjectReference, ObjectReference> refs,
+			final State state,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 
 		@SuppressWarnings("unchecked")
-		final Collection<Object> array = (Collection<Object>) ref.getObject();
+		Collection<Object> array = (Collection<Object>) ref.getObject();
+		if (state.canonical && array instanceof Set) {
+			final List<Object> sorted = sortByJson(array, array, converter);
+			if (sorted != null) {
+				array = sorted;
+			}
+		}
 		final SerializationArray result = new SerializationArray(array.size(),
 				propertyType, ref.getId());
-		heap.add(result);
-		refs.put(ref, ref);
+		addEntry(ref, result, heap, state);
+		if (state.compact) {
+			result.setCompact();
+		}
 
+		if (state.tables
+				&& serializeTable(result, array, heap, state, converter,
+						converterContext)) {
+			return result;
+		}
 		for (final Object object : array) {
-			result.add(getData(heap, refs, object, Object.class, converter,
+			result.add(getData(heap, state, object, Object.class, converter,
 					converterContext));
 		}
 		return result;
@@ -252,7 +897,7 @@ class SerializationProcessor {
 
 	private SerializationMap serializeMap(final ObjectReference ref,
 			final Class<?> propertyType, final SerializationHeap heap,
-			final Map<ObjectReference, ObjectReference> refs,
+			final State state,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 
@@ -260,44 +905,83 @@ class SerializationProcessor {
 		final Map<Object, Object> map = (Map<Object, Object>) ref.getObject();
 		final SerializationMap result = new SerializationMap(map.size(),
 				propertyType, ref.getId());
-		heap.add(result);
-		refs.put(ref, ref);
+		addEntry(ref, result, heap, state);
 
-		for (final Map.Entry<Object, Object> entry : map.entrySet()) {
+		Collection<Map.Entry<Object, Object>> entries = map.entrySet();
+		if (state.canonical) {
+			final List<Map.Entry<Object, Object>> sorted = sortByJson(entries,
+					map.keySet(), converter);
+			if (sorted != null) {
+				entries = sorted;
+			}
+		}
+		for (final Map.Entry<Object, Object> entry : entries) {
 			final Object key = entry.getKey();
 			final Object value = entry.getValue();
 			result.add(
-					getData(heap, refs, key, Object.class, converter,
+					getData(heap, state, key, Object.class, converter,
 							converterContext),
-							getData(heap, refs, value, Object.class, converter,
+							getData(heap, state, value, Object.class, converter,
 									converterContext));
 		}
 		return result;
 	}
 
-	private int serializeObject(final ObjectReference ref,
+	private SerializationObject serializeObject(final ObjectReference ref,
 			final SerializationHeap heap,
-			final Map<ObjectReference, ObjectReference> refs,
+			final State state,
+			final JsonConverter converter,
+			final JsonConverter.Context converterContext) {
+		final SerializationObject result = newObject(ref, heap, state,
+				converter, converterContext);
+		fillObject(result, ref.getObject(), heap, state, converter,
+				converterContext);
+		if (state.layouts != null) {
+			state.setLayout(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Create the object in the heap, with its class but without its
+	 * properties
+	 */
+	private SerializationObject newObject(final ObjectReference ref,
+			final SerializationHeap heap, final State state,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		assert ref.getObject() != null : "null object?!";
-		assert !refs.containsKey(ref) : "duplicated ref " + ref.getId();
+		assert !state.refs.containsKey(ref) : "duplicated ref " + ref.getId();
 
-		final Object object = ref.getObject();
-		final Class<?> type = object.getClass();
+		final Class<?> type = ref.getObject().getClass();
 
 		final SerializationObject result = new SerializationObject(type,
 				ref.getId());
-		heap.add(result);
-		refs.put(ref, ref);
+		addEntry(ref, result, heap, state);
+
+		if (state.classes == null) {
+			result.add(
+					"class",
+					getData(heap, state, type, Class.class, converter,
+							converterContext));
+		} else {
+			result.add("class", state.getClassReference(type));
+		}
+		return result;
+	}
 
-		result.add(
-				"class",
-				getData(heap, refs, type, Class.class, converter,
-						converterContext));
+	private void fillObject(final SerializationObject result,
+			final Object object, final SerializationHeap heap,
+			final State state, final JsonConverter converter,
+			final JsonConverter.Context converterContext) {
+		final Class<?> type = object.getClass();
 		try {
 			final BeanInfo beanInfo = Introspector.getBeanInfo(type);
-			final PropertyDescriptor[] pds = beanInfo.getPropertyDescriptors();
+			PropertyDescriptor[] pds = beanInfo.getPropertyDescriptors();
+			if (state.canonical) {
+				pds = pds.clone();
+				Arrays.sort(pds, BY_NAME);
+			}
 
 			for (final PropertyDescriptor pd : pds) {
 				final String propertyName = pd.getName();
@@ -313,18 +997,182 @@ class SerializationProcessor {
 					final Class<?> propertyType = converter
 							.getPropertyType(ctx);
 					converter.nestIn(ctx, object, value);
-					data = getData(heap, refs, value, propertyType, converter,
-							converterContext);
+					try {
+						data = getData(heap, state, value, propertyType,
+								converter, converterContext);
+					} finally {
+						converter.nestOut(ctx, object, value);
+					}
 					if (data != null) {
 						result.add(propertyName, data);
 					}
-					converter.nestOut(ctx, object, value);
 				}
 			}
 		} catch (final IntrospectionException e) {
 			throw new SerializationException(e);
 		}
+	}
+
+	/**
+	 * Try to serialize the elements of an array or collection as the rows of
+	 * a columnar table: they must be distinct objects of the same bean class,
+	 * not yet serialized. The rows are created first, so that they follow
+	 * the table in the heap.
+	 *
+	 * @return <code>true</code> if the elements were serialized,
+	 *         <code>false</code> if they must be serialized one by one
+	 *         (nothing was done)
+	 */
+	private boolean serializeTable(final SerializationArray result,
+			final Collection<?> elements, final SerializationHeap heap,
+			final State state, final JsonConverter converter,
+			final JsonConverter.Context converterContext) {
+		if (elements.size() < MIN_TABLE_ROWS
+				|| getRowType(elements, state, converter) == null) {
+			return false;
+		}
+		final List<SerializationObject> rows = new ArrayList<>(
+				elements.size());
+		for (final Object element : elements) {
+			rows.add(newObject(new ObjectReference(element, heap.nextRef()),
+					heap, state, converter, converterContext));
+		}
+		final Iterator<?> it = elements.iterator();
+		for (final SerializationObject row : rows) {
+			fillObject(row, it.next(), heap, state, converter,
+					converterContext);
+		}
 
-		return result.getRef();
+		// the properties may differ if the converter decides so
+		final SerializationObject first = rows.get(0);
+		boolean similar = first.getPropertyNames().length > 1;
+		for (int i = 1; similar && i < rows.size(); i++) {
+			similar = rows.get(i).hasSameProperties(first);
+		}
+		for (final SerializationObject row : rows) {
+			if (similar) {
+				result.add(row);
+			} else {
+				result.add(SerializationRef.valueOf(row.getRef()));
+				if (state.layouts != null) {
+					state.setLayout(row);
+				}
+			}
+		}
+		if (similar) {
+			result.setTable();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the class of the elements if they can be the rows of a table,
+	 *         <code>null</code> otherwise
+	 */
+	private static Class<?> getRowType(final Collection<?> elements,
+			final State state, final JsonConverter converter) {
+		final Set<Object> seen = Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Class<?> result = null;
+		for (final Object element : elements) {
+			if (element == null) {
+				return null;
+			}
+			final Class<?> type = element.getClass();
+			if (result == null) {
+				if (converter.isAtomicValue(type) || type == Class.class
+						|| type.isArray()
+						|| Collection.class.isAssignableFrom(type)
+						|| Map.class.isAssignableFrom(type)) {
+					return null;
+				}
+				result = type;
+			} else if (type != result) {
+				return null;
+			}
+			if (!seen.add(element) || state.refs
+					.containsKey(new ObjectReference(element, 0))) {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the JSON/R written by the converter for a floating-point or
+	 *         decimal number, in its shortest form if it is a JSON number;
+	 *         <code>null</code> for the other values. Floating-point numbers
+	 *         always keep a fraction or an exponent, and the sign of zero, to
+	 *         be read back as such.
+	 */
+	static String getCanonicalNumber(final Object value,
+			final JsonConverter converter) {
+		final boolean floating = value instanceof Double
+				|| value instanceof Float;
+		if (!floating && !(value instanceof BigDecimal)) {
+			return null;
+		}
+		final String json = converter.toJson(value);
+		if (json.isEmpty() || json.charAt(0) != '-'
+				&& (json.charAt(0) < '0' || json.charAt(0) > '9')) {
+			// not a JSON number (e.g. a string): kept as written
+			return json;
+		}
+		final BigDecimal decimal;
+		try {
+			decimal = new BigDecimal(json);
+		} catch (final NumberFormatException e) {
+			return json;
+		}
+		if (decimal.signum() == 0) {
+			if (floating) {
+				return json.charAt(0) == '-' ? "-0.0" : "0.0";
+			}
+			return "0";
+		}
+		final BigDecimal stripped = decimal.stripTrailingZeros();
+		final int digits = stripped.precision() - stripped.scale();
+		if (stripped.scale() <= 0 && digits <= MAX_PLAIN_DIGITS) {
+			final String integer = stripped.toBigInteger().toString();
+			return floating ? integer + ".0" : integer;
+		}
+		return stripped.toString();
+	}
+
+	/**
+	 * @return the elements sorted by the JSON/R of their keys, or
+	 *         <code>null</code> if some keys are not atomic (their JSON/R
+	 *         depends on the heap numbering)
+	 */
+	private static <E> List<E> sortByJson(final Collection<E> elements,
+			final Collection<?> keys, final JsonConverter converter) {
+		final List<Map.Entry<String, E>> sorted = new ArrayList<>(
+				elements.size());
+		final Iterator<?> it = keys.iterator();
+		for (final E element : elements) {
+			final Object key = it.next();
+			final String json;
+			if (key == null) {
+				json = "null";
+			} else if (converter.isAtomicValue(key.getClass())) {
+				final String canonical = getCanonicalNumber(key, converter);
+				json = canonical == null ? converter.toJson(key) : canonical;
+			} else {
+				return null;
+			}
+			sorted.add(new AbstractMap.SimpleImmutableEntry<>(json, element));
+		}
+		Collections.sort(sorted, new Comparator<Map.Entry<String, E>>() {
+			@Override
+			public int compare(final Map.Entry<String, E> e1,
+					final Map.Entry<String, E> e2) {
+				return e1.getKey().compareTo(e2.getKey());
+			}
+		});
+		final List<E> result = new ArrayList<>(sorted.size());
+		for (final Map.Entry<String, E> entry : sorted) {
+			result.add(entry.getValue());
+		}
+		return result;
 	}
 }
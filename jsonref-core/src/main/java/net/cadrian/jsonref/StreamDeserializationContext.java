@@ -1,6 +1,5 @@
 package net.cadrian.jsonref;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.Reader;
 
@@ -12,10 +11,10 @@ class StreamDeserializationContext extends AbstractDeserializationContext {
 	private int charsIndex;
 	private int charsCount;
 
-	StreamDeserializationContext(final Reader in) {
+	StreamDeserializationContext(final Reader in) throws IOException {
 		super();
 		this.in = in;
-		this.charsIndex = 4096;
+		fill();
 	}
 
 	/*
@@ -28,15 +27,23 @@ class StreamDeserializationContext extends AbstractDeserializationContext {
 		super.next();
 		charsIndex++;
 		if (charsIndex >= charsCount && !eof) {
-			try {
-				charsCount = in.read(chars);
-			} catch (final EOFException e) {
-				eof = true;
-			}
-			charsIndex = 0;
+			fill();
 		}
 	}
 
+	private void fill() throws IOException {
+		int count;
+		do {
+			count = in.read(chars);
+		} while (count == 0);
+		if (count < 0) {
+			eof = true;
+			count = 0;
+		}
+		charsCount = count;
+		charsIndex = 0;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -44,7 +51,7 @@ class StreamDeserializationContext extends AbstractDeserializationContext {
 	 */
 	@Override
 	public boolean isValid() {
-		return !eof || charsIndex < charsCount;
+		return charsIndex < charsCount;
 	}
 
 	/*
@@ -2,22 +2,160 @@ package net.cadrian.jsonref;
 
 import java.io.IOException;
 
-class StringDeserializationContext extends AbstractDeserializationContext {
+class StringDeserializationContext extends
+		RandomAccessDeserializationContext {
 
 	private final char[] chars;
 	private int charsIndex;
+	private int charsEnd;
 
 	StringDeserializationContext(final String jsonR) {
+		this(jsonR.toCharArray());
+	}
+
+	StringDeserializationContext(final char[] chars) {
+		this(chars, 0, chars.length);
+	}
+
+	/**
+	 * Context on a range of characters
+	 *
+	 * @param chars
+	 *            the characters
+	 * @param start
+	 *            the start of the range (included)
+	 * @param end
+	 *            the end of the range (excluded)
+	 */
+	StringDeserializationContext(final char[] chars, final int start,
+			final int end) {
 		super();
-		chars = jsonR.toCharArray();
+		this.chars = chars;
+		reset(start, end);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#reset(int,
+	 * int)
+	 */
+	@Override
+	void reset(final int start, final int end) {
+		assert 0 <= start && start <= end && end <= chars.length;
+		charsIndex = start;
+		charsEnd = end;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#length()
+	 */
+	@Override
+	int length() {
+		return chars.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#duplicate()
+	 */
+	@Override
+	RandomAccessDeserializationContext duplicate() {
+		return new StringDeserializationContext(chars, charsIndex, charsEnd);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.RandomAccessDeserializationContext#indexHeap()
+	 */
+	@Override
+	HeapIndex indexHeap() {
+		return HeapIndex.scan(chars, charsIndex, charsEnd);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.RandomAccessDeserializationContext#substring(int,
+	 * int)
+	 */
+	@Override
+	String substring(final int start, final int end) {
+		return new String(chars, start, end - start);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.RandomAccessDeserializationContext#regionEquals(int,
+	 * int, java.lang.String)
+	 */
+	@Override
+	boolean regionEquals(final int start, final int end, final String string) {
+		if (end - start != string.length()) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (chars[i] != string.charAt(i - start)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.DeserializationContext#appendPlainChars(java.lang
+	 * .StringBuilder)
+	 */
+	@Override
+	public void appendPlainChars(final StringBuilder buffer) {
+		final int start = charsIndex;
+		int i = start;
+		while (i < charsEnd && chars[i] != '"' && chars[i] != '\\') {
+			i++;
+		}
+		buffer.append(chars, start, i - start);
+		charsIndex = i;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.AbstractDeserializationContext#skipPlainChars()
+	 */
+	@Override
+	public void skipPlainChars() {
+		int i = charsIndex;
+		while (i < charsEnd && chars[i] != '"' && chars[i] != '\\') {
+			i++;
+		}
+		charsIndex = i;
 	}
 
 	@Override
 	public void next() throws IOException {
-		super.next();
 		charsIndex++;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.AbstractDeserializationContext#getIndex()
+	 */
+	@Override
+	public int getIndex() {
+		return charsIndex;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -25,7 +163,7 @@ class StringDeserializationContext extends AbstractDeserializationContext {
 	 */
 	@Override
 	public boolean isValid() {
-		return charsIndex < chars.length;
+		return charsIndex < charsEnd;
 	}
 
 	/*
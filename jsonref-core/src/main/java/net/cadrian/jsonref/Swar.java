@@ -0,0 +1,257 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SIMD-within-a-register scanning of UTF-8 JSON/R bytes: 8 bytes are
+ * classified at once, read as a little-endian <code>long</code>.
+ * <p>
+ * All the masks computed here have the high bit of each byte set if the byte
+ * matches, and are exact (no false positives due to borrows between bytes).
+ * </p>
+ */
+final class Swar {
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long CASE_BIT = 0xDFDFDFDFDFDFDFDFL;
+
+	private static final long SPACES = ONES * ' ';
+	private static final long TABS = ONES * '\t';
+	private static final long NEWLINES = ONES * '\n';
+	private static final long RETURNS = ONES * '\r';
+	private static final long QUOTES = ONES * '"';
+	private static final long BACKSLASHES = ONES * '\\';
+	private static final long OPEN_BRACKETS = ONES * '[';
+	private static final long CLOSE_BRACKETS = ONES * ']';
+	private static final long ANGLES = ONES * '>';
+	private static final long COMMAS = ONES * ',';
+	private static final long COLONS = ONES * ':';
+	private static final long DOLLARS = ONES * '$';
+
+	private Swar() {
+		// no instance
+	}
+
+	/**
+	 * @param buffer
+	 *            a buffer
+	 * @return a little-endian view of the buffer, suitable for the scanning
+	 *         methods
+	 */
+	static ByteBuffer littleEndian(final ByteBuffer buffer) {
+		return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return the mask of the bytes equal to zero
+	 */
+	static long zeroBytes(final long word) {
+		final long t = (word & LOW_BITS) + LOW_BITS;
+		return ~(t | word | LOW_BITS);
+	}
+
+	/**
+	 * @return the mask of the bytes equal to the pattern's
+	 */
+	static long equalBytes(final long word, final long pattern) {
+		return zeroBytes(word ^ pattern);
+	}
+
+	/**
+	 * @return the mask of the JSON whitespace bytes (space, tab, newline,
+	 *         carriage return)
+	 */
+	static long whitespace(final long word) {
+		return equalBytes(word, SPACES) | equalBytes(word, TABS)
+				| equalBytes(word, NEWLINES) | equalBytes(word, RETURNS);
+	}
+
+	/**
+	 * @return the mask of the bytes that end a plain run of string characters:
+	 *         quotes, backslashes, and non-ASCII bytes
+	 */
+	static long stringSpecial(final long word) {
+		return equalBytes(word, QUOTES) | equalBytes(word, BACKSLASHES)
+				| (word & HIGH_BITS);
+	}
+
+	/**
+	 * @return the mask of the quotes and backslashes
+	 */
+	static long quoteOrBackslash(final long word) {
+		return equalBytes(word, QUOTES) | equalBytes(word, BACKSLASHES);
+	}
+
+	/**
+	 * @return the mask of the structural bytes:
+	 *         <code>{}[]&lt;&gt;,:$</code>, quotes and backslashes
+	 */
+	static long structural(final long word) {
+		// '{' and '}' differ from '[' and ']' by the 0x20 bit only; '<' and
+		// '>' differ by the 0x02 bit only
+		final long brackets = word & CASE_BIT;
+		return equalBytes(brackets, OPEN_BRACKETS)
+				| equalBytes(brackets, CLOSE_BRACKETS)
+				| equalBytes(word | 0x0202020202020202L, ANGLES)
+				| equalBytes(word, COMMAS) | equalBytes(word, COLONS)
+				| equalBytes(word, DOLLARS) | equalBytes(word, QUOTES)
+				| equalBytes(word, BACKSLASHES);
+	}
+
+	/**
+	 * @return the index (0 to 7) of the first byte set in the mask
+	 */
+	static int firstByte(final long mask) {
+		return Long.numberOfTrailingZeros(mask) >>> 3;
+	}
+
+	/**
+	 * @param buffer
+	 *            a {@linkplain #littleEndian(ByteBuffer) little-endian} buffer
+	 * @param index
+	 *            the index to start from
+	 * @param limit
+	 *            the end of the bytes to scan (excluded)
+	 * @return the index of the first non-whitespace byte, or
+	 *         <code>limit</code> if none
+	 */
+	static int skipWhitespace(final ByteBuffer buffer, final int index,
+			final int limit) {
+		int i = index;
+		while (i + 8 <= limit) {
+			final long mask = ~whitespace(buffer.getLong(i)) & HIGH_BITS;
+			if (mask != 0) {
+				return i + firstByte(mask);
+			}
+			i += 8;
+		}
+		while (i < limit && isWhitespace(buffer.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param buffer
+	 *            a {@linkplain #littleEndian(ByteBuffer) little-endian} buffer
+	 * @param index
+	 *            the index to start from
+	 * @param limit
+	 *            the end of the bytes to scan (excluded)
+	 * @return the index of the first quote, backslash, or non-ASCII byte, or
+	 *         <code>limit</code> if none
+	 */
+	static int nextStringSpecial(final ByteBuffer buffer, final int index,
+			final int limit) {
+		int i = index;
+		while (i + 8 <= limit) {
+			final long mask = stringSpecial(buffer.getLong(i));
+			if (mask != 0) {
+				return i + firstByte(mask);
+			}
+			i += 8;
+		}
+		while (i < limit && !isStringSpecial(buffer.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param buffer
+	 *            a {@linkplain #littleEndian(ByteBuffer) little-endian} buffer
+	 * @param index
+	 *            the index to start from
+	 * @param limit
+	 *            the end of the bytes to scan (excluded)
+	 * @return the index of the first quote or backslash, or <code>limit</code>
+	 *         if none
+	 */
+	static int nextQuoteOrBackslash(final ByteBuffer buffer, final int index,
+			final int limit) {
+		int i = index;
+		while (i + 8 <= limit) {
+			final long mask = quoteOrBackslash(buffer.getLong(i));
+			if (mask != 0) {
+				return i + firstByte(mask);
+			}
+			i += 8;
+		}
+		while (i < limit && buffer.get(i) != '"' && buffer.get(i) != '\\') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param buffer
+	 *            a {@linkplain #littleEndian(ByteBuffer) little-endian} buffer
+	 * @param index
+	 *            the index to start from
+	 * @param limit
+	 *            the end of the bytes to scan (excluded)
+	 * @return the index of the first structural byte (see
+	 *         {@link #structural(long)}), or <code>limit</code> if none
+	 */
+	static int nextStructural(final ByteBuffer buffer, final int index,
+			final int limit) {
+		int i = index;
+		while (i + 8 <= limit) {
+			final long mask = structural(buffer.getLong(i));
+			if (mask != 0) {
+				return i + firstByte(mask);
+			}
+			i += 8;
+		}
+		while (i < limit && !isStructural(buffer.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(final byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private static boolean isStringSpecial(final byte b) {
+		return b == '"' || b == '\\' || b < 0;
+	}
+
+	private static boolean isStructural(final byte b) {
+		switch (b) {
+		case '{':
+		case '}':
+		case '[':
+		case ']':
+		case '<':
+		case '>':
+		case ',':
+		case ':':
+		case '$':
+		case '"':
+		case '\\':
+			return true;
+		default:
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+/**
+ * A small, bounded symbol table used during parsing to canonicalize repeated
+ * strings (property names, class names). The raw characters are accumulated
+ * in an internal {@linkplain #getBuffer() buffer} and looked up without
+ * allocating; a canonical value is only computed (and stored) the first time
+ * a given sequence is seen.
+ */
+class SymbolTable {
+
+	private static final int DEFAULT_CAPACITY = 256;
+	private static final int DEFAULT_MAX_LENGTH = 128;
+
+	private final int capacity;
+	private final int maxLength;
+
+	private final char[][] symbols;
+	private final int[] hashes;
+	private final Object[] values;
+	private int count;
+
+	private final StringBuilder buffer = new StringBuilder(32);
+	private int hash;
+
+	SymbolTable() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of symbols kept by the table
+	 * @param maxLength
+	 *            the maximum length of a symbol; longer sequences are never
+	 *            canonicalized
+	 */
+	SymbolTable(final int capacity, final int maxLength) {
+		this.capacity = capacity;
+		this.maxLength = maxLength;
+		int size = 1;
+		while (size < capacity * 2) {
+			size <<= 1;
+		}
+		this.symbols = new char[size][];
+		this.hashes = new int[size];
+		this.values = new Object[size];
+	}
+
+	/**
+	 * Start a new sequence of characters
+	 *
+	 * @return the buffer to append the sequence to
+	 */
+	StringBuilder start() {
+		buffer.setLength(0);
+		return buffer;
+	}
+
+	/**
+	 * @return the canonical value of the current sequence, or
+	 *         <code>null</code> if not known yet
+	 */
+	Object find() {
+		final int length = buffer.length();
+		if (length > maxLength) {
+			return null;
+		}
+		hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + buffer.charAt(i);
+		}
+		final int mask = symbols.length - 1;
+		int i = hash & mask;
+		char[] symbol;
+		while ((symbol = symbols[i]) != null) {
+			if (hashes[i] == hash && matches(symbol)) {
+				return values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Record the canonical value of the current sequence (if the table is not
+	 * full); must be called after {@link #find()}
+	 *
+	 * @param value
+	 *            the canonical value
+	 */
+	void store(final Object value) {
+		final int length = buffer.length();
+		if (length > maxLength || count >= capacity) {
+			return;
+		}
+		final int mask = symbols.length - 1;
+		int i = hash & mask;
+		while (symbols[i] != null) {
+			i = (i + 1) & mask;
+		}
+		final char[] symbol = new char[length];
+		buffer.getChars(0, length, symbol, 0);
+		symbols[i] = symbol;
+		hashes[i] = hash;
+		values[i] = value;
+		count++;
+	}
+
+	/**
+	 * @return the current sequence as a (new) string
+	 */
+	String current() {
+		return buffer.toString();
+	}
+
+	private boolean matches(final char[] symbol) {
+		final int length = symbol.length;
+		if (buffer.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (symbol[i] != buffer.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
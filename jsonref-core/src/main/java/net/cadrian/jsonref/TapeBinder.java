@@ -0,0 +1,308 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.cadrian.jsonref.data.AbstractSerializationObject;
+
+/**
+ * Bind a {@link JsonTape} to Java objects, with the same semantics as the
+ * binding of the parsed {@link SerializationData} tree. Heap entries are
+ * bound once, even when referenced many times.
+ */
+class TapeBinder {
+
+	private final JsonTape tape;
+	private final JsonConverter converter;
+	private final JsonConverter.Context converterContext;
+	private final Object[] deser;
+
+	/**
+	 * @param tape
+	 *            the tape to bind
+	 * @param converter
+	 *            the converter
+	 */
+	TapeBinder(final JsonTape tape, final JsonConverter converter) {
+		this.tape = tape;
+		this.converter = converter;
+		this.converterContext = converter.getNewContext();
+		this.deser = new Object[tape.getHeapSize()];
+	}
+
+	/**
+	 * Bind the whole document
+	 *
+	 * @param wantedType
+	 *            the wanted type
+	 * @return the object
+	 */
+	<T> T bind(final Class<? extends T> wantedType) {
+		if (tape.tag(0) == JsonTape.HEAP) {
+			return bindEntry(0, wantedType);
+		}
+		return bind(0, wantedType);
+	}
+
+	private <T> T bind(final int position, final Class<? extends T> type) {
+		switch (tape.tag(position)) {
+		case JsonTape.OBJECT:
+			return bindObject(position, -1, type);
+		case JsonTape.ARRAY:
+			return bindArray(position, -1, type);
+		case JsonTape.STRING:
+			return converter.fromJson("\"" + tape.getString(position) + "\"",
+					type);
+		case JsonTape.INTEGER:
+		case JsonTape.NUMBER:
+			return JsonConverters.fromJson(converter, tape.getNumber(position),
+					type);
+		case JsonTape.TRUE:
+			return converter.fromJson("true", type);
+		case JsonTape.FALSE:
+			return converter.fromJson("false", type);
+		case JsonTape.NULL:
+			return null;
+		case JsonTape.REF:
+			return bindEntry((int) tape.payload(position), type);
+		default:
+			throw new SerializationException("unexpected value at "
+					+ position);
+		}
+	}
+
+	private <T> T bindEntry(final int ref, final Class<? extends T> type) {
+		final int position = tape.getEntryPosition(ref);
+		@SuppressWarnings("unchecked")
+		final T result = (T) deser[ref];
+		if (result != null) {
+			return result;
+		}
+		if (tape.tag(position) == JsonTape.OBJECT) {
+			return bindObject(position, ref, type);
+		}
+		return bindArray(position, ref, type);
+	}
+
+	private <T> T bindObject(final int position, final int ref,
+			final Class<? extends T> type) {
+		if (type != null && Map.class.isAssignableFrom(type)) {
+			return bindObjectMap(position, ref, type);
+		}
+		return bindBean(position, ref, type);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T bindObjectMap(final int position, final int ref,
+			final Class<? extends T> type) {
+		@SuppressWarnings("rawtypes")
+		final Class<Map> mapType = (Class<Map>) type;
+		final Map<Object, Object> result = (Map<Object, Object>) converter
+				.newMap(mapType);
+		if (ref >= 0) {
+			deser[ref] = result;
+		}
+
+		final int end = (int) tape.payload(position);
+		for (int key = position + 1; key < end;) {
+			final int value = key + 2;
+			result.put(converter.fromJson("\"" + tape.getString(key) + "\"",
+					String.class), bind(value, null));
+			key = tape.next(value);
+		}
+		return (T) result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T bindBean(final int position, final int ref,
+			final Class<? extends T> type) {
+		final T result;
+		try {
+			final Class<?> actualType;
+			if (type != null) {
+				actualType = type;
+			} else {
+				final int classPosition = findProperty(position,
+						position + 1, "class");
+				if (classPosition < 0) {
+					throw new SerializationException("missing class at "
+							+ position);
+				}
+				final String className = bind(classPosition + 2,
+						String.class);
+				actualType = JsonConverters.resolveClass(converter, className);
+			}
+
+			result = (T) JsonConverters.getInstantiator(converter, actualType)
+					.newInstance();
+			if (ref >= 0) {
+				deser[ref] = result;
+			}
+
+			final BeanInfo beanInfo = Introspector.getBeanInfo(actualType);
+			final PropertyDescriptor[] pds = beanInfo.getPropertyDescriptors();
+
+			// properties are usually written in the descriptors order: start
+			// looking for each one after the previous one
+			int hint = position + 1;
+			for (final PropertyDescriptor pd : pds) {
+				final String propertyName = pd.getName();
+				final int key = findProperty(position, hint, propertyName);
+				if (key >= 0) {
+					final int value = key + 2;
+					hint = tape.next(value);
+					final Field propertyField = AbstractSerializationObject
+							.getField(propertyName, actualType);
+					final JsonConverter.Context ctx = converterContext
+							.withProperty(pd, propertyField);
+					if (!converter.isTransient(ctx)) {
+						converter.nestIn(ctx, result, null);
+						final Object data = bind(value, pd.getPropertyType());
+						converter.setPropertyValue(ctx, result, data);
+						converter.nestOut(ctx, result, data);
+					}
+				}
+			}
+		} catch (final IntrospectionException e) {
+			throw new SerializationException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Find a property of an object
+	 *
+	 * @param position
+	 *            the position of the object
+	 * @param hint
+	 *            the position of the key to start looking at
+	 * @param name
+	 *            the name of the property
+	 * @return the position of the property's key, or -1 if not found
+	 */
+	private int findProperty(final int position, final int hint,
+			final String name) {
+		final int end = (int) tape.payload(position);
+		for (int key = hint; key < end; key = tape.next(key + 2)) {
+			if (tape.stringEquals(key, name)) {
+				return key;
+			}
+		}
+		for (int key = position + 1; key < hint; key = tape.next(key + 2)) {
+			if (tape.stringEquals(key, name)) {
+				return key;
+			}
+		}
+		return -1;
+	}
+
+	private <T> T bindArray(final int position, final int ref,
+			final Class<? extends T> type) {
+		final T result;
+		if (type == null || Collection.class.isAssignableFrom(type)) {
+			result = bindCollection(position, ref, type);
+		} else if (type.isArray()) {
+			result = bindNativeArray(position, ref, type);
+		} else if (Map.class.isAssignableFrom(type)) {
+			result = bindArrayMap(position, ref, type);
+		} else {
+			throw new SerializationException("not array compatible");
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T bindNativeArray(final int position, final int ref,
+			final Class<? extends T> type) {
+		final Class<?> componentType = type.getComponentType();
+		final int end = (int) tape.payload(position);
+		int n = 0;
+		for (int item = position + 1; item < end; item = tape.next(item)) {
+			n++;
+		}
+		final Object result = Array.newInstance(componentType, n);
+		if (ref >= 0) {
+			deser[ref] = result;
+		}
+
+		int i = 0;
+		for (int item = position + 1; item < end; item = tape.next(item)) {
+			Array.set(result, i++, bind(item, componentType));
+		}
+		return (T) result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T bindCollection(final int position, final int ref,
+			final Class<? extends T> type) {
+		@SuppressWarnings("rawtypes")
+		final Class<Collection> collectionType = (Class<Collection>) type;
+		final Collection<Object> result = (Collection<Object>) converter
+				.newCollection(collectionType);
+		if (ref >= 0) {
+			deser[ref] = result;
+		}
+
+		final int end = (int) tape.payload(position);
+		for (int item = position + 1; item < end; item = tape.next(item)) {
+			result.add(bind(item, null));
+		}
+		return (T) result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T bindArrayMap(final int position, final int ref,
+			final Class<? extends T> type) {
+		@SuppressWarnings("rawtypes")
+		final Class<Map> mapType = (Class<Map>) type;
+		final Map<Object, Object> result = (Map<Object, Object>) converter
+				.newMap(mapType);
+		if (ref >= 0) {
+			deser[ref] = result;
+		}
+
+		final int end = (int) tape.payload(position);
+		for (int item = position + 1; item < end; item = tape.next(item)) {
+			final Object entry = bind(item, null);
+			if (entry instanceof Collection<?>) {
+				final Collection<Object> entrycoll = (Collection<Object>) entry;
+				if (entrycoll.size() != 2) {
+					throw new SerializationException("Not a map");
+				}
+				final Iterator<Object> it = entrycoll.iterator();
+				result.put(it.next(), it.next());
+			} else if (entry != null && entry.getClass().isArray()) {
+				if (Array.getLength(entry) != 2) {
+					throw new SerializationException("Not a map");
+				}
+				result.put(Array.get(entry, 0), Array.get(entry, 1));
+			} else {
+				throw new SerializationException("Not a map");
+			}
+		}
+		return (T) result;
+	}
+
+}
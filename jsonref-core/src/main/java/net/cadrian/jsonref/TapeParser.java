@@ -0,0 +1,708 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.cadrian.jsonref.DeserializationProcessor.ParseException;
+
+/**
+ * Parse JSON/R into a {@link JsonTape}. Strings and values are only
+ * scanned, never extracted.
+ */
+class TapeParser {
+
+	private static final char[] CONST_TRUE = "true".toCharArray();
+	private static final char[] CONST_FALSE = "false".toCharArray();
+	private static final char[] CONST_NULL = "null".toCharArray();
+
+	/**
+	 * Integers with at most that many digits cannot overflow a long
+	 */
+	private static final int MAX_SAFE_DIGITS = 18;
+
+	private static final long[] NO_CLASSES = new long[0];
+	private static final long[][] NO_LAYOUTS = new long[0][];
+
+	private final RandomAccessDeserializationContext context;
+	private final JsonTape tape;
+
+	/**
+	 * The source ranges of the class names of the header (start and end of
+	 * each name)
+	 */
+	private long[] classTable = NO_CLASSES;
+
+	/**
+	 * The shared values of the header (tag, payload and second word of each
+	 * value)
+	 */
+	private long[] valueTable = NO_CLASSES;
+
+	/**
+	 * The source ranges of the object layouts of the header (class name then
+	 * property names)
+	 */
+	private long[][] layouts = NO_LAYOUTS;
+
+	/**
+	 * The columnar table whose rows are being parsed: the positions of its
+	 * class, of its column names, and of the next value of each column
+	 */
+	private int tableClass;
+	private int[] tableColumns;
+	private int[] tableCursors;
+	private int tableRows;
+
+	/**
+	 * @param context
+	 *            the source
+	 * @param tape
+	 *            the tape to fill
+	 */
+	TapeParser(final RandomAccessDeserializationContext context,
+			final JsonTape tape) {
+		this.context = context;
+		this.tape = tape;
+	}
+
+	/**
+	 * Parse the whole source
+	 *
+	 * @throws IOException
+	 *             on exception
+	 */
+	void parse() throws IOException {
+		context.skipSpaces();
+		if (context.isValid() && context.get() == '@') {
+			parseHeader();
+			context.skipSpaces();
+		}
+		if (context.isValid() && context.get() == '<') {
+			parseHeap();
+		} else {
+			parseValue();
+		}
+	}
+
+	private void parseHeap() throws IOException {
+		final int position = tape.append(JsonTape.HEAP, 0);
+		context.next(); // skip '<'
+		boolean more = true;
+		while (more) {
+			context.skipSpaces();
+			final char c = context.isValid() ? context.get() : 0;
+			if (tableRows > 0 && c != '^') {
+				throw new ParseException("invalid heap: missing row at "
+						+ context.getIndex());
+			}
+			switch (c) {
+			case '{':
+			case '[':
+			case '~':
+			case '#':
+				tape.addHeapEntry();
+				parseValue();
+				break;
+			case '*':
+				parseTable();
+				break;
+			case '^':
+				parseRow();
+				break;
+			default:
+				throw new ParseException("invalid heap: missing entry at "
+						+ context.getIndex());
+			}
+			more = parseSeparator('>', "heap");
+		}
+		if (tableRows > 0) {
+			throw new ParseException("invalid heap: missing row at "
+					+ context.getIndex());
+		}
+		tape.close(position);
+	}
+
+	/**
+	 * A columnar table is parsed as an object (outside the heap entries),
+	 * its heap entry is an array of references to its rows
+	 */
+	private void parseTable() throws IOException {
+		context.next(); // skip '*'
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '{') {
+			throw new ParseException("invalid table: missing '{' at "
+					+ context.getIndex());
+		}
+		final int position = tape.size();
+		parseObject();
+		final int end = (int) tape.payload(position);
+		int columns = 0;
+		tableClass = -1;
+		for (int key = position + 1; key < end; key = tape.next(key + 2)) {
+			if (tape.stringEquals(key, "class")) {
+				tableClass = key + 2;
+			} else {
+				columns++;
+			}
+		}
+		if (tableClass < 0 || tape.tag(tableClass) != JsonTape.STRING
+				|| columns == 0) {
+			throw new ParseException("invalid table: no class or no column at "
+					+ context.getIndex());
+		}
+		tableColumns = new int[columns];
+		tableCursors = new int[columns];
+		int column = 0;
+		tableRows = -1;
+		for (int key = position + 1; key < end; key = tape.next(key + 2)) {
+			final int value = key + 2;
+			if (value != tableClass) {
+				if (tape.tag(value) != JsonTape.ARRAY) {
+					throw new ParseException("invalid table: bad column at "
+							+ context.getIndex());
+				}
+				final int rows = count(value);
+				if (tableRows >= 0 && rows != tableRows) {
+					throw new ParseException(
+							"invalid table: columns of different sizes at "
+									+ context.getIndex());
+				}
+				tableRows = rows;
+				tableColumns[column] = key;
+				tableCursors[column] = value + 1;
+				column++;
+			}
+		}
+
+		tape.addHeapEntry();
+		final int ref = tape.getHeapSize() - 1;
+		final int array = tape.append(JsonTape.ARRAY, 0);
+		for (int i = 0; i < tableRows; i++) {
+			tape.append(JsonTape.REF, ref + 1 + i);
+		}
+		tape.close(array);
+	}
+
+	/**
+	 * @return the number of values of an array
+	 */
+	private int count(final int position) {
+		final int end = (int) tape.payload(position);
+		int result = 0;
+		for (int value = position + 1; value < end; value = tape.next(value)) {
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * A row of a columnar table is rebuilt as an object, copying the next
+	 * value of each column
+	 */
+	private void parseRow() throws IOException {
+		if (tableRows <= 0) {
+			throw new ParseException("invalid heap: row without table at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '^'
+		tape.addHeapEntry();
+		final int position = tape.append(JsonTape.OBJECT, 0);
+		tape.append(JsonTape.SYMBOL, JsonTape.SYMBOL_CLASS, 0);
+		tape.copy(tableClass);
+		for (int j = 0; j < tableColumns.length; j++) {
+			tape.copy(tableColumns[j]);
+			final int value = tableCursors[j];
+			tape.copy(value);
+			tableCursors[j] = tape.next(value);
+		}
+		tape.close(position);
+		tableRows--;
+	}
+
+	/**
+	 * Parse the document header. It is parsed as an object, its class names
+	 * and object layouts are recorded, then it is removed from the tape: class
+	 * references are stored as the strings they refer to, and positional
+	 * objects as plain objects.
+	 */
+	private void parseHeader() throws IOException {
+		context.next(); // skip '@'
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '{') {
+			throw new ParseException("invalid header at " + context.getIndex());
+		}
+		final int position = tape.size();
+		parseObject();
+		final int end = (int) tape.payload(position);
+		for (int key = position + 1; key < end;) {
+			final int value = key + 2;
+			if (tape.stringEquals(key,
+					DeserializationProcessor.HEADER_CLASSES)) {
+				if (tape.tag(value) != JsonTape.ARRAY) {
+					throw new ParseException("invalid header: bad classes");
+				}
+				classTable = getRanges(value);
+			} else if (tape.stringEquals(key,
+					DeserializationProcessor.HEADER_SHAPES)) {
+				if (tape.tag(value) != JsonTape.ARRAY) {
+					throw new ParseException("invalid header: bad shapes");
+				}
+				parseLayouts(value);
+			} else if (tape.stringEquals(key,
+					DeserializationProcessor.HEADER_VALUES)) {
+				if (tape.tag(value) != JsonTape.ARRAY) {
+					throw new ParseException("invalid header: bad values");
+				}
+				parseValueTable(value);
+			}
+			key = tape.next(value);
+		}
+		tape.truncate(position);
+	}
+
+	private void parseLayouts(final int position) {
+		final int end = (int) tape.payload(position);
+		final long[][] result = new long[end - position][];
+		int count = 0;
+		for (int layout = position + 1; layout < end; layout = tape
+				.next(layout)) {
+			if (tape.tag(layout) != JsonTape.ARRAY) {
+				throw new ParseException("invalid header: bad shape");
+			}
+			result[count] = getRanges(layout);
+			if (result[count].length == 0) {
+				throw new ParseException("invalid header: missing class");
+			}
+			count++;
+		}
+		layouts = Arrays.copyOf(result, count);
+	}
+
+	private void parseValueTable(final int position) {
+		final int end = (int) tape.payload(position);
+		final long[] result = new long[(end - position - 1) / 2 * 3];
+		int count = 0;
+		for (int value = position + 1; value < end; value += 2) {
+			final int tag = tape.tag(value);
+			if (tag != JsonTape.STRING && tag != JsonTape.INTEGER
+					&& tag != JsonTape.NUMBER) {
+				throw new ParseException("invalid header: bad value");
+			}
+			result[count++] = tag;
+			result[count++] = tape.payload(value);
+			result[count++] = tape.getRaw(value + 1);
+		}
+		valueTable = Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @return the source ranges of an array of strings (start and end of each
+	 *         string)
+	 */
+	private long[] getRanges(final int position) {
+		final int end = (int) tape.payload(position);
+		final long[] result = new long[end - position - 1];
+		int count = 0;
+		for (int name = position + 1; name < end; name += 2) {
+			if (tape.tag(name) != JsonTape.STRING) {
+				throw new ParseException("invalid header: bad name");
+			}
+			result[count++] = tape.payload(name);
+			result[count++] = tape.getRaw(name + 1);
+		}
+		return result;
+	}
+
+	private void parseValue() throws IOException {
+		context.skipSpaces();
+		if (!context.isValid()) {
+			throw new ParseException("missing value at " + context.getIndex());
+		}
+		final char c = context.get();
+		switch (c) {
+		case '{':
+			parseObject();
+			break;
+		case '[':
+			parseArray();
+			break;
+		case '~':
+			parseDeltaArray();
+			break;
+		case '"':
+			parseString();
+			break;
+		case '$':
+			tape.append(JsonTape.REF, parseIndex("reference"));
+			break;
+		case '@':
+			parseClassReference();
+			break;
+		case '%':
+			parseValueReference();
+			break;
+		case '#':
+			parsePositionalObject();
+			break;
+		case 't':
+			parseConst(CONST_TRUE, JsonTape.TRUE);
+			break;
+		case 'f':
+			parseConst(CONST_FALSE, JsonTape.FALSE);
+			break;
+		case 'n':
+			parseConst(CONST_NULL, JsonTape.NULL);
+			break;
+		default:
+			if (c == '-' || DeserializationProcessor.isDigit(c)) {
+				parseNumber();
+			} else {
+				throw new ParseException("unexpected character '" + c
+						+ "' at " + context.getIndex());
+			}
+		}
+	}
+
+	private void parseObject() throws IOException {
+		final int position = tape.append(JsonTape.OBJECT, 0);
+		context.next(); // skip '{'
+		context.skipSpaces();
+		if (context.isValid() && context.get() == '}') {
+			context.next();
+		} else {
+			boolean more = true;
+			while (more) {
+				context.skipSpaces();
+				if (!context.isValid() || context.get() != '"') {
+					throw new ParseException(
+							"invalid object: missing property name at "
+									+ context.getIndex());
+				}
+				parseString();
+				context.skipSpaces();
+				if (!context.isValid() || context.get() != ':') {
+					throw new ParseException("invalid object: missing ':' at "
+							+ context.getIndex());
+				}
+				context.next();
+				parseValue();
+				more = parseSeparator('}', "object");
+			}
+		}
+		tape.close(position);
+	}
+
+	/**
+	 * A positional object is stored as a plain object: the property names
+	 * are the strings of its layout
+	 */
+	private void parsePositionalObject() throws IOException {
+		final int index = parseIndex("object layout");
+		if (index >= layouts.length) {
+			throw new ParseException("invalid object layout #" + index
+					+ " at " + context.getIndex());
+		}
+		final long[] layout = layouts[index];
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid object: missing '[' at "
+					+ context.getIndex());
+		}
+		context.next(); // skip '['
+		final int position = tape.append(JsonTape.OBJECT, 0);
+		tape.append(JsonTape.SYMBOL, JsonTape.SYMBOL_CLASS, 0);
+		tape.append(JsonTape.STRING, layout[0], layout[1]);
+		final int n = layout.length / 2 - 1;
+		if (n == 0) {
+			context.skipSpaces();
+			if (!context.isValid() || context.get() != ']') {
+				throw new ParseException(
+						"invalid object: expected 0 values at "
+								+ context.getIndex());
+			}
+			context.next(); // skip ']'
+		}
+		for (int i = 1; i <= n; i++) {
+			tape.append(JsonTape.STRING, layout[2 * i], layout[2 * i + 1]);
+			parseValue();
+			if (parseSeparator(']', "object") != (i < n)) {
+				throw new ParseException("invalid object: expected " + n
+						+ " values at " + context.getIndex());
+			}
+		}
+		tape.close(position);
+	}
+
+	private void parseArray() throws IOException {
+		final int position = tape.append(JsonTape.ARRAY, 0);
+		context.next(); // skip '['
+		context.skipSpaces();
+		if (context.isValid() && context.get() == ']') {
+			context.next();
+		} else {
+			boolean more = true;
+			while (more) {
+				parseItem();
+				more = parseSeparator(']', "array");
+			}
+		}
+		tape.close(position);
+	}
+
+	/**
+	 * Parse an item of an array, maybe a run of the same atomic value
+	 * (<code>count*value</code>): the value is copied <code>count</code>
+	 * times
+	 */
+	private void parseItem() throws IOException {
+		context.skipSpaces();
+		final int position = tape.size();
+		parseValue();
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '*') {
+			return;
+		}
+		final int tag = tape.tag(position);
+		if (tag != JsonTape.INTEGER && tag != JsonTape.NUMBER) {
+			throw new ParseException("invalid run: bad count at "
+					+ context.getIndex());
+		}
+		final int count = DeserializationProcessor.getRunCount(context,
+				tape.getNumber(position));
+		tape.truncate(position);
+		context.next(); // skip '*'
+		parseValue();
+		switch (tape.tag(position)) {
+		case JsonTape.OBJECT:
+		case JsonTape.ARRAY:
+		case JsonTape.REF:
+			throw new ParseException("invalid run: not an atomic value at "
+					+ context.getIndex());
+		default:
+			for (int i = 1; i < count; i++) {
+				tape.copy(position);
+			}
+		}
+	}
+
+	/**
+	 * Parse an array of integral numbers written as deltas
+	 * (<code>~[first,delta,count*delta,...]</code>): the values are appended
+	 * as integers
+	 */
+	private void parseDeltaArray() throws IOException {
+		context.next(); // skip '~'
+		context.skipSpaces();
+		if (!context.isValid() || context.get() != '[') {
+			throw new ParseException("invalid delta array: missing '[' at "
+					+ context.getIndex());
+		}
+		final int position = tape.append(JsonTape.ARRAY, 0);
+		context.next(); // skip '['
+		context.skipSpaces();
+		if (context.isValid() && context.get() == ']') {
+			context.next();
+		} else {
+			long value = 0;
+			boolean more = true;
+			while (more) {
+				int count = 1;
+				long delta = parseDelta();
+				context.skipSpaces();
+				if (context.isValid() && context.get() == '*') {
+					count = DeserializationProcessor.getRunCount(context,
+							delta);
+					context.next(); // skip '*'
+					delta = parseDelta();
+				}
+				for (int i = 0; i < count; i++) {
+					// may overflow: the deltas overflow the same way
+					value += delta;
+					tape.append(JsonTape.INTEGER, 0, value);
+				}
+				more = parseSeparator(']', "delta array");
+			}
+		}
+		tape.close(position);
+	}
+
+	private long parseDelta() throws IOException {
+		context.skipSpaces();
+		if (!context.isValid()
+				|| (context.get() != '-' && !DeserializationProcessor
+						.isDigit(context.get()))) {
+			throw new ParseException("invalid delta array: missing number at "
+					+ context.getIndex());
+		}
+		final JsonNumber number = DeserializationProcessor
+				.parseJsonNumber(context);
+		if (number.isIntegral()) {
+			try {
+				return number.longValueExact();
+			} catch (final ArithmeticException e) {
+				// see below
+			}
+		}
+		throw new ParseException("invalid delta array: bad number " + number
+				+ " at " + context.getIndex());
+	}
+
+	/**
+	 * Parse the separator after a value of a container
+	 *
+	 * @return <code>true</code> if there are more values, <code>false</code>
+	 *         if the container is closed
+	 */
+	private boolean parseSeparator(final char close, final String type)
+			throws IOException {
+		context.skipSpaces();
+		if (!context.isValid()) {
+			throw new ParseException("invalid " + type
+					+ ": not terminated at " + context.getIndex());
+		}
+		final char c = context.get();
+		context.next();
+		if (c == ',') {
+			return true;
+		}
+		if (c == close) {
+			return false;
+		}
+		throw new ParseException("invalid " + type + ": unexpected character '"
+				+ c + "' instead of ',' or '" + close + "' at "
+				+ (context.getIndex() - 1));
+	}
+
+	private void parseString() throws IOException {
+		context.next(); // skip '"'
+		final int start = context.getIndex();
+		while (true) {
+			context.skipPlainChars();
+			if (!context.isValid()) {
+				throw new ParseException("invalid string at "
+						+ context.getIndex());
+			}
+			if (context.get() == '"') {
+				break;
+			}
+			context.next(); // skip '\\'
+			if (!context.isValid()) {
+				throw new ParseException("invalid string at "
+						+ context.getIndex());
+			}
+			context.next();
+		}
+		tape.append(JsonTape.STRING, start, context.getIndex());
+		context.next(); // skip '"'
+	}
+
+	private void parseClassReference() throws IOException {
+		final int index = parseIndex("class reference");
+		if (index >= classTable.length / 2) {
+			throw new ParseException("invalid class reference @" + index
+					+ " at " + context.getIndex());
+		}
+		tape.append(JsonTape.STRING, classTable[2 * index],
+				classTable[2 * index + 1]);
+	}
+
+	private void parseValueReference() throws IOException {
+		final int index = parseIndex("value reference");
+		if (index >= valueTable.length / 3) {
+			throw new ParseException("invalid value reference %" + index
+					+ " at " + context.getIndex());
+		}
+		tape.append((int) valueTable[3 * index], valueTable[3 * index + 1],
+				valueTable[3 * index + 2]);
+	}
+
+	/**
+	 * Parse the index of a reference (after its prefix character)
+	 */
+	private int parseIndex(final String type) throws IOException {
+		context.next(); // skip the prefix
+		if (!context.isValid()
+				|| !DeserializationProcessor.isDigit(context.get())) {
+			throw new ParseException("invalid " + type + " at "
+					+ context.getIndex());
+		}
+		int result = 0;
+		do {
+			final int digit = context.get() - '0';
+			if (result > (Integer.MAX_VALUE - digit) / 10) {
+				throw new ParseException("invalid " + type + ": too big at "
+						+ context.getIndex());
+			}
+			result = result * 10 + digit;
+			context.next();
+		} while (context.isValid()
+				&& DeserializationProcessor.isDigit(context.get()));
+		return result;
+	}
+
+	private void parseConst(final char[] expected, final int tag)
+			throws IOException {
+		for (final char c : expected) {
+			if (!context.isValid() || context.get() != c) {
+				throw new ParseException("invalid constant at "
+						+ context.getIndex());
+			}
+			context.next();
+		}
+		tape.append(tag, 0);
+	}
+
+	/**
+	 * Small integers are stored in the tape; other numbers are only checked,
+	 * and stored as a range of the source
+	 */
+	private void parseNumber() throws IOException {
+		final int start = context.getIndex();
+		final boolean negative = context.get() == '-';
+		if (negative) {
+			context.next();
+		}
+		final boolean leadingZero = context.isValid() && context.get() == '0';
+		long value = 0;
+		int digits = 0;
+		while (digits <= MAX_SAFE_DIGITS && context.isValid()
+				&& DeserializationProcessor.isDigit(context.get())) {
+			value = value * 10 + (context.get() - '0');
+			digits++;
+			context.next();
+		}
+		if (digits > 0 && digits <= MAX_SAFE_DIGITS
+				&& !(leadingZero && digits > 1) && !isNumberPart()) {
+			tape.append(JsonTape.INTEGER, 0, negative ? -value : value);
+		} else {
+			context.reset(start, context.length());
+			DeserializationProcessor.parseJsonNumber(context);
+			tape.append(JsonTape.NUMBER, start, context.getIndex());
+		}
+	}
+
+	private boolean isNumberPart() {
+		if (!context.isValid()) {
+			return false;
+		}
+		final char c = context.get();
+		return c == '.' || c == 'e' || c == 'E'
+				|| DeserializationProcessor.isDigit(c);
+	}
+
+}
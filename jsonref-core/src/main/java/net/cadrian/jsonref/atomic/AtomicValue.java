@@ -27,6 +27,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import net.cadrian.jsonref.JsonNumber;
 import net.cadrian.jsonref.SerializationException;
 
 /**
@@ -55,6 +56,11 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return Byte.valueOf(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return (byte) toLong(number, Byte.MIN_VALUE, Byte.MAX_VALUE);
+		}
 	},
 	SHORT(Short.class, short.class) {
 		@Override
@@ -66,6 +72,11 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return Short.valueOf(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return (short) toLong(number, Short.MIN_VALUE, Short.MAX_VALUE);
+		}
 	},
 	INTEGER(Integer.class, int.class) {
 		@Override
@@ -77,6 +88,12 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return Integer.valueOf(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return (int) toLong(number, Integer.MIN_VALUE,
+					Integer.MAX_VALUE);
+		}
 	},
 	LONG(Long.class, long.class) {
 		@Override
@@ -88,6 +105,11 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return Long.valueOf(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return toLong(number, Long.MIN_VALUE, Long.MAX_VALUE);
+		}
 	},
 	BOOLEAN(Boolean.class, boolean.class) {
 		@Override
@@ -110,6 +132,11 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return Float.valueOf(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return number.floatValue();
+		}
 	},
 	DOUBLE(Double.class, double.class) {
 		@Override
@@ -121,6 +148,11 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return Double.valueOf(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return number.doubleValue();
+		}
 	},
 	BIG_INTEGER(BigInteger.class) {
 		@Override
@@ -132,6 +164,16 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return new BigInteger(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			try {
+				return number.bigIntegerValue();
+			} catch (final ArithmeticException e) {
+				throw new SerializationException("not an integer: " + number,
+						e);
+			}
+		}
 	},
 	BIG_DECIMAL(BigDecimal.class) {
 		@Override
@@ -143,6 +185,11 @@ enum AtomicValue {
 		Object fromJson0(final String json, final Class<?> type) {
 			return new BigDecimal(json);
 		}
+
+		@Override
+		Object fromNumber0(final JsonNumber number, final Class<?> type) {
+			return number.bigDecimalValue();
+		}
 	},
 	DATE(Date.class) {
 		private static final String DATE_FORMAT = "'\"'yyyy-MM-dd'T'HH:mm:ss.SSS'\"'";
@@ -202,6 +249,35 @@ enum AtomicValue {
 
 	abstract Object fromJson0(String json, Class<?> type);
 
+	/**
+	 * Convert an already parsed number; by default, use its string
+	 * representation
+	 */
+	Object fromNumber0(final JsonNumber number, final Class<?> type) {
+		return fromJson0(number.toString(), type);
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> T fromJson(final JsonNumber number, final Class<? extends T> type) {
+		assert get(type) != null : "expected one of " + classes
+				+ " (or an heir thereof) but got " + type;
+		return (T) fromNumber0(number, type);
+	}
+
+	private static long toLong(final JsonNumber number, final long min,
+			final long max) {
+		final long result;
+		try {
+			result = number.longValueExact();
+		} catch (final ArithmeticException e) {
+			throw new SerializationException("not an integer: " + number, e);
+		}
+		if (result < min || result > max) {
+			throw new SerializationException("out of range: " + number);
+		}
+		return result;
+	}
+
 	@SuppressWarnings("unchecked")
 	<T> T fromJson(final String json, final Class<? extends T> type) {
 		assert get(type) != null : "expected one of " + classes
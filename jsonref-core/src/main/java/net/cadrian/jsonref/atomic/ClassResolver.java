@@ -0,0 +1,174 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref.atomic;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.cadrian.jsonref.SerializationException;
+
+/**
+ * Resolves class names to classes, caching the result per class loader. An
+ * optional allowlist restricts the classes that may be resolved; only the
+ * allowed classes are cached, so it is checked once per allowed name. The
+ * class loaders and their classes are held weakly, so that they can be
+ * unloaded.
+ */
+class ClassResolver {
+
+	/**
+	 * A weak reference to a class loader, compared by identity
+	 */
+	private static final class LoaderKey extends WeakReference<ClassLoader> {
+		private final int hash;
+
+		LoaderKey(final ClassLoader loader,
+				final ReferenceQueue<ClassLoader> queue) {
+			super(loader, queue);
+			this.hash = System.identityHashCode(loader);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof LoaderKey)) {
+				return false;
+			}
+			final ClassLoader loader = get();
+			return loader != null && loader == ((LoaderKey) obj).get();
+		}
+	}
+
+	private final ConcurrentMap<LoaderKey, ConcurrentMap<String, WeakReference<Class<?>>>> cache = new ConcurrentHashMap<>();
+	private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+	private final Set<String> allowedNames;
+	private final List<String> allowedPrefixes;
+
+	/**
+	 * @param allowedTypes
+	 *            the allowed class names; a name ending with <code>.*</code>
+	 *            allows all the classes of the package and its sub-packages.
+	 *            If <code>null</code>, all the classes are allowed.
+	 */
+	ClassResolver(final Collection<String> allowedTypes) {
+		if (allowedTypes == null) {
+			allowedNames = null;
+			allowedPrefixes = null;
+		} else {
+			allowedNames = new HashSet<>();
+			allowedPrefixes = new ArrayList<>();
+			for (final String allowedType : allowedTypes) {
+				if (allowedType.endsWith(".*")) {
+					allowedPrefixes.add(allowedType.substring(0,
+							allowedType.length() - 1));
+				} else {
+					allowedNames.add(allowedType);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resolve a class
+	 *
+	 * @param className
+	 *            the name of the class
+	 * @return the class
+	 * @throws SerializationException
+	 *             if the class is not found or not allowed
+	 */
+	Class<?> resolve(final String className) {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null) {
+			loader = ClassResolver.class.getClassLoader();
+			if (loader == null) {
+				loader = ClassLoader.getSystemClassLoader();
+			}
+		}
+		final ConcurrentMap<String, WeakReference<Class<?>>> classes = getClasses(
+				loader);
+		final WeakReference<Class<?>> cached = classes.get(className);
+		Class<?> result = cached == null ? null : cached.get();
+		if (result == null) {
+			// the denied names are not cached: they come from the input
+			if (!isAllowed(className)) {
+				throw new SerializationException("Class not allowed: "
+						+ className);
+			}
+			try {
+				result = Class.forName(className, true, loader);
+			} catch (final ClassNotFoundException e) {
+				throw new SerializationException(e);
+			}
+			classes.put(className, new WeakReference<Class<?>>(result));
+		}
+		return result;
+	}
+
+	private ConcurrentMap<String, WeakReference<Class<?>>> getClasses(
+			final ClassLoader loader) {
+		ConcurrentMap<String, WeakReference<Class<?>>> result = cache
+				.get(new LoaderKey(loader, null));
+		if (result == null) {
+			expunge();
+			result = new ConcurrentHashMap<>();
+			final ConcurrentMap<String, WeakReference<Class<?>>> old = cache
+					.putIfAbsent(new LoaderKey(loader, queue), result);
+			if (old != null) {
+				result = old;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the classes of the collected class loaders
+	 */
+	private void expunge() {
+		Reference<? extends ClassLoader> ref;
+		while ((ref = queue.poll()) != null) {
+			cache.remove(ref);
+		}
+	}
+
+	private boolean isAllowed(final String className) {
+		if (allowedNames == null || allowedNames.contains(className)) {
+			return true;
+		}
+		for (final String prefix : allowedPrefixes) {
+			if (className.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -33,14 +33,15 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-import net.cadrian.jsonref.JsonConverter;
+import net.cadrian.jsonref.ExtendedJsonConverter;
+import net.cadrian.jsonref.JsonNumber;
 import net.cadrian.jsonref.SerializationException;
 
 /**
  * The default JSON/R converter
  */
 @SuppressWarnings("rawtypes")
-public class DefaultJsonConverter implements JsonConverter {
+public class DefaultJsonConverter implements ExtendedJsonConverter {
 
 	private static class DefaultContext implements Context {
 		private final PropertyDescriptor propertyDescriptor;
@@ -88,6 +89,29 @@ public class DefaultJsonConverter implements JsonConverter {
 		}
 	}
 
+	private final ClassResolver classResolver;
+	private final Instantiators instantiators = new Instantiators();
+
+	/**
+	 * Default constructor: all the classes may be deserialized
+	 */
+	public DefaultJsonConverter() {
+		this(null);
+	}
+
+	/**
+	 * Constructor with an allowlist of the classes that may be deserialized
+	 *
+	 * @param allowedTypes
+	 *            the names of the allowed classes; a name ending with
+	 *            <code>.*</code> allows all the classes of the package and its
+	 *            sub-packages. If <code>null</code>, all the classes are
+	 *            allowed.
+	 */
+	public DefaultJsonConverter(final Collection<String> allowedTypes) {
+		this.classResolver = new ClassResolver(allowedTypes);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -126,6 +150,26 @@ public class DefaultJsonConverter implements JsonConverter {
 		return AtomicValue.get(propertyType).fromJson(value, propertyType);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.ExtendedJsonConverter#fromJson(net.cadrian.
+	 * jsonref.JsonNumber, java.lang.Class)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T fromJson(final JsonNumber number,
+			final Class<? extends T> propertyType) {
+		assert number != null;
+		final AtomicValue atomicValue = propertyType == null ? null
+				: AtomicValue.get(propertyType);
+		if (atomicValue == null) {
+			// unknown or too generic type (e.g. Object, Number)
+			return (T) number.getNaturalValue();
+		}
+		return atomicValue.fromJson(number, propertyType);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -136,31 +180,45 @@ public class DefaultJsonConverter implements JsonConverter {
 		return AtomicValue.get(propertyType) != null;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.ExtendedJsonConverter#resolveClass(java.lang.String)
+	 */
+	@Override
+	public Class<?> resolveClass(final String className) {
+		return classResolver.resolve(className);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.ExtendedJsonConverter#getInstantiator(java.lang.
+	 * Class)
+	 */
+	@Override
+	public <T> Instantiator<T> getInstantiator(final Class<T> type) {
+		return instantiators.get(type);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see net.cadrian.jsonref.JsonConverter#newCollection(java.lang.Class)
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public Collection<?> newCollection(final Class<Collection> wantedType) {
-		final Collection<?> result;
+		final Class<Collection> actualType;
 
 		if (wantedType.isInterface()
 				|| Modifier.isAbstract(wantedType.getModifiers())) {
-			try {
-				result = (Collection<?>) chooseMostSuitableCollection(
-						wantedType).newInstance();
-			} catch (InstantiationException | IllegalAccessException e) {
-				throw new SerializationException(e);
-			}
+			actualType = chooseMostSuitableCollection(wantedType);
 		} else {
-			try {
-				result = wantedType.newInstance();
-			} catch (InstantiationException | IllegalAccessException e) {
-				throw new SerializationException(e);
-			}
+			actualType = wantedType;
 		}
-		return result;
+		return getInstantiator(actualType).newInstance();
 	}
 
 	/*
@@ -168,26 +226,18 @@ public class DefaultJsonConverter implements JsonConverter {
 	 * 
 	 * @see net.cadrian.jsonref.JsonConverter#newMap(java.lang.Class)
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public Map<?, ?> newMap(final Class<Map> wantedType) {
-		Map<?, ?> result = null;
+		final Class<Map> actualType;
 
 		if (wantedType.isInterface()
 				|| Modifier.isAbstract(wantedType.getModifiers())) {
-			try {
-				result = (Map<?, ?>) chooseMostSuitableMap(wantedType)
-						.newInstance();
-			} catch (InstantiationException | IllegalAccessException e) {
-				throw new SerializationException(e);
-			}
+			actualType = chooseMostSuitableMap(wantedType);
 		} else {
-			try {
-				result = wantedType.newInstance();
-			} catch (InstantiationException | IllegalAccessException e) {
-				throw new SerializationException(e);
-			}
+			actualType = wantedType;
 		}
-		return result;
+		return getInstantiator(actualType).newInstance();
 	}
 
 	/*
@@ -0,0 +1,126 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref.atomic;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.cadrian.jsonref.ExtendedJsonConverter.Instantiator;
+import net.cadrian.jsonref.SerializationException;
+
+/**
+ * A cache of {@link Instantiator instantiators}, one per type. The access
+ * checks are done once, when the instantiator is created.
+ */
+class Instantiators {
+
+	private static class ConstructorInstantiator<T> implements
+	Instantiator<T> {
+		private final Constructor<T> constructor;
+
+		ConstructorInstantiator(final Constructor<T> constructor) {
+			this.constructor = constructor;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see net.cadrian.jsonref.ExtendedJsonConverter.Instantiator#newInstance()
+		 */
+		@Override
+		public T newInstance() {
+			try {
+				return constructor.newInstance();
+			} catch (final InvocationTargetException e) {
+				throw new SerializationException(e.getCause());
+			} catch (InstantiationException | IllegalAccessException
+					| IllegalArgumentException e) {
+				throw new SerializationException(e);
+			}
+		}
+	}
+
+	private final ConcurrentMap<Class<?>, Instantiator<?>> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the instantiator of the given type
+	 *
+	 * @param type
+	 *            the type to instantiate
+	 * @param <T>
+	 *            the type of the instantiated objects
+	 * @return the instantiator
+	 * @throws SerializationException
+	 *             if the type cannot be instantiated
+	 */
+	<T> Instantiator<T> get(final Class<T> type) {
+		@SuppressWarnings("unchecked")
+		Instantiator<T> result = (Instantiator<T>) cache.get(type);
+		if (result == null) {
+			result = newInstantiator(type);
+			cache.putIfAbsent(type, result);
+		}
+		return result;
+	}
+
+	private static <T> Instantiator<T> newInstantiator(final Class<T> type) {
+		Constructor<T> constructor;
+		try {
+			constructor = type.getDeclaredConstructor();
+		} catch (final NoSuchMethodException e) {
+			constructor = getSerializationConstructor(type);
+		} catch (final SecurityException e) {
+			throw new SerializationException(e);
+		}
+		try {
+			constructor.setAccessible(true);
+		} catch (final SecurityException e) {
+			throw new SerializationException(e);
+		}
+		return new ConstructorInstantiator<T>(constructor);
+	}
+
+	/**
+	 * For classes without a no-arg constructor: use the same trick as Java
+	 * serialization (allocate the object and only call the no-arg
+	 * constructor of {@link Object})
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Constructor<T> getSerializationConstructor(
+			final Class<T> type) {
+		try {
+			final Class<?> reflectionFactoryClass = Class
+					.forName("sun.reflect.ReflectionFactory");
+			final Object reflectionFactory = reflectionFactoryClass.getMethod(
+					"getReflectionFactory").invoke(null);
+			final Method newConstructorForSerialization = reflectionFactoryClass
+					.getMethod("newConstructorForSerialization", Class.class,
+							Constructor.class);
+			return (Constructor<T>) newConstructorForSerialization.invoke(
+					reflectionFactory, type,
+					Object.class.getDeclaredConstructor());
+		} catch (ClassNotFoundException | NoSuchMethodException
+				| SecurityException | IllegalAccessException
+				| IllegalArgumentException | InvocationTargetException e) {
+			throw new SerializationException("Cannot instantiate "
+					+ type.getName(), e);
+		}
+	}
+
+}
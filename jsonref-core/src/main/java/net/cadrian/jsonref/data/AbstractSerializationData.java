@@ -15,12 +15,151 @@
  */
 package net.cadrian.jsonref.data;
 
+import java.io.IOException;
+import java.io.Writer;
+
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
 import net.cadrian.jsonref.JsonConverter.Context;
 import net.cadrian.jsonref.SerializationData;
 
+/**
+ * The base of all the serialization data. The set of data kinds is closed:
+ * the {@linkplain #kind kind} of each data is used to dispatch the
+ * de/serialization calls of the containers to the actual classes, which keeps
+ * those call sites monomorphic.
+ */
 abstract class AbstractSerializationData implements SerializationData {
 
+	static final int KIND_VALUE = 0;
+	static final int KIND_REF = 1;
+	static final int KIND_OBJECT = 2;
+	static final int KIND_ARRAY = 3;
+	static final int KIND_MAP = 4;
+	static final int KIND_HEAP = 5;
+	static final int KIND_FRAGMENT = 6;
+
+	final int kind;
+
+	AbstractSerializationData(final int kind) {
+		this.kind = kind;
+	}
+
+	/**
+	 * Serialize the given data
+	 *
+	 * @param data
+	 *            the data to serialize
+	 * @param out
+	 *            the JSON/R stream to append to
+	 * @param converter
+	 *            the converter
+	 * @param context
+	 *            the prettiness context
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	static void toJson(final AbstractSerializationData data, final Writer out,
+			final JsonConverter converter,
+			final net.cadrian.jsonref.Prettiness.Context context)
+					throws IOException {
+		switch (data.kind) {
+		case KIND_VALUE:
+			((SerializationValue) data).toJson(out, converter, context);
+			break;
+		case KIND_REF:
+			((SerializationRef) data).toJson(out, converter, context);
+			break;
+		case KIND_OBJECT:
+			((SerializationObject) data).toJson(out, converter, context);
+			break;
+		case KIND_ARRAY:
+			((SerializationArray) data).toJson(out, converter, context);
+			break;
+		case KIND_MAP:
+			((SerializationMap) data).toJson(out, converter, context);
+			break;
+		default:
+			data.toJson(out, converter, context);
+		}
+	}
+
+	/**
+	 * Serialize the given data in binary
+	 *
+	 * @param data
+	 *            the data to serialize
+	 * @param out
+	 *            the binary stream to append to
+	 * @param converter
+	 *            the converter
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	static void toBinary(final AbstractSerializationData data,
+			final BinaryOutput out, final JsonConverter converter)
+					throws IOException {
+		switch (data.kind) {
+		case KIND_VALUE:
+			((SerializationValue) data).toBinary(out, converter);
+			break;
+		case KIND_REF:
+			((SerializationRef) data).toBinary(out, converter);
+			break;
+		case KIND_OBJECT:
+			((SerializationObject) data).toBinary(out, converter);
+			break;
+		case KIND_ARRAY:
+			((SerializationArray) data).toBinary(out, converter);
+			break;
+		case KIND_MAP:
+			((SerializationMap) data).toBinary(out, converter);
+			break;
+		default:
+			data.toBinary(out, converter);
+		}
+	}
+
+	/**
+	 * Deserialize the given data, reusing the target object if possible
+	 *
+	 * @param data
+	 *            the data to deserialize
+	 * @param heap
+	 *            the heap, may be <code>null</code>
+	 * @param propertyType
+	 *            the expected type, may be <code>null</code>
+	 * @param target
+	 *            the existing object, may be <code>null</code>
+	 * @param converter
+	 *            the converter
+	 * @param converterContext
+	 *            the converter context
+	 * @return the deserialized object
+	 */
+	static <T> T fromJson(final AbstractSerializationData data,
+			final SerializationHeap heap,
+			final Class<? extends T> propertyType, final Object target,
+			final JsonConverter converter, final Context converterContext) {
+		switch (data.kind) {
+		case KIND_VALUE:
+			return ((SerializationValue) data).fromJson(propertyType,
+					converter, converterContext);
+		case KIND_REF:
+			return ((SerializationRef) data).fromJson(heap, propertyType,
+					target, converter, converterContext);
+		case KIND_OBJECT:
+			return ((SerializationObject) data).fromJson(heap, propertyType,
+					target, converter, converterContext);
+		case KIND_ARRAY:
+			return ((SerializationArray) data).fromJson(heap, propertyType,
+					target, converter, converterContext);
+		default:
+			return data.fromJson(heap, propertyType, target, converter,
+					converterContext);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -34,7 +173,48 @@ abstract class AbstractSerializationData implements SerializationData {
 		return fromJson(null, wantedType, converter, converterContext);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.SerializationData#fromJsonInto(java.lang.Object,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.JsonConverter.Context)
+	 */
+	@Override
+	public <T> T fromJsonInto(final T target, final JsonConverter converter,
+			final Context converterContext) {
+		return fromJson(null, targetType(target), target, converter,
+				converterContext);
+	}
+
 	abstract <T> T fromJson(SerializationHeap heap,
 			Class<? extends T> propertyType, JsonConverter converter,
 			Context converterContext);
+
+	/**
+	 * Deserialization, reusing the target object if possible. By default the
+	 * target is ignored.
+	 *
+	 * @param heap
+	 *            the heap, may be <code>null</code>
+	 * @param propertyType
+	 *            the expected type, may be <code>null</code>
+	 * @param target
+	 *            the existing object, may be <code>null</code>
+	 * @param converter
+	 *            the converter
+	 * @param converterContext
+	 *            the converter context
+	 * @return the deserialized object
+	 */
+	<T> T fromJson(final SerializationHeap heap,
+			final Class<? extends T> propertyType, final Object target,
+			final JsonConverter converter, final Context converterContext) {
+		return fromJson(heap, propertyType, converter, converterContext);
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> Class<? extends T> targetType(final T target) {
+		return target == null ? null : (Class<? extends T>) target.getClass();
+	}
 }
\ No newline at end of file
@@ -30,7 +30,9 @@ public abstract class AbstractSerializationObject extends
 	final Class<?> type;
 	final int ref;
 
-	AbstractSerializationObject(final Class<?> type, final int ref) {
+	AbstractSerializationObject(final int kind, final Class<?> type,
+			final int ref) {
+		super(kind);
 		this.type = type;
 		this.ref = ref;
 	}
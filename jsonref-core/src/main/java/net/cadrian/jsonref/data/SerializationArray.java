@@ -18,12 +18,14 @@ package net.cadrian.jsonref.data;
 import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
 import net.cadrian.jsonref.Prettiness;
 import net.cadrian.jsonref.Prettiness.Context;
@@ -38,7 +40,15 @@ import net.cadrian.jsonref.SerializationException;
  */
 public class SerializationArray extends AbstractSerializationObject {
 
+	/**
+	 * The minimum length of a run of the same value, written
+	 * <code>count*value</code> in compact arrays
+	 */
+	private static final int MIN_RUN = 3;
+
 	private final List<SerializationData> array;
+	private boolean table;
+	private boolean compact;
 
 	/**
 	 * @param capacity
@@ -51,7 +61,7 @@ public class SerializationArray extends AbstractSerializationObject {
 	 */
 	public SerializationArray(final int capacity, final Class<?> type,
 			final int ref) {
-		super(type, ref);
+		super(KIND_ARRAY, type, ref);
 		this.array = new ArrayList<SerializationData>(capacity);
 	}
 
@@ -65,17 +75,268 @@ public class SerializationArray extends AbstractSerializationObject {
 	@Override
 	public void toJson(final Writer out, final JsonConverter converter,
 			final Context context) throws IOException {
+		if (table) {
+			// the rows are in the heap
+			out.append('[');
+			context.toJson(out, array, new Serializer<SerializationData>() {
+				@Override
+				public void toJson(final Writer out,
+						final SerializationData value, final Prettiness level)
+								throws IOException {
+					out.append('$').append(Integer
+							.toString(((SerializationObject) value).getRef()));
+				}
+			});
+			out.append(']');
+			return;
+		}
+		toJsonItems(out, array, converter, context);
+	}
+
+	/**
+	 * Write the items of the array, or of a column of a table. Compact arrays
+	 * are written with runs of the same value (<code>count*value</code>),
+	 * integral numbers are written as deltas (<code>~[...]</code>) if it is
+	 * shorter.
+	 */
+	private void toJsonItems(final Writer out,
+			final List<SerializationData> items, final JsonConverter converter,
+			final Context context) throws IOException {
+		if (!compact) {
+			out.append('[');
+			context.toJson(out, items, new Serializer<SerializationData>() {
+				@Override
+				public void toJson(final Writer out,
+						final SerializationData value, final Prettiness level)
+								throws IOException {
+					AbstractSerializationData.toJson(
+							(AbstractSerializationData) value, out, converter,
+							context);
+				}
+			});
+			out.append(']');
+			return;
+		}
+
+		final long[] longs = getLongs(items);
+		if (longs != null) {
+			final long[] deltas = new long[longs.length];
+			long previous = 0;
+			for (int i = 0; i < longs.length; i++) {
+				// may overflow: the sums overflow the same way
+				deltas[i] = longs[i] - previous;
+				previous = longs[i];
+			}
+			final List<long[]> runs = getRuns(deltas);
+			if (getLength(runs) < getLength(longs)) {
+				out.append("~[");
+				context.toJson(out, runs, new Serializer<long[]>() {
+					@Override
+					public void toJson(final Writer out, final long[] run,
+							final Prettiness level) throws IOException {
+						if (run[0] > 1) {
+							out.append(Long.toString(run[0])).append('*');
+						}
+						out.append(Long.toString(run[1]));
+					}
+				});
+				out.append(']');
+				return;
+			}
+		}
+
 		out.append('[');
-		context.toJson(out, array, new Serializer<SerializationData>() {
+		context.toJson(out, getRuns(items), new Serializer<int[]>() {
 			@Override
-			public void toJson(final Writer out, final SerializationData value,
+			public void toJson(final Writer out, final int[] run,
 					final Prettiness level) throws IOException {
-				value.toJson(out, converter, context);
+				if (run[1] > 1) {
+					out.append(Integer.toString(run[1])).append('*');
+				}
+				AbstractSerializationData.toJson(
+						(AbstractSerializationData) items.get(run[0]), out,
+						converter, context);
 			}
 		});
 		out.append(']');
 	}
 
+	/**
+	 * @return the values if they are all integral numbers, <code>null</code>
+	 *         otherwise
+	 */
+	private static long[] getLongs(final List<SerializationData> items) {
+		final int n = items.size();
+		if (n == 0) {
+			return null;
+		}
+		final long[] result = new long[n];
+		for (int i = 0; i < n; i++) {
+			final SerializationData item = items.get(i);
+			if (!(item instanceof SerializationValue)
+					|| !((SerializationValue) item).isIntegral()) {
+				return null;
+			}
+			result[i] = ((SerializationValue) item).getLong();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the runs of values, as <code>{count, value}</code>
+	 */
+	private static List<long[]> getRuns(final long[] values) {
+		final List<long[]> result = new ArrayList<>();
+		int i = 0;
+		while (i < values.length) {
+			int count = 1;
+			while (i + count < values.length
+					&& values[i + count] == values[i]) {
+				count++;
+			}
+			if (count < MIN_RUN) {
+				count = 1;
+			}
+			result.add(new long[] { count, values[i] });
+			i += count;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the runs of atomic values, as <code>{index, count}</code>
+	 */
+	private static List<int[]> getRuns(final List<SerializationData> items) {
+		final int n = items.size();
+		final List<int[]> result = new ArrayList<>(n);
+		int i = 0;
+		while (i < n) {
+			int count = 1;
+			final SerializationData item = items.get(i);
+			if (item instanceof SerializationValue) {
+				final SerializationValue value = (SerializationValue) item;
+				while (i + count < n
+						&& items.get(i + count) instanceof SerializationValue
+						&& value.isSame((SerializationValue) items
+								.get(i + count))) {
+					count++;
+				}
+				if (count < MIN_RUN) {
+					count = 1;
+				}
+			}
+			result.add(new int[] { i, count });
+			i += count;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of characters of the values
+	 */
+	private static long getLength(final long[] values) {
+		long result = 0;
+		for (final long value : values) {
+			result += getLength(value);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of characters of the runs, including the
+	 *         <code>~</code> and the separators that differ from the plain
+	 *         array
+	 */
+	private static long getLength(final List<long[]> runs) {
+		long result = 1;
+		for (final long[] run : runs) {
+			if (run[0] > 1) {
+				result += getLength(run[0]) + 1 + getLength(run[1])
+						- (run[0] - 1);
+			} else {
+				result += getLength(run[1]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of characters of the decimal number
+	 */
+	private static int getLength(final long value) {
+		int result = value < 0 ? 2 : 1;
+		long rest = value;
+		while (rest >= 10 || rest <= -10) {
+			rest /= 10;
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Write a columnar table:
+	 * <code>*{"class":name,"property":[values],...}</code> where each property
+	 * has one value per row. The rows themselves are written as <code>^</code>
+	 * in the heap.
+	 */
+	void toJsonTable(final Writer out, final JsonConverter converter,
+			final Context context) throws IOException {
+		final SerializationObject first = (SerializationObject) array.get(0);
+		assert "class".equals(first.getName(0)) : "class must come first";
+		out.append("*{");
+		out.append(converter.toJson(first.getName(0))).append(':');
+		toJson(first.getValue(0), out, converter, context);
+		final int n = first.size();
+		for (int j = 1; j < n; j++) {
+			out.append(',').append(converter.toJson(first.getName(j)))
+					.append(':');
+			toJsonItems(out, getColumn(j), converter, context);
+		}
+		out.append('}');
+	}
+
+	/**
+	 * @return the values of a property of the rows of a table
+	 */
+	private List<SerializationData> getColumn(final int property) {
+		return new AbstractList<SerializationData>() {
+			@Override
+			public SerializationData get(final int index) {
+				return ((SerializationObject) array.get(index))
+						.getValue(property);
+			}
+
+			@Override
+			public int size() {
+				return array.size();
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		if (table) {
+			// the rows are in the heap
+			out.writeArray(array.size());
+			for (final SerializationData data : array) {
+				out.writeRef(((SerializationObject) data).getRef());
+			}
+			return;
+		}
+		out.writeArray(array.size());
+		for (final SerializationData data : array) {
+			toBinary((AbstractSerializationData) data, out, converter);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -90,16 +351,33 @@ public class SerializationArray extends AbstractSerializationObject {
 			final Class<? extends T> propertyType,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
+		return fromJson(heap, propertyType, null, converter, converterContext);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.data.AbstractSerializationData#fromJson(net.cadrian
+	 * .jsonref.data.SerializationHeap, java.lang.Class, java.lang.Object,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.JsonConverter.Context)
+	 */
+	@Override
+	<T> T fromJson(final SerializationHeap heap,
+			final Class<? extends T> propertyType, final Object target,
+			final JsonConverter converter,
+			final JsonConverter.Context converterContext) {
 		final T result;
 		if (propertyType == null
 				|| Collection.class.isAssignableFrom(propertyType)) {
-			result = fromJsonCollection(heap, propertyType, converter,
+			result = fromJsonCollection(heap, propertyType, target, converter,
 					converterContext);
 		} else if (propertyType.isArray()) {
-			result = fromJsonArray(heap, propertyType, converter,
+			result = fromJsonArray(heap, propertyType, target, converter,
 					converterContext);
 		} else if (Map.class.isAssignableFrom(propertyType)) {
-			result = fromJsonMap(heap, propertyType, converter,
+			result = fromJsonMap(heap, propertyType, target, converter,
 					converterContext);
 		} else {
 			throw new SerializationException("not array compatible");
@@ -109,23 +387,33 @@ public class SerializationArray extends AbstractSerializationObject {
 
 	@SuppressWarnings("unchecked")
 	private <T> T fromJsonArray(final SerializationHeap heap,
-			final Class<? extends T> propertyType,
+			final Class<? extends T> propertyType, final Object target,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		assert propertyType.isArray() : "not an array";
 
 		final Class<?> componentType = propertyType.getComponentType();
 		final int n = array.size();
-		final Object result = Array.newInstance(componentType, n);
+		final Object result;
+		final boolean reuse = propertyType.isInstance(target)
+				&& Array.getLength(target) == n;
+		if (reuse) {
+			result = target;
+		} else {
+			result = Array.newInstance(componentType, n);
+		}
 		if (heap != null) {
 			heap.setDeser(ref, result);
 		}
 
+		final boolean reuseElements = reuse && !componentType.isPrimitive();
 		for (int i = 0; i < n; i++) {
 			final AbstractSerializationData data = (AbstractSerializationData) array
 					.get(i);
-			Array.set(result, i, data.fromJson(heap, componentType, converter,
-					converterContext));
+			final Object previous = reuseElements ? Array.get(result, i)
+					: null;
+			Array.set(result, i, fromJson(data, heap, componentType, previous,
+					converter, converterContext));
 		}
 
 		return (T) result;
@@ -133,44 +421,98 @@ public class SerializationArray extends AbstractSerializationObject {
 
 	@SuppressWarnings("unchecked")
 	private <T> T fromJsonCollection(final SerializationHeap heap,
-			final Class<? extends T> propertyType,
+			final Class<? extends T> propertyType, final Object target,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		assert propertyType == null
 				|| Collection.class.isAssignableFrom(propertyType) : "not a collection";
 
-		@SuppressWarnings("rawtypes")
-		final Collection<Object> result = (Collection<Object>) converter
-				.newCollection((Class<Collection>) propertyType);
+		if (target instanceof List
+				&& (propertyType == null || propertyType.isInstance(target))) {
+			return (T) fromJsonList(heap, (List<Object>) target, converter,
+					converterContext);
+		}
+
+		final Collection<Object> result;
+		if (target instanceof Collection
+				&& (propertyType == null || propertyType.isInstance(target))) {
+			result = (Collection<Object>) target;
+			result.clear();
+		} else {
+			@SuppressWarnings("rawtypes")
+			final Class<Collection> collectionType = (Class<Collection>) propertyType;
+			result = (Collection<Object>) converter
+					.newCollection(collectionType);
+		}
 		if (heap != null) {
 			heap.setDeser(ref, result);
 		}
 
 		for (final SerializationData data : array) {
-			result.add(((AbstractSerializationData) data).fromJson(heap, null,
-					converter, converterContext));
+			result.add(fromJson((AbstractSerializationData) data, heap, null,
+					null, converter, converterContext));
 		}
 
 		return (T) result;
 	}
 
+	/**
+	 * Refill an existing list in place, reusing its elements where possible
+	 */
+	private List<Object> fromJsonList(final SerializationHeap heap,
+			final List<Object> result, final JsonConverter converter,
+			final JsonConverter.Context converterContext) {
+		if (heap != null) {
+			heap.setDeser(ref, result);
+		}
+
+		final int n = array.size();
+		final int size = result.size();
+		for (int i = 0; i < n; i++) {
+			final AbstractSerializationData data = (AbstractSerializationData) array
+					.get(i);
+			if (i < size) {
+				final Object previous = result.get(i);
+				final Object value = fromJson(data, heap, null, previous,
+						converter, converterContext);
+				if (value != previous) {
+					result.set(i, value);
+				}
+			} else {
+				result.add(fromJson(data, heap, null, null, converter,
+						converterContext));
+			}
+		}
+		if (size > n) {
+			result.subList(n, size).clear();
+		}
+
+		return result;
+	}
+
 	@SuppressWarnings("unchecked")
 	private <T> T fromJsonMap(final SerializationHeap heap,
-			final Class<? extends T> propertyType,
+			final Class<? extends T> propertyType, final Object target,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		assert Map.class.isAssignableFrom(propertyType) : "not a map";
 
-		@SuppressWarnings("rawtypes")
-		final Map<Object, Object> result = (Map<Object, Object>) converter
-				.newMap((Class<Map>) propertyType);
+		final Map<Object, Object> result;
+		if (propertyType.isInstance(target)) {
+			result = (Map<Object, Object>) target;
+			result.clear();
+		} else {
+			@SuppressWarnings("rawtypes")
+			final Class<Map> mapType = (Class<Map>) propertyType;
+			result = (Map<Object, Object>) converter.newMap(mapType);
+		}
 		if (heap != null) {
 			heap.setDeser(ref, result);
 		}
 
 		for (final SerializationData data : array) {
-			final Object entry = ((AbstractSerializationData) data).fromJson(
-					heap, null, converter, converterContext);
+			final Object entry = fromJson((AbstractSerializationData) data,
+					heap, null, null, converter, converterContext);
 			if (entry instanceof Collection<?>) {
 				final Collection<Object> entrycoll = (Collection<Object>) entry;
 				if (entrycoll.size() != 2) {
@@ -211,4 +553,52 @@ public class SerializationArray extends AbstractSerializationObject {
 		array.add(data);
 	}
 
+	/**
+	 * Make the array a columnar table. Its items must be objects (not
+	 * references) with the same properties, stored in the heap right after
+	 * the array, in order.
+	 */
+	public void setTable() {
+		final SerializationObject first = (SerializationObject) array.get(0);
+		for (int i = 0; i < array.size(); i++) {
+			final SerializationObject row = (SerializationObject) array.get(i);
+			assert row.getRef() == ref + 1 + i : "rows must follow the table";
+			assert row.hasSameProperties(first) : "rows must be similar";
+			row.inTable = true;
+		}
+		table = true;
+	}
+
+	/**
+	 * Write the array (or the columns of the table) compactly: runs of the
+	 * same atomic value are written once with their length, and integral
+	 * numbers as deltas if it is shorter
+	 */
+	public void setCompact() {
+		compact = true;
+	}
+
+	/**
+	 * @return <code>true</code> if the array is a columnar table
+	 */
+	public boolean isTable() {
+		return table;
+	}
+
+	/**
+	 * @return the number of items
+	 */
+	public int size() {
+		return array.size();
+	}
+
+	/**
+	 * @param i
+	 *            the index of an item
+	 * @return the item
+	 */
+	public SerializationData get(final int i) {
+		return array.get(i);
+	}
+
 }
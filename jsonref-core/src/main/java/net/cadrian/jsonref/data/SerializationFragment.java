@@ -0,0 +1,168 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.cadrian.jsonref.BinaryOutput;
+import net.cadrian.jsonref.JsonConverter;
+import net.cadrian.jsonref.Prettiness.Context;
+import net.cadrian.jsonref.SerializationException;
+
+/**
+ * A heap entry already rendered in JSON/R, spliced into the heap of another
+ * object graph: its references are renumbered while writing. Fragments are
+ * only used for serialization.
+ */
+public class SerializationFragment extends AbstractSerializationObject {
+
+	/**
+	 * The JSON/R of a heap entry, with the positions of its references
+	 */
+	public static final class Template {
+		private final String jsonR;
+		private final int[] starts;
+		private final int[] ends;
+		private final int[] refs;
+
+		/**
+		 * @param jsonR
+		 *            the compact JSON/R of the heap entry
+		 */
+		public Template(final String jsonR) {
+			this.jsonR = jsonR;
+			final List<int[]> found = new ArrayList<>();
+			final int n = jsonR.length();
+			boolean inString = false;
+			for (int i = 0; i < n; i++) {
+				final char c = jsonR.charAt(i);
+				if (inString) {
+					if (c == '\\') {
+						i++;
+					} else if (c == '"') {
+						inString = false;
+					}
+				} else if (c == '"') {
+					inString = true;
+				} else if (c == '$') {
+					final int start = i;
+					int ref = 0;
+					while (i + 1 < n
+							&& Character.isDigit(jsonR.charAt(i + 1))) {
+						ref = ref * 10 + jsonR.charAt(++i) - '0';
+					}
+					found.add(new int[] { start, i + 1, ref });
+				}
+			}
+			final int count = found.size();
+			starts = new int[count];
+			ends = new int[count];
+			refs = new int[count];
+			for (int i = 0; i < count; i++) {
+				final int[] ref = found.get(i);
+				starts[i] = ref[0];
+				ends[i] = ref[1];
+				refs[i] = ref[2];
+			}
+		}
+
+		/**
+		 * Write the heap entry, with its references shifted
+		 *
+		 * @param out
+		 *            the stream to write to
+		 * @param base
+		 *            the shift of the references
+		 * @throws IOException
+		 *             on I/O exception
+		 */
+		void toJson(final Writer out, final int base) throws IOException {
+			int position = 0;
+			for (int i = 0; i < refs.length; i++) {
+				out.append(jsonR, position, starts[i]).append('$')
+						.append(Integer.toString(base + refs[i]));
+				position = ends[i];
+			}
+			out.append(jsonR, position, jsonR.length());
+		}
+	}
+
+	private final Template template;
+	private final int base;
+
+	/**
+	 * @param ref
+	 *            the reference of the heap entry
+	 * @param template
+	 *            the rendered heap entry
+	 * @param base
+	 *            the reference of the first entry of the fragment, i.e. the
+	 *            shift of the references of the template
+	 */
+	public SerializationFragment(final int ref, final Template template,
+			final int base) {
+		super(KIND_FRAGMENT, null, ref);
+		this.template = template;
+		this.base = base;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see net.cadrian.jsonref.SerializationData#toJson(java.io.Writer,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.Prettiness.Context)
+	 */
+	@Override
+	public void toJson(final Writer out, final JsonConverter converter,
+			final Context context) throws IOException {
+		template.toJson(out, base);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		throw new SerializationException("fragments are only written as text");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.data.AbstractSerializationData#fromJson(net.cadrian
+	 * .jsonref.data.SerializationHeap, java.lang.Class,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.JsonConverter.Context)
+	 */
+	@Override
+	<T> T fromJson(final SerializationHeap heap,
+			final Class<? extends T> propertyType,
+			final JsonConverter converter,
+			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
+		throw new SerializationException("fragments are not deserialized");
+	}
+
+}
@@ -17,13 +17,14 @@ package net.cadrian.jsonref.data;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
 import net.cadrian.jsonref.Prettiness;
 import net.cadrian.jsonref.Prettiness.Context;
 import net.cadrian.jsonref.Prettiness.Serializer;
+import net.cadrian.jsonref.SerializationException;
 
 /**
  * The heap represents a list of objects known by their reference (which is
@@ -35,8 +36,30 @@ import net.cadrian.jsonref.Prettiness.Serializer;
  */
 public class SerializationHeap extends AbstractSerializationData {
 
-	private final List<AbstractSerializationObject> heap = new ArrayList<>();
-	private List<Object> deser;
+	private static final AbstractSerializationObject[] EMPTY = new AbstractSerializationObject[0];
+
+	private AbstractSerializationObject[] heap;
+	private int size;
+	private Object[] deser;
+
+	/**
+	 * Create an empty heap
+	 */
+	public SerializationHeap() {
+		this(0);
+	}
+
+	/**
+	 * Create an empty heap with room for the given number of objects
+	 *
+	 * @param capacity
+	 *            the expected number of objects
+	 */
+	public SerializationHeap(final int capacity) {
+		super(KIND_HEAP);
+		this.heap = capacity == 0 ? EMPTY
+				: new AbstractSerializationObject[capacity];
+	}
 
 	/**
 	 * Get an object by its reference
@@ -46,7 +69,8 @@ public class SerializationHeap extends AbstractSerializationData {
 	 * @return the object
 	 */
 	public AbstractSerializationObject get(final int ref) {
-		return heap.get(ref);
+		assert ref < size : "invalid ref " + ref;
+		return heap[ref];
 	}
 
 	/**
@@ -54,12 +78,16 @@ public class SerializationHeap extends AbstractSerializationData {
 	 * {@linkplain #nextRef() next reference}.
 	 *
 	 * @param object
-	 *            the object to add
+	 *            the object to add; <code>null</code> for a row of a
+	 *            columnar table (see {@link #resolveTables()})
 	 */
 	public void add(final AbstractSerializationObject object) {
-		assert object.getRef() == nextRef() : "wrong ref " + object.getRef()
-				+ " != " + nextRef();
-		heap.add(object);
+		assert object == null || object.getRef() == nextRef() : "wrong ref "
+				+ object.getRef() + " != " + nextRef();
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size == 0 ? 16 : size * 2);
+		}
+		heap[size++] = object;
 	}
 
 	/**
@@ -69,7 +97,7 @@ public class SerializationHeap extends AbstractSerializationData {
 	 * @return the expected next reference
 	 */
 	public int nextRef() {
-		return heap.size();
+		return size;
 	}
 
 	/*
@@ -82,25 +110,52 @@ public class SerializationHeap extends AbstractSerializationData {
 	@Override
 	public void toJson(final Writer out, final JsonConverter converter,
 			final Context context) throws IOException {
-		final int n = heap.size();
+		final int n = size;
 		assert n > 0 : "empty heap?!";
 		if (n == 1) {
-			heap.get(0).toJson(out, converter, context);
+			toJson(heap[0], out, converter, context);
 		} else {
 			out.append('<');
-			context.toJson(out, heap,
+			context.toJson(out, Arrays.asList(heap).subList(0, n),
 					new Serializer<AbstractSerializationObject>() {
 				@Override
 				public void toJson(final Writer out,
 						final AbstractSerializationObject value,
 						final Prettiness level) throws IOException {
-					value.toJson(out, converter, context);
+					if (value.kind == KIND_OBJECT
+							&& ((SerializationObject) value).inTable) {
+						out.append('^');
+					} else if (value.kind == KIND_ARRAY
+							&& ((SerializationArray) value).isTable()) {
+						((SerializationArray) value).toJsonTable(out,
+								converter, context);
+					} else {
+						AbstractSerializationData.toJson(value, out,
+								converter, context);
+					}
 				}
 			});
 			out.append('>');
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		// always a heap, even with one entry: it may reference itself
+		out.writeHeap(size);
+		for (int i = 0; i < size; i++) {
+			toBinary(heap[i], out, converter);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -113,7 +168,7 @@ public class SerializationHeap extends AbstractSerializationData {
 	public <T> T fromJson(final Class<? extends T> wantedType,
 			final JsonConverter converter,
 			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
-		return heap.get(0).fromJson(this, wantedType, converter,
+		return fromJson(heap[0], this, wantedType, null, converter,
 				converterContext);
 	}
 
@@ -134,24 +189,112 @@ public class SerializationHeap extends AbstractSerializationData {
 		return fromJson(propertyType, converter, converterContext);
 	}
 
-	void setDeser(final int ref, final Object d) {
-		if (deser == null) {
-			deser = new ArrayList<Object>(ref + 1);
-		} else {
-			((ArrayList<Object>) deser).ensureCapacity(ref + 1);
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.data.AbstractSerializationData#fromJson(net.cadrian
+	 * .jsonref.data.SerializationHeap, java.lang.Class, java.lang.Object,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.JsonConverter.Context)
+	 */
+	@Override
+	<T> T fromJson(final SerializationHeap heap,
+			final Class<? extends T> propertyType, final Object target,
+			final JsonConverter converter,
+			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
+		return fromJson(this.heap[0], this, propertyType, target, converter,
+				converterContext);
+	}
+
+	/**
+	 * Once parsed, put the rows of the columnar tables in their heap entries
+	 * (which were {@linkplain #add(AbstractSerializationObject) added} as
+	 * <code>null</code>)
+	 *
+	 * @throws SerializationException
+	 *             if the rows do not match the tables
+	 */
+	public void resolveTables() {
+		for (int i = 0; i < size; i++) {
+			final AbstractSerializationObject entry = heap[i];
+			if (entry == null) {
+				throw new SerializationException("invalid heap: row $" + i
+						+ " without table");
+			}
+			if (entry.kind == KIND_ARRAY
+					&& ((SerializationArray) entry).isTable()) {
+				final SerializationArray table = (SerializationArray) entry;
+				final int rows = table.size();
+				for (int j = 0; j < rows; j++) {
+					if (i + 1 + j >= size || heap[i + 1 + j] != null) {
+						throw new SerializationException("invalid heap: table $"
+								+ i + " has " + rows + " rows");
+					}
+					heap[i + 1 + j] = (AbstractSerializationObject) table
+							.get(j);
+				}
+				i += rows;
+			}
+		}
+	}
+
+	/**
+	 * Record the deserialized object of the given reference. The table is
+	 * allocated once, when the heap is complete. Values nested in heap
+	 * entries have a negative reference, they are not recorded.
+	 *
+	 * @param ref
+	 *            the object reference
+	 * @param d
+	 *            the deserialized object; references to it are resolved to
+	 *            that object without binding the heap entry again
+	 */
+	public void setDeser(final int ref, final Object d) {
+		if (ref < 0) {
+			return;
 		}
-		while (deser.size() <= ref) {
-			deser.add(null);
+		if (deser == null) {
+			deser = new Object[size];
 		}
-		deser.set(ref, d);
+		assert ref < deser.length : "heap changed after deserialization";
+		deser[ref] = d;
+	}
+
+	/**
+	 * Get the deserialized object of the given reference
+	 *
+	 * @param ref
+	 *            the object reference
+	 * @return the deserialized object, or <code>null</code> if not yet
+	 *         deserialized
+	 */
+	public Object getDeser(final int ref) {
+		return deser == null || ref < 0 ? null : deser[ref];
 	}
 
-	Object getDeser(final int ref) {
-		Object result = null;
-		if (deser != null && ref < deser.size()) {
-			result = deser.get(ref);
+	/**
+	 * Deserialize a heap entry into an existing object, even if it was
+	 * already {@linkplain #setDeser(int, Object) deserialized}
+	 *
+	 * @param ref
+	 *            the object reference
+	 * @param target
+	 *            the existing object to reuse, may be <code>null</code>
+	 * @param converter
+	 *            the converter
+	 * @param converterContext
+	 *            the converter context
+	 * @return the deserialized object, either the target or a new object
+	 */
+	public <T> T fromJsonInto(final int ref, final T target,
+			final JsonConverter converter,
+			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
+		if (deser != null) {
+			deser[ref] = null;
 		}
-		return result;
+		return fromJson(heap[ref], this, targetType(target), target,
+				converter, converterContext);
 	}
 
 }
\ No newline at end of file
@@ -18,10 +18,9 @@ package net.cadrian.jsonref.data;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
 
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
 import net.cadrian.jsonref.Prettiness;
 import net.cadrian.jsonref.Prettiness.Context;
@@ -30,11 +29,13 @@ import net.cadrian.jsonref.SerializationData;
 import net.cadrian.jsonref.SerializationException;
 
 /**
- * A JSON/R map
+ * A JSON/R map. The keys and values are kept in parallel arrays.
  */
 public class SerializationMap extends AbstractSerializationObject {
 
-	private final Map<SerializationData, SerializationData> map;
+	private AbstractSerializationData[] keys;
+	private AbstractSerializationData[] values;
+	private int size;
 	private boolean isMapOfStrings = true;
 
 	/**
@@ -47,8 +48,9 @@ public class SerializationMap extends AbstractSerializationObject {
 	 */
 	public SerializationMap(final int capacity, final Class<?> type,
 			final int ref) {
-		super(type, ref);
-		this.map = new HashMap<SerializationData, SerializationData>(capacity);
+		super(KIND_MAP, type, ref);
+		this.keys = new AbstractSerializationData[capacity];
+		this.values = new AbstractSerializationData[capacity];
 	}
 
 	/*
@@ -68,57 +70,90 @@ public class SerializationMap extends AbstractSerializationObject {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		if (isMapOfStrings) {
+			out.writeObject(size);
+			for (int i = 0; i < size; i++) {
+				out.writeName(converter.toJson(((SerializationValue) keys[i])
+						.getValue()));
+				toBinary(values[i], out, converter);
+			}
+		} else {
+			out.writeArray(size);
+			for (int i = 0; i < size; i++) {
+				out.writeArray(2);
+				toBinary(keys[i], out, converter);
+				toBinary(values[i], out, converter);
+			}
+		}
+	}
+
+	/**
+	 * The keys, in order; the values are found by counting the serialized
+	 * entries
+	 */
+	private List<AbstractSerializationData> keyList() {
+		return Arrays.asList(keys).subList(0, size);
+	}
+
 	private void toJsonMap(final Writer out, final JsonConverter converter,
 			final Context context) throws IOException {
 		out.append('{');
-		context.toJson(
-				out,
-				map.entrySet(),
-				new Serializer<Map.Entry<SerializationData, SerializationData>>() {
-					@Override
-					public void toJson(
-							final Writer out,
-							final Entry<SerializationData, SerializationData> value,
-							final Prettiness level) throws IOException {
-						value.getKey().toJson(out, converter, context);
-						out.append(':');
-						if (context.getPrettiness() != Prettiness.COMPACT) {
-							out.append(' ');
-						}
-						value.getValue().toJson(out, converter, context);
-					}
-				});
+		context.toJson(out, keyList(),
+				new Serializer<AbstractSerializationData>() {
+			private int i;
+
+			@Override
+			public void toJson(final Writer out,
+					final AbstractSerializationData key,
+					final Prettiness level) throws IOException {
+				// the names are never in the value table
+				((SerializationValue) key).toJsonInPlace(out, converter);
+				out.append(':');
+				if (context.getPrettiness() != Prettiness.COMPACT) {
+					out.append(' ');
+				}
+				AbstractSerializationData.toJson(values[i++], out,
+						converter, context);
+			}
+		});
 		out.append('}');
 	}
 
 	private void toJsonArray(final Writer out, final JsonConverter converter,
 			final Context context) throws IOException {
 		out.append('[');
-		context.toJson(
-				out,
-				map.entrySet(),
-				new Serializer<Map.Entry<SerializationData, SerializationData>>() {
+		context.toJson(out, keyList(),
+				new Serializer<AbstractSerializationData>() {
+			private int i;
+
+			@Override
+			public void toJson(final Writer out,
+					final AbstractSerializationData key,
+					final Prettiness level) throws IOException {
+				out.append('[');
+				context.toJson(out, Arrays.asList(key, values[i++]),
+						new Serializer<AbstractSerializationData>() {
 					@Override
-					public void toJson(
-							final Writer out,
-							final Entry<SerializationData, SerializationData> value,
+					public void toJson(final Writer out,
+							final AbstractSerializationData value,
 							final Prettiness level) throws IOException {
-						out.append('[');
-						context.toJson(
-								out,
-								Arrays.asList(value.getKey(), value.getValue()),
-								new Serializer<SerializationData>() {
-									@Override
-									public void toJson(final Writer out,
-											final SerializationData value,
-											final Prettiness level)
-											throws IOException {
-										value.toJson(out, converter, context);
-									}
-								});
-						out.append(']');
+						AbstractSerializationData.toJson(value, out,
+								converter, context);
 					}
 				});
+				out.append(']');
+			}
+		});
 		out.append(']');
 	}
 
@@ -151,7 +186,7 @@ public class SerializationMap extends AbstractSerializationObject {
 	}
 
 	/**
-	 * Add an object into the map
+	 * Add an object into the map. The keys must be distinct.
 	 *
 	 * @param key
 	 *            the object key
@@ -159,7 +194,14 @@ public class SerializationMap extends AbstractSerializationObject {
 	 *            the object value
 	 */
 	public void add(final SerializationData key, final SerializationData value) {
-		map.put(key, value);
+		if (size == keys.length) {
+			final int capacity = size == 0 ? 4 : size * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		keys[size] = (AbstractSerializationData) key;
+		values[size] = (AbstractSerializationData) value;
+		size++;
 		if (key instanceof SerializationValue) {
 			final Object keyval = ((SerializationValue) key).getValue();
 			if (keyval != null && keyval.getClass() != String.class) {
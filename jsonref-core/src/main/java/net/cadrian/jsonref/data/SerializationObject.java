@@ -22,20 +22,97 @@ import java.beans.PropertyDescriptor;
 import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Field;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
+import net.cadrian.jsonref.JsonConverters;
 import net.cadrian.jsonref.Prettiness.Context;
 import net.cadrian.jsonref.SerializationData;
 import net.cadrian.jsonref.SerializationException;
 
 /**
- * A JSON/R object
+ * A JSON/R object. The property names are kept in a {@link Shape} shared by
+ * similar objects, the property values in a flat array.
  */
 public class SerializationObject extends AbstractSerializationObject {
 
-	private final Map<String, AbstractSerializationData> properties = new LinkedHashMap<>();
+	private static final AbstractSerializationData[] NO_VALUES = new AbstractSerializationData[0];
+
+	private Shape shape = Shape.EMPTY;
+	private AbstractSerializationData[] values = NO_VALUES;
+	private int layoutIndex = -1;
+
+	/**
+	 * <code>true</code> if the object is a row of a columnar table: it is
+	 * written in the table, not in the heap
+	 */
+	boolean inTable;
+
+	/**
+	 * The layout of positional objects: the class and the ordered property
+	 * names, declared once in the document header. The objects only give
+	 * their property values.
+	 */
+	public static final class Layout {
+		private final SerializationValue classValue;
+		private final Shape shape;
+
+		/**
+		 * @param classValue
+		 *            the class of the objects
+		 * @param properties
+		 *            the property names, in order (without the class)
+		 */
+		public Layout(final SerializationValue classValue,
+				final List<String> properties) {
+			this.classValue = classValue;
+			Shape shape = classValue.getClassShape();
+			for (final String property : properties) {
+				if (shape.indexOf(property) >= 0) {
+					throw new SerializationException("duplicate property "
+							+ property);
+				}
+				shape = shape.with(property);
+			}
+			this.shape = shape;
+		}
+
+		/**
+		 * @return the class of the objects
+		 */
+		public SerializationValue getClassValue() {
+			return classValue;
+		}
+
+		/**
+		 * @return the number of properties (without the class)
+		 */
+		public int size() {
+			return shape.size() - 1;
+		}
+
+		/**
+		 * @param i
+		 *            the position of a property
+		 * @return the name of the property
+		 */
+		public String getProperty(final int i) {
+			return shape.getName(i + 1);
+		}
+
+		/**
+		 * @param property
+		 *            the name of a property
+		 * @return the position of the property, or -1 if not found
+		 */
+		public int indexOf(final String property) {
+			return shape.indexOf(property) - 1;
+		}
+	}
 
 	/**
 	 * @param type
@@ -44,7 +121,38 @@ public class SerializationObject extends AbstractSerializationObject {
 	 *            the reference of the object in the heap
 	 */
 	public SerializationObject(final Class<?> type, final int ref) {
-		super(type, ref);
+		super(KIND_OBJECT, type, ref);
+	}
+
+	/**
+	 * Create a positional object: its values must be
+	 * {@linkplain #set(int, SerializationData) set}
+	 *
+	 * @param layout
+	 *            the layout of the object
+	 * @param ref
+	 *            the reference of the object in the heap
+	 * @return the object
+	 */
+	public static SerializationObject newPositional(final Layout layout,
+			final int ref) {
+		final SerializationObject result = new SerializationObject(null, ref);
+		result.shape = layout.shape;
+		result.values = new AbstractSerializationData[layout.shape.size()];
+		result.values[0] = layout.classValue;
+		return result;
+	}
+
+	/**
+	 * Set a property value of a positional object
+	 *
+	 * @param i
+	 *            the position of the property in the layout
+	 * @param value
+	 *            the property value
+	 */
+	public void set(final int i, final SerializationData value) {
+		values[i + 1] = (AbstractSerializationData) value;
 	}
 
 	/**
@@ -58,7 +166,52 @@ public class SerializationObject extends AbstractSerializationObject {
 	public void add(final String property, final SerializationData value) {
 		assert !contains(property);
 
-		properties.put(property, (AbstractSerializationData) value);
+		final int size = shape.size();
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size == 0 ? 4 : size * 2);
+		}
+		if (size == 0 && "class".equals(property)) {
+			shape = getClassShape((AbstractSerializationData) value);
+		} else {
+			shape = shape.with(property);
+		}
+		values[size] = (AbstractSerializationData) value;
+	}
+
+	/**
+	 * @return the shared shape of the objects of the same class with only the
+	 *         class property: the shape of the actual class when serializing,
+	 *         or the shape of the class value of the document when
+	 *         deserializing
+	 */
+	private Shape getClassShape(final AbstractSerializationData classValue) {
+		if (type != null) {
+			return Shape.forClass(type);
+		}
+		if (classValue.kind == KIND_VALUE) {
+			return ((SerializationValue) classValue).getClassShape();
+		}
+		return Shape.EMPTY.with("class");
+	}
+
+	/**
+	 * Remove all the properties but the given ones (and the class)
+	 *
+	 * @param wanted
+	 *            the properties to keep
+	 */
+	public void retainProperties(final Collection<String> wanted) {
+		final Shape oldShape = shape;
+		final AbstractSerializationData[] oldValues = values;
+		shape = Shape.EMPTY;
+		values = NO_VALUES;
+		final int n = oldShape.size();
+		for (int i = 0; i < n; i++) {
+			final String property = oldShape.getName(i);
+			if ("class".equals(property) || wanted.contains(property)) {
+				add(property, oldValues[i]);
+			}
+		}
 	}
 
 	/**
@@ -68,7 +221,61 @@ public class SerializationObject extends AbstractSerializationObject {
 	 *         <code>false</code> otherwise
 	 */
 	public boolean contains(final String property) {
-		return properties.containsKey(property);
+		return shape.indexOf(property) >= 0;
+	}
+
+	/**
+	 * Make the object positional: it will be written as
+	 * <code>#n[values]</code>, its class and property names being declared
+	 * once in the document header
+	 *
+	 * @param layoutIndex
+	 *            the index of the layout in the document header
+	 */
+	public void setLayoutIndex(final int layoutIndex) {
+		assert "class".equals(shape.getName(0)) : "class must come first";
+		this.layoutIndex = layoutIndex;
+	}
+
+	/**
+	 * Getter layoutIndex
+	 *
+	 * @return the index of the layout in the document header, or -1 if the
+	 *         object is not positional
+	 */
+	public int getLayoutIndex() {
+		return layoutIndex;
+	}
+
+	/**
+	 * @param other
+	 *            another object
+	 * @return <code>true</code> if both objects have the same property names
+	 *         in the same order
+	 */
+	public boolean hasSameProperties(final SerializationObject other) {
+		return shape == other.shape
+				|| Arrays.equals(getPropertyNames(), other.getPropertyNames());
+	}
+
+	/**
+	 * @return the number of properties (including the class)
+	 */
+	int size() {
+		return shape.size();
+	}
+
+	String getName(final int i) {
+		return shape.getName(i);
+	}
+
+	AbstractSerializationData getValue(final int i) {
+		return values[i];
+	}
+
+	private AbstractSerializationData get(final String property) {
+		final int i = shape.indexOf(property);
+		return i < 0 ? null : values[i];
 	}
 
 	/*
@@ -81,19 +288,81 @@ public class SerializationObject extends AbstractSerializationObject {
 	@Override
 	public void toJson(final Writer out, final JsonConverter converter,
 			final Context context) throws IOException {
+		if (layoutIndex >= 0) {
+			toJsonPositional(out, converter, context);
+			return;
+		}
 		out.append('{');
-		String sep = "";
-		for (final Map.Entry<String, AbstractSerializationData> value : properties
-				.entrySet()) {
-			out.append(sep);
-			out.append(converter.toJson(value.getKey()));
+		final int n = shape.size();
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			out.append(converter.toJson(shape.getName(i)));
 			out.append(':');
-			value.getValue().toJson(out, converter, context);
-			sep = ",";
+			toJson(values[i], out, converter, context);
 		}
 		out.append('}');
 	}
 
+	/**
+	 * Write the value of a property
+	 *
+	 * @param i
+	 *            the index of the property (see {@link #getPropertyNames()})
+	 * @param out
+	 *            the JSON/R stream to append to
+	 * @param converter
+	 *            the converter
+	 * @param context
+	 *            the prettiness context
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	public void toJsonProperty(final int i, final Writer out,
+			final JsonConverter converter, final Context context)
+			throws IOException {
+		toJson(values[i], out, converter, context);
+	}
+
+	private void toJsonPositional(final Writer out,
+			final JsonConverter converter, final Context context)
+			throws IOException {
+		out.append('#').append(Integer.toString(layoutIndex)).append('[');
+		final int n = shape.size();
+		for (int i = 1; i < n; i++) {
+			if (i > 1) {
+				out.append(',');
+			}
+			toJson(values[i], out, converter, context);
+		}
+		out.append(']');
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		final int n = shape.size();
+		out.writeObject(n);
+		for (int i = 0; i < n; i++) {
+			final String name = shape.getName(i);
+			out.writeName(converter.toJson(name));
+			if (values[i].kind == KIND_VALUE && "class".equals(name)) {
+				((SerializationValue) values[i]).toBinarySymbol(out,
+						converter);
+			} else {
+				toBinary(values[i], out, converter);
+			}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -108,6 +377,23 @@ public class SerializationObject extends AbstractSerializationObject {
 			final Class<? extends T> propertyType,
 			final JsonConverter converter,
 			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
+		return fromJson(heap, propertyType, null, converter, converterContext);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.data.AbstractSerializationData#fromJson(net.cadrian
+	 * .jsonref.data.SerializationHeap, java.lang.Class, java.lang.Object,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.JsonConverter.Context)
+	 */
+	@Override
+	<T> T fromJson(final SerializationHeap heap,
+			final Class<? extends T> propertyType, final Object target,
+			final JsonConverter converter,
+			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
 		T result = null;
 		if (heap != null) {
 			@SuppressWarnings("unchecked")
@@ -117,10 +403,10 @@ public class SerializationObject extends AbstractSerializationObject {
 		if (result == null) {
 			if (propertyType != null
 					&& Map.class.isAssignableFrom(propertyType)) {
-				result = fromJsonMap(heap, propertyType, converter,
+				result = fromJsonMap(heap, propertyType, target, converter,
 						converterContext);
 			} else {
-				result = fromJsonObject(heap, propertyType, converter,
+				result = fromJsonObject(heap, propertyType, target, converter,
 						converterContext);
 			}
 		}
@@ -129,23 +415,29 @@ public class SerializationObject extends AbstractSerializationObject {
 
 	@SuppressWarnings("unchecked")
 	private <T> T fromJsonMap(final SerializationHeap heap,
-			final Class<? extends T> propertyType,
+			final Class<? extends T> propertyType, final Object target,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		assert Map.class.isAssignableFrom(propertyType) : "not a map";
 
-		@SuppressWarnings("rawtypes")
-		final Map<Object, Object> result = (Map<Object, Object>) converter
-				.newMap((Class<Map>) propertyType);
+		final Map<Object, Object> result;
+		if (propertyType.isInstance(target)) {
+			result = (Map<Object, Object>) target;
+			result.keySet().retainAll(Arrays.asList(getPropertyNames()));
+		} else {
+			@SuppressWarnings("rawtypes")
+			final Class<Map> mapType = (Class<Map>) propertyType;
+			result = (Map<Object, Object>) converter.newMap(mapType);
+		}
 		if (heap != null) {
 			heap.setDeser(ref, result);
 		}
 
-		for (final Map.Entry<String, AbstractSerializationData> entry : properties
-				.entrySet()) {
-			final String key = entry.getKey();
-			final Object value = entry.getValue().fromJson(heap, null,
-					converter, converterContext);
+		final int n = shape.size();
+		for (int i = 0; i < n; i++) {
+			final String key = shape.getName(i);
+			final Object value = fromJson(values[i], heap, null,
+					result.get(key), converter, converterContext);
 			result.put(key, value);
 		}
 		return (T) result;
@@ -153,7 +445,7 @@ public class SerializationObject extends AbstractSerializationObject {
 
 	@SuppressWarnings("unchecked")
 	private <T> T fromJsonObject(final SerializationHeap heap,
-			final Class<? extends T> propertyType,
+			final Class<? extends T> propertyType, final Object target,
 			final JsonConverter converter,
 			final JsonConverter.Context converterContext) {
 		final T result;
@@ -163,14 +455,26 @@ public class SerializationObject extends AbstractSerializationObject {
 			if (propertyType != null) {
 				actualType = propertyType;
 			} else {
-				final AbstractSerializationData classProperty = properties
-						.get("class");
-				final String className = classProperty.fromJson(heap,
-						String.class, converter, converterContext);
-				actualType = Class.forName(className);
+				final AbstractSerializationData classProperty = get("class");
+				final Class<?> resolvedClass = getResolvedClass(classProperty);
+				if (resolvedClass != null) {
+					actualType = resolvedClass;
+				} else {
+					final String className = classProperty.fromJson(heap,
+							String.class, converter, converterContext);
+					actualType = JsonConverters.resolveClass(converter,
+							className);
+				}
 			}
 
-			result = (T) actualType.newInstance();
+			final boolean reuse = target != null
+					&& target.getClass() == actualType;
+			if (reuse) {
+				result = (T) target;
+			} else {
+				result = (T) JsonConverters.getInstantiator(converter,
+						actualType).newInstance();
+			}
 			if (heap != null) {
 				heap.setDeser(ref, result);
 			}
@@ -178,29 +482,55 @@ public class SerializationObject extends AbstractSerializationObject {
 			final BeanInfo beanInfo = Introspector.getBeanInfo(actualType);
 			final PropertyDescriptor[] pds = beanInfo.getPropertyDescriptors();
 
-			for (final PropertyDescriptor pd : pds) {
-				final String propertyName = pd.getName();
-				if (properties.containsKey(propertyName)) {
+			final int[] plan = shape.getBindingPlan(actualType, pds);
+			for (int i = 0; i < pds.length; i++) {
+				if (plan[i] >= 0) {
+					final PropertyDescriptor pd = pds[i];
+					final String propertyName = pd.getName();
+					final AbstractSerializationData data = values[plan[i]];
 					final Field propertyField = getField(propertyName,
 							actualType);
 					final JsonConverter.Context ctx = converterContext
 							.withProperty(pd, propertyField);
 					if (!converter.isTransient(ctx)) {
-						converter.nestIn(ctx, result, null);
-						final Object value = properties.get(propertyName)
-								.fromJson(heap, pd.getPropertyType(),
-										converter, converterContext);
-						converter.setPropertyValue(ctx, result, value);
+						final Object previous = reuse ? converter
+								.getPropertyValue(ctx, result) : null;
+						converter.nestIn(ctx, result, previous);
+						final Object value = fromJson(data, heap,
+								pd.getPropertyType(), previous, converter,
+								converterContext);
+						if (value != previous) {
+							converter.setPropertyValue(ctx, result, value);
+						}
 						converter.nestOut(ctx, result, value);
 					}
 				}
 			}
-		} catch (final ClassNotFoundException | InstantiationException
-				| IllegalAccessException | IntrospectionException e) {
+		} catch (final IntrospectionException e) {
 			throw new SerializationException(e);
 		}
 
 		return result;
 	}
 
-}
\ No newline at end of file
+	private static Class<?> getResolvedClass(
+			final AbstractSerializationData classProperty) {
+		if (classProperty.kind != KIND_VALUE) {
+			return null;
+		}
+		return ((SerializationValue) classProperty).getResolvedClass();
+	}
+
+	/**
+	 * @return the property names, in order (including the class)
+	 */
+	public String[] getPropertyNames() {
+		final int n = shape.size();
+		final String[] result = new String[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = shape.getName(i);
+		}
+		return result;
+	}
+
+}
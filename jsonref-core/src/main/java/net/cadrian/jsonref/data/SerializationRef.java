@@ -18,14 +18,23 @@ package net.cadrian.jsonref.data;
 import java.io.IOException;
 import java.io.Writer;
 
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
 import net.cadrian.jsonref.Prettiness.Context;
+import net.cadrian.jsonref.SerializationException;
 
 /**
  * A reference in the heap
  */
 public class SerializationRef extends AbstractSerializationData {
 
+	private static final SerializationRef[] CACHE = new SerializationRef[1024];
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new SerializationRef(i);
+		}
+	}
+
 	private final int ref;
 
 	/**
@@ -33,9 +42,24 @@ public class SerializationRef extends AbstractSerializationData {
 	 *            the reference of the object
 	 */
 	public SerializationRef(final int ref) {
+		super(KIND_REF);
 		this.ref = ref;
 	}
 
+	/**
+	 * References are immutable: the small ones are shared
+	 *
+	 * @param ref
+	 *            the reference of the object
+	 * @return the reference
+	 */
+	public static SerializationRef valueOf(final int ref) {
+		if (ref < CACHE.length) {
+			return CACHE[ref];
+		}
+		return new SerializationRef(ref);
+	}
+
 	/**
 	 * Getter ref
 	 *
@@ -58,6 +82,19 @@ public class SerializationRef extends AbstractSerializationData {
 		out.append('$').append(Integer.toString(ref));
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		out.writeRef(ref);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -72,9 +109,31 @@ public class SerializationRef extends AbstractSerializationData {
 			final Class<? extends T> propertyType,
 			final JsonConverter converter,
 			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
+		if (heap == null) {
+			throw new SerializationException("unresolved reference $" + ref);
+		}
+
+		return fromJson(heap.get(ref), heap, propertyType, null, converter,
+				converterContext);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.data.AbstractSerializationData#fromJson(net.cadrian
+	 * .jsonref.data.SerializationHeap, java.lang.Class, java.lang.Object,
+	 * net.cadrian.jsonref.JsonConverter,
+	 * net.cadrian.jsonref.JsonConverter.Context)
+	 */
+	@Override
+	<T> T fromJson(final SerializationHeap heap,
+			final Class<? extends T> propertyType, final Object target,
+			final JsonConverter converter,
+			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
 		assert heap != null : "no heap for reference?!";
 
-		return heap.get(ref).fromJson(heap, propertyType, converter,
+		return fromJson(heap.get(ref), heap, propertyType, target, converter,
 				converterContext);
 	}
 
@@ -17,8 +17,13 @@ package net.cadrian.jsonref.data;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
 
+import net.cadrian.jsonref.BinaryOutput;
 import net.cadrian.jsonref.JsonConverter;
+import net.cadrian.jsonref.JsonConverters;
+import net.cadrian.jsonref.JsonNumber;
 import net.cadrian.jsonref.Prettiness.Context;
 
 /**
@@ -26,9 +31,53 @@ import net.cadrian.jsonref.Prettiness.Context;
  */
 public class SerializationValue extends AbstractSerializationData {
 
+	/**
+	 * The shared <code>null</code> value, for both serialization and
+	 * deserialization
+	 */
+	public static final SerializationValue NULL = new SerializationValue(
+			(String) null);
+
+	/**
+	 * The shared <code>true</code> value, for deserialization
+	 */
+	public static final SerializationValue TRUE = new SerializationValue(
+			"true");
+
+	/**
+	 * The shared <code>false</code> value, for deserialization
+	 */
+	public static final SerializationValue FALSE = new SerializationValue(
+			"false");
+
 	private final Class<?> type;
 	private final Object value;
 	private final String string;
+	private final JsonNumber number;
+	private final Class<?> resolvedClass;
+
+	/**
+	 * The index of the value in the value table of the header; -1 if the
+	 * value is written in place
+	 */
+	private int tableIndex = -1;
+
+	/**
+	 * <code>true</code> if the value is referenced from many places: it is
+	 * converted once, see {@link #setShared()}
+	 */
+	private boolean shared;
+	/**
+	 * The converted shared value, by wanted type (a value may be read as
+	 * different types by different references)
+	 */
+	private Map<Class<?>, Object> sharedValues;
+
+	/**
+	 * The shape of the objects of this class when deserializing, see
+	 * {@link #getClassShape()}
+	 */
+	private volatile Shape classShape;
 
 	/**
 	 * Constructor for serialization
@@ -39,9 +88,32 @@ public class SerializationValue extends AbstractSerializationData {
 	 *            the value
 	 */
 	public SerializationValue(final Class<?> type, final Object value) {
+		super(KIND_VALUE);
 		this.type = type;
 		this.value = value;
 		this.string = null;
+		this.number = null;
+		this.resolvedClass = null;
+	}
+
+	/**
+	 * Constructor for serialization of a value already converted
+	 *
+	 * @param type
+	 *            the value type
+	 * @param value
+	 *            the value
+	 * @param json
+	 *            the JSON/R of the value
+	 */
+	public SerializationValue(final Class<?> type, final Object value,
+			final String json) {
+		super(KIND_VALUE);
+		this.type = type;
+		this.value = value;
+		this.string = json;
+		this.number = null;
+		this.resolvedClass = null;
 	}
 
 	/**
@@ -52,9 +124,48 @@ public class SerializationValue extends AbstractSerializationData {
 	 *            the value
 	 */
 	public SerializationValue(final String value) {
+		super(KIND_VALUE);
+		this.type = null;
+		this.value = null;
+		this.string = value;
+		this.number = null;
+		this.resolvedClass = null;
+	}
+
+	/**
+	 * Constructor for deserialization of class names: the class is resolved
+	 * only once, even if the value is shared by many objects (see
+	 * {@link #getResolvedClass()})
+	 *
+	 * @param value
+	 *            the JSON string of the class name
+	 * @param resolvedClass
+	 *            the class
+	 */
+	public SerializationValue(final String value,
+			final Class<?> resolvedClass) {
+		super(KIND_VALUE);
 		this.type = null;
 		this.value = null;
 		this.string = value;
+		this.number = null;
+		this.resolvedClass = resolvedClass;
+	}
+
+	/**
+	 * Constructor for deserialization of numbers: the value is already parsed,
+	 * type is not yet known
+	 *
+	 * @param number
+	 *            the number
+	 */
+	public SerializationValue(final JsonNumber number) {
+		super(KIND_VALUE);
+		this.type = null;
+		this.value = null;
+		this.string = null;
+		this.number = number;
+		this.resolvedClass = null;
 	}
 
 	/**
@@ -75,6 +186,91 @@ public class SerializationValue extends AbstractSerializationData {
 		return value;
 	}
 
+	/**
+	 * Getter resolvedClass
+	 *
+	 * @return the already resolved class, or <code>null</code> if the value
+	 *         is not a resolved class name
+	 */
+	public Class<?> getResolvedClass() {
+		return resolvedClass;
+	}
+
+	/**
+	 * The root of the shapes of the objects having this value as class. The
+	 * class values are shared by the objects of a document (see the symbol
+	 * tables of the parser), hence the shapes only live as long as the
+	 * document. A race may create two roots: the objects are still correct,
+	 * only less shared.
+	 *
+	 * @return the shape with only the class property
+	 */
+	Shape getClassShape() {
+		Shape result = classShape;
+		if (result == null) {
+			result = Shape.newRoot();
+			classShape = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Write the value as a reference to the value table of the header
+	 * (<code>%n</code>)
+	 *
+	 * @param tableIndex
+	 *            the index of the value in the table
+	 */
+	public void setTableIndex(final int tableIndex) {
+		this.tableIndex = tableIndex;
+	}
+
+	/**
+	 * The value is referenced from many places (e.g. from the value table of
+	 * the header): it is converted only once for a given type, and all the
+	 * references share the converted object
+	 */
+	public void setShared() {
+		shared = true;
+	}
+
+	/**
+	 * @param other
+	 *            another value
+	 * @return <code>true</code> if both values are known to be written the
+	 *         same way
+	 */
+	boolean isSame(final SerializationValue other) {
+		if (this == other) {
+			return true;
+		}
+		if (string != null || number != null || other.string != null
+				|| other.number != null) {
+			// deserialized or converted: only shared instances are known to be
+			// the same
+			return false;
+		}
+		return value == null ? other.value == null : value
+				.equals(other.value);
+	}
+
+	/**
+	 * @return <code>true</code> if the value is a serialized integral number
+	 *         (see {@link #getLong()})
+	 */
+	boolean isIntegral() {
+		return value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte;
+	}
+
+	/**
+	 * @return the serialized integral number
+	 */
+	long getLong() {
+		assert isIntegral() : "not an integral number";
+		return ((Number) value).longValue();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -85,7 +281,75 @@ public class SerializationValue extends AbstractSerializationData {
 	@Override
 	public void toJson(final Writer out, final JsonConverter converter,
 			final Context context) throws IOException {
-		out.append(converter.toJson(value));
+		if (tableIndex >= 0) {
+			out.append('%').append(Integer.toString(tableIndex));
+		} else {
+			toJsonInPlace(out, converter);
+		}
+	}
+
+	/**
+	 * Write the value itself, even if it is in the value table (e.g. as the
+	 * name of a property)
+	 *
+	 * @param out
+	 *            the stream to write to
+	 * @param converter
+	 *            the converter
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	void toJsonInPlace(final Writer out, final JsonConverter converter)
+			throws IOException {
+		if (string != null) {
+			// deserialized, or already converted
+			out.append(string);
+		} else if (number != null) {
+			out.append(number.toString());
+		} else {
+			out.append(converter.toJson(value));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * net.cadrian.jsonref.SerializationData#toBinary(net.cadrian.jsonref.
+	 * BinaryOutput, net.cadrian.jsonref.JsonConverter)
+	 */
+	@Override
+	public void toBinary(final BinaryOutput out,
+			final JsonConverter converter) throws IOException {
+		if (string != null) {
+			out.writeValue(null, string);
+		} else if (number != null) {
+			out.writeValue(null, number.toString());
+		} else {
+			out.writeValue(value, converter.toJson(value));
+		}
+	}
+
+	/**
+	 * Binary serialization of a value that is likely to be repeated (e.g. a
+	 * class name)
+	 *
+	 * @param out
+	 *            the binary stream to append to
+	 * @param converter
+	 *            the converter
+	 * @throws IOException
+	 *             on I/O exception
+	 */
+	void toBinarySymbol(final BinaryOutput out, final JsonConverter converter)
+			throws IOException {
+		if (string != null) {
+			out.writeSymbol(string);
+		} else if (value instanceof String) {
+			out.writeSymbol(converter.toJson(value));
+		} else {
+			toBinary(out, converter);
+		}
 	}
 
 	/*
@@ -100,6 +364,28 @@ public class SerializationValue extends AbstractSerializationData {
 	public <T> T fromJson(final Class<? extends T> wantedType,
 			final JsonConverter converter,
 			final net.cadrian.jsonref.JsonConverter.Context converterContext) {
+		if (!shared) {
+			return convert(wantedType, converter);
+		}
+		synchronized (this) {
+			if (sharedValues == null) {
+				sharedValues = new HashMap<>(2);
+			}
+			@SuppressWarnings("unchecked")
+			T result = (T) sharedValues.get(wantedType);
+			if (result == null && !sharedValues.containsKey(wantedType)) {
+				result = convert(wantedType, converter);
+				sharedValues.put(wantedType, result);
+			}
+			return result;
+		}
+	}
+
+	private <T> T convert(final Class<? extends T> wantedType,
+			final JsonConverter converter) {
+		if (number != null) {
+			return JsonConverters.fromJson(converter, number, wantedType);
+		}
 		if (string == null) {
 			return null;
 		}
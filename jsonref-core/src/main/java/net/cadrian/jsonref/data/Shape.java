@@ -0,0 +1,242 @@
+/*
+   Copyright 2015 Cyril Adrian <cyril.adrian@gmail.com>
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package net.cadrian.jsonref.data;
+
+import java.beans.PropertyDescriptor;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The shape of a {@link SerializationObject}, i.e. its ordered property names.
+ * <p>
+ * Shapes are shared: objects of the same class built by adding the same
+ * properties in the same order reach the same shape through cached
+ * transitions from the {@linkplain #newRoot() root} of their class, and only
+ * store their values. The roots are scoped: one per actual class when
+ * serializing (see {@link #forClass(Class)}), one per class name of the
+ * document when deserializing, so that the input never feeds a global
+ * registry. Objects without a class (e.g. maps of strings) get an unshared
+ * shape, which grows in place.
+ */
+final class Shape {
+
+	/**
+	 * The maximum number of transitions from a single shared shape
+	 */
+	private static final int MAX_TRANSITIONS = 32;
+
+	/**
+	 * The number of properties above which the property names are indexed
+	 */
+	private static final int INDEX_THRESHOLD = 8;
+
+	private static final ClassValue<Shape> ROOTS = new ClassValue<Shape>() {
+		@Override
+		protected Shape computeValue(final Class<?> type) {
+			return newRoot();
+		}
+	};
+
+	/**
+	 * The shape without any property; adding a property gives an unshared
+	 * shape
+	 */
+	static final Shape EMPTY = new Shape(new String[0], 0, false);
+
+	private final boolean shared;
+	private final ConcurrentMap<String, Shape> transitions;
+	// shared shapes share the array with their first transition: the slots
+	// up to size are never changed
+	private String[] names;
+	private int size;
+	private volatile Map<String, Integer> index;
+	private volatile BindingPlan plan;
+
+	/**
+	 * The positions of the properties of a class in a shape, in the order of
+	 * its property descriptors
+	 */
+	private static final class BindingPlan {
+		final Class<?> type;
+		final int[] positions;
+
+		BindingPlan(final Class<?> type, final int[] positions) {
+			this.type = type;
+			this.positions = positions;
+		}
+	}
+
+	private Shape(final String[] names, final int size, final boolean shared) {
+		this.names = names;
+		this.size = size;
+		this.shared = shared;
+		this.transitions = shared ? new ConcurrentHashMap<String, Shape>(4)
+				: null;
+	}
+
+	/**
+	 * @return a new shared shape with only the class property
+	 */
+	static Shape newRoot() {
+		return new Shape(new String[] { "class", null, null, null }, 1, true);
+	}
+
+	/**
+	 * @param type
+	 *            an actual class
+	 * @return the shared shape of the objects of that class with only the
+	 *         class property
+	 */
+	static Shape forClass(final Class<?> type) {
+		return ROOTS.get(type);
+	}
+
+	/**
+	 * @return the number of properties
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 *            the index of a property
+	 * @return the name of the property
+	 */
+	String getName(final int i) {
+		assert i < size;
+		return names[i];
+	}
+
+	/**
+	 * @param name
+	 *            the name of a property
+	 * @return the index of the property, or -1 if not found
+	 */
+	int indexOf(final String name) {
+		if (size <= INDEX_THRESHOLD) {
+			for (int i = 0; i < size; i++) {
+				final String n = names[i];
+				if (n == name || n.equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		Map<String, Integer> index = this.index;
+		if (index == null) {
+			index = new HashMap<>(size * 2);
+			for (int i = 0; i < size; i++) {
+				index.put(names[i], i);
+			}
+			this.index = index;
+		}
+		final Integer result = index.get(name);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Find the positions of the properties of a class. The result is cached
+	 * for the last class bound with a shared shape: objects of the same class
+	 * are usually bound without any name lookup.
+	 *
+	 * @param type
+	 *            the class to bind
+	 * @param pds
+	 *            the property descriptors of the class
+	 * @return the position of each property in the shape (in the same order
+	 *         as the descriptors), or -1 for the missing properties
+	 */
+	int[] getBindingPlan(final Class<?> type, final PropertyDescriptor[] pds) {
+		BindingPlan plan = this.plan;
+		if (plan != null && plan.type == type) {
+			return plan.positions;
+		}
+		final int[] positions = new int[pds.length];
+		for (int i = 0; i < pds.length; i++) {
+			positions[i] = indexOf(pds[i].getName());
+		}
+		if (shared) {
+			plan = new BindingPlan(type, positions);
+			this.plan = plan;
+		}
+		return positions;
+	}
+
+	/**
+	 * Add a property. A shared shape is not changed: the shape with the added
+	 * property is returned instead. An unshared shape is changed in place.
+	 *
+	 * @param name
+	 *            the name of the property to add
+	 * @return the new shape
+	 */
+	Shape with(final String name) {
+		assert indexOf(name) < 0 : "duplicate property " + name;
+
+		if (this == EMPTY) {
+			return new Shape(new String[] { name, null, null, null }, 1, false);
+		}
+
+		if (!shared) {
+			if (size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+			}
+			if (index != null) {
+				index.put(name, size);
+			}
+			names[size++] = name;
+			return this;
+		}
+
+		Shape result = transitions.get(name);
+		if (result == null) {
+			if (transitions.size() >= MAX_TRANSITIONS) {
+				final String[] newNames = Arrays.copyOf(names, size * 2);
+				newNames[size] = name;
+				return new Shape(newNames, size + 1, false);
+			}
+			result = new Shape(extendNames(name), size + 1, true);
+			final Shape previous = transitions.putIfAbsent(name, result);
+			if (previous != null) {
+				result = previous;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the names of a new shape with the added property: the array is
+	 *         shared with the first shape that grows from this one, so that a
+	 *         chain of shapes only costs its longest array
+	 */
+	private String[] extendNames(final String name) {
+		synchronized (names) {
+			if (size < names.length
+					&& (names[size] == null || names[size].equals(name))) {
+				names[size] = name;
+				return names;
+			}
+		}
+		final String[] result = Arrays.copyOf(names, size * 2);
+		result[size] = name;
+		return result;
+	}
+
+}
@@ -16,8 +16,12 @@
 package net.cadrian.jsonref;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -39,6 +43,9 @@ public class TestDeserializationProcessor {
 	@Mock
 	private JsonConverter converter;
 
+	@Mock
+	private ExtendedJsonConverter extendedConverter;
+
 	@Before
 	public void setup() {
 		that = new DeserializationProcessor();
@@ -60,6 +67,85 @@ public class TestDeserializationProcessor {
 		assertEquals(421, i.intValue());
 	}
 
+	@Test
+	public void testNegativeNumber() {
+		when(extendedConverter.fromJson(JsonNumber.valueOf(-42),
+				Integer.class)).thenReturn(-42);
+
+		final Integer i = that.deserialize("-42", extendedConverter,
+				Integer.class);
+		assertEquals(Integer.valueOf(-42), i);
+	}
+
+	@Test
+	public void testDecimalNumber() {
+		when(extendedConverter.fromJson(JsonNumber.valueOf(-3140, 3),
+				Double.class)).thenReturn(-3.14);
+		when(extendedConverter.fromJson(JsonNumber.valueOf(314, 4),
+				Double.class)).thenReturn(3.14e-2);
+		when(extendedConverter.fromJson(JsonNumber.valueOf(314, -1),
+				Double.class)).thenReturn(3.14e3);
+
+		assertEquals(Double.valueOf(-3.14),
+				that.deserialize("-3.140", extendedConverter, Double.class));
+		assertEquals(Double.valueOf(3.14e-2),
+				that.deserialize("3.14e-2", extendedConverter, Double.class));
+		assertEquals(Double.valueOf(3.14e3),
+				that.deserialize("3.14E+3", extendedConverter, Double.class));
+	}
+
+	@Test
+	public void testDecimalNumberPlainConverter() {
+		when(converter.fromJson("-3.140", Double.class)).thenReturn(-3.14);
+
+		assertEquals(Double.valueOf(-3.14),
+				that.deserialize("-3.140", converter, Double.class));
+	}
+
+	@Test
+	public void testBigNumber() {
+		final BigDecimal big = new BigDecimal("123456789012345678901234567890");
+		when(extendedConverter.fromJson(JsonNumber.valueOf(big, true),
+				Object.class)).thenReturn(big);
+
+		assertEquals(big, that.deserialize("123456789012345678901234567890",
+				extendedConverter, Object.class));
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testInvalidNumberLeadingZero() {
+		that.deserialize("012", converter, Integer.class);
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testInvalidNumberFraction() {
+		that.deserialize("1.e3", converter, Double.class);
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testInvalidNumberExponent() {
+		that.deserialize("1e", converter, Double.class);
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testInvalidNumberExponentTooBig() {
+		that.deserialize("1e999999999", converter, BigInteger.class);
+	}
+
+	@Test
+	public void testNumberHashCode() {
+		final JsonNumber parsed = JsonNumber.valueOf(15, 1);
+		final JsonNumber big = JsonNumber.valueOf(BigDecimal.valueOf(1.5),
+				false);
+		assertEquals(parsed, big);
+		assertEquals(parsed.hashCode(), big.hashCode());
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testInvalidReferenceTooBig() {
+		that.deserialize("<[$2147483648],[]>", converter, null);
+	}
+
 	@Test
 	public void testString() {
 		when(converter.fromJson("\"foo\"", String.class)).thenReturn("bar");
@@ -181,4 +267,20 @@ public class TestDeserializationProcessor {
 		assertEquals(string2, objects.get(dontPanic));
 	}
 
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void testPropertyNamesAreConvertedOnce() {
+		when(converter.fromJson("\"string1\"", String.class)).thenReturn(
+				"foo");
+		when(converter.fromJson("\"string2\"", null)).thenReturn("bar");
+		when(converter.newMap(Map.class)).thenReturn(new HashMap());
+
+		final Map<?, ?> objects = that.deserialize(
+				"<{\"string1\":\"string2\"},{\"string1\":\"string2\"}>",
+				converter, Map.class);
+		assertEquals(1, objects.size());
+		assertEquals("bar", objects.get("foo"));
+		verify(converter, times(1)).fromJson("\"string1\"", String.class);
+	}
+
 }
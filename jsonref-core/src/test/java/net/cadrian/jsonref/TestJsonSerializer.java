@@ -17,6 +17,7 @@ package net.cadrian.jsonref;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -26,10 +27,30 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.beans.PropertyDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipException;
 
 import net.cadrian.jsonref.JsonConverter.Context;
 import net.cadrian.jsonref.atomic.DefaultJsonConverter;
@@ -40,6 +61,52 @@ import org.mockito.stubbing.Answer;
 
 public class TestJsonSerializer {
 
+	public static class NoDefaultConstructor {
+		private String value;
+
+		public NoDefaultConstructor(final String value) {
+			this.value = value;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public void setValue(final String value) {
+			this.value = value;
+		}
+	}
+
+	public static class Message {
+		private Pojo pojo;
+		private List<Pojo> pojos;
+		private int[] counts;
+
+		public Pojo getPojo() {
+			return pojo;
+		}
+
+		public void setPojo(final Pojo pojo) {
+			this.pojo = pojo;
+		}
+
+		public List<Pojo> getPojos() {
+			return pojos;
+		}
+
+		public void setPojos(final List<Pojo> pojos) {
+			this.pojos = pojos;
+		}
+
+		public int[] getCounts() {
+			return counts;
+		}
+
+		public void setCounts(final int[] counts) {
+			this.counts = counts;
+		}
+	}
+
 	@Test
 	public void testCycleToJson() {
 		final JsonSerializer ser = new JsonSerializer();
@@ -283,4 +350,1272 @@ public class TestJsonSerializer {
 		assertSame(a, b.getReference());
 		assertNull(b.getValue());
 	}
+
+	@Test
+	public void testAllowedClass() {
+		final String json = "{\"class\":\"net.cadrian.jsonref.Pojo\",\"value\":\"a\"}";
+		final JsonSerializer ser = new JsonSerializer(new DefaultJsonConverter(
+				Arrays.asList("java.util.*", "net.cadrian.jsonref.Pojo")));
+		final Pojo a = (Pojo) ser.fromJson(json);
+		assertEquals("a", a.getValue());
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testClassNotAllowed() {
+		final String json = "{\"class\":\"net.cadrian.jsonref.Pojo\",\"value\":\"a\"}";
+		final JsonSerializer ser = new JsonSerializer(new DefaultJsonConverter(
+				Arrays.asList("java.util.*")));
+		ser.fromJson(json);
+	}
+
+	@Test
+	public void testNoDefaultConstructor() {
+		final JsonSerializer ser = new JsonSerializer();
+		final NoDefaultConstructor a = new NoDefaultConstructor("a");
+		final NoDefaultConstructor b = ser.clone(a);
+		assertEquals("a", b.getValue());
+	}
+
+	@Test
+	public void testNumbers() {
+		final JsonSerializer ser = new JsonSerializer();
+		assertEquals(Integer.valueOf(-42), ser.fromJson("-42", int.class));
+		assertEquals(Long.valueOf(Long.MIN_VALUE),
+				ser.fromJson("-9223372036854775808", Long.class));
+		assertEquals(Double.valueOf(-1500.0),
+				ser.fromJson("-1.5e3", Double.class));
+		assertEquals(Double.valueOf(0.1), ser.fromJson("0.1", double.class));
+		assertEquals(Float.valueOf(0.1f), ser.fromJson("0.1", Float.class));
+		assertEquals(new BigDecimal("1.10"),
+				ser.fromJson("1.10", BigDecimal.class));
+		assertEquals(new BigInteger("123456789012345678901234567890"), ser
+				.fromJson("123456789012345678901234567890", BigInteger.class));
+		assertEquals(Long.valueOf(42), ser.fromJson("42"));
+		assertEquals(Double.valueOf(4.2), ser.fromJson("42e-1"));
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testNumberOutOfRange() {
+		final JsonSerializer ser = new JsonSerializer();
+		ser.fromJson("1000", Byte.class);
+	}
+
+	@Test
+	public void testParallelHeap() {
+		final List<Pojo> pojos = new ArrayList<>();
+		Pojo previous = null;
+		for (int i = 0; i < 2000; i++) {
+			final Pojo pojo = new Pojo();
+			pojo.setValue("pojo \"" + i + "\", [<{$" + i + "}>] \u00e9\u20ac");
+			pojo.setReference(previous);
+			pojos.add(pojo);
+			previous = pojo;
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final JsonSerializer ser = new JsonSerializer(null,
+					JsonOptions.DEFAULT.withParallelPool(pool));
+			final String json = ser.toJson(pojos);
+			@SuppressWarnings("unchecked")
+			final List<Pojo> result = ser.fromJson(json, List.class);
+			assertEquals(pojos, result);
+			assertNull(result.get(0).getReference());
+			for (int i = 1; i < result.size(); i++) {
+				assertSame(result.get(i - 1), result.get(i).getReference());
+			}
+
+			@SuppressWarnings("unchecked")
+			final List<Pojo> bytesResult = ser.fromJson(
+					ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)),
+					List.class);
+			assertEquals(pojos, bytesResult);
+			for (int i = 1; i < bytesResult.size(); i++) {
+				assertSame(bytesResult.get(i - 1), bytesResult.get(i)
+						.getReference());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testByteBuffer() {
+		final Pojo pojo = new Pojo();
+		pojo.setValue("plain ASCII text, long enough for a few words: "
+				+ "caf\u00e9 \u20ac \ud83d\ude00 \"quoted\" \\ \n\t end");
+		final Pojo other = new Pojo();
+		other.setValue("\u00e0 bient\u00f4t");
+		other.setReference(pojo);
+		pojo.setReference(other);
+		final JsonSerializer ser = new JsonSerializer();
+		final String json = ser.toJson(pojo);
+
+		final byte[] bytes = ("  \n\t  " + json + "    \r\n  ")
+				.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 4);
+		buffer.put(new byte[] { 1, 2 }).put(bytes).put(new byte[] { 3, 4 });
+		buffer.position(2).limit(2 + bytes.length);
+
+		final Pojo result = ser.fromJson(buffer, Pojo.class);
+		assertEquals(pojo.getValue(), result.getValue());
+		assertEquals(other.getValue(), result.getReference().getValue());
+		assertSame(result, result.getReference().getReference());
+		assertEquals(2, buffer.position());
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testByteBufferInvalidUtf8() {
+		new JsonSerializer().fromJson(ByteBuffer.wrap(new byte[] { '"', 'a',
+				(byte) 0xC3, '"' }));
+	}
+
+	private static Message newMessage(final String value, final int size) {
+		final Message result = new Message();
+		result.setPojo(new Pojo());
+		result.getPojo().setValue(value);
+		result.setPojos(new ArrayList<Pojo>());
+		for (int i = 0; i < size; i++) {
+			final Pojo pojo = new Pojo();
+			pojo.setValue(value + i);
+			pojo.setReference(result.getPojo());
+			result.getPojos().add(pojo);
+		}
+		result.setCounts(new int[] { size, size + 1 });
+		return result;
+	}
+
+	@Test
+	public void testFromJsonInto() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Message existing = newMessage("old", 3);
+		final Pojo pojo = existing.getPojo();
+		final List<Pojo> pojos = existing.getPojos();
+		final Pojo pojo0 = pojos.get(0);
+		final int[] counts = existing.getCounts();
+
+		final Message result = ser.fromJsonInto(
+				ser.toJson(newMessage("new", 3)), existing);
+		assertSame(existing, result);
+		assertSame(pojo, result.getPojo());
+		assertEquals("new", pojo.getValue());
+		assertSame(pojos, result.getPojos());
+		assertEquals(3, pojos.size());
+		assertSame(pojo0, pojos.get(0));
+		for (int i = 0; i < 3; i++) {
+			assertEquals("new" + i, pojos.get(i).getValue());
+			assertSame(pojo, pojos.get(i).getReference());
+		}
+		assertSame(counts, result.getCounts());
+		assertArrayEquals(new int[] { 3, 4 }, counts);
+	}
+
+	@Test
+	public void testFromJsonIntoResized() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Message existing = newMessage("old", 3);
+		final List<Pojo> pojos = existing.getPojos();
+		final Pojo pojo0 = pojos.get(0);
+		final int[] counts = existing.getCounts();
+
+		ser.fromJsonInto(ser.toJson(newMessage("new", 1)), existing);
+		assertSame(pojos, existing.getPojos());
+		assertEquals(1, pojos.size());
+		assertSame(pojo0, pojos.get(0));
+		assertEquals("new0", pojo0.getValue());
+		assertSame(counts, existing.getCounts());
+
+		existing.setCounts(new int[3]);
+		ser.fromJsonInto(ser.toJson(newMessage("newer", 4)), existing);
+		assertSame(pojos, existing.getPojos());
+		assertEquals(4, pojos.size());
+		assertSame(pojo0, pojos.get(0));
+		assertEquals("newer3", pojos.get(3).getValue());
+		assertSame(existing.getPojo(), pojos.get(3).getReference());
+		assertArrayEquals(new int[] { 4, 5 }, existing.getCounts());
+	}
+
+	@Test
+	public void testProjection() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withProjection(Projection.ALL.with(
+						Pojo.class, "value")));
+		// the skipped values would not bind
+		final String json = "{\"alpha\":[1,{\"beta\":2}],"
+				+ "\"class\":\"net.cadrian.jsonref.Pojo\","
+				+ "\"reference\":{\"x\":[\"}\\\"]\",{\"y\":\"\\\\\"}],\"z\":<1,$2>},"
+				+ "\"timestamp\":\"not a timestamp\","
+				+ "\"value\":\"v\u00e9\"}";
+
+		Pojo pojo = ser.fromJson(json, Pojo.class);
+		assertEquals("v\u00e9", pojo.getValue());
+		assertNull(pojo.getReference());
+		assertNull(pojo.getTimestamp());
+
+		pojo = ser.fromJson(
+				ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)),
+				Pojo.class);
+		assertEquals("v\u00e9", pojo.getValue());
+		assertNull(pojo.getReference());
+		assertNull(pojo.getTimestamp());
+	}
+
+	@Test
+	public void testProjectionOfHeap() {
+		final Pojo a = new Pojo();
+		a.setValue("a");
+		final Pojo b = new Pojo();
+		b.setValue("b");
+		a.setReference(b);
+		b.setReference(a);
+		final Message message = new Message();
+		message.setPojo(a);
+		message.setCounts(new int[] { 1, 2 });
+
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withProjection(Projection.ALL.with(
+						Pojo.class, "reference")));
+		final Message result = ser.fromJson(ser.toJson(message),
+				Message.class);
+		assertArrayEquals(new int[] { 1, 2 }, result.getCounts());
+		assertNull(result.getPojo().getValue());
+		assertNull(result.getPojo().getReference().getValue());
+		assertSame(result.getPojo(), result.getPojo().getReference()
+				.getReference());
+	}
+
+	@Test
+	public void testQuery() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Message message = newMessage("m", 3);
+		message.getPojo().setReference(message.getPojos().get(2));
+		final String json = ser.toJson(message);
+
+		assertEquals("m", ser.query(json, JsonPath.compile("pojo.value"),
+				String.class));
+		assertEquals("m2", ser.query(json,
+				JsonPath.compile("$0.pojo.reference.value"), String.class));
+		assertEquals("m1", ser.query(json,
+				JsonPath.compile("$.pojos[1].value"), String.class));
+		assertEquals("m", ser.query(json,
+				JsonPath.compile("pojos[1].reference.value"), String.class));
+		assertEquals(Integer.valueOf(4),
+				ser.query(json, JsonPath.compile("counts[1]"), Integer.class));
+		assertArrayEquals(new int[] { 3, 4 },
+				ser.query(json, JsonPath.compile("counts"), int[].class));
+
+		assertNull(ser.query(json, JsonPath.compile("pojos[3].value"),
+				String.class));
+		assertNull(ser.query(json, JsonPath.compile("pojo.missing"),
+				String.class));
+		assertNull(ser.query(json, JsonPath.compile("counts.value"),
+				String.class));
+		assertNull(ser.query(json, JsonPath.compile("pojos[0].timestamp"),
+				Timestamp.class));
+		assertNull(ser.query(json, JsonPath.compile("$99.value"),
+				String.class));
+
+		assertEquals("m2", ser.query(
+				ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)),
+				JsonPath.compile("pojo.reference.value"), String.class));
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testQueryInvalidPath() {
+		JsonPath.compile("$0.pojos[x]");
+	}
+
+	@Test
+	public void testLargeMap() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Map<String, Integer> strings = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			strings.put("key" + i, i);
+		}
+
+		@SuppressWarnings("unchecked")
+		final Map<String, Integer> stringsResult = ser.fromJson(
+				ser.toJson(strings), HashMap.class);
+		assertEquals(strings.size(), stringsResult.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(((Number) stringsResult.get("key" + i)).intValue(),
+					i);
+		}
+	}
+
+	@Test
+	public void testTape() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Message message = newMessage("caf\u00e9", 3);
+		final String json = ser.toJson(message);
+
+		final JsonTape onHeap = JsonTape.parse(json);
+		final JsonTape offHeap = JsonTape.parse(
+				ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)), true);
+		assertFalse(onHeap.isOffHeap());
+		assertTrue(offHeap.isOffHeap());
+		assertEquals(onHeap.size(), offHeap.size());
+		assertEquals(7, onHeap.getHeapSize());
+
+		for (final JsonTape tape : new JsonTape[] { onHeap, offHeap }) {
+			final Message result = ser.fromJson(tape, Message.class);
+			assertEquals("caf\u00e9", result.getPojo().getValue());
+			assertEquals(3, result.getPojos().size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals("caf\u00e9" + i, result.getPojos().get(i)
+						.getValue());
+				assertSame(result.getPojo(), result.getPojos().get(i)
+						.getReference());
+			}
+			assertArrayEquals(new int[] { 3, 4 }, result.getCounts());
+		}
+	}
+
+	@Test
+	public void testTapeGrows() {
+		final JsonSerializer ser = new JsonSerializer();
+		final String json = ser.toJson(newMessage("grow", 1000));
+
+		final JsonTape onHeap = JsonTape.parse(json);
+		final JsonTape offHeap = JsonTape.parse(json, true);
+		assertTrue(onHeap.size() > 1024);
+		assertEquals(onHeap.size(), offHeap.size());
+		for (final JsonTape tape : new JsonTape[] { onHeap, offHeap }) {
+			final Message result = ser.fromJson(tape, Message.class);
+			assertEquals(1000, result.getPojos().size());
+			assertEquals("grow999", result.getPojos().get(999).getValue());
+		}
+	}
+
+	@Test
+	public void testTapeNumbers() {
+		final JsonSerializer ser = new JsonSerializer();
+		final JsonTape tape = JsonTape.parse(
+				"[ -42, 0, 1.5e3, 123456789012345678901234567890, null ]",
+				true);
+		assertEquals(
+				Arrays.asList(Long.valueOf(-42), Long.valueOf(0),
+						Double.valueOf(1500.0), new BigInteger(
+								"123456789012345678901234567890"),
+						null), ser.fromJson(tape, List.class));
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testRunTooLong() {
+		new JsonSerializer().fromJson("[50000000*0]", int[].class);
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testTapeDeltaRunTooLong() {
+		JsonTape.parse("~[0,50000000*1]");
+	}
+
+	@Test
+	public void testMaxExpandedElements() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withMaxExpandedElements(4));
+		assertArrayEquals(new int[] { 0, 0, 1, 1 },
+				ser.fromJson("[2*0,2*1]", int[].class));
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testMaxExpandedElementsExceeded() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withMaxExpandedElements(4));
+		ser.fromJson("[2*0,3*1]", int[].class);
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testTapeInvalidNumber() {
+		JsonTape.parse("[1, 012]");
+	}
+
+	@Test
+	public void testNodes() {
+		final JsonSerializer ser = new JsonSerializer();
+		final JsonTape tape = JsonTape.parse(ser.toJson(newMessage(
+				"\"quoted\"", 3)));
+
+		final JsonNode root = tape.getRoot();
+		assertEquals(JsonNode.Kind.OBJECT, root.getKind());
+		assertEquals(Message.class.getName(), root.getClassName());
+		assertEquals(4, root.size());
+		assertEquals("class", root.getName(0));
+		assertNull(root.get("missing"));
+
+		final JsonNode pojo = root.get("pojo");
+		assertEquals(JsonNode.Kind.REFERENCE, pojo.getKind());
+		assertEquals(tape.getEntry(pojo.getRef()), pojo.resolve());
+		assertEquals("\"quoted\"", pojo.get("value").asString());
+		assertTrue(pojo.get("reference").isNull());
+
+		final JsonNode pojos = root.get("pojos");
+		assertEquals(3, pojos.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("\"quoted\"" + i, pojos.get(i).get("value")
+					.asString());
+		}
+
+		final JsonNode counts = root.get("counts");
+		assertEquals(JsonNode.Kind.ARRAY, counts.getKind());
+		assertEquals(3L, counts.get(0).asLong());
+		assertEquals(4.0, counts.get(1).asDouble(), 0.0);
+	}
+
+	@Test
+	public void testNodeEscapedName() {
+		final JsonNode root = JsonTape.parse(
+				"{\"caf\\u00e9\":1,\"a\\\"b\":2.5}").getRoot();
+		assertEquals(1, root.get("caf\u00e9").asLong());
+		assertEquals(2.5, root.get("a\"b").asDouble(), 0);
+		assertNull(root.get("caf"));
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testNodeLongOverflow() {
+		JsonTape.parse("[1e30]").getRoot().get(0).asLong();
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testNodeInvalidAccess() {
+		JsonTape.parse("{\"a\":[1,2]}").getRoot().get("a").get("b");
+	}
+
+	@Test
+	public void testBinary() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Message message = newMessage("caf\u00e9 \"quoted\"", 20);
+		message.getPojo().setTimestamp(new Timestamp(1234567890L));
+		message.getPojo().setReference(message.getPojo());
+
+		final byte[] binary = ser.toBinary(message);
+		assertTrue(binary.length < ser.toJson(message).length() / 2);
+
+		final Message result = ser.fromBinary(binary, Message.class);
+		assertEquals(message.getPojo().getValue(), result.getPojo()
+				.getValue());
+		assertEquals(message.getPojo().getTimestamp(), result.getPojo()
+				.getTimestamp());
+		assertSame(result.getPojo(), result.getPojo().getReference());
+		assertEquals(20, result.getPojos().size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(message.getPojos().get(i).getValue(), result
+					.getPojos().get(i).getValue());
+			assertSame(result.getPojo(), result.getPojos().get(i)
+					.getReference());
+		}
+		assertArrayEquals(new int[] { 20, 21 }, result.getCounts());
+	}
+
+	public static class Holder {
+		private Map<String, Object> attributes;
+		private List<Pojo> items;
+
+		public Map<String, Object> getAttributes() {
+			return attributes;
+		}
+
+		public void setAttributes(final Map<String, Object> attributes) {
+			this.attributes = attributes;
+		}
+
+		public List<Pojo> getItems() {
+			return items;
+		}
+
+		public void setItems(final List<Pojo> items) {
+			this.items = items;
+		}
+	}
+
+	@Test
+	public void testBinaryNested() {
+		final JsonSerializer ser = new JsonSerializer();
+		final Holder holder = new Holder();
+		holder.setAttributes(new HashMap<String, Object>());
+		holder.getAttributes().put("a", 1L);
+		holder.getAttributes().put("b", 2L);
+		holder.setItems(new ArrayList<Pojo>());
+		for (int i = 0; i < 2; i++) {
+			final Pojo pojo = new Pojo();
+			pojo.setValue("item" + i);
+			holder.getItems().add(pojo);
+		}
+
+		final Holder result = ser.fromBinary(ser.toBinary(holder),
+				Holder.class);
+		assertEquals(holder.getAttributes(), result.getAttributes());
+		assertEquals(2, result.getItems().size());
+		assertEquals("item1", result.getItems().get(1).getValue());
+		assertEquals(holder.getAttributes(),
+				ser.fromJson(ser.toJson(holder), Holder.class)
+						.getAttributes());
+	}
+
+	@Test
+	public void testBinaryValues() {
+		final JsonSerializer ser = new JsonSerializer();
+		assertNull(ser.fromBinary(ser.toBinary(null)));
+		assertEquals(Integer.valueOf(-42),
+				ser.fromBinary(ser.toBinary(-42), Integer.class));
+		assertEquals(Long.valueOf(Long.MIN_VALUE),
+				ser.fromBinary(ser.toBinary(Long.MIN_VALUE), Long.class));
+		assertEquals(Double.valueOf(0.1),
+				ser.fromBinary(ser.toBinary(0.1), Double.class));
+		assertEquals(Float.valueOf(0.1f),
+				ser.fromBinary(ser.toBinary(0.1f), Float.class));
+		assertEquals(new BigDecimal("1.10"), ser.fromBinary(
+				ser.toBinary(new BigDecimal("1.10")), BigDecimal.class));
+		assertEquals(Boolean.TRUE,
+				ser.fromBinary(ser.toBinary(true), Boolean.class));
+
+		final Map<String, Long> map = new HashMap<>();
+		map.put("a", 1L);
+		map.put("b", 2L);
+		assertEquals(map, ser.fromBinary(ser.toBinary(map), HashMap.class));
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testBinaryTruncated() {
+		final JsonSerializer ser = new JsonSerializer();
+		final byte[] binary = ser.toBinary(newMessage("value", 1));
+		ser.fromBinary(Arrays.copyOf(binary, binary.length - 1));
+	}
+
+	@Test
+	public void testClassDictionary() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withClassDictionary(true));
+		final Message message = newMessage("caf\u00e9", 3);
+		final String json = ser.toJson(message);
+		assertTrue(json.startsWith("@{\"classes\":["));
+		assertTrue(json.contains("\"class\":@"));
+		assertFalse(json.contains("\"class\":\""));
+		assertTrue(json.length() < new JsonSerializer().toJson(message)
+				.length());
+
+		final JsonTape tape = JsonTape.parse(json);
+		assertEquals(Pojo.class.getName(), tape.getRoot().get("pojo")
+				.getClassName());
+		for (final Message result : new Message[] {
+				new JsonSerializer().fromJson(json, Message.class),
+				ser.fromJson(tape, Message.class) }) {
+			assertEquals("caf\u00e9", result.getPojo().getValue());
+			assertEquals(3, result.getPojos().size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals("caf\u00e9" + i, result.getPojos().get(i)
+						.getValue());
+				assertSame(result.getPojo(), result.getPojos().get(i)
+						.getReference());
+			}
+		}
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testInvalidClassReference() {
+		new JsonSerializer().fromJson(
+				"@{\"classes\":[\"java.lang.Object\"]}{\"class\":@1}",
+				Object.class);
+	}
+
+	@Test
+	public void testPositionalObjects() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withPositionalObjects(true));
+		final Message message = newMessage("m", 3);
+		message.getPojo().setReference(message.getPojos().get(2));
+		final String json = ser.toJson(message);
+		assertTrue(json.startsWith("@{\"shapes\":[[\""));
+		assertFalse(json.contains("\"class\""));
+		assertTrue(json.length() < new JsonSerializer().toJson(message)
+				.length());
+
+		final JsonTape tape = JsonTape.parse(json);
+		assertEquals(Pojo.class.getName(), tape.getRoot().get("pojo")
+				.getClassName());
+		for (final Message result : new Message[] {
+				new JsonSerializer().fromJson(json, Message.class),
+				ser.fromJson(tape, Message.class) }) {
+			assertEquals("m", result.getPojo().getValue());
+			assertEquals(3, result.getPojos().size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals("m" + i, result.getPojos().get(i).getValue());
+			}
+			assertSame(result.getPojos().get(2), result.getPojo()
+					.getReference());
+			assertArrayEquals(new int[] { 3, 4 }, result.getCounts());
+		}
+
+		assertEquals("m2", ser.query(json,
+				JsonPath.compile("pojo.reference.value"), String.class));
+		assertNull(ser.query(json, JsonPath.compile("pojo.missing"),
+				String.class));
+
+		final Message projected = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withProjection(Projection.ALL.with(
+						Pojo.class, "value"))).fromJson(json, Message.class);
+		assertEquals("m", projected.getPojo().getValue());
+		assertNull(projected.getPojo().getReference());
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testPositionalObjectTooShort() {
+		new JsonSerializer().fromJson(
+				"@{\"shapes\":[[\"net.cadrian.jsonref.Pojo\",\"value\","
+						+ "\"reference\"]]}#0[\"v\"]", Pojo.class);
+	}
+
+	@Test
+	public void testColumnarTables() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withColumnarTables(true));
+		final Message message = newMessage("m", 3);
+		message.getPojos().get(0).setReference(message.getPojos().get(2));
+		final String json = ser.toJson(message);
+		assertTrue(json.contains("*{"));
+		assertTrue(json.contains("^"));
+
+		final JsonTape tape = JsonTape.parse(json);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (final Message result : new Message[] {
+					new JsonSerializer().fromJson(json, Message.class),
+					new JsonSerializer(null,
+							JsonOptions.DEFAULT.withParallelPool(pool))
+							.fromJson(json, Message.class),
+					ser.fromJson(tape, Message.class),
+					ser.fromBinary(ser.toBinary(message), Message.class) }) {
+				assertEquals("m", result.getPojo().getValue());
+				assertEquals(3, result.getPojos().size());
+				for (int i = 0; i < 3; i++) {
+					assertEquals("m" + i, result.getPojos().get(i).getValue());
+				}
+				assertSame(result.getPojos().get(2), result.getPojos().get(0)
+						.getReference());
+				assertSame(result.getPojo(), result.getPojos().get(1)
+						.getReference());
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals("m1", ser.query(json, JsonPath.compile("pojos[1].value"),
+				String.class));
+		assertEquals("m2", ser.query(json,
+				JsonPath.compile("pojos[0].reference.value"), String.class));
+		assertEquals("m", ser.query(json,
+				JsonPath.compile("pojos[1].reference.value"), String.class));
+		assertNull(ser.query(json, JsonPath.compile("pojos[3].value"),
+				String.class));
+
+		final Message projected = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withProjection(Projection.ALL.with(
+						Pojo.class, "value"))).fromJson(json, Message.class);
+		assertEquals("m1", projected.getPojos().get(1).getValue());
+		assertNull(projected.getPojos().get(1).getReference());
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testColumnarRowWithoutTable() {
+		new JsonSerializer().fromJson("<^>$0", Pojo.class);
+	}
+
+	@Test
+	public void testCompactArrays() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCompactArrays(true));
+		final Message message = newMessage("m", 1);
+		final int[] counts = new int[100];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 1000000 + 10 * i;
+		}
+		counts[50] = -7;
+		message.setCounts(counts);
+		final String json = ser.toJson(message);
+		assertTrue(json.contains("~[1000000,49*10,-1000497,1000517,48*10]"));
+
+		for (final Message result : new Message[] {
+				new JsonSerializer().fromJson(json, Message.class),
+				ser.fromJson(JsonTape.parse(json), Message.class) }) {
+			assertArrayEquals(counts, result.getCounts());
+		}
+		assertEquals(Integer.valueOf(1000490), ser.query(json,
+				JsonPath.compile("counts[49]"), Integer.class));
+		assertEquals(Integer.valueOf(-7),
+				ser.query(json, JsonPath.compile("counts[50]"), Integer.class));
+		assertNull(ser.query(json, JsonPath.compile("counts[100]"),
+				Integer.class));
+
+		final double[] doubles = { 1.5, 1.5, 1.5, 1.5, 2.0, 2.0, -0.0 };
+		final String doublesJson = ser.toJson(doubles);
+		assertEquals("[4*1.5,2.0,2.0,-0.0]", doublesJson);
+		assertArrayEquals(doubles, new JsonSerializer().fromJson(doublesJson,
+				double[].class), 0.0);
+
+		final String[] strings = { null, null, null, null, "a", "b", "b",
+				"b" };
+		final String stringsJson = ser.toJson(strings);
+		assertEquals("[4*null,\"a\",3*\"b\"]", stringsJson);
+		assertArrayEquals(strings, new JsonSerializer().fromJson(stringsJson,
+				String[].class));
+		assertArrayEquals(strings, ser.fromJson(JsonTape.parse(stringsJson),
+				String[].class));
+		assertEquals("b", ser.query(stringsJson, JsonPath.compile("[6]"),
+				String.class));
+	}
+
+	@Test
+	public void testCompactTables() {
+		final JsonSerializer ser = new JsonSerializer(null, JsonOptions.DEFAULT
+				.withColumnarTables(true).withCompactArrays(true));
+		final Message message = newMessage("m", 5);
+		final String json = ser.toJson(message);
+		assertTrue(json.contains("\"timestamp\":[5*null]"));
+		assertFalse(json.contains("*$"));
+
+		for (final Message result : new Message[] {
+				new JsonSerializer().fromJson(json, Message.class),
+				ser.fromJson(JsonTape.parse(json), Message.class) }) {
+			assertEquals(5, result.getPojos().size());
+			for (int i = 0; i < 5; i++) {
+				assertEquals("m" + i, result.getPojos().get(i).getValue());
+				assertNull(result.getPojos().get(i).getTimestamp());
+			}
+		}
+		assertNull(ser.query(json, JsonPath.compile("pojos[3].timestamp"),
+				Timestamp.class));
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testCompactArrayBadCount() {
+		new JsonSerializer().fromJson("[0*1]", int[].class);
+	}
+
+	@Test
+	public void testCompression() throws IOException {
+		final Message message = newMessage("m", 2);
+		final JsonSerializer plain = new JsonSerializer();
+		final ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+		plain.toJson(message, plainOut);
+		assertEquals(plain.toJson(message),
+				new String(plainOut.toByteArray(), StandardCharsets.UTF_8));
+
+		final JsonCompression compression = JsonCompression.DEFAULT
+				.withLevel(9).withBufferSize(64);
+		final ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+		new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCompression(compression)).toJson(
+				message, rawOut);
+
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCompression(compression.withClasses(
+						Pojo.class, Message.class)));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ser.toJson(message, out);
+		assertTrue(out.size() < rawOut.size());
+		assertTrue(rawOut.size() < plainOut.size());
+
+		final Message result = ser.fromJson(
+				new ByteArrayInputStream(out.toByteArray()), Message.class);
+		assertEquals("m", result.getPojo().getValue());
+		assertEquals(2, result.getPojos().size());
+		assertSame(result.getPojo(), result.getPojos().get(1).getReference());
+		assertArrayEquals(new int[] { 2, 3 }, result.getCounts());
+	}
+
+	@Test
+	public void testCompressionKeepsStreamsOpen() throws IOException {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCompression(JsonCompression.DEFAULT));
+		final boolean[] closed = new boolean[2];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		ser.toJson(newMessage("m", 2), out);
+		final InputStream in = new ByteArrayInputStream(out.toByteArray()) {
+			@Override
+			public void close() {
+				closed[1] = true;
+			}
+		};
+		final Message result = ser.fromJson(in, Message.class);
+		assertEquals("m", result.getPojo().getValue());
+		assertFalse(closed[0]);
+		assertFalse(closed[1]);
+	}
+
+	@Test(expected = ZipException.class)
+	public void testCompressionOtherDictionary() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCompression(JsonCompression.DEFAULT
+						.withClasses(Pojo.class))).toJson(newMessage("m", 2),
+				out);
+		new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCompression(JsonCompression.DEFAULT
+						.withClasses(Message.class))).fromJson(
+				new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void testDiffAndPatch() {
+		final JsonSerializer ser = new JsonSerializer();
+		final JsonDiff diff = ser.newDiff();
+		final JsonReplica replica = ser.newReplica();
+		final Message message = newMessage("m", 3);
+
+		final Message copy = (Message) replica.apply(diff.diff(message));
+		assertEquals("m", copy.getPojo().getValue());
+		assertEquals(3, copy.getPojos().size());
+		assertSame(copy.getPojo(), copy.getPojos().get(2).getReference());
+		assertArrayEquals(new int[] { 3, 4 }, copy.getCounts());
+		final Pojo copy1 = copy.getPojos().get(1);
+		final Pojo copy2 = copy.getPojos().get(2);
+
+		message.getPojos().remove(0);
+		message.getPojos().get(0).setValue("changed");
+		message.getPojos().get(1).setReference(message.getPojos().get(0));
+		final Pojo added = new Pojo();
+		added.setValue("added");
+		added.setReference(message.getPojo());
+		message.getPojos().add(added);
+
+		final String patch = diff.diff(message);
+		assertTrue(patch.length() < ser.toJson(message).length());
+		assertSame(copy, replica.apply(patch));
+		assertEquals(3, copy.getPojos().size());
+		assertSame(copy1, copy.getPojos().get(0));
+		assertSame(copy2, copy.getPojos().get(1));
+		assertEquals("changed", copy1.getValue());
+		assertSame(copy1, copy2.getReference());
+		assertEquals("added", copy.getPojos().get(2).getValue());
+		assertSame(copy.getPojo(), copy.getPojos().get(2).getReference());
+
+		assertTrue(diff.diff(message).endsWith("\"entries\":[]}"));
+		diff.reset();
+		final Message other = (Message) ser.newReplica().apply(
+				diff.diff(message));
+		assertEquals("changed", other.getPojos().get(0).getValue());
+	}
+
+	@Test
+	public void testDiffSendsChangedProperties() {
+		final JsonSerializer ser = new JsonSerializer();
+		final JsonDiff diff = ser.newDiff();
+		final JsonReplica replica = ser.newReplica();
+		final Message message = newMessage("m", 2);
+		final Message copy = (Message) replica.apply(diff.diff(message));
+
+		message.getPojos().get(1).setValue("changed");
+		final String patch = diff.diff(message);
+		assertTrue(patch.contains("{\"class\":\"net.cadrian.jsonref.Pojo\","
+				+ "\"value\":\"changed\"}"));
+		assertFalse(patch.contains("\"reference\""));
+		assertFalse(patch.contains("\"pojos\""));
+		replica.apply(patch);
+		assertEquals("changed", copy.getPojos().get(1).getValue());
+		assertSame(copy.getPojo(), copy.getPojos().get(1).getReference());
+		assertEquals("m0", copy.getPojos().get(0).getValue());
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testDiffNotAGraph() {
+		new JsonSerializer().newDiff().diff("atomic");
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testDiffNotABean() {
+		new JsonSerializer().newDiff().diff(new ArrayList<Pojo>());
+	}
+
+	@Test
+	public void testDiffWithMap() {
+		final JsonSerializer ser = new JsonSerializer();
+		final JsonDiff diff = ser.newDiff();
+		final JsonReplica replica = ser.newReplica();
+		final Holder holder = new Holder();
+		holder.setAttributes(new HashMap<String, Object>());
+		holder.getAttributes().put("k", 1L);
+		holder.setItems(new ArrayList<Pojo>());
+		holder.getItems().add(new Pojo());
+
+		final Holder copy = (Holder) replica.apply(diff.diff(holder));
+		assertEquals(holder.getAttributes(), copy.getAttributes());
+		final Pojo item = copy.getItems().get(0);
+
+		holder.getAttributes().put("k", 2L);
+		holder.getItems().get(0).setValue("changed");
+		assertSame(copy, replica.apply(diff.diff(holder)));
+		assertEquals(Long.valueOf(2), copy.getAttributes().get("k"));
+		assertSame(item, copy.getItems().get(0));
+		assertEquals("changed", item.getValue());
+	}
+
+	@Test
+	public void testFragmentCache() {
+		final Message message = newMessage("m", 2);
+		final Pojo inner = new Pojo();
+		inner.setValue("inner");
+		message.getPojo().setReference(inner);
+		final String expected = new JsonSerializer().toJson(message);
+
+		final JsonFragmentCache cache = new JsonFragmentCache();
+		cache.markImmutable(message.getPojo());
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withFragmentCache(cache));
+		assertEquals(expected, ser.toJson(message));
+		assertEquals(expected, ser.toJson(message));
+
+		// the cached JSON/R is used as long as it is not invalidated
+		message.getPojo().setValue("changed");
+		assertEquals(expected, ser.toJson(message));
+		cache.invalidate(message.getPojo());
+		final Message result = ser.fromJson(ser.toJson(message),
+				Message.class);
+		assertEquals("changed", result.getPojo().getValue());
+		assertEquals("inner", result.getPojo().getReference().getValue());
+		assertSame(result.getPojo(), result.getPojos().get(1).getReference());
+	}
+
+	@Test
+	public void testFragmentCacheOutputForms() {
+		final Message message = newMessage("repeated", 2);
+		final Pojo inner = new Pojo();
+		inner.setValue("repeated");
+		message.getPojo().setReference(inner);
+		final JsonOptions options = JsonOptions.DEFAULT.withSharedValues(4)
+				.withCompactArrays(true);
+		final String expected = new JsonSerializer(null, options)
+				.toJson(message);
+		assertTrue(expected.contains("%0"));
+
+		final JsonFragmentCache cache = new JsonFragmentCache();
+		cache.markImmutable(message.getPojo());
+		final JsonSerializer ser = new JsonSerializer(null,
+				options.withFragmentCache(cache));
+		assertEquals(expected, ser.toJson(message));
+		assertEquals(expected, ser.toJson(message));
+	}
+
+	@Test
+	public void testFragmentCacheSharedObjects() {
+		final Message message = newMessage("m", 3);
+		final String expected = new JsonSerializer().toJson(message);
+
+		// the pojos reference the first one, which is already serialized
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withFragmentCache(new JsonFragmentCache(
+						Pojo.class)));
+		assertEquals(expected, ser.toJson(message));
+		assertEquals(expected, ser.toJson(message));
+		assertEquals(new JsonSerializer().toJson(message, Prettiness.INDENTED),
+				ser.toJson(message, Prettiness.INDENTED));
+	}
+
+	@Test
+	public void testFragmentCacheConverters() {
+		final Message message = newMessage("m", 2);
+		final JsonConverter upper = new DefaultJsonConverter() {
+			@Override
+			public String toJson(final Object value) {
+				if ("m".equals(value)) {
+					return super.toJson("M");
+				}
+				return super.toJson(value);
+			}
+		};
+		final JsonFragmentCache cache = new JsonFragmentCache(Pojo.class);
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withFragmentCache(cache));
+		final JsonSerializer upperSer = new JsonSerializer(upper,
+				JsonOptions.DEFAULT.withFragmentCache(cache));
+
+		// each converter renders its own fragments
+		final String expected = new JsonSerializer().toJson(message);
+		final String upperExpected = new JsonSerializer(upper).toJson(message);
+		assertTrue(upperExpected.contains("\"value\":\"M\""));
+		assertEquals(expected, ser.toJson(message));
+		assertEquals(upperExpected, upperSer.toJson(message));
+		assertEquals(expected, ser.toJson(message));
+		assertEquals(upperExpected, upperSer.toJson(message));
+	}
+
+	public static class Catalog {
+		private Map<String, BigDecimal> prices;
+		private Set<String> tags;
+		private double ratio;
+
+		public Map<String, BigDecimal> getPrices() {
+			return prices;
+		}
+
+		public void setPrices(final Map<String, BigDecimal> prices) {
+			this.prices = prices;
+		}
+
+		public Set<String> getTags() {
+			return tags;
+		}
+
+		public void setTags(final Set<String> tags) {
+			this.tags = tags;
+		}
+
+		public double getRatio() {
+			return ratio;
+		}
+
+		public void setRatio(final double ratio) {
+			this.ratio = ratio;
+		}
+	}
+
+	private static Catalog newCatalog(final boolean reversed) {
+		final String[] names = { "zeta", "alpha", "caf\u00e9", "mu",
+				"\ud83d\ude00" };
+		final Catalog result = new Catalog();
+		result.setPrices(reversed ? new LinkedHashMap<String, BigDecimal>()
+				: new HashMap<String, BigDecimal>());
+		result.setTags(reversed ? new LinkedHashSet<String>()
+				: new HashSet<String>());
+		for (int i = 0; i < names.length; i++) {
+			final String name = names[reversed ? names.length - 1 - i : i];
+			result.getPrices().put(name, new BigDecimal("2.500"));
+			result.getTags().add(name);
+		}
+		result.setRatio(reversed ? 1.50 : 1.5);
+		return result;
+	}
+
+	@Test
+	public void testCanonical() throws NoSuchAlgorithmException {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCanonical(true));
+		final String json = ser.toJson(newCatalog(false));
+		assertEquals(json, ser.toJson(newCatalog(true)));
+		assertTrue(json.contains("{\"alpha\":2.5,\"caf\u00e9\":2.5,"));
+		assertTrue(json.contains("\"ratio\":1.5,"));
+		final JsonConverter converter = new DefaultJsonConverter();
+		assertEquals("1E+22",
+				SerializationProcessor.getCanonicalNumber(1e22, converter));
+		assertEquals("-0.0",
+				SerializationProcessor.getCanonicalNumber(-0.0f, converter));
+		assertEquals("1.0",
+				SerializationProcessor.getCanonicalNumber(1.0, converter));
+		assertEquals("2.5", SerializationProcessor.getCanonicalNumber(
+				new BigDecimal("2.500"), converter));
+
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		assertEquals(json, ser.toJson(newCatalog(true), null, digest));
+		assertArrayEquals(
+				MessageDigest.getInstance("SHA-256").digest(
+						json.getBytes(StandardCharsets.UTF_8)),
+				digest.digest());
+
+		// untyped strings in collections are not supported
+		final Catalog catalog = newCatalog(true);
+		catalog.setTags(null);
+		final Catalog result = ser.fromJson(ser.toJson(catalog),
+				Catalog.class);
+		assertEquals(5, result.getPrices().size());
+		assertEquals(1.5, result.getRatio(), 0);
+	}
+
+	@Test
+	public void testCanonicalUntypedNumbers() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withCanonical(true));
+		final Holder holder = new Holder();
+		holder.setAttributes(new HashMap<String, Object>());
+		holder.getAttributes().put("double", 1.0);
+		holder.getAttributes().put("zero", -0.0);
+		holder.getAttributes().put("long", 1L);
+		final String json = ser.toJson(holder);
+
+		final Map<String, Object> result = ser.fromJson(json, Holder.class)
+				.getAttributes();
+		assertEquals(Double.valueOf(1.0), result.get("double"));
+		assertEquals(Double.valueOf(-0.0), result.get("zero"));
+		assertEquals(Long.valueOf(1), result.get("long"));
+
+		// different graphs, different bytes
+		holder.getAttributes().put("double", 1L);
+		holder.getAttributes().put("zero", 0.0);
+		final String other = ser.toJson(holder);
+		assertFalse(json.equals(other));
+		assertEquals(Long.valueOf(1), ser.fromJson(other, Holder.class)
+				.getAttributes().get("double"));
+	}
+
+	@Test
+	public void testCanonicalConvertedNumbers() {
+		final JsonConverter rounding = new DefaultJsonConverter() {
+			@Override
+			public String toJson(final Object value) {
+				if (value instanceof Double) {
+					return String.format(Locale.ROOT, "%.2f", value);
+				}
+				if (value instanceof BigDecimal) {
+					return "\"" + value + "\"";
+				}
+				return super.toJson(value);
+			}
+		};
+		final JsonSerializer ser = new JsonSerializer(rounding,
+				JsonOptions.DEFAULT.withCanonical(true));
+		final Holder holder = new Holder();
+		holder.setAttributes(new HashMap<String, Object>());
+		holder.getAttributes().put("pi", 3.14159);
+		holder.getAttributes().put("ten", 10.0);
+		holder.getAttributes().put("decimal", new BigDecimal("1.50"));
+		final String json = ser.toJson(holder);
+		assertTrue(json.contains("\"pi\":3.14,"));
+		assertTrue(json.contains("\"ten\":10.0"));
+		assertTrue(json.contains("\"decimal\":\"1.50\""));
+	}
+
+	@Test
+	public void testSharedValues() {
+		final String status = "a long repeated status";
+		final Message message = newMessage("m", 3);
+		for (final Pojo pojo : message.getPojos()) {
+			pojo.setValue(status);
+		}
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withSharedValues(8));
+		final String json = ser.toJson(message);
+		assertTrue(json.startsWith("@{\"values\":[\"" + status + "\"]}"));
+		assertTrue(json.contains("\"value\":\"m\""));
+		assertTrue(json.length() < new JsonSerializer().toJson(message)
+				.length());
+
+		final Message result = ser.fromJson(json, Message.class);
+		assertEquals(status, result.getPojos().get(0).getValue());
+		assertSame(result.getPojos().get(0).getValue(), result.getPojos()
+				.get(2).getValue());
+		assertEquals(status, ser.query(json,
+				JsonPath.compile("pojos[1].value"), String.class));
+		assertEquals(status, ser.fromJson(JsonTape.parse(json), Message.class)
+				.getPojos().get(1).getValue());
+
+		final JsonSerializer all = new JsonSerializer(null, JsonOptions.DEFAULT
+				.withClassDictionary(true).withSharedValues(1));
+		final Message other = all.fromJson(all.toJson(message),
+				Message.class);
+		assertEquals("m", other.getPojo().getValue());
+		assertEquals(status, other.getPojos().get(2).getValue());
+		assertArrayEquals(new int[] { 3, 4 }, other.getCounts());
+	}
+
+	@Test
+	public void testSharedValueTypes() {
+		final String catalog = "{\"class\":\"" + Catalog.class.getName()
+				+ "\",\"prices\":$%d,\"ratio\":%%0}";
+		final Catalog[] result = new JsonSerializer().fromJson(
+				"@{\"values\":[2.5]}<[$1,$2]," + String.format(catalog, 3)
+						+ "," + String.format(catalog, 4)
+						+ ",{\"a\":%0},{\"a\":%0}>", Catalog[].class);
+		final Catalog first = result[0];
+		final Catalog second = result[1];
+		assertEquals(2.5, ((Number) first.getPrices().get("a")).doubleValue(),
+				0.0);
+		assertEquals(2.5, first.getRatio(), 0.0);
+		assertEquals(2.5, second.getRatio(), 0.0);
+
+		// each type is converted once, in spite of the ratios
+		assertSame(first.getPrices().get("a"), second.getPrices().get("a"));
+	}
+
+	@Test(expected = DeserializationProcessor.ParseException.class)
+	public void testSharedValueWithoutTable() {
+		new JsonSerializer().fromJson("[%0]", Object[].class);
+	}
+
+	@Test
+	public void testTreeGraphMode() {
+		final Message message = newMessage("m", 3);
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withGraphMode(JsonGraphMode.TREE));
+		final String json = ser.toJson(message);
+		assertTrue(json.startsWith("{"));
+		assertFalse(json.matches(".*\\$[0-9].*"));
+
+		// the shared object is written in each place
+		final Message result = ser.fromJson(json, Message.class);
+		assertEquals("m", result.getPojo().getValue());
+		assertEquals("m1", result.getPojos().get(1).getValue());
+		assertEquals("m", result.getPojos().get(1).getReference().getValue());
+		assertFalse(result.getPojo() == result.getPojos().get(1)
+				.getReference());
+		assertArrayEquals(new int[] { 3, 4 }, result.getCounts());
+		assertEquals("m", ser.query(json,
+				JsonPath.compile("pojos[2].reference.value"), String.class));
+		assertEquals("m2", ser.fromJson(JsonTape.parse(json), Message.class)
+				.getPojos().get(2).getValue());
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testTreeGraphModeCycle() {
+		final Pojo pojo = new Pojo();
+		pojo.setReference(pojo);
+		new JsonSerializer(null,
+				JsonOptions.DEFAULT.withGraphMode(JsonGraphMode.TREE))
+				.toJson(pojo);
+	}
+
+	@Test
+	public void testTreeGraphModeDeep() {
+		final Pojo head = new Pojo();
+		Pojo pojo = head;
+		for (int i = 1; i < 300; i++) {
+			pojo.setReference(new Pojo());
+			pojo = pojo.getReference();
+		}
+		pojo.setValue("last");
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withGraphMode(JsonGraphMode.TREE));
+		final String json = ser.toJson(head);
+		assertFalse(json.matches(".*\\$[0-9].*"));
+		assertEquals(json, new JsonSerializer(null, JsonOptions.DEFAULT
+				.withGraphMode(JsonGraphMode.AUTO)).toJson(head));
+
+		Pojo result = ser.fromJson(json, Pojo.class);
+		for (int i = 1; i < 300; i++) {
+			result = result.getReference();
+		}
+		assertEquals("last", result.getValue());
+	}
+
+	@Test
+	public void testAutoGraphMode() {
+		final JsonSerializer ser = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withGraphMode(JsonGraphMode.AUTO));
+		final JsonSerializer tree = new JsonSerializer(null,
+				JsonOptions.DEFAULT.withGraphMode(JsonGraphMode.TREE));
+
+		// shared object: heap
+		final Message shared = newMessage("s", 2);
+		assertEquals(new JsonSerializer().toJson(shared), ser.toJson(shared));
+
+		// no shared object: tree
+		final Message message = newMessage("t", 2);
+		for (final Pojo pojo : message.getPojos()) {
+			pojo.setReference(null);
+		}
+		final String json = ser.toJson(message);
+		assertEquals(tree.toJson(message), json);
+		assertFalse(json.matches(".*\\$[0-9].*"));
+		assertEquals("t1", ser.fromJson(json, Message.class).getPojos().get(1)
+				.getValue());
+
+		// cycle: heap
+		final Pojo pojo = new Pojo();
+		pojo.setReference(new Pojo());
+		pojo.getReference().setReference(pojo);
+		final Pojo result = ser.fromJson(ser.toJson(pojo), Pojo.class);
+		assertSame(result, result.getReference().getReference());
+	}
 }